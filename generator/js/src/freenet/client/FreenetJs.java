@@ -6,6 +6,7 @@ import com.google.gwt.user.client.Window.ClosingEvent;
 import com.google.gwt.user.client.Window.ClosingHandler;
 import com.google.gwt.user.client.ui.RootPanel;
 
+import freenet.client.connection.EventSourceConnectionManager;
 import freenet.client.connection.IConnectionManager;
 import freenet.client.connection.KeepaliveManager;
 import freenet.client.connection.SharedConnectionManager;
@@ -50,7 +51,12 @@ public class FreenetJs implements EntryPoint {
 		exportStaticMethod();
 
 		requestId = RootPanel.get("requestId").getElement().getAttribute("value");
-		cm = new SharedConnectionManager(new DefaultUpdateManager());
+		// Each page has its own event stream if the browser supports it, otherwise one tab long polls for all of them
+		if (EventSourceConnectionManager.isSupported()) {
+			cm = new EventSourceConnectionManager(new DefaultUpdateManager());
+		} else {
+			cm = new SharedConnectionManager(new DefaultUpdateManager());
+		}
 		keepaliveManager = new KeepaliveManager();
 		cm.openConnection();
 		keepaliveManager.openConnection();
@@ -39,6 +39,8 @@ public class UpdaterConstants {
 
 	public static final String	notificationPath			= "/pushnotifications/";
 
+	public static final String	eventsPath					= "/pushevents/";
+
 	public static final String	keepalivePath				= "/keepalive/";
 
 	public static final String	failoverPath				= "/failover/";
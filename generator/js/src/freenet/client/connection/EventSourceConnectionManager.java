@@ -0,0 +1,112 @@
+package freenet.client.connection;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+import freenet.client.FreenetJs;
+import freenet.client.UpdaterConstants;
+import freenet.client.update.IUpdateManager;
+
+/**
+ * This ConnectionManager receives the notifications for this page only, as Server-Sent Events. Unlike long polling it doesn't need a leader tab, and it doesn't hold a
+ * thread on the server between notifications. The browser reconnects by itself if the connection drops. If the stream can't be opened at all, e.g. the server doesn't
+ * support it, it falls back to a SharedConnectionManager.
+ */
+public class EventSourceConnectionManager implements IConnectionManager {
+
+	/** EventSource.CLOSED: the browser won't reconnect */
+	private static final int		CLOSED		= 2;
+
+	/** The UpdateManager that gets notified when data is received */
+	private IUpdateManager			updateManager;
+
+	/** The EventSource, while open */
+	private JavaScriptObject		eventSource	= null;
+
+	/** Did the stream open successfully at least once? */
+	private boolean					opened		= false;
+
+	/** The long polling fallback, if the stream couldn't be opened */
+	private IConnectionManager		fallback	= null;
+
+	public EventSourceConnectionManager(IUpdateManager updateManager) {
+		this.updateManager = updateManager;
+	}
+
+	/** @return Whether the browser supports EventSource */
+	public static native boolean isSupported() /*-{
+												return !!$wnd.EventSource;
+												}-*/;
+
+	@Override
+	public void openConnection() {
+		if (updateManager == null) {
+			throw new RuntimeException("You must set the UpdateManager before opening the connection!");
+		}
+		eventSource = open(UpdaterConstants.eventsPath + "?requestId=" + FreenetJs.requestId);
+	}
+
+	@Override
+	public void closeConnection() {
+		if (eventSource != null) {
+			close(eventSource);
+			eventSource = null;
+		}
+		if (fallback != null) {
+			fallback.closeConnection();
+		}
+	}
+
+	/** Called when the stream is (re)opened */
+	private void onOpen() {
+		FreenetJs.log("Event stream opened");
+		opened = true;
+	}
+
+	/** Called for each notification. The data is the same as a successful long polling reply without the SUCCESS: prefix */
+	private void onMessage(String data) {
+		FreenetJs.log("Event stream message:" + data);
+		// The notification is always for this page, so drop the requestId
+		updateManager.updated(data.substring(data.indexOf(UpdaterConstants.SEPARATOR) + 1));
+	}
+
+	/** Called on errors. If closed is false, the browser is reconnecting by itself */
+	private void onError(boolean closed) {
+		FreenetJs.log("Event stream error closed:" + closed);
+		if (closed == false) {
+			return;
+		}
+		eventSource = null;
+		if (opened) {
+			// The server has cleaned up this page, so the stopping is expected
+			FreenetJs.isPushingCancelledExpected = true;
+			FreenetJs.stop();
+		} else {
+			// Never managed to open the stream, so use long polling instead
+			FreenetJs.log("Falling back to long polling");
+			fallback = new SharedConnectionManager(updateManager);
+			fallback.openConnection();
+		}
+	}
+
+	/** Opens an EventSource and registers the callbacks */
+	private native JavaScriptObject open(String url) /*-{
+														var self = this;
+														var source = new $wnd.EventSource(url);
+														source.onopen = $entry(function(event) {
+															self.@freenet.client.connection.EventSourceConnectionManager::onOpen()();
+														});
+														source.onmessage = $entry(function(event) {
+															self.@freenet.client.connection.EventSourceConnectionManager::onMessage(Ljava/lang/String;)(event.data);
+														});
+														source.onerror = $entry(function(event) {
+															self.@freenet.client.connection.EventSourceConnectionManager::onError(Z)(source.readyState == @freenet.client.connection.EventSourceConnectionManager::CLOSED);
+														});
+														return source;
+														}-*/;
+
+	/** Closes an EventSource */
+	private static native void close(JavaScriptObject source) /*-{
+																source.close();
+																}-*/;
+
+}
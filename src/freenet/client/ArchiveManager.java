@@ -13,6 +13,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -30,6 +31,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.MutableBoolean;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
@@ -116,12 +118,25 @@ public class ArchiveManager {
 	private final LRUMap<FreenetURI, ArchiveStoreContext> archiveHandlers;
 
 	// Data cache
-	/** Maximum number of cached ArchiveStoreItems */
+	/** Maximum number of cached ArchiveStoreItems. The cache is trimmed by size, see
+	 * ITEM_OVERHEAD, so this is only a backstop. */
 	final int maxCachedElements;
 	/** Maximum cached data in bytes */
 	final long maxCachedData;
-	/** Currently cached data in bytes */
+	/** Currently cached data in bytes, including ITEM_OVERHEAD for each item */
 	private long cachedData;
+	/** What each cached item costs apart from its data, so lots of tiny files and error
+	 * items are bounded by the size limit too. */
+	static final long ITEM_OVERHEAD = 256;
+	/** Don't keep an indexed archive bigger than this fraction of the cache. */
+	static final int MAX_INDEXED_FRACTION = 4;
+	/** If true, uncompressed TAR archives are indexed and files are copied out of them when
+	 * they are asked for, rather than unpacking everything. */
+	private volatile boolean indexedExtraction = true;
+	private final AtomicLong archivesIndexed = new AtomicLong();
+	private final AtomicLong filesExtracted = new AtomicLong();
+	private final AtomicLong bytesExtracted = new AtomicLong();
+	private final AtomicLong bytesNotExtracted = new AtomicLong();
 	/** Map from ArchiveKey to ArchiveStoreElement */
 	private final LRUMap<ArchiveKey, ArchiveStoreItem> storedData;
 	/** Bucket Factory */
@@ -213,23 +228,58 @@ public class ArchiveManager {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
 		ArchiveKey k = new ArchiveKey(key, filename);
 		ArchiveStoreItem asi = null;
+		ArchiveStoreItem indexed = null;
 		synchronized (this) {
 			asi = storedData.get(k);
-			if(asi == null) return null;
-			// Promote to top of LRU
-			storedData.push(k, asi);
+			if(asi != null) {
+				// Promote to top of LRU
+				storedData.push(k, asi);
+			} else {
+				ArchiveKey indexKey = new ArchiveKey(key, IndexedArchiveStoreItem.INDEX_NAME);
+				indexed = storedData.get(indexKey);
+				if(indexed == null) return null;
+				storedData.push(indexKey, indexed);
+			}
 		}
+		if(asi == null)
+			return extractFromIndex((IndexedArchiveStoreItem)indexed, key, filename);
 		if(logMINOR) Logger.minor(this, "Found data");
 		return asi.getReaderBucket();
 	}
 
+	/**
+	 * Copy a file out of a cached archive, and cache it unless it is too big.
+	 * @return A bucket the caller must free, or null if the archive doesn't contain the file.
+	 */
+	private Bucket extractFromIndex(IndexedArchiveStoreItem indexed, FreenetURI key, String filename) throws ArchiveFailureException {
+		Bucket data;
+		try {
+			data = indexed.extract(filename, tempBucketFactory);
+		} catch (IOException e) {
+			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+		}
+		if(data == null) return null;
+		long size = data.size();
+		filesExtracted.incrementAndGet();
+		bytesExtracted.addAndGet(size);
+		bytesNotExtracted.addAndGet(-size);
+		if(logMINOR) Logger.minor(this, "Extracted "+filename+" ("+size+" bytes) from indexed archive "+key);
+		if(size > maxArchivedFileSize) return data; // Too big to cache, but they asked for it.
+		RealArchiveStoreItem element = new RealArchiveStoreItem(indexed.context, key, filename, data);
+		element.addToContext();
+		Bucket reader = element.getReaderBucket();
+		pushStoreElement(element);
+		trimStoredData();
+		return reader;
+	}
+
 	/**
 	 * Remove a file from the cache. Called after it has been removed from its
 	 * ArchiveHandler.
 	 * @param item The ArchiveStoreItem to remove.
 	 */
 	synchronized void removeCachedItem(ArchiveStoreItem item) {
-		long size = item.spaceUsed();
+		long size = cost(item);
 		storedData.removeKey(item.key);
 		// Hard disk space limit = remove it here.
 		// Soft disk space limit would be to remove it outside the lock.
@@ -349,6 +399,8 @@ public class ArchiveManager {
 
 			if(ARCHIVE_TYPE.ZIP == archiveType) {
 				handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
+			} else if(ARCHIVE_TYPE.TAR == archiveType && indexedExtraction) {
+				handleIndexedTARArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
 			} else if(ARCHIVE_TYPE.TAR == archiveType) {
 				 // COMPRESS-449 workaround, see https://freenet.mantishub.io/view.php?id=6921
 				handleTARArchive(ctx, key, new SkipShieldingInputStream(is), element, callback, gotElement, throwAtExit, context);
@@ -366,6 +418,99 @@ public class ArchiveManager {
 	}
 	}
 
+	/**
+	 * Copy the uncompressed archive to a temp bucket, indexing it as we go, then only copy out the
+	 * file the caller asked for (and the metadata). Other files are copied out of the cached
+	 * archive when they are asked for, see getCached(). If the archive is too big to cache, all
+	 * the files small enough are copied out now instead.
+	 */
+	private void handleIndexedTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+		if(logMINOR) Logger.minor(this, "Indexing a TAR Archive");
+		IndexedArchiveStoreItem indexed;
+		RandomAccessBucket archive = null;
+		// Like TarArchiveInputStream, we stop at the end of archive marker, so close the
+		// input or the decompressor thread may block.
+		try (InputStream is = data) {
+			archive = tempBucketFactory.makeBucket(-1);
+			TarIndex index;
+			try (OutputStream os = archive.getOutputStream()) {
+				index = TarIndex.copyAndIndex(is, os, key);
+			}
+			indexed = new IndexedArchiveStoreItem(ctx, key, index, archive.toRandomAccessBuffer());
+			archive = null;
+		} catch (IOException e) {
+			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+		} finally {
+			if(archive != null) archive.free();
+		}
+		TarIndex index = indexed.getIndex();
+		archivesIndexed.incrementAndGet();
+		boolean cacheArchive = indexed.spaceUsed() <= maxCachedData / MAX_INDEXED_FRACTION;
+		if(cacheArchive) {
+			indexed.addToContext();
+			pushStoreElement(indexed);
+		}
+		long extracted = 0;
+		try {
+			HashSet<String> names = new HashSet<String>();
+			for(String name : index.names()) {
+				if(index.get(name).size <= maxArchivedFileSize)
+					names.add(name);
+			}
+			if(index.get(METADATA_NAME) != null) {
+				extracted += extractToStore(indexed, ctx, key, METADATA_NAME, gotElement, element, callback, context);
+			} else {
+				generateMetadata(ctx, key, names, gotElement, element, callback, context);
+			}
+			if(!cacheArchive) {
+				// We can't keep the archive, so cache every file small enough, as
+				// handleTARArchive() does, rather than fetching the archive again for each one.
+				for(String name : names) {
+					if(!name.equals(METADATA_NAME))
+						extracted += extractToStore(indexed, ctx, key, name, gotElement, element, callback, context);
+				}
+			}
+			if(element != null && !gotElement.value && !element.equals(METADATA_NAME))
+				extracted += extractToStore(indexed, ctx, key, element, gotElement, element, callback, context);
+			trimStoredData();
+		} finally {
+			if(!cacheArchive) indexed.innerClose();
+		}
+		long saved = index.dataSize() - extracted;
+		bytesNotExtracted.addAndGet(saved);
+		if(logMINOR) Logger.minor(this, "Indexed "+index.size()+" files in "+key+": extracted "+extracted+" bytes, saved "+saved+" bytes"+(cacheArchive ? "" : ", archive too big to cache"));
+		if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
+
+		if((!gotElement.value) && element != null)
+			callback.notInArchive(context);
+	}
+
+	/** Copy a file out of an indexed archive into the cache, or straight to the callback if it
+	 * is the file they want and it is too big to cache.
+	 * @return The number of bytes copied. */
+	private long extractToStore(IndexedArchiveStoreItem indexed, ArchiveStoreContext ctx, FreenetURI key, String name, MutableBoolean gotElement, String element, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException {
+		TarIndex.Member member = indexed.getIndex().get(name);
+		if(member == null) return 0;
+		if(member.size > maxArchivedFileSize && !name.equals(element)) return 0;
+		Bucket output;
+		try {
+			output = indexed.extract(name, tempBucketFactory);
+		} catch (IOException e) {
+			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+		}
+		if(output == null) return 0;
+		filesExtracted.incrementAndGet();
+		bytesExtracted.addAndGet(member.size);
+		if(member.size <= maxArchivedFileSize) {
+			addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
+		} else {
+			// We are here because they asked for this file.
+			callback.gotBucket(output, context);
+			gotElement.value = true;
+		}
+		return member.size;
+	}
+
 	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		if(logMINOR) Logger.minor(this, "Handling a TAR Archive");
 		TarArchiveInputStream tarIS = null;
@@ -537,7 +682,7 @@ outerZIP:		while(true) {
 		}
 	}
 
-	private String stripLeadingSlashes(String name) {
+	static String stripLeadingSlashes(String name) {
 		while(name.length() > 1 && name.charAt(0) == '/')
 			name = name.substring(1);
 		return name;
@@ -637,16 +782,7 @@ outerZIP:		while(true) {
 		ErrorArchiveStoreItem element = new ErrorArchiveStoreItem(ctx, key, name, error, tooBig);
 		element.addToContext();
 		if(logMINOR) Logger.minor(this, "Adding error element: "+element+" for "+key+ ' ' +name);
-		ArchiveStoreItem oldItem;
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			if(oldItem != null) {
-				oldItem.close();
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-			}
-		}
+		pushStoreElement(element);
 	}
 
 	/**
@@ -664,27 +800,36 @@ outerZIP:		while(true) {
 		RealArchiveStoreItem element = new RealArchiveStoreItem(ctx, key, name, temp);
 		element.addToContext();
 		if(logMINOR) Logger.minor(this, "Adding store element: "+element+" ( "+key+ ' ' +name+" size "+element.spaceUsed()+" )");
-		ArchiveStoreItem oldItem;
 		// Let it throw, if it does something is drastically wrong
 		Bucket matchBucket = null;
 		if((!gotElement.value) && name.equals(callbackName)) {
 			matchBucket = element.getReaderBucket();
 		}
+		pushStoreElement(element);
+		if(matchBucket != null) {
+			callback.gotBucket(matchBucket, context);
+			gotElement.value = true;
+		}
+		return element;
+	}
+
+	/** Add an item to the cache, replacing any item with the same key. */
+	private void pushStoreElement(ArchiveStoreItem element) {
+		ArchiveStoreItem oldItem;
 		synchronized (this) {
 			oldItem = storedData.get(element.key);
 			storedData.push(element.key, element);
-			cachedData += element.spaceUsed();
+			cachedData += cost(element);
 			if(oldItem != null) {
-				cachedData -= oldItem.spaceUsed();
+				cachedData -= cost(oldItem);
 				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
 				oldItem.close();
 			}
 		}
-		if(matchBucket != null) {
-			callback.gotBucket(matchBucket, context);
-			gotElement.value = true;
-		}
-		return element;
+	}
+
+	private static long cost(ArchiveStoreItem item) {
+		return item.spaceUsed() + ITEM_OVERHEAD;
 	}
 
 	/**
@@ -702,7 +847,7 @@ outerZIP:		while(true) {
 					return;
 				}
 				item = storedData.popValue();
-				long space = item.spaceUsed();
+				long space = cost(item);
 				cachedData -= space;
 				// Hard limits = delete file within lock, soft limits = delete outside of lock
 				// Here we use a hard limit
@@ -713,4 +858,37 @@ outerZIP:		while(true) {
 		}
 	}
 
+	/** Index uncompressed TAR archives and copy files out of them on demand, rather than
+	 * unpacking every file when the archive is fetched. */
+	public void setIndexedExtraction(boolean indexed) {
+		indexedExtraction = indexed;
+	}
+
+	public boolean isIndexedExtraction() {
+		return indexedExtraction;
+	}
+
+	public synchronized long getCachedDataSize() {
+		return cachedData;
+	}
+
+	public long getArchivesIndexed() {
+		return archivesIndexed.get();
+	}
+
+	/** @return The number of files copied out of indexed archives. */
+	public long getFilesExtracted() {
+		return filesExtracted.get();
+	}
+
+	public long getBytesExtracted() {
+		return bytesExtracted.get();
+	}
+
+	/** @return Bytes in indexed archives which were never copied out, i.e. the extraction
+	 * which would have been done by unpacking every file. */
+	public long getBytesNotExtracted() {
+		return bytesNotExtracted.get();
+	}
+
 }
@@ -0,0 +1,125 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBuffer;
+
+/**
+ * A whole uncompressed TAR archive, kept in the archive cache together with its index, so that
+ * files can be read from it when they are asked for rather than all being unpacked up front.
+ * It is cached under a name no file in an archive can have.
+ */
+class IndexedArchiveStoreItem extends ArchiveStoreItem {
+
+	/** TAR names end at the first NUL, so no file can be called this. */
+	static final String INDEX_NAME = "\u0000index";
+
+	private final TarIndex index;
+	private final RandomAccessBuffer data;
+	private final long size;
+	/** Number of files being read right now */
+	private int readers;
+	/** Dropped from the cache, free the data once the readers have finished. */
+	private boolean closed;
+
+	IndexedArchiveStoreItem(ArchiveStoreContext ctx, FreenetURI key, TarIndex index, RandomAccessBuffer data) {
+		super(new ArchiveKey(key, INDEX_NAME), ctx);
+		this.index = index;
+		this.data = data;
+		this.size = data.size();
+	}
+
+	TarIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Copy a file out of the archive.
+	 * @return A new bucket owned by the caller, or null if there is no such file or the archive
+	 * has been dropped from the cache.
+	 */
+	Bucket extract(String name, BucketFactory bf) throws IOException {
+		TarIndex.Member member = index.get(name);
+		if(member == null) return null;
+		synchronized(this) {
+			if(closed) return null;
+			readers++;
+		}
+		Bucket output = null;
+		OutputStream os = null;
+		try {
+			output = bf.makeBucket(member.size);
+			os = output.getOutputStream();
+			byte[] buf = new byte[(int)Math.min(32768, Math.max(member.size, 1))];
+			long offset = member.offset;
+			long end = offset + member.size;
+			while(offset < end) {
+				int length = (int)Math.min(buf.length, end - offset);
+				data.pread(offset, buf, 0, length);
+				os.write(buf, 0, length);
+				offset += length;
+			}
+			os.close();
+			os = null;
+			Bucket ret = output;
+			output = null;
+			return ret;
+		} finally {
+			if(os != null) {
+				try {
+					os.close();
+				} catch (IOException e) {
+					// Ignore, already failing.
+				}
+			}
+			if(output != null) output.free();
+			release();
+		}
+	}
+
+	private void release() {
+		synchronized(this) {
+			readers--;
+			if(!(closed && readers == 0)) return;
+		}
+		data.free();
+	}
+
+	@Override
+	void innerClose() {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+			if(readers > 0) return;
+		}
+		data.free();
+	}
+
+	@Override
+	long spaceUsed() {
+		return size;
+	}
+
+	@Override
+	Bucket getDataOrThrow() throws ArchiveFailureException {
+		throw new ArchiveFailureException("Not a file in the archive");
+	}
+
+	@Override
+	Bucket getReaderBucket() throws ArchiveFailureException {
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+": "+key.key+" ("+index.size()+" files, "+size+" bytes)";
+	}
+
+}
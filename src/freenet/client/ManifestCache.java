@@ -0,0 +1,148 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * Keeps recently parsed manifests, so that fetching many files from the same freesite doesn't
+ * parse the same (possibly huge) manifest every time. Only manifests under a CHK are kept,
+ * because they can never change. Manifests are stored and returned as clones, since fetchers
+ * modify the metadata they are working on.
+ *
+ * Manifests are kept in their compact, undecoded form (see {@link ManifestEntries}), and the
+ * total size is bounded; the least recently used manifests are dropped first.
+ */
+public class ManifestCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ManifestCache.class);
+	}
+
+	public static final long DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+
+	/** Roughly what a cached manifest costs apart from its entries */
+	static final int ENTRY_OVERHEAD = 512;
+
+	private final long maxSize;
+	private long size;
+	/** In access order, so the first entry is the least recently used */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private long hits;
+	private long misses;
+
+	/** @param maxSize The maximum total size of the cached manifests in bytes. */
+	public ManifestCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	private static final class Key {
+
+		final FreenetURI uri;
+		/** The name of the manifest within the container at uri, or null if uri is the manifest. */
+		final String internalName;
+
+		Key(FreenetURI uri, String internalName) {
+			this.uri = uri;
+			this.internalName = internalName;
+		}
+
+		@Override
+		public int hashCode() {
+			return uri.hashCode() * 31 + (internalName == null ? 0 : internalName.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(internalName == null ? k.internalName != null : !internalName.equals(k.internalName)) return false;
+			return uri.equals(k.uri);
+		}
+
+	}
+
+	private static final class Entry {
+
+		final Metadata metadata;
+		final long size;
+
+		Entry(Metadata metadata, long size) {
+			this.metadata = metadata;
+			this.size = size;
+		}
+
+	}
+
+	/**
+	 * @param uri The key the manifest was fetched from. Only CHKs are cached.
+	 * @param internalName The name of the manifest within the container at uri, or null.
+	 * @return A copy of the parsed manifest, or null if it isn't cached.
+	 */
+	public Metadata get(FreenetURI uri, String internalName) {
+		if(!uri.isCHK()) return null;
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(new Key(uri, internalName));
+			if(entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		if(logMINOR) Logger.minor(this, "Found parsed manifest for "+uri+" "+internalName);
+		return (Metadata) entry.metadata.clone();
+	}
+
+	/**
+	 * Remember a parsed manifest. It is copied, so the caller can go on using it. Does nothing
+	 * if the metadata isn't a simple manifest or the key isn't a CHK.
+	 */
+	public void put(FreenetURI uri, String internalName, Metadata metadata) {
+		if(!uri.isCHK() || !metadata.isSimpleManifest()) return;
+		long length = metadata.indexedManifestSize() + ENTRY_OVERHEAD;
+		if(length > maxSize) return;
+		Key key = new Key(uri, internalName);
+		Entry entry = new Entry((Metadata) metadata.clone(), length);
+		synchronized(this) {
+			Entry old = entries.put(key, entry);
+			if(old != null) size -= old.size;
+			size += length;
+			Iterator<Entry> it = entries.values().iterator();
+			while(size > maxSize && it.hasNext()) {
+				size -= it.next().size;
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+}
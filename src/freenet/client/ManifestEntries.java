@@ -0,0 +1,400 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The entries of a parsed simple manifest, decoded only when they are looked up. The names
+ * and the serialized metadata of all entries are kept in one byte array, with an index sorted
+ * by a hash of the name, so finding a document is a binary search and only that document is
+ * parsed. Parsing
+ * a manifest with tens of thousands of files therefore creates a handful of objects rather
+ * than a Metadata (and its ClientMetadata, keys etc) per file.
+ *
+ * Decoded documents are kept, so changes to them are seen by later lookups, just as with a
+ * HashMap. An entry whose metadata turns out to be invalid is still an entry: it is counted and
+ * iterated, with a null value, and document() throws for it, so the fetcher can report invalid
+ * metadata rather than a missing file. Adding entries isn't supported; removing them is.
+ */
+final class ManifestEntries extends AbstractMap<String, Metadata> {
+
+	/** Names and metadata of all entries */
+	private final byte[] data;
+	/** Four ints per entry: name offset, name length, metadata offset, metadata length.
+	 * Sorted by the hash of the name and then by name, and names are unique. */
+	private final int[] index;
+	/** The hash of the name of each entry, in index order */
+	private final int[] hashes;
+	private final int count;
+	/** Entries which have been decoded, by position in the index. Created when needed. */
+	private HashMap<Integer, Metadata> decoded;
+	/** Entries which have been removed, by position in the index. */
+	private boolean[] removed;
+	private int removedCount;
+
+	private ManifestEntries(byte[] data, int[] index, int[] hashes, int count) {
+		this.data = data;
+		this.index = index;
+		this.hashes = hashes;
+		this.count = count;
+	}
+
+	/** Deep copy the entries. The raw data is immutable so it is shared; documents which have
+	 * already been decoded are cloned. */
+	synchronized ManifestEntries copy() {
+		ManifestEntries copy = new ManifestEntries(data, index, hashes, count);
+		if(removed != null) {
+			copy.removed = removed.clone();
+			copy.removedCount = removedCount;
+		}
+		if(decoded != null) {
+			copy.decoded = new HashMap<Integer, Metadata>();
+			for(Map.Entry<Integer, Metadata> entry : decoded.entrySet())
+				copy.decoded.put(entry.getKey(), (Metadata)entry.getValue().clone());
+		}
+		return copy;
+	}
+
+	/**
+	 * Read the entries of a simple manifest.
+	 * @param dis Positioned just after the entry count.
+	 * @param entryCount The number of entries.
+	 * @param length The length of the whole metadata, for sanity checks.
+	 */
+	static ManifestEntries read(DataInputStream dis, int entryCount, long length) throws IOException, MetadataParseException {
+		// The names and data can't be longer than the whole metadata, so read them straight
+		// into one array and don't trust entryCount for the allocation.
+		byte[] data = new byte[(int)Math.min(Math.max(length, 0), 1024 * 1024)];
+		int size = 0;
+		int[] entries = new int[4 * (int)Math.min(entryCount, Math.max(16, length / 4))];
+		// Hash of the name and position, see below.
+		long[] keys = new long[entries.length / 4];
+		for(int i=0;i<entryCount;i++) {
+			int nameLength = dis.readShort();
+			if(nameLength < 0)
+				throw new MetadataParseException("Invalid manifest entry name length: "+nameLength);
+			data = ensureCapacity(data, size + nameLength, length);
+			dis.readFully(data, size, nameLength);
+			int nameOffset = size;
+			size += nameLength;
+			if(i == keys.length)
+				keys = Arrays.copyOf(keys, keys.length * 2);
+			keys[i] = ((long)hash(data, nameOffset, nameLength) << 32) | i;
+			short len = dis.readShort();
+			if(len < 0)
+				throw new MetadataParseException("Invalid manifest entry size: "+len);
+			if(len > length)
+				throw new MetadataParseException("Impossibly long manifest entry: "+len+" - metadata size "+length);
+			data = ensureCapacity(data, size + len, length);
+			dis.readFully(data, size, len);
+			int dataOffset = size;
+			size += len;
+			if(4*i+4 > entries.length)
+				entries = Arrays.copyOf(entries, entries.length * 2);
+			entries[4*i] = nameOffset;
+			entries[4*i+1] = nameLength;
+			entries[4*i+2] = dataOffset;
+			entries[4*i+3] = len;
+		}
+		if(data.length - size > size / 8)
+			data = Arrays.copyOf(data, size);
+		// Sorting primitives by hash is much faster than comparing names, which are scattered
+		// over a big array. Only entries with the same hash have their names compared.
+		Arrays.sort(keys, 0, entryCount);
+		int[] order = new int[entryCount];
+		for(int i=0;i<entryCount;i++) order[i] = (int)keys[i];
+		Sorter sorter = new Sorter(data, entries);
+		int[] tmp = null;
+		for(int start=0;start<entryCount;) {
+			int end = start + 1;
+			while(end < entryCount && (keys[end] >>> 32) == (keys[start] >>> 32)) end++;
+			if(end - start > 1) {
+				if(tmp == null) tmp = new int[entryCount];
+				// Stable, so of several entries with the same name the last one read comes last.
+				sorter.sort(order, tmp, start, end);
+			}
+			start = end;
+		}
+		int[] index = new int[4 * entryCount];
+		int[] hashes = new int[entryCount];
+		int count = 0;
+		for(int i=0;i<entryCount;i++) {
+			int e = order[i];
+			int hash = (int)(keys[i] >>> 32);
+			if(count > 0 && hashes[count-1] == hash && compareNames(data, index[4*(count-1)], index[4*(count-1)+1], data, entries[4*e], entries[4*e+1]) == 0) {
+				// Same name: the later one replaces it, as with HashMap.put().
+				count--;
+			}
+			System.arraycopy(entries, 4*e, index, 4*count, 4);
+			hashes[count] = hash;
+			count++;
+		}
+		if(count < entryCount) {
+			index = Arrays.copyOf(index, 4 * count);
+			hashes = Arrays.copyOf(hashes, count);
+		}
+		return new ManifestEntries(data, index, hashes, count);
+	}
+
+	/** FNV-1a with a final mix, over the UTF-8 bytes of a name. */
+	private static int hash(byte[] buf, int offset, int length) {
+		int h = 0x811c9dc5;
+		for(int i=0;i<length;i++) {
+			h ^= buf[offset+i] & 0xFF;
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/** Sorts positions in the unsorted index by name. Stable. */
+	private static final class Sorter {
+
+		private final byte[] data;
+		private final int[] entries;
+
+		Sorter(byte[] data, int[] entries) {
+			this.data = data;
+			this.entries = entries;
+		}
+
+		private int compare(int a, int b) {
+			return compareNames(data, entries[4*a], entries[4*a+1], data, entries[4*b], entries[4*b+1]);
+		}
+
+		void sort(int[] order, int[] tmp, int from, int to) {
+			if(to - from <= 1) return;
+			int mid = (from + to) >>> 1;
+			sort(order, tmp, from, mid);
+			sort(order, tmp, mid, to);
+			if(compare(order[mid-1], order[mid]) <= 0)
+				return; // Already in order.
+			System.arraycopy(order, from, tmp, from, to - from);
+			int i = from, j = mid, k = from;
+			while(i < mid && j < to) {
+				if(compare(tmp[i], tmp[j]) <= 0)
+					order[k++] = tmp[i++];
+				else
+					order[k++] = tmp[j++];
+			}
+			while(i < mid) order[k++] = tmp[i++];
+			while(j < to) order[k++] = tmp[j++];
+		}
+
+	}
+
+	private static byte[] ensureCapacity(byte[] data, int needed, long length) throws MetadataParseException {
+		if(needed <= data.length) return data;
+		if(needed > length)
+			throw new MetadataParseException("Manifest entries longer than the metadata: "+needed+" > "+length);
+		return Arrays.copyOf(data, (int)Math.min(Math.max(needed, data.length * 2L), length));
+	}
+
+	private static int compareNames(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+		int len = Math.min(aLength, bLength);
+		for(int i=0;i<len;i++) {
+			int x = a[aOffset+i] & 0xFF;
+			int y = b[bOffset+i] & 0xFF;
+			if(x != y) return x - y;
+		}
+		return aLength - bLength;
+	}
+
+	/** @return The position of the entry in the index, or -1. */
+	private int find(Object key) {
+		if(!(key instanceof String)) return -1;
+		byte[] name = ((String)key).getBytes(StandardCharsets.UTF_8);
+		int hash = hash(name, 0, name.length);
+		// Find the first entry with the hash, then the name among those with the same hash.
+		int low = 0;
+		int high = count;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(hashes[mid] < hash)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		high = low;
+		while(high < count && hashes[high] == hash) high++;
+		high--;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareNames(data, index[4*mid], index[4*mid+1], name, 0, name.length);
+			if(cmp < 0)
+				low = mid + 1;
+			else if(cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	private String nameAt(int i) {
+		return new String(data, index[4*i], index[4*i+1], StandardCharsets.UTF_8);
+	}
+
+	private synchronized boolean isRemoved(int i) {
+		return removed != null && removed[i];
+	}
+
+	/** @return The document at the given position, decoding it if necessary, or null if it has
+	 * been removed.
+	 * @throws MetadataParseException If the entry's metadata is invalid. */
+	private synchronized Metadata documentAt(int i) throws MetadataParseException {
+		if(isRemoved(i)) return null;
+		if(decoded != null) {
+			Metadata m = decoded.get(i);
+			if(m != null) return m;
+		}
+		Metadata m;
+		try {
+			m = Metadata.construct(Arrays.copyOfRange(data, index[4*i+2], index[4*i+2] + index[4*i+3]));
+		} catch (MetadataParseException e) {
+			throw new MetadataParseException("Invalid metadata for manifest entry \""+nameAt(i)+"\": "+e.getMessage());
+		}
+		if(decoded == null) decoded = new HashMap<Integer, Metadata>();
+		decoded.put(i, m);
+		return m;
+	}
+
+	/** @return The value for the map view: the document, or null if it is invalid. */
+	private Metadata valueAt(int i) {
+		try {
+			return documentAt(i);
+		} catch (MetadataParseException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get a document.
+	 * @return The document, or null if there is no such entry.
+	 * @throws MetadataParseException If there is an entry but its metadata is invalid.
+	 */
+	Metadata document(String name) throws MetadataParseException {
+		int i = find(name);
+		if(i < 0) return null;
+		return documentAt(i);
+	}
+
+	/**
+	 * Remove a document and return it.
+	 * @return The document, or null if there is no such entry.
+	 * @throws MetadataParseException If there is an entry but its metadata is invalid. The entry
+	 * isn't removed.
+	 */
+	Metadata removeDocument(String name) throws MetadataParseException {
+		int i = find(name);
+		if(i < 0) return null;
+		Metadata m = documentAt(i);
+		return removeAt(i) ? m : null;
+	}
+
+	private synchronized boolean removeAt(int i) {
+		if(removed == null) removed = new boolean[count];
+		if(removed[i]) return false;
+		removed[i] = true;
+		removedCount++;
+		if(decoded != null) decoded.remove(i);
+		return true;
+	}
+
+	@Override
+	public Metadata get(Object key) {
+		int i = find(key);
+		if(i < 0) return null;
+		return valueAt(i);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		int i = find(key);
+		if(i < 0) return false;
+		return !isRemoved(i);
+	}
+
+	@Override
+	public Metadata remove(Object key) {
+		int i = find(key);
+		if(i < 0) return null;
+		Metadata m = valueAt(i);
+		return removeAt(i) ? m : null;
+	}
+
+	/** Includes invalid entries. */
+	@Override
+	public synchronized int size() {
+		return count - removedCount;
+	}
+
+	/** @return The number of bytes of names and metadata held. */
+	long dataSize() {
+		return data.length + (index.length + hashes.length) * 4L;
+	}
+
+	/** Iterating decodes every entry. Invalid entries have a null value. */
+	@Override
+	public Set<Map.Entry<String, Metadata>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Metadata>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, Metadata>> iterator() {
+				return new Iterator<Map.Entry<String, Metadata>>() {
+
+					private int next = advance(0);
+					private int last = -1;
+
+					private int advance(int from) {
+						while(from < count && isRemoved(from)) from++;
+						return from;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next < count;
+					}
+
+					@Override
+					public Map.Entry<String, Metadata> next() {
+						if(next >= count) throw new NoSuchElementException();
+						last = next;
+						Metadata m = valueAt(next);
+						next = advance(next + 1);
+						return new SimpleImmutableEntry<String, Metadata>(nameAt(last), m);
+					}
+
+					@Override
+					public void remove() {
+						if(last < 0) throw new IllegalStateException();
+						ManifestEntries.this.remove(nameAt(last));
+						last = -1;
+					}
+
+				};
+			}
+
+			@Override
+			public int size() {
+				return ManifestEntries.this.size();
+			}
+
+		};
+	}
+
+}
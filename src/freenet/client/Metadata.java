@@ -9,10 +9,12 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -191,8 +193,11 @@ public class Metadata implements Cloneable, Serializable {
 	CompatibilityMode maxCompatMode = CompatibilityMode.COMPAT_UNKNOWN;
 
 	// Manifests
-	/** Manifest entries by name */
+	/** Manifest entries by name, for manifests built in memory */
 	HashMap<String, Metadata> manifestEntries;
+	/** Manifest entries of a parsed manifest, decoded as they are looked up. If this is set,
+	 * manifestEntries is null. Replaced by manifestEntries when serialized. */
+	private transient ManifestEntries indexedEntries;
 
 	/** Archive internal redirect: name of file in archive
 	 *  SympolicShortLink: Target name*/
@@ -245,6 +250,8 @@ public class Metadata implements Cloneable, Serializable {
 			for(int i=0;i<hashes.length;i++)
 				hashes[i] = orig.hashes[i].clone();
 		}
+		if(indexedEntries != null)
+			indexedEntries = orig.indexedEntries.copy();
 		if(manifestEntries != null) {
 			manifestEntries = new HashMap<String, Metadata>(orig.manifestEntries);
 			for(Map.Entry<String, Metadata> entry : manifestEntries.entrySet()) {
@@ -678,28 +685,10 @@ public class Metadata implements Cloneable, Serializable {
 			if(manifestEntryCount < 0)
 				throw new MetadataParseException("Invalid manifest entry count: "+manifestEntryCount);
 
-			manifestEntries = new HashMap<String, Metadata>();
-
-			// Parse the sub-Manifest.
-
+			// Only the names are looked at here, the entries are parsed when they are used.
 			if(logMINOR)Logger.minor(this, "Simple manifest, "+manifestEntryCount+" entries");
 
-			for(int i=0;i<manifestEntryCount;i++) {
-				short nameLength = dis.readShort();
-				byte[] buf = new byte[nameLength];
-				dis.readFully(buf);
-				String name = new String(buf, StandardCharsets.UTF_8).intern();
-				if(logMINOR) Logger.minor(this, "Entry "+i+" name "+name);
-				short len = dis.readShort();
-				if(len < 0)
-					throw new MetadataParseException("Invalid manifest entry size: "+len);
-				if(len > length)
-					throw new MetadataParseException("Impossibly long manifest entry: "+len+" - metadata size "+length);
-				byte[] data = new byte[len];
-				dis.readFully(data);
-				Metadata m = Metadata.construct(data);
-				manifestEntries.put(name, m);
-			}
+			indexedEntries = ManifestEntries.read(dis, manifestEntryCount, length);
 			if(logMINOR) Logger.minor(this, "End of manifest"); // Make it easy to search for it!
 		}
 
@@ -1275,11 +1264,35 @@ public class Metadata implements Cloneable, Serializable {
 		return documentType == DocumentType.SIMPLE_MANIFEST;
 	}
 
+	private Map<String, Metadata> entries() {
+		return indexedEntries != null ? indexedEntries : manifestEntries;
+	}
+
+	/** @return The size of the undecoded manifest entries held in memory, or 0 if the manifest
+	 * wasn't parsed from binary metadata. */
+	long indexedManifestSize() {
+		return indexedEntries == null ? 0 : indexedEntries.dataSize();
+	}
+
+	/** Serialize parsed manifests in the same form as manifests built in memory. */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		synchronized(this) {
+			if(indexedEntries != null) {
+				manifestEntries = new HashMap<String, Metadata>(indexedEntries);
+				indexedEntries = null;
+			}
+		}
+		out.defaultWriteObject();
+	}
+
 	/**
 	 * Get the sub-document in a manifest file with the given name.
-	 * @throws MetadataParseException
+	 * @throws MetadataParseException If the document exists but its metadata is invalid.
 	 */
-	public Metadata getDocument(String name) {
+	public Metadata getDocument(String name) throws MetadataParseException {
+		if(indexedEntries != null)
+			return indexedEntries.document(name);
+		checkDocument(name);
 		return manifestEntries.get(name);
 	}
 
@@ -1287,16 +1300,26 @@ public class Metadata implements Cloneable, Serializable {
 	 * Return and remove a specific document. Used in persistent requests
 	 * so that when removeFrom() is called, the default document won't be
 	 * removed, since it is being processed.
+	 * @throws MetadataParseException If the document exists but its metadata is invalid.
 	 */
-	public Metadata grabDocument(String name) {
+	public Metadata grabDocument(String name) throws MetadataParseException {
+		if(indexedEntries != null)
+			return indexedEntries.removeDocument(name);
+		checkDocument(name);
 		return manifestEntries.remove(name);
 	}
 
+	/** A parsed manifest with an invalid entry keeps a null value for it when serialized. */
+	private void checkDocument(String name) throws MetadataParseException {
+		if(manifestEntries.get(name) == null && manifestEntries.containsKey(name))
+			throw new MetadataParseException("Invalid metadata for manifest entry \""+name+"\"");
+	}
+
 	/**
 	 * The default document is the one which has an empty name.
-	 * @throws MetadataParseException
+	 * @throws MetadataParseException If the default document's metadata is invalid.
 	 */
-	public Metadata getDefaultDocument() {
+	public Metadata getDefaultDocument() throws MetadataParseException {
 		return getDocument("");
 	}
 
@@ -1304,19 +1327,22 @@ public class Metadata implements Cloneable, Serializable {
 	 * Return and remove the default document. Used in persistent requests
 	 * so that when removeFrom() is called, the default document won't be
 	 * removed, since it is being processed.
+	 * @throws MetadataParseException If the default document's metadata is invalid.
 	 */
-	public Metadata grabDefaultDocument() {
+	public Metadata grabDefaultDocument() throws MetadataParseException {
 		return grabDocument("");
 	}
 
 	/**
      * Get all documents in the manifest (ignores default doc).
-     * @throws MetadataParseException
+     * @throws MetadataParseException If any document's metadata is invalid.
      */
-    public HashMap<String, Metadata> getDocuments() {
+    public HashMap<String, Metadata> getDocuments() throws MetadataParseException {
     	HashMap<String, Metadata> docs = new HashMap<String, Metadata>();
-		for (Map.Entry<String, Metadata> entry: manifestEntries.entrySet()) {
+		for (Map.Entry<String, Metadata> entry: entries().entrySet()) {
         	String st = entry.getKey();
+        	if (entry.getValue() == null)
+        		throw new MetadataParseException("Invalid metadata for manifest entry \""+st+"\"");
         	if (!st.isEmpty())
         		docs.put(st, entry.getValue());
         }
@@ -1561,10 +1587,17 @@ public class Metadata implements Cloneable, Serializable {
 		}
 
 		if(documentType == DocumentType.SIMPLE_MANIFEST) {
-			dos.writeInt(manifestEntries.size());
+			// Decode everything first. Invalid entries can't be written, so leave them out of the
+			// count too.
+			Map<String, Metadata> entries = entries();
+			if(entries.containsValue(null)) {
+				entries = new HashMap<String, Metadata>(entries);
+				entries.values().removeAll(Collections.singleton(null));
+			}
+			dos.writeInt(entries.size());
 			boolean kill = false;
 			LinkedList<Metadata> unresolvedMetadata = null;
-			for(Map.Entry<String, Metadata> entry: manifestEntries.entrySet()) {
+			for(Map.Entry<String, Metadata> entry: entries.entrySet()) {
 				String name = entry.getKey();
 				byte[] nameData = name.getBytes(StandardCharsets.UTF_8);
 				if(nameData.length > Short.MAX_VALUE) throw new IllegalArgumentException("Manifest name too long");
@@ -1712,7 +1745,7 @@ public class Metadata implements Cloneable, Serializable {
 	}
 
 	public int countDocuments() {
-		return manifestEntries.size();
+		return entries().size();
 	}
 
 	/**
@@ -1794,10 +1827,13 @@ public class Metadata implements Cloneable, Serializable {
 		if(targetName != null)
 			dumpline(indent, sb, "Target name: "+targetName);
 
-		if(manifestEntries != null) {
-			for(Map.Entry<String, Metadata> entry : manifestEntries.entrySet()) {
+		if(manifestEntries != null || indexedEntries != null) {
+			for(Map.Entry<String, Metadata> entry : entries().entrySet()) {
 				dumpline(indent, sb, "Entry: "+entry.getKey()+":");
-				entry.getValue().dump(indent + 1, sb);
+				if(entry.getValue() == null)
+					dumpline(indent + 1, sb, "Invalid metadata");
+				else
+					entry.getValue().dump(indent + 1, sb);
 			}
 		}
 	}
@@ -0,0 +1,244 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarUtils;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * Where each file in an uncompressed TAR archive is, so that a single file can be read without
+ * unpacking the rest. Built in one pass while the archive is being copied somewhere seekable.
+ *
+ * Headers are parsed by commons-compress, so names come out the same as when the archive is
+ * unpacked with TarArchiveInputStream. GNU long names and PAX path headers are supported.
+ * As when unpacking, directories are skipped, leading slashes are removed and if a name occurs
+ * twice the first file wins.
+ */
+final class TarIndex {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(TarIndex.class);
+	}
+
+	static final int RECORD_SIZE = 512;
+	private static final int CHECKSUM_OFFSET = 148;
+	private static final int CHECKSUM_LENGTH = 8;
+	/** Longest GNU long name or PAX header we will read */
+	static final int MAX_EXTENDED_HEADER = 64 * 1024;
+
+	static final class Member {
+
+		/** Offset of the data in the archive */
+		final long offset;
+		final long size;
+
+		Member(long offset, long size) {
+			this.offset = offset;
+			this.size = size;
+		}
+
+	}
+
+	private final Map<String, Member> members;
+	/** Total size of the files, not counting headers and padding */
+	private final long dataSize;
+	/** Length of the archive up to the end of the last file */
+	private final long archiveLength;
+
+	private TarIndex(Map<String, Member> members, long dataSize, long archiveLength) {
+		this.members = members;
+		this.dataSize = dataSize;
+		this.archiveLength = archiveLength;
+	}
+
+	Member get(String name) {
+		return members.get(name);
+	}
+
+	/** @return The names of all files, in the order they appear in the archive. */
+	Iterable<String> names() {
+		return Collections.unmodifiableSet(members.keySet());
+	}
+
+	int size() {
+		return members.size();
+	}
+
+	long dataSize() {
+		return dataSize;
+	}
+
+	long archiveLength() {
+		return archiveLength;
+	}
+
+	/**
+	 * Copy an uncompressed TAR archive and index it at the same time. Stops at the end of archive
+	 * marker, so trailing padding isn't copied.
+	 * @param key The key of the archive, for logging.
+	 * @throws ArchiveFailureException If the archive is corrupt.
+	 */
+	static TarIndex copyAndIndex(InputStream in, OutputStream out, FreenetURI key) throws IOException, ArchiveFailureException {
+		LinkedHashMap<String, Member> members = new LinkedHashMap<String, Member>();
+		byte[] header = new byte[RECORD_SIZE];
+		byte[] buf = new byte[32768];
+		long position = 0;
+		long dataSize = 0;
+		// Set by a GNU long name or PAX header, applies to the next entry.
+		String nextName = null;
+		while(true) {
+			if(!readRecord(in, header)) break; // Truncated, but so is what TarArchiveInputStream accepts.
+			if(isZero(header)) break;
+			checkChecksum(header);
+			out.write(header);
+			position += RECORD_SIZE;
+			TarArchiveEntry entry;
+			try {
+				entry = new TarArchiveEntry(header);
+			} catch (IllegalArgumentException e) {
+				throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+			}
+			long size = entry.getSize();
+			if(size < 0)
+				throw new ArchiveFailureException("Invalid size in archive: "+size);
+			long offset = position;
+			if(entry.isGNULongNameEntry() || entry.isPaxHeader()) {
+				if(size > MAX_EXTENDED_HEADER)
+					throw new ArchiveFailureException("Extended header too long: "+size);
+				byte[] extended = new byte[(int)size];
+				copyFully(in, out, extended, (int)size);
+				position += size;
+				nextName = entry.isGNULongNameEntry() ? TarUtils.parseName(extended, 0, extended.length) : parsePaxPath(extended);
+				position += skipPadding(in, out, size, buf);
+				continue;
+			}
+			position += copy(in, out, size, buf);
+			position += skipPadding(in, out, size, buf);
+			if(entry.isGlobalPaxHeader()) continue;
+			if(nextName != null) {
+				entry.setName(nextName);
+				nextName = null;
+			}
+			if(entry.isDirectory()) continue;
+			String name = ArchiveManager.stripLeadingSlashes(entry.getName());
+			if(members.containsKey(name)) {
+				Logger.error(TarIndex.class, "Duplicate key "+name+" in archive "+key);
+				continue;
+			}
+			members.put(name, new Member(offset, size));
+			dataSize += size;
+		}
+		if(logMINOR) Logger.minor(TarIndex.class, "Indexed "+members.size()+" files ("+dataSize+" bytes) in "+key);
+		return new TarIndex(members, dataSize, position);
+	}
+
+	/** @return False if the stream ends before the record starts. */
+	private static boolean readRecord(InputStream in, byte[] record) throws IOException, ArchiveFailureException {
+		int read = 0;
+		while(read < record.length) {
+			int r = in.read(record, read, record.length - read);
+			if(r < 0) {
+				if(read == 0) return false;
+				throw new ArchiveFailureException("Truncated TAR header");
+			}
+			read += r;
+		}
+		return true;
+	}
+
+	private static boolean isZero(byte[] record) {
+		for(byte b : record)
+			if(b != 0) return false;
+		return true;
+	}
+
+	private static void checkChecksum(byte[] header) throws ArchiveFailureException {
+		long stored = TarUtils.parseOctal(header, CHECKSUM_OFFSET, CHECKSUM_LENGTH);
+		byte[] copy = header.clone();
+		Arrays.fill(copy, CHECKSUM_OFFSET, CHECKSUM_OFFSET + CHECKSUM_LENGTH, (byte)' ');
+		long unsigned = 0;
+		long signed = 0;
+		for(byte b : copy) {
+			unsigned += b & 0xFF;
+			signed += b;
+		}
+		// Some old tar's computed the checksum with signed bytes.
+		if(stored != unsigned && stored != signed)
+			throw new ArchiveFailureException("Bad TAR header checksum");
+	}
+
+	/** Find the path in PAX extended header records: "length key=value\n". */
+	private static String parsePaxPath(byte[] data) throws ArchiveFailureException {
+		String path = null;
+		int pos = 0;
+		while(pos < data.length) {
+			int space = pos;
+			while(space < data.length && data[space] != ' ') space++;
+			int length;
+			try {
+				length = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.US_ASCII));
+			} catch (NumberFormatException e) {
+				throw new ArchiveFailureException("Bad PAX header");
+			}
+			if(length < space - pos + 2 || pos + length > data.length)
+				throw new ArchiveFailureException("Bad PAX header");
+			String record = new String(data, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+			if(record.startsWith("path="))
+				path = record.substring("path=".length());
+			pos += length;
+		}
+		return path;
+	}
+
+	private static void copyFully(InputStream in, OutputStream out, byte[] buf, int length) throws IOException, ArchiveFailureException {
+		int read = 0;
+		while(read < length) {
+			int r = in.read(buf, read, length - read);
+			if(r < 0) throw new ArchiveFailureException("Truncated archive");
+			read += r;
+		}
+		out.write(buf, 0, length);
+	}
+
+	private static long copy(InputStream in, OutputStream out, long length, byte[] buf) throws IOException, ArchiveFailureException {
+		long remaining = length;
+		while(remaining > 0) {
+			int r = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+			if(r < 0) throw new ArchiveFailureException("Truncated archive");
+			out.write(buf, 0, r);
+			remaining -= r;
+		}
+		return length;
+	}
+
+	/** Copy the padding after an entry's data, up to the next record. */
+	private static long skipPadding(InputStream in, OutputStream out, long size, byte[] buf) throws IOException, ArchiveFailureException {
+		int padding = (int)((RECORD_SIZE - (size % RECORD_SIZE)) % RECORD_SIZE);
+		if(padding == 0) return 0;
+		// The last file is often not padded properly.
+		int read = 0;
+		while(read < padding) {
+			int r = in.read(buf, read, padding - read);
+			if(r < 0) break;
+			read += r;
+		}
+		out.write(buf, 0, read);
+		return read;
+	}
+
+}
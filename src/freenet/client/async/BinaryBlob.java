@@ -51,13 +51,47 @@ public abstract class BinaryBlob {
 		writeBlobHeader(binaryBlobStream, BinaryBlob.BLOB_END, BinaryBlob.BLOB_END_VERSION, 0);
 	}
 
-	public static void readBinaryBlob(DataInputStream dis, BlockSet blocks, boolean tolerant) throws IOException, BinaryBlobFormatException {
+	/** Length of the header written by writeBinaryBlobHeader(). */
+	public static final int BINARY_BLOB_HEADER_LENGTH = 10;
+	/** Length of the header of each blob written by writeBlobHeader(). */
+	static final int BLOB_HEADER_LENGTH = 8;
+
+	/** Receives the blocks of a binary blob one at a time as they are read, so the whole blob
+	 * doesn't need to be kept in memory. */
+	public interface BlockHandler {
+		/** @param block The block, which has been verified.
+		 * @param offset The offset in the binary blob just after the block. Reading can be resumed
+		 * from here. */
+		void onBlock(KeyBlock block, long offset) throws IOException;
+	}
+
+	public static void readBinaryBlob(DataInputStream dis, final BlockSet blocks, boolean tolerant) throws IOException, BinaryBlobFormatException {
+		readBinaryBlob(dis, new BlockHandler() {
+
+			@Override
+			public void onBlock(KeyBlock block, long offset) {
+				blocks.add(block);
+			}
+
+		}, tolerant, 0);
+	}
+
+	/** Read a binary blob, passing each block to the handler as soon as it has been read.
+	 * @param resumeOffset If non-zero, the offset passed to the handler with the last block
+	 * which was handled, when reading this blob previously. The header is checked, and then
+	 * everything before the offset is skipped. */
+	public static void readBinaryBlob(DataInputStream dis, BlockHandler handler, boolean tolerant, long resumeOffset) throws IOException, BinaryBlobFormatException {
 		long magic = dis.readLong();
 		if(magic != BinaryBlob.BINARY_BLOB_MAGIC)
 			throw new BinaryBlobFormatException("Bad magic");
 		short version = dis.readShort();
 		if(version != BinaryBlob.BINARY_BLOB_OVERALL_VERSION)
 			throw new BinaryBlobFormatException("Unknown overall version");
+		long offset = BINARY_BLOB_HEADER_LENGTH;
+		if(resumeOffset > offset) {
+			FileUtil.skipFully(dis, resumeOffset - offset);
+			offset = resumeOffset;
+		}
 		
 		while(true) {
 			long blobLength;
@@ -103,11 +137,13 @@ public abstract class BinaryBlob {
 					throw new BinaryBlobFormatException("Invalid key: "+e.getMessage(), e);
 				}
 				
-				blocks.add(block);
+				offset += BLOB_HEADER_LENGTH + blobLength;
+				handler.onBlock(block, offset);
 				
 			} else {
 				if(tolerant) {
 					FileUtil.skipFully(dis, blobLength);
+					offset += BLOB_HEADER_LENGTH + blobLength;
 				} else {
 					throw new BinaryBlobFormatException("Unknown blob type: "+blobType);
 				}
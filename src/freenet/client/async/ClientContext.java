@@ -10,6 +10,7 @@ import freenet.client.FetchContext;
 import freenet.client.FetchException;
 import freenet.client.InsertContext;
 import freenet.client.InsertException;
+import freenet.client.ManifestCache;
 import freenet.client.events.SimpleEventProducer;
 import freenet.client.filter.LinkFilterExceptionProvider;
 import freenet.clients.fcp.PersistentRequestRoot;
@@ -57,6 +58,8 @@ public class ClientContext {
 	public transient final PersistentJobRunner jobRunner;
 	public transient final RandomSource random;
 	public transient final ArchiveManager archiveManager;
+	/** Recently parsed manifests, shared by all fetches. */
+	public transient final ManifestCache manifestCache = new ManifestCache(ManifestCache.DEFAULT_MAX_SIZE);
 	public transient final PersistentTempBucketFactory persistentBucketFactory;
 	public transient PersistentFileTracker persistentFileTracker;
 	public transient final TempBucketFactory tempBucketFactory;
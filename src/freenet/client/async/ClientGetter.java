@@ -622,6 +622,22 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		}
 	}
 
+	/** If we are fetching the final data from a splitfile which is not compressed and is not
+	 * being filtered, open a stream which returns it in order as each segment is decoded.
+	 * @param readahead The number of segments ahead of the reader to fetch first.
+	 * @return Null if this is not possible, or not yet possible, e.g. we are still fetching the
+	 * metadata. The caller must close the stream. */
+	public SplitFileStream openStream(int readahead) {
+		ClientGetState s;
+		synchronized(this) {
+			if(finished || cancelled) return null;
+			s = currentState;
+		}
+		if(s instanceof SplitFileFetcher)
+			return ((SplitFileFetcher)s).openStream(readahead);
+		return null;
+	}
+
 	/** Has the fetch completed? */
 	@Override
 	public synchronized boolean isFinished() {
@@ -2,15 +2,21 @@ package freenet.client.async;
 
 import java.util.Random;
 
-/** A block chooser including support for cooldown */
+/** A block chooser including support for cooldown. Blocks in cooldown are suspended, and kept in
+ * a heap ordered by the time they wake up, so choosing a block doesn't need to check every block's
+ * cooldown time. */
 public class CooldownBlockChooser extends SimpleBlockChooser {
 
-    public CooldownBlockChooser(int blocks, Random random, int maxRetries, int cooldownTries, 
+    public CooldownBlockChooser(int blocks, Random random, int maxRetries, int cooldownTries,
             long cooldownTime) {
         super(blocks, random, maxRetries);
         this.cooldownTries = cooldownTries;
         this.cooldownTime = cooldownTime;
         blockCooldownTimes = new long[blocks];
+        heap = new int[blocks];
+        heapIndex = new int[blocks];
+        for(int i=0;i<blocks;i++)
+            heapIndex[i] = -1;
     }
 
     /** Every cooldownTries attempts, a key will enter cooldown, and won't be re-tried for a period. */
@@ -18,72 +24,138 @@ public class CooldownBlockChooser extends SimpleBlockChooser {
     /** Cooldown lasts this long for each key. */
     private final long cooldownTime;
     /** Time at which the whole block chooser will next become fetchable. 0 to mean it is fetchable
-     * now. Equal to the earliest valid cooldown time for any individual block. INVARIANT: This can 
+     * now. Equal to the earliest valid cooldown time for any individual block. INVARIANT: This can
      * safely be too early (small) but not too late (large). */
     private long overallCooldownTime;
     /** Time at which each block becomes fetchable again. 0 means it is fetchable now. */
     private long[] blockCooldownTimes;
-    /** Current time, updated at the beginning of chooseKey(). */
-    private long now;
-    
+    /** The blocks in cooldown, as a binary heap ordered by blockCooldownTimes. */
+    private final int[] heap;
+    /** Position of each block in the heap, or -1. */
+    private final int[] heapIndex;
+    private int heapSize;
+
     @Override
     public synchronized int chooseKey() {
-        now = System.currentTimeMillis();
+        applyFailures();
+        long now = System.currentTimeMillis();
+        while(heapSize > 0 && now > blockCooldownTimes[heap[0]]) {
+            int blockNo = heap[0];
+            removeFromHeap(blockNo);
+            blockCooldownTimes[blockNo] = 0;
+            resume(blockNo);
+        }
         if(overallCooldownTime > now) return -1;
-        overallCooldownTime = Long.MAX_VALUE; // Will find the earliest wake-up.
         int ret = super.chooseKey();
-        if(ret != -1) 
-            overallCooldownTime = 0; // Fetchable now, else waiting for cooldown.
+        if(ret != -1)
+            overallCooldownTime = 0; // Fetchable now.
+        else if(heapSize > 0)
+            overallCooldownTime = blockCooldownTimes[heap[0]]; // Waiting for cooldown.
+        else
+            overallCooldownTime = Long.MAX_VALUE; // Waiting for something else to change.
         return ret;
     }
-    
-    @Override
-    protected boolean checkValid(int blockNo) {
-        if(!super.checkValid(blockNo)) return false;
-        long wakeUp = blockCooldownTimes[blockNo];
-        if(now > wakeUp) {
-            blockCooldownTimes[blockNo] = 0;
-            return true;
-        } else {
-            // Update the overall cooldown wakeup time.
-            overallCooldownTime = Math.min(overallCooldownTime, wakeUp);
-            return false;
-        }
-    }
-    
+
     @Override
-    protected synchronized int innerOnNonFatalFailure(int blockNo) {
-        int ret = super.innerOnNonFatalFailure(blockNo);
-        if(ret > maxRetries && maxRetries != -1) return ret;
-        if(ret % cooldownTries == 0) {
+    protected void onFailure(int blockNo, int retries) {
+        if(retries > maxRetries && maxRetries != -1) return;
+        if(retries % cooldownTries == 0) {
             blockCooldownTimes[blockNo] = System.currentTimeMillis() + cooldownTime;
+            addToHeap(blockNo);
+            suspend(blockNo);
             overallCooldownTime = Math.min(blockCooldownTimes[blockNo], overallCooldownTime); // Must not be left at infinite!
         } else {
             // Fetchable.
-            blockCooldownTimes[blockNo] = 0;
+            endCooldown(blockNo);
             overallCooldownTime = 0;
         }
-        return ret;
     }
-    
+
     /** Should be called e.g. when getMaxBlockNumber() changes. */
     public final synchronized void clearCooldown() {
         overallCooldownTime = 0;
     }
-    
+
     @Override
     public synchronized void onUnSuccess(int blockNo) {
-        blockCooldownTimes[blockNo] = 0;
+        super.onUnSuccess(blockNo);
+        endCooldown(blockNo);
         clearCooldown();
     }
-    
+
     public synchronized long overallCooldownTime() {
+        applyFailures();
         return overallCooldownTime;
     }
 
     public synchronized long getCooldownTime(int blockNumber) {
+        applyFailures();
         if(hasSucceeded(blockNumber)) return 0;
         return blockCooldownTimes[blockNumber];
     }
 
+    private void endCooldown(int blockNo) {
+        if(heapIndex[blockNo] != -1) removeFromHeap(blockNo);
+        blockCooldownTimes[blockNo] = 0;
+        resume(blockNo);
+    }
+
+    /** Add the block to the heap, or move it if it is already there, after changing its
+     * cooldown time. */
+    private void addToHeap(int blockNo) {
+        int i = heapIndex[blockNo];
+        if(i == -1) {
+            i = heapSize++;
+            heap[i] = blockNo;
+            heapIndex[blockNo] = i;
+        }
+        siftDown(siftUp(i));
+    }
+
+    private void removeFromHeap(int blockNo) {
+        int i = heapIndex[blockNo];
+        heapIndex[blockNo] = -1;
+        int last = heap[--heapSize];
+        if(i == heapSize) return;
+        heap[i] = last;
+        heapIndex[last] = i;
+        siftDown(siftUp(i));
+    }
+
+    /** @return The new position of the block which was at i. */
+    private int siftUp(int i) {
+        int blockNo = heap[i];
+        long time = blockCooldownTimes[blockNo];
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(blockCooldownTimes[heap[parent]] <= time) break;
+            move(parent, i);
+            i = parent;
+        }
+        heap[i] = blockNo;
+        heapIndex[blockNo] = i;
+        return i;
+    }
+
+    private void siftDown(int i) {
+        int blockNo = heap[i];
+        long time = blockCooldownTimes[blockNo];
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= heapSize) break;
+            if(child + 1 < heapSize && blockCooldownTimes[heap[child + 1]] < blockCooldownTimes[heap[child]])
+                child++;
+            if(time <= blockCooldownTimes[heap[child]]) break;
+            move(child, i);
+            i = child;
+        }
+        heap[i] = blockNo;
+        heapIndex[blockNo] = i;
+    }
+
+    private void move(int from, int to) {
+        heap[to] = heap[from];
+        heapIndex[heap[to]] = to;
+    }
+
 }
@@ -4,13 +4,21 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
+import freenet.support.RankedBitSet;
 import freenet.support.io.StorageFormatException;
 
 /** Tracks which blocks have been completed, how many attempts have been made for which blocks,
  * allows choosing a random block, failing a block etc.
+ *
+ * The blocks which can be chosen are kept in a RankedBitSet for each retry count, so choosing a
+ * block is O(log n) rather than a scan of every block, which matters for very large segments.
+ * Failures are queued without taking the lock and applied on the next call which needs them.
  * @author toad
  */
 public class SimpleBlockChooser {
@@ -24,42 +32,54 @@ public class SimpleBlockChooser {
     private final int blocks;
     private final boolean[] completed;
     private int completedCount;
-    private final int[] retries;
+    private final AtomicIntegerArray retries;
     protected final int maxRetries;
     private final Random random;
+    /** The retry count each block is filed under in available, i.e. the value of retries when
+     * its last failure was applied. LOCKING: this */
+    private final int[] appliedRetries;
+    /** Blocks which have been taken out of selection by suspend(), e.g. for cooldown.
+     * LOCKING: this */
+    private final boolean[] suspended;
+    /** The blocks which can be chosen, i.e. which are not completed, suspended or failed too
+     * many times, for each retry count. Empty sets are removed. LOCKING: this */
+    private final TreeMap<Integer, RankedBitSet> available = new TreeMap<Integer, RankedBitSet>();
+    /** Failures which have not been applied to available yet, as block number << 32 | retries. */
+    private final ConcurrentLinkedQueue<Long> failures = new ConcurrentLinkedQueue<Long>();
     
     public SimpleBlockChooser(int blocks, Random random, int maxRetries) {
         this.maxRetries = maxRetries;
         this.blocks = blocks;
         this.random = random;
         this.completed = new boolean[blocks];
-        this.retries = new int[blocks];
+        this.retries = new AtomicIntegerArray(blocks);
+        this.appliedRetries = new int[blocks];
+        this.suspended = new boolean[blocks];
+        if(blocks > 0) {
+            RankedBitSet all = new RankedBitSet(blocks);
+            for(int i=0;i<blocks;i++)
+                all.set(i);
+            available.put(0, all);
+        }
     }
     
-    /** Choose a key to fetch, taking into account retries */
+    /** Choose a key to fetch, taking into account retries. Picks a random block among those
+     * with the fewest retries which pass checkValid(). */
     public synchronized int chooseKey() {
+        applyFailures();
         int max = getMaxBlockNumber();
-        int[] candidates = new int[max];
-        int count = 0;
-        int minRetryCount = Integer.MAX_VALUE;
-        for(int i=0;i<max;i++) {
-            int retry = retries[i];
-            if(retry > maxRetries && maxRetries != -1) continue;
-            if(retry > minRetryCount) continue;
-            if(!checkValid(i)) continue;
-            if(retry < minRetryCount) {
-                count = 0;
-                candidates[count++] = i;
-                minRetryCount = retry;
-            } else if(retry == minRetryCount) {
-                candidates[count++] = i;
-            } // else continue;
-        }
-        if(count == 0) {
-            return -1;
-        } else {
-            return candidates[random.nextInt(count)];
+        for(RankedBitSet set : available.values()) {
+            int count = set.countBelow(max);
+            if(count == 0) continue;
+            int start = random.nextInt(count);
+            // Usually the first one is valid. If not, e.g. because it is being fetched already,
+            // try the next one.
+            for(int i=0;i<count;i++) {
+                int blockNo = set.select((start + i) % count);
+                if(checkValid(blockNo)) return blockNo;
+            }
         }
+        return -1;
     }
 
     public boolean onNonFatalFailure(int blockNo) {
@@ -71,18 +91,87 @@ public class SimpleBlockChooser {
         return retries > maxRetries;
     }
 
-    /** Notify when a block has failed.
+    /** Notify when a block has failed. Does not take the lock; the failure is applied to the
+     * set of blocks to choose from by the next call which needs it.
      * @return The total number of attempts for the block so far. Some callers (e.g. inserter) may
      * fail after a single terminal failure, others after some number of failures (e.g. getter), so
      * we leave this to the caller. */
-    protected synchronized int innerOnNonFatalFailure(int blockNo) {
-        return ++retries[blockNo];
+    protected int innerOnNonFatalFailure(int blockNo) {
+        int ret = retries.incrementAndGet(blockNo);
+        failures.add(((long)blockNo << 32) | ret);
+        return ret;
+    }
+    
+    /** Apply the failures queued by innerOnNonFatalFailure(). */
+    protected final synchronized void applyFailures() {
+        Long failure;
+        while((failure = failures.poll()) != null) {
+            int blockNo = (int) (failure >>> 32);
+            int retryCount = (int) (long) failure;
+            if(retryCount > appliedRetries[blockNo]) {
+                makeUnavailable(blockNo);
+                appliedRetries[blockNo] = retryCount;
+                makeAvailable(blockNo);
+            }
+            onFailure(blockNo, retryCount);
+        }
+    }
+    
+    /** Called with the lock held for each failure, when it is applied, in roughly the order they
+     * happened.
+     * @param retries The number of attempts for the block including this one. */
+    protected void onFailure(int blockNo, int retries) {
+        // Do nothing.
+    }
+    
+    /** Don't choose the block until resume() is called, e.g. because it is in cooldown.
+     * LOCKING: Must be called with the lock held. */
+    protected final void suspend(int blockNo) {
+        if(suspended[blockNo]) return;
+        makeUnavailable(blockNo);
+        suspended[blockNo] = true;
+    }
+    
+    /** LOCKING: Must be called with the lock held. */
+    protected final void resume(int blockNo) {
+        if(!suspended[blockNo]) return;
+        suspended[blockNo] = false;
+        makeAvailable(blockNo);
+    }
+    
+    private void makeAvailable(int blockNo) {
+        if(completed[blockNo] || suspended[blockNo]) return;
+        int retryCount = appliedRetries[blockNo];
+        if(isFatalRetries(retryCount)) return;
+        RankedBitSet set = available.get(retryCount);
+        if(set == null) {
+            set = new RankedBitSet(blocks);
+            available.put(retryCount, set);
+        }
+        set.set(blockNo);
+    }
+    
+    private void makeUnavailable(int blockNo) {
+        RankedBitSet set = available.get(appliedRetries[blockNo]);
+        if(set != null && set.clear(blockNo) && set.cardinality() == 0)
+            available.remove(appliedRetries[blockNo]);
+    }
+    
+    /** Rebuild available from scratch after reading. */
+    private synchronized void resetAvailable() {
+        failures.clear();
+        available.clear();
+        for(int i=0;i<blocks;i++) {
+            appliedRetries[i] = retries.get(i);
+            makeAvailable(i);
+        }
     }
     
     /** Notify when a block has succeeded. */
     public boolean onSuccess(int blockNo) {
         synchronized(this) {
             if(completed[blockNo]) return false;
+            makeUnavailable(blockNo);
             completed[blockNo] = true;
             completedCount++;
             if(completedCount < blocks) {
@@ -102,6 +191,7 @@ public class SimpleBlockChooser {
         if(!completed[blockNo]) return;
         completed[blockNo] = false;
         completedCount--;
+        makeAvailable(blockNo);
     }
     
     protected void onCompletedAll() {
@@ -140,8 +230,8 @@ public class SimpleBlockChooser {
         return completedCount;
     }
     
-    public synchronized int getRetries(int blockNumber) {
-        return retries[blockNumber];
+    public int getRetries(int blockNumber) {
+        return retries.get(blockNumber);
     }
 
     /** Ugly to include this here, but avoids making completed visible ... */
@@ -158,14 +248,15 @@ public class SimpleBlockChooser {
      * @throws IOException */
     public void writeRetries(DataOutputStream dos) throws IOException {
         if(maxRetries == -1) return;
-        for(int retry : retries)
-            dos.writeInt(retry);
+        for(int i=0;i<blocks;i++)
+            dos.writeInt(retries.get(i));
     }
 
     public void readRetries(DataInputStream dis) throws IOException {
         if(maxRetries == -1) return;
         for(int i=0;i<blocks;i++)
-            retries[i] = dis.readInt();
+            retries.set(i, dis.readInt());
+        resetAvailable();
     }
     
     static final int VERSION = 1;
@@ -188,14 +279,15 @@ public class SimpleBlockChooser {
         }
         if(dis.readInt() != maxRetries) throw new StorageFormatException("Max retries has changed");
         readRetries(dis);
+        resetAvailable();
     }
 
     public synchronized int countFailedBlocks() {
         if(maxRetries == -1) return 0;
         int total = 0;
-        for(int i=0;i<retries.length;i++) {
+        for(int i=0;i<blocks;i++) {
             if(completed[i]) continue;
-            if(retries[i] > maxRetries) total++;
+            if(retries.get(i) > maxRetries) total++;
         }
         return total;
     }
@@ -204,13 +296,13 @@ public class SimpleBlockChooser {
         return completed.clone();
     }
     
+    /** @return The number of blocks which could be chosen, not counting checkValid(). */
     public synchronized int countFetchable() {
+        applyFailures();
+        int max = getMaxBlockNumber();
         int x = 0;
-        for(int i=0;i<blocks;i++) {
-            if(retries[x] >= maxRetries) continue;
-            if(!checkValid(x)) continue;
-            if(!completed[x]) x++;
-        }
+        for(RankedBitSet set : available.values())
+            x += set.countBelow(max);
         return x;
     }
     
@@ -221,17 +221,21 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		if(!block.isMetadata()) {
 			onSuccess(new FetchResult(clientMetadata, data), context);
 		} else {
-			handleMetadata(data, context);
+			handleMetadata(data, key instanceof ClientCHK ? key.getURI() : null, context);
 		}
 	}
 
 	// Package-local so that ClientGetter can call it instead of schedule().
 	void startWithMetadata(Bucket data, ClientContext context) {
 		parent.completedBlock(true, context);
-		handleMetadata(data, context);
+		handleMetadata(data, null, context);
 	}
 
-	private void handleMetadata(Bucket data, ClientContext context) {
+	/**
+	 * @param cacheKey The key the metadata was fetched from, if the parsed form can be cached,
+	 * otherwise null.
+	 */
+	private void handleMetadata(Bucket data, FreenetURI cacheKey, ClientContext context) {
 		if(!ctx.followRedirects) {
 			onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, "Told me not to follow redirects (splitfile block??)"), false, context);
 			data.free();
@@ -249,7 +253,13 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		}
 		// Parse metadata
 		try {
-			metadata = Metadata.construct(data);
+			Metadata cached = cacheKey == null ? null : context.manifestCache.get(cacheKey, null);
+			if(cached != null) {
+				metadata = cached;
+			} else {
+				metadata = Metadata.construct(data);
+				if(cacheKey != null) context.manifestCache.put(cacheKey, null, metadata);
+			}
             data.free();
             data = null;
 			innerWrapHandleMetadata(false, context);
@@ -440,11 +450,18 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				archiveMetadata = metadata;
 				metadata = null; // Copied to archiveMetadata, so do not need to clear it
 				// ah is set. This means we are currently handling an archive.
+				final FreenetURI archiveKey = ah.getKey();
+				Metadata cached = context.manifestCache.get(archiveKey, ArchiveManager.METADATA_NAME);
+				if(cached != null) {
+					metadata = cached;
+					continue;
+				}
 				Bucket metadataBucket;
 				metadataBucket = ah.getMetadata(actx, context.archiveManager);
 				if(metadataBucket != null) {
 					try {
 						metadata = Metadata.construct(metadataBucket);
+						context.manifestCache.put(archiveKey, ArchiveManager.METADATA_NAME, metadata);
 						metadataBucket.free();
 					} catch (InsufficientDiskSpaceException e) {
 					    throw new FetchException(FetchExceptionMode.NOT_ENOUGH_DISK_SPACE);
@@ -461,6 +478,7 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 							if(logMINOR) Logger.minor(this, "gotBucket on "+SingleFileFetcher.this+" persistent="+persistent);
 							try {
 								metadata = Metadata.construct(data);
+								context.manifestCache.put(archiveKey, ArchiveManager.METADATA_NAME, metadata);
 								data.free();
 								innerWrapHandleMetadata(true, context);
 							} catch (MetadataParseException e) {
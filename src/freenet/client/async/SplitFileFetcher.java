@@ -101,6 +101,9 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
     private boolean succeeded;
     private final boolean wantBinaryBlob;
     private final boolean persistent;
+    /** True if the data is the final content, is not being filtered and is not being written
+     * straight to a file, so can be streamed while it is being fetched if it isn't compressed. */
+    private final boolean streamable;
     
     public SplitFileFetcher(Metadata metadata, GetCompletionCallback rcb, ClientRequester parent,
             FetchContext fetchContext, boolean realTimeFlag, List<COMPRESSOR_TYPE> decompressors, 
@@ -159,6 +162,8 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
             Logger.error(this, "Failed to start splitfile fetcher because of disk I/O error?: "+e, e);
             throw new FetchException(FetchExceptionMode.BUCKET_ERROR, e);
         }
+        streamable = isFinalFetch && !fetchContext.filterData && !wantBinaryBlob &&
+            callbackCompleteViaTruncation == null;
         long eventualLength = Math.max(storage.decompressedLength, metadata.uncompressedDataLength());
         cb.onExpectedSize(eventualLength, context);
         if(metadata.uncompressedDataLength() > 0)
@@ -182,6 +187,7 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         token = 0;
         wantBinaryBlob = false;
         persistent = true;
+        streamable = false;
         callbackCompleteViaTruncation = null;
         fileCompleteViaTruncation = null;
     }
@@ -272,6 +278,21 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         }
     }
     
+    /** Open a stream which returns the data in order, as soon as each segment has been decoded.
+     * @param readahead The number of segments ahead of the reader to fetch first.
+     * @return Null if the data can't be streamed, e.g. because it is compressed, or if the
+     * download has finished. */
+    public SplitFileStream openStream(int readahead) {
+        if(!streamable) return null;
+        synchronized(this) {
+            if(failed || succeeded) return null;
+        }
+        SplitFileFetcherStorage s = storage;
+        if(s == null) return null;
+        if(s.decompressors != null && !s.decompressors.isEmpty()) return null;
+        return s.openStream(readahead);
+    }
+
     @Override
     public void onClosed() {
         // Don't need to do anything.
@@ -510,6 +531,9 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         token = dis.readLong();
         this.blockFetchContext = getter.ctx;
         this.wantBinaryBlob = getter.collectingBinaryBlob();
+        // Resumed directly from the ClientGetter, so this is the final data.
+        this.streamable = callbackCompleteViaTruncation == null && !wantBinaryBlob &&
+            !blockFetchContext.filterData;
         // onResume() will do the rest.
         Logger.normal(this, "Resumed splitfile download for "+this);
         lastNotifiedStoreFetch = System.currentTimeMillis();
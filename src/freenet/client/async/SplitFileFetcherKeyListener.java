@@ -110,17 +110,21 @@ public class SplitFileFetcherKeyListener implements KeyListener {
             ByteBuffer slice;
             
             slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
+            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK, true);
             start += perSegmentBloomFilterSizeBytes;
             end += perSegmentBloomFilterSizeBytes;
         }
         byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer, true);
         filter.setWarnOnRemoveFromEmpty();
     }
     
+    /** Load the filters for a download.
+     * @param oldFilters True if the filters were written with the old, unblocked hashing. They
+     * will be regenerated from the keys, as for a new salt. */
     public SplitFileFetcherKeyListener(SplitFileFetcherStorage storage, 
-            SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt) 
+            SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt,
+            boolean oldFilters) 
     throws IOException, StorageFormatException {
         this.storage = storage;
         this.fetcher = callback;
@@ -143,10 +147,14 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         int segments = storage.segments.length;
         segmentFilters = new BinaryBloomFilter[segments];
         byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
-        try {
-            storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
-        } catch (ChecksumFailedException e) {
-            Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
+        if(!oldFilters) {
+            try {
+                storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
+            } catch (ChecksumFailedException e) {
+                Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
+                mustRegenerateSegmentFilters = true;
+            }
+        } else {
             mustRegenerateSegmentFilters = true;
         }
         ByteBuffer baseBuffer = ByteBuffer.wrap(segmentsFilterBuffer);
@@ -158,12 +166,12 @@ public class SplitFileFetcherKeyListener implements KeyListener {
             ByteBuffer slice;
             
             slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
+            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK, true);
             start += perSegmentBloomFilterSizeBytes;
             end += perSegmentBloomFilterSizeBytes;
         }
         byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        if(!newSalt) {
+        if(!(newSalt || oldFilters)) {
             try {
                 storage.preadChecksummed(storage.offsetMainBloomFilter, filterBuffer, 0, mainBloomFilterSizeBytes);
             } catch (ChecksumFailedException e) {
@@ -173,7 +181,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         } else {
             mustRegenerateMainFilter = true;
         }
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer, true);
         filter.setWarnOnRemoveFromEmpty();
     }
 
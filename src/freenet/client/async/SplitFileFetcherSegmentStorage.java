@@ -350,7 +350,9 @@ public class SplitFileFetcherSegmentStorage {
         }
         
         int totalBlocks = totalBlocks();
+        long startTime = System.currentTimeMillis();
         byte[][] allBlocks = readAllBlocks();
+        long readTime = System.currentTimeMillis();
         SplitFileSegmentKeys keys = getSegmentKeys();
         if(allBlocks == null || keys == null) {
             return;
@@ -490,10 +492,12 @@ public class SplitFileFetcherSegmentStorage {
                 checkBlocksPresent[i] = true;
             }
         }
+        long decodeTime = System.currentTimeMillis();
         if(validDataBlocks < blocksForDecode()) {
             if(logMINOR) Logger.minor(this, "Decoding in memory for "+this);
             parent.fecCodec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, CHKBlock.DATA_LENGTH);
         }
+        decodeTime = System.currentTimeMillis() - decodeTime;
         boolean capturingBinaryBlob = parent.fetcher.wantBinaryBlob();
         boolean checkDecodedKeys = FORCE_CHECK_FEC_KEYS || capturingBinaryBlob;
         if(checkDecodedKeys) {
@@ -501,7 +505,13 @@ public class SplitFileFetcherSegmentStorage {
             // This will catch odd bugs and ensure consistent behaviour.
             checkDecodedDataBlocks(dataBlocks, dataBlocksPresent, keys, capturingBinaryBlob);
         }
+        long writeTime = System.currentTimeMillis();
         writeAllDataBlocks(dataBlocks);
+        if(logMINOR) {
+            long now = System.currentTimeMillis();
+            Logger.minor(this, "Decoded "+this+" in "+(now-startTime)+"ms: read "+(readTime-startTime)+
+                    "ms, decode "+decodeTime+"ms, write "+(now-writeTime)+"ms");
+        }
         // Report success if we are not verifying decoded keys, but if we *are*, we need to wait
         // until FEC encoding completes.
         if(!checkDecodedKeys)
@@ -627,10 +637,7 @@ public class SplitFileFetcherSegmentStorage {
         RAFLock lock = parent.lockRAFOpen();
         try {
             // FIXME consider using a single big byte[].
-            byte[][] ret = new byte[blocksForDecode()][];
-            for(int i=0;i<ret.length;i++)
-                ret[i] = readBlock(i);
-            return ret;
+            return parent.readBlocks(this, blocksForDecode());
         } finally {
             lock.unlock();
         }
@@ -655,8 +662,11 @@ public class SplitFileFetcherSegmentStorage {
         try {
             synchronized(this) {
                 assert(dataBlocks.length == blocksForDecode());
+                for(byte[] block : dataBlocks) {
+                    if(block.length != CHKBlock.DATA_LENGTH) throw new IllegalArgumentException();
+                }
+                parent.writeBlocks(this, dataBlocks);
                 for(int i=0;i<dataBlocks.length;i++) {
-                    writeDownloadedBlock(i, dataBlocks[i]);
                     blockChooser.onSuccess(i);
                     blocksFetched[i] = (short)i;
                 }
@@ -939,6 +949,13 @@ public class SplitFileFetcherSegmentStorage {
         }
     }
 
+    /** Read a data block after the segment has succeeded, for a SplitFileStream.
+     * @throws IOException If an error occurred reading the data from disk. */
+    byte[] readDataBlock(int blockNumber) throws IOException {
+        if(blockNumber < 0 || blockNumber >= dataBlocks) throw new IllegalArgumentException();
+        return readBlock(blockNumber);
+    }
+
     /** Read a single block from a specific slot, which could be any block number. 
      * @throws IOException If an error occurred reading the data from disk. */
     private synchronized byte[] readBlock(int slotNumber) throws IOException {
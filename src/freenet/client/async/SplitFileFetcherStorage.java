@@ -86,7 +86,8 @@ import freenet.support.math.MersenneTwister;
  * - Checksummed per segment. So it needs to be written as a whole segment. Can be regenerated from 
  * the block store and key list, which happens routinely when FEC decoding.
  * 
- * BLOOM FILTERS: Main bloom filter. Segment bloom filters.
+ * BLOOM FILTERS: Main bloom filter. Segment bloom filters. Blocked, see BloomFilter, unless the 
+ * footer flags say otherwise, in which case they are regenerated on startup.
  * 
  * ORIGINAL METADATA: For extra robustness, keep the full original metadata.
  * 
@@ -98,8 +99,10 @@ import freenet.support.math.MersenneTwister;
  * 
  * FOOTER:
  * Length of basic settings. (So we can seek back to get them)
- * Version number.
  * Checksum.
+ * Flags.
+ * Checksum type.
+ * Version number.
  * Magic value.
  * 
  * OTHER NOTES:
@@ -222,10 +225,30 @@ public class SplitFileFetcherStorage {
     static final long END_MAGIC = 0x28b32d99416eb6efL;
     /** Current format version */
     static final int VERSION = 1;
+    /** Footer flag: The Bloom filters use blocked hashing. Files written before this was added
+     * have their filters regenerated on startup, and then have the flag set. */
+    static final int FLAG_BLOCKED_BLOOM_FILTERS = 1;
+    /** True if the Bloom filters on disk use blocked hashing. */
+    private boolean blockedBloomFiltersOnDisk;
     
     /** List of segments we need to tryStartDecode() on because their metadata was corrupted on
      * startup. */
     private List<SplitFileFetcherSegmentStorage> segmentsToTryDecode;
+
+    /** Streams reading the data in order while it is fetched. LOCKING: streamLock. */
+    private final List<SplitFileStream> streams = new ArrayList<SplitFileStream>();
+    /** LOCKING: Never take another lock while holding streamLock. */
+    private final Object streamLock = new Object();
+    /** Incremented whenever a segment finishes or the fetch fails, to wake up streams.
+     * LOCKING: streamLock. */
+    private long streamEvents;
+    /** True if close() was called while streams were open. LOCKING: streamLock. */
+    private boolean closeAfterStreams;
+    /** True once we have started to free the storage. LOCKING: streamLock. */
+    private boolean closed;
+    /** The first segment and the segment after the last one to fetch before any others, because
+     * streams will need them soon. Null if there are no streams. */
+    private volatile int[] streamWindow;
     
     /** Construct a new SplitFileFetcherStorage from metadata. Creates the RandomAccessBuffer and
      * writes the initial data to it. There is another constructor for resuming a download. 
@@ -563,46 +586,66 @@ public class SplitFileFetcherStorage {
                 raf.pwrite(offsetOriginalDetails, encodedURI, 0, encodedURI.length);
                 raf.pwrite(offsetBasicSettings, encodedBasicSettings, 0, encodedBasicSettings.length);
                 
-                // This bit tricky because version is included in the checksum.
-                // When the RAF is encrypted, we use HMAC's and this is important.
-                // FIXME is Fields.bytesToInt etc compatible with DataOutputStream.*?
-                // FIXME if not, we need something that is ...
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos);
-                dos.writeInt(encodedBasicSettings.length - checksumLength);
-                byte[] bufToWrite = baos.toByteArray();
-                baos = new ByteArrayOutputStream();
-                dos = new DataOutputStream(baos);
-                dos.writeInt(0); // flags
-                dos.writeShort(checksumChecker.getChecksumTypeID());
-                dos.writeInt(VERSION);
-                byte[] version = baos.toByteArray();
-                byte[] bufToChecksum = Arrays.copyOf(bufToWrite, bufToWrite.length+version.length);
-                System.arraycopy(version, 0, bufToChecksum, bufToWrite.length, version.length);
-                byte[] checksum = 
-                    checksumChecker.generateChecksum(bufToChecksum);
-                // Pointers.
-                raf.pwrite(offsetBasicSettings + encodedBasicSettings.length, bufToWrite, 0, 
-                        bufToWrite.length);
-                // Checksum.
-                raf.pwrite(offsetBasicSettings + encodedBasicSettings.length + bufToWrite.length, 
-                        checksum, 0, checksum.length);
-                // Version.
-                raf.pwrite(offsetBasicSettings + encodedBasicSettings.length + bufToWrite.length + 
-                        checksum.length, version, 0, version.length);
-                // Write magic last.
-                baos = new ByteArrayOutputStream();
-                dos = new DataOutputStream(baos);
-                dos.writeLong(END_MAGIC);
-                byte[] buf = baos.toByteArray();
-                raf.pwrite(totalLength - 8, buf, 0, 8);
+                writeFooter(encodedBasicSettings.length - checksumLength, FLAG_BLOCKED_BLOOM_FILTERS);
             }
         } finally {
             lock.unlock();
         }
+        blockedBloomFiltersOnDisk = true;
         if(logMINOR) Logger.minor(this, "Fetching "+thisKey+" on "+this+" for "+fetcher);
     }
     
+    /** Write the footer, after the basic settings. Caller must have locked the RAF open. */
+    private void writeFooter(int basicSettingsLength, int flags) throws IOException {
+        long offset = rafLength - (22 + checksumLength);
+        // This bit tricky because version is included in the checksum.
+        // When the RAF is encrypted, we use HMAC's and this is important.
+        // FIXME is Fields.bytesToInt etc compatible with DataOutputStream.*?
+        // FIXME if not, we need something that is ...
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(basicSettingsLength);
+        byte[] bufToWrite = baos.toByteArray();
+        baos = new ByteArrayOutputStream();
+        dos = new DataOutputStream(baos);
+        dos.writeInt(flags);
+        dos.writeShort(checksumChecker.getChecksumTypeID());
+        dos.writeInt(VERSION);
+        byte[] version = baos.toByteArray();
+        byte[] bufToChecksum = Arrays.copyOf(bufToWrite, bufToWrite.length+version.length);
+        System.arraycopy(version, 0, bufToChecksum, bufToWrite.length, version.length);
+        byte[] checksum = 
+            checksumChecker.generateChecksum(bufToChecksum);
+        // Pointers.
+        raf.pwrite(offset, bufToWrite, 0, bufToWrite.length);
+        // Checksum.
+        raf.pwrite(offset + bufToWrite.length, checksum, 0, checksum.length);
+        // Version.
+        raf.pwrite(offset + bufToWrite.length + checksum.length, version, 0, version.length);
+        // Write magic last.
+        baos = new ByteArrayOutputStream();
+        dos = new DataOutputStream(baos);
+        dos.writeLong(END_MAGIC);
+        byte[] buf = baos.toByteArray();
+        raf.pwrite(rafLength - 8, buf, 0, 8);
+    }
+    
+    /** Set the blocked Bloom filters flag, after regenerating filters written by an older 
+     * version. Only called once the new filters have been written, so if we crash before this,
+     * they will simply be regenerated again. */
+    private void writeBlockedBloomFiltersFlag() throws IOException {
+        RAFLock lock = raf.lockOpen();
+        try {
+            byte[] buf = new byte[4];
+            raf.pread(rafLength - (22 + checksumLength), buf, 0, 4);
+            int basicSettingsLength = new DataInputStream(new ByteArrayInputStream(buf)).readInt();
+            writeFooter(basicSettingsLength, FLAG_BLOCKED_BLOOM_FILTERS);
+        } finally {
+            lock.unlock();
+        }
+        blockedBloomFiltersOnDisk = true;
+    }
+    
     /** Construct a SplitFileFetcherStorage from a stored RandomAccessBuffer, and appropriate local
      * settings passed in. Ideally this would work with only basic system utilities such as 
      * those on ClientContext, i.e. we'd be able to restore the splitfile download without knowing
@@ -658,13 +701,14 @@ public class SplitFileFetcherStorage {
         int checksumType = dis.readShort();
         if(checksumType != ChecksumChecker.CHECKSUM_CRC)
             throw new StorageFormatException("Unknown checksum type "+checksumType);
-        // 4 bytes: Flags. Unused at present.
+        // 4 bytes: Flags.
         byte[] flagsBuf = new byte[4];
         raf.pread(rafLength-18, flagsBuf, 0, 4);
         dis = new DataInputStream(new ByteArrayInputStream(flagsBuf));
         int flags = dis.readInt();
-        if(flags != 0)
+        if((flags & ~FLAG_BLOCKED_BLOOM_FILTERS) != 0)
             throw new StorageFormatException("Unknown flags: "+flags);
+        blockedBloomFiltersOnDisk = (flags & FLAG_BLOCKED_BLOOM_FILTERS) != 0;
         // 4 bytes basic settings length and a checksum, which includes both the settings length and the version.
         buf = new byte[14];
         raf.pread(rafLength-(22+checksumLength), buf, 0, 4);
@@ -827,7 +871,8 @@ public class SplitFileFetcherStorage {
             for(int i=0;i<crossSegments;i++) {
                 this.crossSegments[i] = new SplitFileFetcherCrossSegmentStorage(this, i, dis);
             }
-            this.keyListener = new SplitFileFetcherKeyListener(this, fetcher, dis, false, newSalt);
+            this.keyListener = new SplitFileFetcherKeyListener(this, fetcher, dis, false, newSalt, 
+                    !blockedBloomFiltersOnDisk);
         } catch (IOException e) {
             // We are reading from an array! Bad as written perhaps?
             throw new StorageFormatException("Cannot read basic settings even though passed checksum: "+e, e);
@@ -978,6 +1023,8 @@ public class SplitFileFetcherStorage {
                         try {
                             keyListener.initialWriteSegmentBloomFilters(offsetSegmentBloomFilters);
                             keyListener.innerWriteMainBloomFilter(offsetMainBloomFilter);
+                            if(persistent && !blockedBloomFiltersOnDisk)
+                                writeBlockedBloomFiltersFlag();
                         } catch (IOException e) {
                             if(persistent)
                                 failOnDiskError(e);
@@ -1131,6 +1178,7 @@ public class SplitFileFetcherStorage {
      * @throws PersistenceDisabledException */
     public void finishedSuccess(SplitFileFetcherSegmentStorage segment) {
         if(logMINOR) Logger.minor(this, "finishedSuccess on "+this+" from "+segment+" for "+fetcher, new Exception("debug"));
+        wakeStreams();
         if(!(completeViaTruncation || fetcher.wantBinaryBlob()))
             maybeComplete();
     }
@@ -1196,6 +1244,89 @@ public class SplitFileFetcherStorage {
         };
     }
 
+    /** Open a stream which reads the data in order, returning each segment as soon as it has been
+     * decoded. The storage will not be freed until it is closed.
+     * @param readahead The number of segments, starting with the one being read, to fetch
+     * before any others.
+     * @return Null if the storage has already been closed, or if we are completing via
+     * truncation, as the file will be moved when it completes. */
+    SplitFileStream openStream(int readahead) {
+        if(completeViaTruncation) return null;
+        SplitFileStream stream = new SplitFileStream(this, readahead);
+        synchronized(streamLock) {
+            if(closed || closeAfterStreams) return null;
+            streams.add(stream);
+        }
+        onStreamMoved();
+        return stream;
+    }
+
+    /** A stream has moved to another segment, or been opened or closed. Update the segments to
+     * fetch first. */
+    void onStreamMoved() {
+        synchronized(streamLock) {
+            if(streams.isEmpty()) {
+                streamWindow = null;
+                return;
+            }
+            int first = segments.length;
+            int end = 0;
+            for(SplitFileStream stream : streams) {
+                int segment = stream.getSegment();
+                first = Math.min(first, segment);
+                end = Math.max(end, Math.min(segments.length, segment + stream.readahead));
+            }
+            streamWindow = new int[] { first, end };
+        }
+    }
+
+    void closeStream(SplitFileStream stream) {
+        boolean close;
+        synchronized(streamLock) {
+            if(!streams.remove(stream)) return;
+            close = streams.isEmpty() && closeAfterStreams;
+            if(close) closed = true;
+            streamEvents++;
+            streamLock.notifyAll();
+        }
+        onStreamMoved();
+        if(close) innerClose();
+    }
+
+    private void wakeStreams() {
+        synchronized(streamLock) {
+            streamEvents++;
+            streamLock.notifyAll();
+        }
+    }
+
+    /** Wait until a segment has been decoded and read a data block from it.
+     * @throws IOException If the segment or the whole fetch fails, or the stream is closed. */
+    byte[] readStreamBlock(SplitFileStream stream, int segNo, int blockNo) throws IOException {
+        SplitFileFetcherSegmentStorage segment = segments[segNo];
+        while(true) {
+            long events;
+            synchronized(streamLock) {
+                events = streamEvents;
+            }
+            if(stream.isClosed()) throw new IOException("Closed");
+            if(segment.hasSucceeded()) return segment.readDataBlock(blockNo);
+            if(segment.isFinished()) throw new IOException("Segment "+segNo+" failed");
+            synchronized(this) {
+                if(cancelled || finishedFetcher) throw new IOException("Download failed or cancelled");
+            }
+            synchronized(streamLock) {
+                while(events == streamEvents) {
+                    try {
+                        streamLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                }
+            }
+        }
+    }
+
     static final long LAZY_WRITE_METADATA_DELAY = TimeUnit.MINUTES.toMillis(5);
     
     private final PersistentJob writeMetadataJob = new PersistentJob() {
@@ -1312,6 +1443,22 @@ public class SplitFileFetcherStorage {
     /** Shutdown and free resources. CONCURRENCY: Caller is responsible for making sure this is 
      * not called on a MemoryLimitedJob thread. */
     void close() {
+        synchronized(streamLock) {
+            if(closed) return;
+            if(!streams.isEmpty()) {
+                // The last stream to close will free the storage.
+                if(logMINOR) Logger.minor(this, "Waiting for streams to close on "+this);
+                closeAfterStreams = true;
+                streamEvents++;
+                streamLock.notifyAll();
+                return;
+            }
+            closed = true;
+        }
+        innerClose();
+    }
+
+    private void innerClose() {
         if(logMINOR) Logger.minor(this, "Finishing "+this+" for "+fetcher, new Exception("debug"));
         raf.close();
         raf.free();
@@ -1324,6 +1471,7 @@ public class SplitFileFetcherStorage {
      * finished. */
     void finishedEncoding(SplitFileFetcherSegmentStorage segment) {
         if(logMINOR) Logger.minor(this, "Successfully decoded "+segment+" for "+this+" for "+fetcher);
+        wakeStreams();
         if(!allFinished()) return;
         finishedEncoding();
     }
@@ -1357,6 +1505,7 @@ public class SplitFileFetcherStorage {
      */
     public void fail(final FetchException e) {
         if(logMINOR) Logger.minor(this, "Failing "+this+" with error "+e+" and codes "+errors);
+        wakeStreams();
         jobRunner.queueNormalOrDrop(new PersistentJob() {
             
             @Override
@@ -1494,6 +1643,15 @@ public class SplitFileFetcherStorage {
         synchronized(this) {
             if(finishedFetcher) return null;
         }
+        int[] window = streamWindow;
+        if(window != null) {
+            // Streams will need these segments soon, so fetch them first, in order.
+            for(int i=window[0];i<window[1];i++) {
+                int ret = segments[i].chooseRandomKey();
+                if(ret != -1)
+                    return new SplitFileFetcherStorageKey(ret, i, this);
+            }
+        }
         // Generally segments are fairly well balanced, so we can usually pick a random segment 
         // then a random key from it.
         // FIXME OPT SCALABILITY A simpler option might be just to have one SplitFileFetcherGet per
@@ -1516,6 +1674,7 @@ public class SplitFileFetcherStorage {
         synchronized(this) {
             cancelled = true;
         }
+        wakeStreams();
         for(SplitFileFetcherSegmentStorage segment : segments)
             segment.cancel();
         if(crossSegments != null) {
@@ -1744,6 +1903,26 @@ public class SplitFileFetcherStorage {
         return buf;
     }
 
+    /** Read the first count slots of a segment in one call, in order of offset. */
+    byte[][] readBlocks(SplitFileFetcherSegmentStorage segment, int count) throws IOException {
+        long[] offsets = new long[count];
+        byte[][] bufs = new byte[count][];
+        for(int i=0;i<count;i++) {
+            offsets[i] = segment.blockOffset(i);
+            bufs[i] = new byte[CHKBlock.DATA_LENGTH];
+        }
+        raf.preadv(offsets, bufs);
+        return bufs;
+    }
+
+    /** Write blocks to the first slots of a segment in one call, in order of offset. */
+    void writeBlocks(SplitFileFetcherSegmentStorage segment, byte[][] blocks) throws IOException {
+        long[] offsets = new long[blocks.length];
+        for(int i=0;i<blocks.length;i++)
+            offsets[i] = segment.blockOffset(i);
+        raf.pwritev(offsets, blocks);
+    }
+
     /** Needed for resuming. */
     LockableRandomAccessBuffer getRAF() {
         return raf;
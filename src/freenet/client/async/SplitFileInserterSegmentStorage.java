@@ -382,10 +382,6 @@ public class SplitFileInserterSegmentStorage {
         return parent.readSegmentDataBlock(segNo, blockNo);
     }
     
-    private void writeCheckBlock(int checkBlockNo, byte[] buf) throws IOException {
-        parent.writeSegmentCheckBlock(segNo, checkBlockNo, buf);
-    }
-    
     public byte[] readCheckBlock(int checkBlockNo) throws IOException {
         assert(checkBlockNo >= 0 && checkBlockNo < checkBlockCount);
         return parent.readSegmentCheckBlock(segNo, checkBlockNo);
@@ -455,8 +451,7 @@ public class SplitFileInserterSegmentStorage {
                 checkBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
             if(dataBlocks == null || checkBlocks == null) return; // Failed with disk error.
             parent.codec.encode(dataBlocks, checkBlocks, new boolean[checkBlocks.length], CHKBlock.DATA_LENGTH);
-            for(int i=0;i<checkBlocks.length;i++)
-                writeCheckBlock(i, checkBlocks[i]);
+            parent.writeSegmentCheckBlocks(segNo, checkBlocks);
             generateKeys(checkBlocks, dataBlockCount + crossCheckBlockCount);
             synchronized(this) {
                 encoded = true;
@@ -484,8 +479,7 @@ public class SplitFileInserterSegmentStorage {
         byte[][] data = new byte[dataBlockCount + crossCheckBlockCount][];
         RAFLock lock = parent.lockUnderlying();
         try {
-            for(int i=0;i<dataBlockCount;i++)
-                data[i] = readDataBlock(i);
+            System.arraycopy(parent.readSegmentDataBlocks(segNo), 0, data, 0, dataBlockCount);
         } finally {
             lock.unlock();
         }
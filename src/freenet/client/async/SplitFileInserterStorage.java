@@ -1356,6 +1356,38 @@ public class SplitFileInserterStorage {
         return buf;
     }
 
+    /** Read all the data blocks of a segment in one call, in order of offset. */
+    byte[][] readSegmentDataBlocks(int segNo) throws IOException {
+        assert (segNo >= 0 && segNo < segments.length);
+        int count = segments[segNo].dataBlockCount;
+        byte[][] bufs = new byte[count][];
+        for(int i=0;i<count;i++)
+            bufs[i] = new byte[CHKBlock.DATA_LENGTH];
+        if (hasPaddedLastBlock && segNo == segments.length - 1) {
+            // The padded last block is stored separately.
+            count--;
+            raf.pread(offsetPaddedLastBlock, bufs[count], 0, CHKBlock.DATA_LENGTH);
+        }
+        long[] offsets = new long[count];
+        for(int i=0;i<count;i++)
+            offsets[i] = underlyingOffsetDataSegments[segNo] + i * CHKBlock.DATA_LENGTH;
+        assert(count == 0 || offsets[count-1] + CHKBlock.DATA_LENGTH <= dataLength);
+        originalData.preadv(offsets, count == bufs.length ? bufs : Arrays.copyOf(bufs, count));
+        return bufs;
+    }
+
+    /** Write all the check blocks of a segment in one call, in order of offset. */
+    void writeSegmentCheckBlocks(int segNo, byte[][] bufs) throws IOException {
+        assert (segNo >= 0 && segNo < segments.length);
+        assert (bufs.length == segments[segNo].checkBlockCount);
+        long[] offsets = new long[bufs.length];
+        for(int i=0;i<bufs.length;i++) {
+            assert (bufs[i].length == CHKBlock.DATA_LENGTH);
+            offsets[i] = offsetSegmentCheckBlocks[segNo] + i * CHKBlock.DATA_LENGTH;
+        }
+        raf.pwritev(offsets, bufs);
+    }
+
     public void writeSegmentCheckBlock(int segNo, int checkBlockNo, byte[] buf) throws IOException {
         assert (segNo >= 0 && segNo < segments.length);
         assert (checkBlockNo >= 0 && checkBlockNo < segments[segNo].checkBlockCount);
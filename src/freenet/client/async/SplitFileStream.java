@@ -0,0 +1,124 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import freenet.keys.CHKBlock;
+
+/** Reads a splitfile in order while it is being fetched. Each segment is returned as soon as it
+ * has been decoded, blocking until then. While the stream is open, the segments from the current
+ * position up to the readahead window are fetched before any others.
+ *
+ * Only possible for the final data of a splitfile which is not compressed and is not being
+ * filtered, see SplitFileFetcher.openStream(). Must be closed, as the storage file is not freed
+ * while there are streams open. */
+public class SplitFileStream extends InputStream {
+
+    private final SplitFileFetcherStorage storage;
+    /** Number of segments to fetch first, starting with the one we are reading. */
+    final int readahead;
+    /** Offset of the start of each segment in the data. */
+    private final long[] segmentStarts;
+    private long position;
+    /** The segment containing position. Volatile so the storage can read it without waiting for
+     * a read to finish. */
+    private volatile int segment;
+    /** The block containing position, or null. */
+    private byte[] block;
+    /** Offset of the start of block in the data. */
+    private long blockStart;
+    /** Volatile so close() doesn't have to wait for a blocked read. */
+    private volatile boolean closed;
+
+    SplitFileStream(SplitFileFetcherStorage storage, int readahead) {
+        if(readahead < 1) throw new IllegalArgumentException();
+        this.storage = storage;
+        this.readahead = readahead;
+        SplitFileFetcherSegmentStorage[] segments = storage.segments;
+        segmentStarts = new long[segments.length];
+        long start = 0;
+        for(int i=0;i<segments.length;i++) {
+            segmentStarts[i] = start;
+            start += (long)segments[i].dataBlocks * CHKBlock.DATA_LENGTH;
+        }
+    }
+
+    /** @return The total length of the data. */
+    public long size() {
+        return storage.finalLength;
+    }
+
+    /** @return The segment which is being read. Used to choose which segments to fetch first. */
+    int getSegment() {
+        return segment;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] buf = new byte[1];
+        int read = read(buf, 0, 1);
+        if(read <= 0) return -1;
+        return buf[0] & 0xFF;
+    }
+
+    /** Blocks until the segment containing the current position has been decoded.
+     * @throws IOException If the fetch fails or is cancelled, or the stream is closed. */
+    @Override
+    public synchronized int read(byte[] buf, int offset, int length) throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(length == 0) return 0;
+        if(position >= size()) return -1;
+        if(block == null || position >= blockStart + CHKBlock.DATA_LENGTH) {
+            while(segment < segmentStarts.length - 1 && position >= segmentStarts[segment+1])
+                setSegment(segment+1);
+            int blockNumber = (int) ((position - segmentStarts[segment]) / CHKBlock.DATA_LENGTH);
+            block = storage.readStreamBlock(this, segment, blockNumber);
+            blockStart = segmentStarts[segment] + (long)blockNumber * CHKBlock.DATA_LENGTH;
+        }
+        int blockOffset = (int) (position - blockStart);
+        length = (int) Math.min(length, Math.min(CHKBlock.DATA_LENGTH - blockOffset, size() - position));
+        System.arraycopy(block, blockOffset, buf, offset, length);
+        position += length;
+        return length;
+    }
+
+    /** Skips without waiting for the data, so can be used to start part way through. */
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(n <= 0) return 0;
+        n = Math.min(n, size() - position);
+        position += n;
+        int seg = segment;
+        while(seg < segmentStarts.length - 1 && position >= segmentStarts[seg+1])
+            seg++;
+        if(seg != segment) setSegment(seg);
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        if(closed || block == null) return 0;
+        return (int) Math.max(0, Math.min(blockStart + CHKBlock.DATA_LENGTH, size()) - position);
+    }
+
+    private void setSegment(int seg) {
+        segment = seg;
+        storage.onStreamMoved();
+    }
+
+    /** Can be called while another thread is blocked in read(), which will then throw. */
+    @Override
+    public void close() {
+        closed = true;
+        storage.closeStream(this);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+}
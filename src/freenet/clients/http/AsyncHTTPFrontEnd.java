@@ -0,0 +1,803 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Non-blocking HTTP/1.1 front end for {@link SimpleToadletServer}. A few I/O threads multiplex
+ * all the connections using Selectors: they split the incoming data into requests (including
+ * pipelined ones) and send the replies. Only complete requests are handed to a bounded pool of
+ * workers, which run the toadlets through {@link ToadletContextImpl} exactly as the blocking
+ * front end does. So a client which is slow to send its request, or which is idle between
+ * requests on a persistent connection, doesn't tie up a thread.
+ *
+ * Replies are queued on the connection up to a limit, so a worker only waits for a slow client
+ * when it has a lot to send, e.g. a large file. Request bodies bigger than a limit are streamed
+ * to the worker rather than buffered. Requests on one connection are handled one at a time, in
+ * order, so pipelined replies can't get mixed up.
+ */
+public class AsyncHTTPFrontEnd {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(AsyncHTTPFrontEnd.class);
+	}
+
+	/** Handles one request, on a worker thread. */
+	interface RequestHandler {
+		/**
+		 * @param request The request line, headers and body. Reads block until the body arrives.
+		 * @param connection Where to write the reply.
+		 * @return True if the connection can be used for another request.
+		 */
+		boolean handle(InputStream request, HTTPConnection connection);
+	}
+
+	/** Longest request line plus headers we accept. LineReadingInputStream allows 128 lines. */
+	static final int MAX_HEADER_LENGTH = 64*1024;
+	/** Bodies up to this size are read completely before the request is handed to a worker. */
+	static final int MAX_BUFFERED_BODY = 64*1024;
+	/** Stop reading from a connection when this much body data is waiting for its worker. */
+	static final int MAX_UNREAD_BODY = 2*MAX_BUFFERED_BODY;
+	/** Workers writing a reply block when this much is waiting to be sent. */
+	static final int MAX_QUEUED_OUTPUT = 256*1024;
+	/** Stop reading from a connection when this many requests are waiting to be handled. */
+	static final int MAX_PIPELINED_REQUESTS = 16;
+	/** Close connections which have been idle for this long. */
+	static final long IDLE_TIMEOUT = MINUTES.toMillis(5);
+	private static final long SELECT_TIMEOUT = SECONDS.toMillis(1);
+	private static final int READ_BUFFER_SIZE = 16*1024;
+
+	private final RequestHandler handler;
+	private final Executor workerExecutor;
+	private final IOThread[] ioThreads;
+	private final AtomicInteger nextIOThread = new AtomicInteger();
+	private volatile boolean running;
+
+	private volatile int maxWorkers;
+	private final AtomicInteger runningWorkers = new AtomicInteger();
+	/** Connections with a request ready to run, waiting for a worker */
+	private final ConcurrentLinkedQueue<Connection> waitingForWorker = new ConcurrentLinkedQueue<Connection>();
+
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicLong connectionsAccepted = new AtomicLong();
+	private final AtomicLong requestsHandled = new AtomicLong();
+
+	/**
+	 * @param handler Handles each request.
+	 * @param workerExecutor Runs the workers. Each job handles requests until there are none
+	 * waiting, and there are never more than maxWorkers jobs at once.
+	 * @param ioThreads The number of threads doing I/O.
+	 * @param maxWorkers The maximum number of requests handled at once.
+	 */
+	public AsyncHTTPFrontEnd(RequestHandler handler, Executor workerExecutor, int ioThreads, int maxWorkers) throws IOException {
+		if(ioThreads < 1) throw new IllegalArgumentException();
+		this.handler = handler;
+		this.workerExecutor = workerExecutor;
+		this.maxWorkers = Math.max(1, maxWorkers);
+		this.ioThreads = new IOThread[ioThreads];
+		for(int i=0;i<ioThreads;i++)
+			this.ioThreads[i] = new IOThread(i);
+	}
+
+	public void start() {
+		running = true;
+		for(IOThread t : ioThreads) {
+			NativeThread thread = new NativeThread(t, "HTTP I/O thread "+t.index, NativeThread.PriorityLevel.HIGH_PRIORITY.value, false);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/** Stop the I/O threads and close all connections. Requests being handled are not interrupted
+	 * but can't send anything. */
+	public void stop() {
+		running = false;
+		for(IOThread t : ioThreads)
+			t.selector.wakeup();
+	}
+
+	/** Start handling a newly accepted connection. */
+	public void addConnection(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		IOThread t = ioThreads[(nextIOThread.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length];
+		final Connection conn = new Connection(channel, t);
+		openConnections.incrementAndGet();
+		connectionsAccepted.incrementAndGet();
+		t.runOnIOThread(conn::register);
+	}
+
+	public void setMaxWorkers(int max) {
+		maxWorkers = Math.max(1, max);
+		startWorkers(waitingForWorker.size());
+	}
+
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.get();
+	}
+
+	public long getRequestsHandled() {
+		return requestsHandled.get();
+	}
+
+	public int getRunningWorkers() {
+		return runningWorkers.get();
+	}
+
+	/** Queue a connection whose next request is ready, and start a worker if we can. */
+	private void submit(Connection conn) {
+		waitingForWorker.add(conn);
+		startWorkers(1);
+	}
+
+	/** Start up to the given number of workers, without going over the limit. */
+	private void startWorkers(int count) {
+		for(int i=0;i<count;i++) {
+			int running = runningWorkers.get();
+			if(running >= maxWorkers) return;
+			if(!runningWorkers.compareAndSet(running, running+1)) {
+				i--;
+				continue;
+			}
+			try {
+				workerExecutor.execute(new Worker());
+			} catch (Throwable t) {
+				runningWorkers.decrementAndGet();
+				Logger.error(this, "Unable to start HTTP worker: "+t, t);
+				return;
+			}
+		}
+	}
+
+	/** Handles requests until there are none waiting. */
+	private class Worker implements PrioRunnable {
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			while(true) {
+				Connection conn = waitingForWorker.poll();
+				if(conn == null) {
+					runningWorkers.decrementAndGet();
+					// Something may have been queued after we looked but before we decremented.
+					if(waitingForWorker.isEmpty()) return;
+					int running = runningWorkers.get();
+					if(running >= maxWorkers || !runningWorkers.compareAndSet(running, running+1)) return;
+					continue;
+				}
+				conn.handleActiveRequest();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			// Same as the blocking front end's socket handlers.
+			return NativeThread.PriorityLevel.HIGH_PRIORITY.value-1;
+		}
+
+	}
+
+	/** Owns a Selector and all I/O on the connections registered with it. */
+	private class IOThread implements Runnable {
+
+		final int index;
+		final Selector selector;
+		/** Jobs to run on this thread, e.g. changing interest ops on behalf of a worker */
+		private final ConcurrentLinkedQueue<Runnable> jobs = new ConcurrentLinkedQueue<Runnable>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		IOThread(int index) throws IOException {
+			this.index = index;
+			this.selector = Selector.open();
+		}
+
+		void runOnIOThread(Runnable job) {
+			jobs.add(job);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			long lastIdleCheck = System.currentTimeMillis();
+			while(running) {
+				try {
+					selector.select(SELECT_TIMEOUT);
+					Runnable job;
+					while((job = jobs.poll()) != null) {
+						try {
+							job.run();
+						} catch (Throwable t) {
+							Logger.error(this, "Caught "+t+" running "+job, t);
+						}
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Connection conn = (Connection) key.attachment();
+						try {
+							if(key.isValid() && key.isWritable()) conn.onWritable();
+							if(key.isValid() && key.isReadable()) conn.onReadable(readBuffer);
+						} catch (CancelledKeyException e) {
+							conn.closeNow();
+						} catch (IOException e) {
+							if(logMINOR) Logger.minor(this, "Closing "+conn+" : "+e);
+							conn.closeNow();
+						}
+					}
+					long now = System.currentTimeMillis();
+					if(now - lastIdleCheck >= SELECT_TIMEOUT) {
+						lastIdleCheck = now;
+						for(SelectionKey key : selector.keys()) {
+							Connection conn = (Connection) key.attachment();
+							if(conn.isIdleSince(now - IDLE_TIMEOUT)) {
+								if(logMINOR) Logger.minor(this, "Closing idle connection "+conn);
+								conn.closeNow();
+							}
+						}
+					}
+				} catch (IOException e) {
+					Logger.error(this, "Caught "+e+" in HTTP I/O thread", e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" in HTTP I/O thread", t);
+				}
+			}
+			for(SelectionKey key : selector.keys())
+				((Connection) key.attachment()).closeNow();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+
+	}
+
+	/**
+	 * A client connection. The parsing state is only touched by the I/O thread; the request
+	 * queue and the output queue are shared with the worker and protected by the connection's
+	 * lock.
+	 */
+	private class Connection implements HTTPConnection {
+
+		private final SocketChannel channel;
+		private final IOThread ioThread;
+		private final InetAddress remoteAddress;
+		private final ConnectionOutputStream outputStream = new ConnectionOutputStream();
+		private SelectionKey key;
+
+		// Parsing state, I/O thread only.
+		private final ByteArrayOutputStream head = new ByteArrayOutputStream(1024);
+		/** Consecutive line feeds seen at the end of the head so far, ignoring CRs */
+		private int newlines;
+		/** The request whose body we are reading, or null if we are reading a head */
+		private Request receiving;
+		private boolean readPaused;
+
+		// Shared state, protected by the connection's lock.
+		/** Requests received, or being received, and not yet handled, in order */
+		private final ArrayDeque<Request> requests = new ArrayDeque<Request>();
+		/** The request being handled by a worker */
+		private Request active;
+		private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+		private int queuedOutput;
+		private boolean writeInterest;
+		/** Close once the output has been sent */
+		private boolean closing;
+		private boolean inputClosed;
+		private boolean detached;
+		private boolean closed;
+		private long lastActivity = System.currentTimeMillis();
+
+		/** Body bytes received but not yet read by the workers */
+		private final AtomicInteger unreadBody = new AtomicInteger();
+		private final AtomicBoolean closedFlag = new AtomicBoolean();
+
+		Connection(SocketChannel channel, IOThread ioThread) {
+			this.channel = channel;
+			this.ioThread = ioThread;
+			this.remoteAddress = channel.socket().getInetAddress();
+		}
+
+		/** Called on the I/O thread. */
+		void register() {
+			try {
+				key = channel.register(ioThread.selector, SelectionKey.OP_READ, this);
+			} catch (ClosedChannelException e) {
+				closeNow();
+			}
+		}
+
+		/** Called on the I/O thread. */
+		void onReadable(ByteBuffer buf) throws IOException {
+			buf.clear();
+			int read = channel.read(buf);
+			if(read < 0) {
+				onInputClosed();
+				return;
+			}
+			if(read == 0) return;
+			buf.flip();
+			synchronized(this) {
+				lastActivity = System.currentTimeMillis();
+				if(detached) {
+					// Nothing more is expected from the client.
+					return;
+				}
+			}
+			while(buf.hasRemaining()) {
+				if(receiving == null) {
+					if(!readHead(buf)) return;
+				} else {
+					int length = (int) Math.min(buf.remaining(), receiving.bodyRemaining());
+					byte[] data = new byte[length];
+					buf.get(data);
+					unreadBody.addAndGet(length);
+					receiving.stream.append(data);
+					if(receiving.bodyRemaining() == 0) receiving = null;
+				}
+			}
+			dispatch();
+			updateReadInterest();
+		}
+
+		/**
+		 * Read bytes of a request head. When the head is complete, queue the request.
+		 * @return False if the request is bad and the connection has been closed.
+		 */
+		private boolean readHead(ByteBuffer buf) {
+			while(buf.hasRemaining()) {
+				byte b = buf.get();
+				if(head.size() == 0 && (b == '\r' || b == '\n')) continue; // Between requests
+				head.write(b);
+				if(b == '\n') newlines++;
+				else if(b != '\r') newlines = 0;
+				if(newlines == 2) {
+					byte[] data = head.toByteArray();
+					head.reset();
+					newlines = 0;
+					Request request = new Request(data, getContentLength(data));
+					synchronized(this) {
+						requests.add(request);
+					}
+					if(request.bodyRemaining() > 0) receiving = request;
+					return true;
+				}
+				if(head.size() > MAX_HEADER_LENGTH) {
+					Logger.normal(this, "Request headers too long from "+remoteAddress);
+					closeNow();
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** Called on the I/O thread. */
+		private void onInputClosed() {
+			boolean close;
+			synchronized(this) {
+				if(detached) {
+					// The client has gone, so has whoever the connection was handed to.
+					close = false;
+				} else {
+					inputClosed = true;
+					if(receiving != null) receiving.stream.abort();
+					receiving = null;
+					close = active == null && requests.isEmpty();
+					if(close) closing = true;
+				}
+			}
+			if(!close && detached()) {
+				closeNow();
+				return;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			if(close) closeIfFlushed();
+		}
+
+		/** If no request is being handled, hand the next one to a worker if it is ready. */
+		private void dispatch() {
+			synchronized(this) {
+				if(active != null || closing || detached || requests.isEmpty()) return;
+				Request next = requests.peek();
+				if(!next.isReady()) return;
+				active = requests.poll();
+			}
+			submit(this);
+		}
+
+		/** Stop reading if the workers are falling behind, start again when they catch up. */
+		private void updateReadInterest() {
+			if(!key.isValid()) return;
+			boolean pause;
+			synchronized(this) {
+				if(detached) {
+					// Keep reading, so we notice when the client goes away.
+					pause = false;
+				} else if(inputClosed) {
+					pause = true;
+				} else {
+					pause = requests.size() >= MAX_PIPELINED_REQUESTS || unreadBody.get() > MAX_UNREAD_BODY;
+				}
+			}
+			if(pause == readPaused) return;
+			readPaused = pause;
+			if(pause)
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			else
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+
+		/** Called by a worker when it has read some of a request body. */
+		void onBodyRead(int bytes) {
+			if(unreadBody.addAndGet(-bytes) <= MAX_UNREAD_BODY / 2 && readPaused)
+				ioThread.runOnIOThread(this::updateReadInterest);
+		}
+
+		/** Called on a worker thread. */
+		void handleActiveRequest() {
+			Request request;
+			synchronized(this) {
+				request = active;
+			}
+			boolean keepAlive = false;
+			try {
+				keepAlive = handler.handle(request.stream, this);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" handling request from "+remoteAddress, t);
+			}
+			requestsHandled.incrementAndGet();
+			int discarded = request.stream.discard();
+			if(discarded > 0) onBodyRead(discarded);
+			boolean close;
+			synchronized(this) {
+				active = null;
+				lastActivity = System.currentTimeMillis();
+				if(detached) return;
+				close = !keepAlive || (inputClosed && requests.isEmpty());
+				if(close) closing = true;
+			}
+			if(close) {
+				closeIfFlushed();
+			} else {
+				// The next request may be complete already.
+				ioThread.runOnIOThread(() -> {
+					dispatch();
+					updateReadInterest();
+				});
+			}
+		}
+
+		/** Called on the I/O thread. */
+		void onWritable() throws IOException {
+			synchronized(this) {
+				writeQueued();
+				if(output.isEmpty()) {
+					writeInterest = false;
+					if(key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				}
+			}
+			closeIfFlushed();
+		}
+
+		/** Write as much of the queued output as the socket will take. Caller must hold the lock. */
+		private void writeQueued() throws IOException {
+			while(!output.isEmpty()) {
+				ByteBuffer buf = output.peek();
+				int written = channel.write(buf);
+				queuedOutput -= written;
+				if(buf.hasRemaining()) break;
+				output.poll();
+			}
+			lastActivity = System.currentTimeMillis();
+			notifyAll();
+		}
+
+		/** Called by workers. Sends immediately if possible, otherwise queues the data. */
+		private void write(byte[] data, int offset, int length) throws IOException {
+			boolean wantWrite = false;
+			synchronized(this) {
+				while(queuedOutput > MAX_QUEUED_OUTPUT && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted");
+					}
+				}
+				if(closed) throw new IOException("Connection closed");
+				ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+				if(output.isEmpty()) {
+					// Skip the queue, the I/O thread only writes when there's something queued.
+					channel.write(buf);
+					lastActivity = System.currentTimeMillis();
+					if(!buf.hasRemaining()) return;
+				}
+				ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+				copy.put(buf);
+				copy.flip();
+				output.add(copy);
+				queuedOutput += copy.remaining();
+				if(!writeInterest) {
+					writeInterest = true;
+					wantWrite = true;
+				}
+			}
+			if(wantWrite) {
+				ioThread.runOnIOThread(() -> {
+					if(key != null && key.isValid())
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				});
+			}
+		}
+
+		private void closeIfFlushed() {
+			synchronized(this) {
+				if(!closing || !output.isEmpty() || active != null) return;
+			}
+			closeNow();
+		}
+
+		/** Close the connection at once, discarding anything not yet sent. */
+		void closeNow() {
+			if(!closedFlag.compareAndSet(false, true)) return;
+			synchronized(this) {
+				closed = true;
+				closing = true;
+				output.clear();
+				queuedOutput = 0;
+				for(Request r : requests)
+					r.stream.abort();
+				if(active != null) active.stream.abort();
+				notifyAll();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			openConnections.decrementAndGet();
+		}
+
+		private synchronized boolean detached() {
+			return detached;
+		}
+
+		synchronized boolean isIdleSince(long time) {
+			if(detached || active != null || !requests.isEmpty() || !output.isEmpty()) return false;
+			return lastActivity < time || (closing && !closed);
+		}
+
+		@Override
+		public InetAddress getRemoteAddress() {
+			return remoteAddress;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		@Override
+		public void close() {
+			synchronized(this) {
+				closing = true;
+			}
+			// If a request is still being handled, we will close once it finishes.
+			closeIfFlushed();
+		}
+
+		@Override
+		public void detach() {
+			synchronized(this) {
+				detached = true;
+			}
+			ioThread.runOnIOThread(this::updateReadInterest);
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+":"+remoteAddress;
+		}
+
+		private class ConnectionOutputStream extends OutputStream {
+
+			@Override
+			public void write(int b) throws IOException {
+				Connection.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if(len == 0) return;
+				Connection.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				Connection.this.close();
+			}
+
+		}
+
+		/** A request: its head, and its body as it arrives */
+		private class Request {
+
+			final RequestStream stream;
+			final long bodyLength;
+
+			Request(byte[] head, long bodyLength) {
+				this.bodyLength = bodyLength;
+				this.stream = new RequestStream(head, bodyLength);
+			}
+
+			long bodyRemaining() {
+				return bodyLength - stream.bodyReceived();
+			}
+
+			/** Small bodies are read completely first, big ones are streamed to the worker. */
+			boolean isReady() {
+				return bodyLength > MAX_BUFFERED_BODY || bodyRemaining() == 0;
+			}
+
+		}
+
+		/** The bytes of one request. Reading blocks until the body data arrives. */
+		private class RequestStream extends InputStream {
+
+			private final byte[] head;
+			private int headOffset;
+			private final long bodyLength;
+			private long bodyReceived;
+			private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+			private int chunkOffset;
+			private int unread;
+			private boolean aborted;
+			private boolean discarded;
+
+			RequestStream(byte[] head, long bodyLength) {
+				this.head = head;
+				this.bodyLength = bodyLength;
+			}
+
+			synchronized long bodyReceived() {
+				return bodyReceived;
+			}
+
+			synchronized void append(byte[] data) {
+				bodyReceived += data.length;
+				if(discarded) {
+					onBodyRead(data.length);
+					return;
+				}
+				chunks.add(data);
+				unread += data.length;
+				notifyAll();
+			}
+
+			synchronized void abort() {
+				aborted = true;
+				notifyAll();
+			}
+
+			/** The request has been handled. Drop anything the handler didn't read.
+			 * @return The number of bytes dropped. */
+			synchronized int discard() {
+				discarded = true;
+				int dropped = unread;
+				chunks.clear();
+				unread = 0;
+				return dropped;
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] buf = new byte[1];
+				int read = read(buf, 0, 1);
+				return read < 0 ? -1 : (buf[0] & 0xFF);
+			}
+
+			@Override
+			public int read(byte[] buf, int offset, int length) throws IOException {
+				if(length == 0) return 0;
+				int read;
+				synchronized(this) {
+					if(headOffset < head.length) {
+						read = Math.min(length, head.length - headOffset);
+						System.arraycopy(head, headOffset, buf, offset, read);
+						headOffset += read;
+						return read;
+					}
+					while(chunks.isEmpty()) {
+						if(bodyReceived >= bodyLength) return -1;
+						if(aborted || discarded) throw new IOException("Connection closed");
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							throw new IOException("Interrupted");
+						}
+					}
+					byte[] chunk = chunks.peek();
+					read = Math.min(length, chunk.length - chunkOffset);
+					System.arraycopy(chunk, chunkOffset, buf, offset, read);
+					chunkOffset += read;
+					if(chunkOffset == chunk.length) {
+						chunks.poll();
+						chunkOffset = 0;
+					}
+					unread -= read;
+				}
+				onBodyRead(read);
+				return read;
+			}
+
+			@Override
+			public synchronized int available() {
+				return (head.length - headOffset) + unread;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Find the Content-Length of a request from its head.
+	 * @return The length, or 0 if there isn't one or it is invalid; in the latter case
+	 * ToadletContextImpl will reject the request and close the connection.
+	 */
+	static long getContentLength(byte[] head) {
+		String s = new String(head, StandardCharsets.ISO_8859_1);
+		int lineStart = s.indexOf('\n') + 1;
+		while(lineStart > 0 && lineStart < s.length()) {
+			int lineEnd = s.indexOf('\n', lineStart);
+			if(lineEnd < 0) lineEnd = s.length();
+			String line = s.substring(lineStart, lineEnd).trim();
+			int colon = line.indexOf(':');
+			if(colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT).equals("content-length")) {
+				try {
+					long length = Long.parseLong(line.substring(colon+1).trim());
+					return length < 0 ? 0 : length;
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+		return 0;
+	}
+
+}
@@ -22,6 +22,7 @@ import freenet.client.async.ClientContext;
 import freenet.client.async.ClientGetCallback;
 import freenet.client.async.ClientGetter;
 import freenet.client.async.PersistenceDisabledException;
+import freenet.client.async.SplitFileStream;
 import freenet.client.events.ClientEvent;
 import freenet.client.events.ClientEventListener;
 import freenet.client.events.ExpectedFileSizeEvent;
@@ -123,6 +124,8 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private FetchContext fctx;
 	private boolean cancelled = false;
 	private final RequestClient rc;
+	/** The data came from the filtered content cache, so don't put it back. */
+	private boolean fromFilteredCache;
 
 	public FProxyFetchInProgress(FProxyFetchTracker tracker, FreenetURI key, long maxSize2, long identifier, ClientContext context, FetchContext fctx, RequestClient rc, REFILTER_POLICY refilter) {
 		this.refilterPolicy = refilter;
@@ -174,7 +177,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 
 	public void start(ClientContext context) throws FetchException {
 		try {
-			if(!checkCache(context))
+			if(!checkFilteredCache() && !checkCache(context))
 				context.start(getter);
 		} catch (FetchException e) {
 			synchronized(this) {
@@ -286,6 +289,21 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		}
 	}
 
+	/** Look up the key in the cache of filtered data.
+	 * @return True if it was found and we don't need to start the request. */
+	private boolean checkFilteredCache() {
+		FilteredContentCache cache = tracker.filteredCache;
+		if(cache == null) return false;
+		FetchResult result = cache.get(uri, fctx, maxSize);
+		if(result == null) return false;
+		synchronized(this) {
+			fromFilteredCache = true;
+		}
+		// The bucket is our own copy, so we can stay in the FProxyFetchTracker.
+		onSuccess(result, null);
+		return true;
+	}
+
 	/** If the key is a USK and a) we are requested to do an exhaustive search, or b)
 	 * there is a later version, then we can't use the download queue as a cache.
 	 * @return True if we can't use the download queue, false if we can. */
@@ -391,6 +409,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	@Override
 	public void onSuccess(FetchResult result, ClientGetter state) {
 		Bucket droppedData = null;
+		boolean shouldCache;
 		synchronized(this) {
 			if(cancelled)
 				droppedData = result.asBucket();
@@ -398,10 +417,13 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				this.data = result.asBucket();
 			this.mimeType = result.getMimeType();
 			this.finished = true;
+			shouldCache = !cancelled && !fromFilteredCache;
 		}
 		wakeWaiters(true);
 		if(droppedData != null)
 			droppedData.free();
+		else if(shouldCache && tracker.filteredCache != null)
+			tracker.filteredCache.put(uri, fctx, result.getMimeType(), result.asBucket());
 	}
 
 	public synchronized boolean hasData() {
@@ -412,6 +434,12 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		return finished;
 	}
 
+	/** Open a stream which returns the data as it is fetched, if possible.
+	 * @see ClientGetter#openStream(int) */
+	public SplitFileStream openStream(int readahead) {
+		return getter.openStream(readahead);
+	}
+
 	public void close(FProxyFetchWaiter waiter) {
 		synchronized(this) {
 			waiters.remove(waiter);
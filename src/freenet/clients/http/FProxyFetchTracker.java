@@ -35,12 +35,19 @@ public class FProxyFetchTracker implements Runnable {
 	private final RequestClient rc;
 	private boolean queuedJob;
 	private boolean requeue;
+	/** Filtered data for recently fetched CHKs, or null */
+	final FilteredContentCache filteredCache;
 
 	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc) {
+		this(context, fctx, rc, null);
+	}
+
+	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc, FilteredContentCache filteredCache) {
 		fetchers = new MultiValueTable<FreenetURI, FProxyFetchInProgress>();
 		this.context = context;
 		this.fctx = fctx;
 		this.rc = rc;
+		this.filteredCache = filteredCache;
 	}
 	
 	public FProxyFetchWaiter makeFetcher(FreenetURI key, long maxSize, FetchContext fctx, REFILTER_POLICY refilterPolicy) throws FetchException {
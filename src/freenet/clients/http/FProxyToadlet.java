@@ -5,6 +5,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,6 +28,7 @@ import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.FetchResult;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.async.ClientContext;
+import freenet.client.async.SplitFileStream;
 import freenet.client.filter.ContentFilter;
 import freenet.client.filter.FilterMIMEType;
 import freenet.client.filter.FoundURICallback;
@@ -35,6 +37,7 @@ import freenet.client.filter.UnsafeContentTypeException;
 import freenet.clients.http.ajaxpush.DismissAlertToadlet;
 import freenet.clients.http.ajaxpush.LogWritebackToadlet;
 import freenet.clients.http.ajaxpush.PushDataToadlet;
+import freenet.clients.http.ajaxpush.PushEventsToadlet;
 import freenet.clients.http.ajaxpush.PushFailoverToadlet;
 import freenet.clients.http.ajaxpush.PushKeepaliveToadlet;
 import freenet.clients.http.ajaxpush.PushLeavingToadlet;
@@ -99,6 +102,10 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 	/** Maximum size for transparent pass-through. See config passthroughMaxSizeProgress */
 	public static long MAX_LENGTH_WITH_PROGRESS = (100*1024*1024) * 11 / 10; // 100MiB plus a bit due to buggy inserts, because our Windows installer is >70 MiB nowadays
 	public static long MAX_LENGTH_NO_PROGRESS = (2*1024*1024) * 11 / 10; // 2MiB plus a bit due to buggy inserts
+	/** Number of segments to fetch ahead of the reader for ?stream. See config streamReadahead */
+	public static int STREAM_READAHEAD_SEGMENTS = 4;
+	/** How often to check whether a ?stream fetch has reached the splitfile */
+	private static final long STREAM_POLL_INTERVAL = SECONDS.toMillis(1);
 
 	static final URI welcome;
 	public static final short PRIORITY = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
@@ -229,18 +236,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 
 		if (forceDownload) {
-			MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
-			headers.put("Content-Disposition", "attachment; filename=\"" + key.getPreferredFilename() + '"');
-			headers.put("Cache-Control", "private");
-			headers.put("Content-Transfer-Encoding", "binary");
-            headers.put("X-Content-Type-Options", "nosniff");
-			// really the above should be enough, but ...
-			// was application/x-msdownload, but some unix browsers offer to open that in Wine as default!
-			// it is important that this type not be understandable, but application/octet-stream doesn't work.
-			// see http://onjava.com/pub/a/onjava/excerpt/jebp_3/index3.html
-			// Testing on FF3.5.1 shows that application/x-force-download wants to run it in wine,
-			// whereas application/force-download wants to save it.
-			context.sendReplyHeadersFProxy(200, "OK", headers, "application/force-download", size);
+			context.sendReplyHeadersFProxy(200, "OK", forceDownloadHeaders(key), FORCE_DOWNLOAD_MIME_TYPE, size);
 			context.writeData(data);
 		} else {
 			// Send the data, intact
@@ -678,6 +674,16 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			} catch (FetchException e) {
             fe = e;
 			}
+			if(fetch != null && httprequest.isParameterSet("stream") && !fctx.filterData) {
+				// Close the waiter if it was streamed, or if streaming threw.
+				boolean done = true;
+				try {
+					done = sendStream(ctx, fetch, key);
+				} finally {
+					if(done) fetch.close();
+				}
+				if(done) return;
+			}
 			if(fetch != null)
 			while(true) {
 			fr = fetch.getResult(!canSendProgress);
@@ -754,6 +760,8 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 
 				addDownloadOptions(ctx, optionList, key, mimeType, false, false, core);
 
+				optionList.addChild("li").addChild("a", "href", getLink(key, requestedMimeType, maxSize, null, true, maxRetries, overrideSize)+"&stream=true", l10n("streamWhileFetching"));
+
 				optionList.addChild("li").addChild(ctx.getPageMaker().createBackLink(ctx, l10n("goBackToPrev")));
 				optionList.addChild("li").addChild("a", new String[] { "href", "title" },
 						new String[] { "/", NodeL10n.getBase().getString("Toadlet.homepage") }, l10n("abortToHomepage"));
@@ -1042,6 +1050,84 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return NodeL10n.getBase().getString("FProxyToadlet."+key, pattern, value);
 	}
 
+	/** The type we send for ?forcedownload.
+	 * Was application/x-msdownload, but some unix browsers offer to open that in Wine as default!
+	 * It is important that this type not be understandable, but application/octet-stream doesn't work.
+	 * See http://onjava.com/pub/a/onjava/excerpt/jebp_3/index3.html
+	 * Testing on FF3.5.1 shows that application/x-force-download wants to run it in wine,
+	 * whereas application/force-download wants to save it. */
+	private static final String FORCE_DOWNLOAD_MIME_TYPE = "application/force-download";
+
+	private static MultiValueTable<String, String> forceDownloadHeaders(FreenetURI key) {
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		headers.put("Content-Disposition", "attachment; filename=\"" + key.getPreferredFilename() + '"');
+		headers.put("Cache-Control", "private");
+		headers.put("Content-Transfer-Encoding", "binary");
+		headers.put("X-Content-Type-Options", "nosniff");
+		// really the above should be enough, but see FORCE_DOWNLOAD_MIME_TYPE.
+		return headers;
+	}
+
+	/** Send the data as it is fetched, for ?stream, so the start of a large file can be used
+	 * before the end has been found. Each segment is sent as soon as it is decoded, and the
+	 * segments just ahead of the one being sent are fetched first. Only possible for an unfiltered
+	 * splitfile which is not compressed. Supports a single byte range.
+	 * @return False if the data can't be streamed, e.g. because the fetch finished first, in
+	 * which case the caller should send it as usual. */
+	private boolean sendStream(ToadletContext ctx, FProxyFetchWaiter fetch, FreenetURI key)
+	throws ToadletContextClosedException, IOException {
+		SplitFileStream stream;
+		while((stream = fetch.progress.openStream(STREAM_READAHEAD_SEGMENTS)) == null) {
+			// Probably still fetching the metadata.
+			if(fetch.progress.finished()) return false;
+			try {
+				Thread.sleep(STREAM_POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		try {
+			long size = stream.size();
+			MultiValueTable<String, String> headers = forceDownloadHeaders(key);
+			headers.put("Accept-Ranges", "bytes");
+			long length = size;
+			String rangeStr = ctx.getHeaders().get("range");
+			if(rangeStr != null) {
+				long[] range;
+				try {
+					range = parseRange(rangeStr);
+				} catch (HTTPRangeException e) {
+					range = null;
+				}
+				if(range == null || range[0] >= size) {
+					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
+					return true;
+				}
+				if (range[1] == -1 || range[1] >= size) {
+					range[1] = size - 1;
+				}
+				FileUtil.skipFully(stream, range[0]);
+				length = range[1] - range[0] + 1;
+				headers.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+				ctx.sendReplyHeadersFProxy(206, "Partial content", headers, FORCE_DOWNLOAD_MIME_TYPE, length);
+			} else {
+				ctx.sendReplyHeadersFProxy(200, "OK", headers, FORCE_DOWNLOAD_MIME_TYPE, length);
+			}
+			byte[] buf = new byte[32768];
+			while(length > 0) {
+				// Blocks until the next segment has been decoded. If the fetch fails we can only
+				// close the connection.
+				int read = stream.read(buf, 0, (int) Math.min(buf.length, length));
+				if(read <= 0) throw new EOFException();
+				ctx.writeData(buf, 0, read);
+				length -= read;
+			}
+			return true;
+		} finally {
+			stream.close();
+		}
+	}
+
 	private String getLink(FreenetURI uri, String requestedMimeType, long maxSize, String force,
 			boolean forceDownload, int maxRetries, boolean appendMaxSize) {
 		StringBuilder sb = new StringBuilder();
@@ -1117,8 +1203,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		random = new byte[32];
 		core.getRandom().nextBytes(random);
 
+		FilteredContentCache filteredCache = server.createFilteredContentCache(core.getClientContext().tempBucketFactory);
 		FProxyFetchTracker fetchTracker = new FProxyFetchTracker(core.getClientContext(), client.getFetchContext(),
-				new RequestClientBuilder().realTime().build());
+				new RequestClientBuilder().realTime().build(), filteredCache);
 
 
 		FProxyToadlet fproxy = new FProxyToadlet(client, core, fetchTracker);
@@ -1269,6 +1356,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		PushNotificationToadlet pushNotificationToadlet = new PushNotificationToadlet(client);
 		server.register(pushNotificationToadlet, null, pushNotificationToadlet.path(), true, false);
 
+		PushEventsToadlet pushEventsToadlet = new PushEventsToadlet(client);
+		server.register(pushEventsToadlet, null, pushEventsToadlet.path(), true, false);
+
 		PushKeepaliveToadlet pushKeepaliveToadlet = new PushKeepaliveToadlet(client);
 		server.register(pushKeepaliveToadlet, null, pushKeepaliveToadlet.path(), true, false);
 
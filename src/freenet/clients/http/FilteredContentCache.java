@@ -0,0 +1,309 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.client.FetchResult;
+import freenet.client.filter.HTMLFilter;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * Keeps the output of the content filter for recently viewed CHKs, so that showing the same
+ * page or image again, in another tab or to another user, doesn't fetch and filter it again.
+ * The data under a CHK never changes, so the filtered output only depends on the MIME type
+ * and the settings which affect the filter, and both are part of the cache key.
+ *
+ * Pages filtered with a tag replacer (web pushing) contain per-request element IDs, so they
+ * are never cached. Inline prefetching is not triggered by a cache hit.
+ *
+ * The data is kept in temp buckets, and the total size is bounded; the least recently used
+ * entries are dropped first. Callers always get their own copy of the data.
+ */
+public class FilteredContentCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(FilteredContentCache.class);
+	}
+
+	/** Don't let a single entry take more than this fraction of the cache. */
+	static final int MAX_ENTRY_FRACTION = 4;
+
+	private final BucketFactory bf;
+	private long maxSize;
+	private long size;
+	/** In access order, so the first entry is the least recently used */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong bytesServed = new AtomicLong();
+
+	/**
+	 * @param bf Creates the buckets holding the cached data. Should be the TempBucketFactory.
+	 * @param maxSize The maximum total size of the cached data in bytes. 0 disables the cache.
+	 */
+	public FilteredContentCache(BucketFactory bf, long maxSize) {
+		this.bf = bf;
+		this.maxSize = maxSize;
+	}
+
+	/** The key, the requested MIME type and everything else which affects the filter output. */
+	static final class Key {
+
+		final FreenetURI uri;
+		/** The MIME type the browser asked for, or null to use the type from the metadata. */
+		final String mimeType;
+		/** The filter settings, see {@link FilteredContentCache#filterPolicy(FetchContext)} */
+		final String policy;
+		private final int hashCode;
+
+		Key(FreenetURI uri, String mimeType, String policy) {
+			this.uri = uri;
+			this.mimeType = mimeType;
+			this.policy = policy;
+			int h = uri.hashCode();
+			h = h * 31 + (mimeType == null ? 0 : mimeType.hashCode());
+			h = h * 31 + policy.hashCode();
+			this.hashCode = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(hashCode != k.hashCode) return false;
+			if(mimeType == null ? k.mimeType != null : !mimeType.equals(k.mimeType)) return false;
+			return policy.equals(k.policy) && uri.equals(k.uri);
+		}
+
+	}
+
+	private static class Entry {
+
+		final Bucket data;
+		final String mimeType;
+		final long size;
+		/** Number of copies being made right now */
+		int readers;
+		/** Dropped from the cache, free the data once the readers have finished. */
+		boolean removed;
+
+		Entry(Bucket data, String mimeType) {
+			this.data = data;
+			this.mimeType = mimeType;
+			this.size = data.size();
+		}
+
+	}
+
+	/** @return True if the filtered output for this fetch can be shared with other fetches. */
+	static boolean canCache(FreenetURI uri, FetchContext fctx) {
+		return fctx.filterData && fctx.tagReplacer == null && uri.isCHK();
+	}
+
+	/** Describes the settings which change the filter output for the same data and MIME type.
+	 * Two fetches whose policies are equal get identical output. */
+	static String filterPolicy(FetchContext fctx) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(fctx.getSchemeHostAndPort()).append('\n');
+		sb.append(fctx.charset).append('\n');
+		sb.append(HTMLFilter.embedM3uPlayer);
+		return sb.toString();
+	}
+
+	static Key makeKey(FreenetURI uri, FetchContext fctx) {
+		return new Key(uri, fctx.overrideMIME, filterPolicy(fctx));
+	}
+
+	/**
+	 * Look up the filtered output for a fetch.
+	 * @param maxLength The largest result the fetch accepts.
+	 * @return A copy of the data, which the caller must free, or null if it isn't cached.
+	 */
+	public FetchResult get(FreenetURI uri, FetchContext fctx, long maxLength) {
+		if(!canCache(uri, fctx)) return null;
+		Key key = makeKey(uri, fctx);
+		Entry entry;
+		synchronized(this) {
+			if(maxSize <= 0) return null;
+			entry = entries.get(key);
+			if(entry == null || entry.size > maxLength) {
+				misses.incrementAndGet();
+				return null;
+			}
+			entry.readers++;
+		}
+		Bucket copy = null;
+		try {
+			copy = bf.makeBucket(entry.size);
+			BucketTools.copy(entry.data, copy);
+			hits.incrementAndGet();
+			bytesServed.addAndGet(entry.size);
+			if(logMINOR) Logger.minor(this, "Cache hit for "+uri+" ("+entry.size+" bytes)");
+			FetchResult result = new FetchResult(new ClientMetadata(entry.mimeType), copy);
+			copy = null;
+			return result;
+		} catch (IOException e) {
+			Logger.error(this, "Unable to copy cached filtered data for "+uri+": "+e, e);
+			misses.incrementAndGet();
+			remove(key, entry);
+			return null;
+		} finally {
+			if(copy != null) copy.free();
+			release(entry);
+		}
+	}
+
+	/**
+	 * Store the filtered output of a fetch. The data is copied, so the caller still owns it.
+	 * Does nothing if the fetch can't be shared or the data is too big.
+	 */
+	public void put(FreenetURI uri, FetchContext fctx, String mimeType, Bucket data) {
+		if(!canCache(uri, fctx)) return;
+		long length = data.size();
+		Key key = makeKey(uri, fctx);
+		synchronized(this) {
+			if(!fits(length)) return;
+			if(entries.containsKey(key)) return;
+		}
+		Bucket copy = null;
+		try {
+			copy = bf.makeBucket(length);
+			BucketTools.copy(data, copy);
+			copy.setReadOnly();
+		} catch (IOException e) {
+			Logger.normal(this, "Unable to cache filtered data for "+uri+": "+e, e);
+			if(copy != null) copy.free();
+			return;
+		}
+		Entry entry = new Entry(copy, mimeType);
+		List<Entry> dropped = new ArrayList<Entry>();
+		synchronized(this) {
+			// Maybe another fetch for the same key finished first.
+			if(entries.containsKey(key) || !fits(length)) {
+				dropped.add(entry);
+			} else {
+				entries.put(key, entry);
+				size += entry.size;
+				shrink(dropped);
+			}
+		}
+		free(dropped);
+		if(logMINOR) Logger.minor(this, "Cached "+length+" bytes of filtered "+mimeType+" for "+uri);
+	}
+
+	private boolean fits(long length) {
+		return maxSize > 0 && length <= maxSize / MAX_ENTRY_FRACTION;
+	}
+
+	/** Remove least recently used entries until we are within the limit. Caller must hold the lock. */
+	private void shrink(List<Entry> dropped) {
+		Iterator<Entry> it = entries.values().iterator();
+		while(size > maxSize && it.hasNext()) {
+			Entry e = it.next();
+			it.remove();
+			size -= e.size;
+			e.removed = true;
+			if(e.readers == 0) dropped.add(e);
+		}
+	}
+
+	private void remove(Key key, Entry entry) {
+		synchronized(this) {
+			if(entries.get(key) != entry) return;
+			entries.remove(key);
+			size -= entry.size;
+			entry.removed = true;
+		}
+	}
+
+	private void release(Entry entry) {
+		synchronized(this) {
+			entry.readers--;
+			if(!(entry.removed && entry.readers == 0)) return;
+		}
+		entry.data.free();
+	}
+
+	private static void free(List<Entry> dropped) {
+		for(Entry e : dropped)
+			e.data.free();
+	}
+
+	public void setMaxSize(long maxSize) {
+		List<Entry> dropped = new ArrayList<Entry>();
+		synchronized(this) {
+			this.maxSize = maxSize;
+			shrink(dropped);
+		}
+		free(dropped);
+	}
+
+	/** Drop everything, e.g. because the filter has changed. */
+	public void clear() {
+		List<Entry> dropped = new ArrayList<Entry>();
+		synchronized(this) {
+			for(Entry e : entries.values()) {
+				e.removed = true;
+				if(e.readers == 0) dropped.add(e);
+			}
+			entries.clear();
+			size = 0;
+		}
+		free(dropped);
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** @return Bytes handed out from the cache instead of being fetched and filtered again. */
+	public long getBytesServed() {
+		return bytesServed.get();
+	}
+
+	/** @return The fraction of lookups which were hits, or 0 if there have been none. */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0.0 : ((double) h) / total;
+	}
+
+}
@@ -0,0 +1,60 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * The connection an HTTP request arrived on, as seen by {@link ToadletContextImpl}. Either a
+ * plain blocking socket, or a connection managed by the {@link AsyncHTTPFrontEnd}.
+ */
+interface HTTPConnection {
+
+	InetAddress getRemoteAddress();
+
+	/** Replies are written here. May block if the client is slow to read them. */
+	OutputStream getOutputStream() throws IOException;
+
+	/** Close the connection, after sending anything already written. */
+	void close() throws IOException;
+
+	/** A toadlet has taken over the connection (see {@link ToadletContext#detachConnection()}).
+	 * No further requests will be read from it, and it is closed by calling {@link #close()}. */
+	void detach();
+
+	/** A connection on a blocking socket, handled by one thread for its whole life. */
+	static class SocketConnection implements HTTPConnection {
+
+		private final Socket sock;
+
+		SocketConnection(Socket sock) {
+			this.sock = sock;
+		}
+
+		@Override
+		public InetAddress getRemoteAddress() {
+			return sock.getInetAddress();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return sock.getOutputStream();
+		}
+
+		@Override
+		public void close() throws IOException {
+			sock.close();
+		}
+
+		@Override
+		public void detach() {
+			// Nothing to do, the handler thread just returns.
+		}
+
+	}
+
+}
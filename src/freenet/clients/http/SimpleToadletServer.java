@@ -5,6 +5,7 @@ package freenet.clients.http;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -28,6 +29,7 @@ import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
@@ -82,6 +84,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private NetworkInterface networkInterface;
 	private boolean ssl = false;
 	public static final int DEFAULT_FPROXY_PORT = 8888;
+	public static final long DEFAULT_FILTERED_CONTENT_CACHE_SIZE = 16*1024*1024;
 	
 	// ACL
 	private final AllowedHosts allowedFullAccess;
@@ -106,6 +109,12 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	// HTTP Option
 	private boolean doRobots;
 	private boolean enablePersistentConnections;
+	private volatile boolean enableCompression;
+	/** Use the non-blocking front end? Only read at startup. */
+	private final boolean useAsyncFrontEnd;
+	private AsyncHTTPFrontEnd asyncFrontEnd;
+	/** Number of I/O threads for the non-blocking front end */
+	static final int ASYNC_IO_THREADS = 2;
 	private boolean enableInlinePrefetch;
 	private boolean enableActivelinks;
 	private boolean enableExtendedMethodHandling;
@@ -196,6 +205,22 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}
 	}
 
+	private static class FProxyStreamReadahead extends IntCallback {
+		@Override
+		public Integer get() {
+			return FProxyToadlet.STREAM_READAHEAD_SEGMENTS;
+		}
+
+		@Override
+		public void set(Integer val) throws InvalidConfigValueException {
+			if (get().equals(val))
+				return;
+			if (val < 1)
+				throw new InvalidConfigValueException(l10n("streamReadaheadMustBePositive"));
+			FProxyToadlet.STREAM_READAHEAD_SEGMENTS = val;
+		}
+	}
+
 	private class FProxyPortCallback extends IntCallback  {
 		@Override
 		public Integer get() {
@@ -611,6 +636,37 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 					}
 		});
 		enablePersistentConnections = fproxyConfig.getBoolean("enablePersistentConnections");
+
+		fproxyConfig.register("enableCompression", false, configItemOrder++, true, false, "SimpleToadletServer.enableCompression", "SimpleToadletServer.enableCompressionLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return enableCompression;
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException {
+						enableCompression = val;
+					}
+		});
+		enableCompression = fproxyConfig.getBoolean("enableCompression");
+
+		fproxyConfig.register("asyncFrontEnd", false, configItemOrder++, true, false, "SimpleToadletServer.asyncFrontEnd", "SimpleToadletServer.asyncFrontEndLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return useAsyncFrontEnd;
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val == useAsyncFrontEnd) return;
+						throw new NodeNeedRestartException("fproxy.asyncFrontEnd");
+					}
+		});
+		useAsyncFrontEnd = fproxyConfig.getBoolean("asyncFrontEnd");
 		
 		// Off by default.
 		// I had hoped it would yield a significant performance boost to bootstrap performance
@@ -656,6 +712,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		FProxyToadlet.MAX_LENGTH_NO_PROGRESS = fproxyConfig.getLong("passthroughMaxSize");
 		fproxyConfig.register("passthroughMaxSizeProgress", FProxyToadlet.MAX_LENGTH_WITH_PROGRESS, configItemOrder++, true, false, "SimpleToadletServer.passthroughMaxSizeProgress", "SimpleToadletServer.passthroughMaxSizeProgressLong", new FProxyPassthruMaxSizeProgress(), true);
 		FProxyToadlet.MAX_LENGTH_WITH_PROGRESS = fproxyConfig.getLong("passthroughMaxSizeProgress");
+		fproxyConfig.register("streamReadahead", FProxyToadlet.STREAM_READAHEAD_SEGMENTS, configItemOrder++, true, false, "SimpleToadletServer.streamReadahead", "SimpleToadletServer.streamReadaheadLong", new FProxyStreamReadahead(), false);
+		FProxyToadlet.STREAM_READAHEAD_SEGMENTS = fproxyConfig.getInt("streamReadahead");
 		System.out.println("Set fproxy max length to "+FProxyToadlet.MAX_LENGTH_NO_PROGRESS+" and max length with progress to "+FProxyToadlet.MAX_LENGTH_WITH_PROGRESS+" = "+fproxyConfig.getLong("passthroughMaxSizeProgress"));
 
 		fproxyConfig.register("enableCachingForChkAndSskKeys", false, configItemOrder++, true, true, "SimpleToadletServer.enableCachingForChkAndSskKeys", "SimpleToadletServer.enableCachingForChkAndSskKeysLong", new BooleanCallback() {
@@ -718,10 +776,13 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 
 					@Override
 					public void set(Integer val) {
+						AsyncHTTPFrontEnd frontEnd;
 						synchronized(SimpleToadletServer.this) {
 							maxFproxyConnections = val;
+							frontEnd = asyncFrontEnd;
 							SimpleToadletServer.this.notifyAll();
 						}
+						if(frontEnd != null) frontEnd.setMaxWorkers(val);
 					}
 			
 		}, false);
@@ -782,6 +843,29 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				configItemOrder++, true, false, "SimpleToadletServer.refilterPolicy", "SimpleToadletServer.refilterPolicyLong", new ReFilterCallback());
 		
 		this.refilterPolicy = REFILTER_POLICY.valueOf(fproxyConfig.getString("refilterPolicy"));
+
+		fproxyConfig.register("filteredContentCacheSize", DEFAULT_FILTERED_CONTENT_CACHE_SIZE, configItemOrder++, true, false,
+				"SimpleToadletServer.filteredContentCacheSize", "SimpleToadletServer.filteredContentCacheSizeLong", new LongCallback() {
+
+					@Override
+					public Long get() {
+						synchronized(SimpleToadletServer.this) {
+							return filteredContentCacheSize;
+						}
+					}
+
+					@Override
+					public void set(Long val) throws InvalidConfigValueException {
+						if(val < 0) throw new InvalidConfigValueException(l10n("filteredContentCacheSizeNegative"));
+						FilteredContentCache cache;
+						synchronized(SimpleToadletServer.this) {
+							filteredContentCacheSize = val;
+							cache = filteredContentCache;
+						}
+						if(cache != null) cache.setMaxSize(val);
+					}
+		}, true);
+		filteredContentCacheSize = fproxyConfig.getLong("filteredContentCacheSize");
 		
 		// Network seclevel not physical seclevel because bad filtering can cause network level anonymity breaches.
 		SimpleToadletServer.isPanicButtonToBeShown = fproxyConfig.getBoolean("showPanicButton");
@@ -864,7 +948,11 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private void maybeGetNetworkInterface() throws IOException {
 		if (this.networkInterface!=null) return;
 		if(ssl) {
+			if(useAsyncFrontEnd)
+				Logger.error(this, "The non-blocking front end doesn't support SSL yet, using the blocking one");
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+		} else if(useAsyncFrontEnd) {
+			this.networkInterface = ChannelNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
 			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		}
@@ -1022,10 +1110,60 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 
 	@Override
 	public void run() {
+		AsyncHTTPFrontEnd frontEnd = null;
+		if(useAsyncFrontEnd && !ssl) {
+			try {
+				frontEnd = startAsyncFrontEnd();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to start the non-blocking front end, using the blocking one: "+e, e);
+			}
+		}
+		try {
+			acceptConnections(frontEnd);
+		} finally {
+			if(frontEnd != null) {
+				frontEnd.stop();
+				synchronized(this) {
+					asyncFrontEnd = null;
+				}
+			}
+		}
+	}
+
+	private AsyncHTTPFrontEnd startAsyncFrontEnd() throws IOException {
+		AsyncHTTPFrontEnd frontEnd;
+		synchronized(this) {
+			frontEnd = new AsyncHTTPFrontEnd((is, conn) ->
+				ToadletContextImpl.handle(new BufferedInputStream(is, 4096), conn, this, pageMaker, getUserAlertManager(), bookmarkManager, true),
+				job -> {
+					// See SocketHandler.start().
+					if(hasFinishedStartup())
+						executor.execute(job, "HTTP worker");
+					else
+						new Thread(job, "HTTP worker").start();
+				}, ASYNC_IO_THREADS, maxFproxyConnections);
+			asyncFrontEnd = frontEnd;
+		}
+		frontEnd.start();
+		Logger.normal(this, "Using the non-blocking HTTP front end");
+		return frontEnd;
+	}
+
+	private synchronized boolean hasFinishedStartup() {
+		return finishedStartup;
+	}
+
+	/** @return The non-blocking front end, or null if we are using the blocking one. */
+	public synchronized AsyncHTTPFrontEnd getAsyncFrontEnd() {
+		return asyncFrontEnd;
+	}
+
+	private void acceptConnections(AsyncHTTPFrontEnd frontEnd) {
 		boolean finishedStartup = false;
 		while(true) {
 			synchronized(this) {
-				while(fproxyConnections > maxFproxyConnections) {
+				// The non-blocking front end limits the requests being handled, not the connections.
+				while(frontEnd == null && fproxyConnections > maxFproxyConnections) {
 					try {
 						wait();
 					} catch (InterruptedException e) {
@@ -1043,6 +1181,19 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            if(frontEnd != null && conn.getChannel() != null) {
+                try {
+                    frontEnd.addConnection(conn.getChannel());
+                } catch (IOException e) {
+                    Logger.normal(this, "Unable to handle connection: "+e);
+                    try {
+                        conn.close();
+                    } catch (IOException e1) {
+                        // Ignore
+                    }
+                }
+                continue;
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
@@ -1199,6 +1350,11 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		return enablePersistentConnections;
 	}
 
+	@Override
+	public boolean enableCompression() {
+		return enableCompression;
+	}
+
 	@Override
 	public boolean enableInlinePrefetch() {
 		return enableInlinePrefetch;
@@ -1254,6 +1410,19 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	}
 	
 	private REFILTER_POLICY refilterPolicy;
+	private long filteredContentCacheSize;
+	private FilteredContentCache filteredContentCache;
+
+	/** Create the cache of filtered content. Called once, when FProxy is created. */
+	synchronized FilteredContentCache createFilteredContentCache(BucketFactory tempBucketFactory) {
+		filteredContentCache = new FilteredContentCache(tempBucketFactory, filteredContentCacheSize);
+		return filteredContentCache;
+	}
+
+	/** @return The cache of filtered content, or null if FProxy hasn't been created yet. */
+	public synchronized FilteredContentCache getFilteredContentCache() {
+		return filteredContentCache;
+	}
 
 	@Override
 	public REFILTER_POLICY getReFilterPolicy() {
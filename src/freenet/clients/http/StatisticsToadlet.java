@@ -16,8 +16,10 @@ import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
+import freenet.client.ArchiveManager;
 import freenet.client.async.ClientRequester;
 import freenet.client.HighLevelSimpleClient;
+import freenet.clients.http.updateableelements.PushDataManager;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.IncomingPacketFilterImpl;
@@ -25,6 +27,8 @@ import freenet.io.xfer.BlockReceiver;
 import freenet.io.xfer.BlockTransmitter;
 import freenet.l10n.NodeL10n;
 import freenet.keys.FreenetURI;
+import freenet.node.BandwidthClass;
+import freenet.node.BandwidthManager;
 import freenet.node.Location;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
@@ -36,6 +40,7 @@ import freenet.node.PeerNodeStatus;
 import freenet.node.RequestClient;
 import freenet.node.RequestStarterGroup;
 import freenet.node.RequestTracker;
+import freenet.node.StartupTimer;
 import freenet.node.Version;
 import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
@@ -47,6 +52,7 @@ import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.NativeThread;
+import freenet.support.io.PooledFileRandomAccessBuffer;
 
 public class StatisticsToadlet extends Toadlet {
 
@@ -289,6 +295,8 @@ public class StatisticsToadlet extends Toadlet {
 			HTMLNode bandwidthInfobox = nextTableCell.addChild("div", "class", "infobox");
 			
 			drawBandwidthBox(bandwidthInfobox, nodeUptimeSeconds, advancedMode);
+
+			drawBandwidthClassesBox(nextTableCell.addChild("div", "class", "infobox"), nodeUptimeSeconds);
 		}
 
 		if(advancedMode) {
@@ -440,6 +448,12 @@ public class StatisticsToadlet extends Toadlet {
 						
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawThreadPriorityStatsBox(threadsPriorityInfobox);
+
+			drawStartupTimesBox(nextTableCell.addChild("div", "class", "infobox"));
+
+			drawOpenFilesBox(nextTableCell.addChild("div", "class", "infobox"));
+
+			drawDispatchStatsBox(nextTableCell.addChild("div", "class", "infobox"));
 			
 			nextTableCell = overviewTableRow.addChild("td");
 
@@ -652,6 +666,56 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 
+	private void drawStartupTimesBox(HTMLNode box) {
+		StartupTimer timer = node.getStartupTimer();
+		box.addChild("div", "class", "infobox-header", l10n("startupTimes"));
+		HTMLNode content = box.addChild("div", "class", "infobox-content");
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("startupPhase"));
+		row.addChild("th", l10n("startupStarted"));
+		row.addChild("th", l10n("startupDuration"));
+		for(StartupTimer.Phase phase : timer.getPhases()) {
+			row = table.addChild("tr");
+			row.addChild("td", phase.parallel ? l10n("startupParallel", "name", phase.name) : phase.name);
+			row.addChild("td", StartupTimer.format(phase.start));
+			row.addChild("td", StartupTimer.format(phase.duration));
+		}
+		long timeToReady = timer.getTimeToReady();
+		if(timeToReady != -1)
+			content.addChild("p", l10n("startupReady", "time", StartupTimer.format(timeToReady)));
+		long timeToFirstRequest = timer.getTimeToFirstRequest();
+		if(timeToFirstRequest != -1)
+			content.addChild("p", l10n("startupFirstRequest", "time", StartupTimer.format(timeToFirstRequest)));
+	}
+
+	private void drawOpenFilesBox(HTMLNode box) {
+		PooledFileRandomAccessBuffer.FDTracker fds = PooledFileRandomAccessBuffer.getDefaultFDTracker();
+		box.addChild("div", "class", "infobox-header", l10n("openFiles"));
+		HTMLNode list = box.addChild("div", "class", "infobox-content").addChild("ul");
+		list.addChild("li", l10n("openFilesCount", new String[] { "open", "max" },
+				new String[] { Integer.toString(fds.getOpenFDs()), Integer.toString(fds.getMaxFDs()) }));
+		list.addChild("li", l10n("openFilesUsage", new String[] { "opens", "reuses", "evictions" },
+				new String[] { Long.toString(fds.getOpens()), Long.toString(fds.getReuses()), Long.toString(fds.getEvictions()) }));
+	}
+
+	private void drawDispatchStatsBox(HTMLNode box) {
+		box.addChild("div", "class", "infobox-header", l10n("dispatchStats"));
+		HTMLNode table = box.addChild("div", "class", "infobox-content").addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("dispatchMessageType"));
+		row.addChild("th", l10n("count"));
+		row.addChild("th", l10n("avgTime"));
+		row.addChild("th", l10n("totalTime"));
+		for(NodeStats.TimedStats entry : node.getDispatcher().getDispatchStatistics()) {
+			row = table.addChild("tr");
+			row.addChild("td", entry.keyStr);
+			row.addChild("td", Long.toString(entry.count));
+			row.addChild("td", (entry.avgTime / 1000) + "\u00b5s");
+			row.addChild("td", TimeUtil.formatTime(entry.totalTime / (1000 * 1000), 2, true));
+		}
+	}
+
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
 		box.addChild("div", "class", "infobox-header", l10n("opennetStats"));
 		HTMLNode opennetStatsContent = box.addChild("div", "class", "infobox-content");
@@ -1061,6 +1125,23 @@ public class StatisticsToadlet extends Toadlet {
 			activityList.addChild("li", "BackgroundFetcherByUSKSize:\u00a0" + node.getClientCore().getUskManager().getBackgroundFetcherByUSKSize());
 			activityList.addChild("li", "temporaryBackgroundFetchersLRUSize:\u00a0" + node.getClientCore().getUskManager().getTemporaryBackgroundFetchersLRU());
 			activityList.addChild("li", "outputBandwidthLiabilityUsage:\u00a0" + this.fix3p1pct.format(node.getNodeStats().getBandwidthLiabilityUsage()));
+			ArchiveManager archives = node.getClientCore().archiveManager;
+			activityList.addChild("li", l10n("archiveExtraction", new String[] { "containers", "files", "extracted", "saved", "cached" },
+					new String[] { Long.toString(archives.getArchivesIndexed()), Long.toString(archives.getFilesExtracted()),
+							SizeUtil.formatSize(archives.getBytesExtracted()), SizeUtil.formatSize(archives.getBytesNotExtracted()),
+							SizeUtil.formatSize(archives.getCachedDataSize()) }));
+			if (container instanceof SimpleToadletServer) {
+				PushDataManager push = ((SimpleToadletServer) container).getPushDataManager();
+				activityList.addChild("li", l10n("pushChannels", new String[] { "channels", "pages", "rate" },
+						new String[] { Integer.toString(push.getOpenChannels()), Integer.toString(push.getPageCount()), fix1p1.format(push.getEventsPerSecond()) }));
+				FilteredContentCache filteredCache = ((SimpleToadletServer) container).getFilteredContentCache();
+				if (filteredCache != null) {
+					activityList.addChild("li", l10n("filteredContentCache", new String[] { "hits", "misses", "rate", "size", "entries" },
+							new String[] { Long.toString(filteredCache.getHits()), Long.toString(filteredCache.getMisses()),
+									fix3p1pct.format(filteredCache.getHitRate()), SizeUtil.formatSize(filteredCache.getSize()),
+									Integer.toString(filteredCache.getEntryCount()) }));
+				}
+			}
 		}
 		
 	}
@@ -1299,6 +1380,31 @@ public class StatisticsToadlet extends Toadlet {
 		
 	}
 
+	private void drawBandwidthClassesBox(HTMLNode box, long nodeUptimeSeconds) {
+		BandwidthManager bandwidth = node.getBandwidthManager();
+		box.addChild("div", "class", "infobox-header", l10n("bandwidthClasses"));
+		HTMLNode table = box.addChild("div", "class", "infobox-content").addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("bandwidthClass"));
+		row.addChild("th", l10n("bandwidthClassAssured"));
+		row.addChild("th", l10n("bandwidthClassCeiling"));
+		row.addChild("th", l10n("bandwidthClassSent"));
+		row.addChild("th", l10n("bandwidthClassRate"));
+		row.addChild("th", l10n("bandwidthClassBorrowed"));
+		row.addChild("th", l10n("bandwidthClassLimited"));
+		for(BandwidthClass c : BandwidthClass.values()) {
+			long sent = bandwidth.getBytesSent(c);
+			row = table.addChild("tr");
+			row.addChild("td", c.name());
+			row.addChild("td", bandwidth.getAssured(c) + "%");
+			row.addChild("td", bandwidth.getCeiling(c) + "%");
+			row.addChild("td", SizeUtil.formatSize(sent));
+			row.addChild("td", SizeUtil.formatSize(sent / Math.max(1, nodeUptimeSeconds)) + "/s");
+			row.addChild("td", SizeUtil.formatSize(bandwidth.getBytesBorrowed(c)));
+			row.addChild("td", Long.toString(bandwidth.getTimesLimited(c)));
+		}
+	}
+
 	// FIXME this should probably be moved to nodestats so it can be used by FCP??? would have to make ThreadBunch public :<
 	private void getThreadNames(HTMLNode threadUsageList) {
 		Thread[] threads = stats.getThreads();
@@ -121,6 +121,9 @@ public interface ToadletContainer {
 
 	public boolean enablePersistentConnections();
 
+	/** Whether to gzip HTML, CSS and Javascript replies for clients which accept it. */
+	public boolean enableCompression();
+
 	public boolean enableInlinePrefetch();
 
 	public boolean enableExtendedMethodHandling();
@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.text.ParseException;
 import java.util.Date;
@@ -87,6 +88,14 @@ public interface ToadletContext {
 	 * been sent, how long the attached data should be, how much data has been sent etc.
 	 */
 	void forceDisconnect();
+
+	/**
+	 * Take over the connection after sending the reply headers, so that data can still be written
+	 * once the handle method has returned, e.g. for a long-lived event stream. The thread which
+	 * handled the request is released, no further requests are read from the connection, and
+	 * the context can't be written to any more. Closing the returned stream closes the connection.
+	 */
+	OutputStream detachConnection() throws ToadletContextClosedException;
 	
 	/**
 	 * Convenience method that simply calls {@link #writeData(byte[], int, int)}.
@@ -1,6 +1,8 @@
 package freenet.clients.http;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -22,6 +24,7 @@ import java.util.Enumeration;
 import java.util.Locale;
 import java.util.StringJoiner;
 import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
 
 import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
 import freenet.clients.http.annotation.AllowData;
@@ -68,6 +71,7 @@ public class ToadletContextImpl implements ToadletContext {
 	private final MultiValueTable<String,String> headers;
 	private ArrayList<ReceivedCookie> cookies; // Null until the first time the user queries us for a ReceivedCookie.
 	private ArrayList<Cookie> replyCookies; // Null until the first time the user sets a Cookie.
+	private final HTTPConnection connection;
 	private final OutputStream sockOutputStream;
 	private final PageMaker pagemaker;
 	private final BucketFactory bf;
@@ -100,15 +104,29 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	private boolean closed;
 	private boolean shouldDisconnect;
+	/** Has the connection been taken over by the toadlet? */
+	private boolean detached;
+	/** If the reply is being compressed, the headers and data waiting to be sent */
+	private DeferredReply deferredReply;
+
+	/** Replies shorter than this aren't worth compressing */
+	static final int MIN_COMPRESS_LENGTH = 1024;
+	/** Compressed replies are buffered in memory, so don't compress anything bigger than this */
+	static final int MAX_COMPRESS_LENGTH = 1024*1024;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
+		this(new HTTPConnection.SocketConnection(sock), headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, uniqueID);
+	}
+
+	ToadletContextImpl(HTTPConnection connection, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
 		this.headers = headers;
 		this.cookies = null;
 		this.replyCookies = null;
 		this.closed = false;
 		this.uri=uri;
-		sockOutputStream = sock.getOutputStream();
-		remoteAddr = sock.getInetAddress();
+		this.connection = connection;
+		sockOutputStream = connection.getOutputStream();
+		remoteAddr = connection.getRemoteAddress();
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
 		this.bf = bf;
@@ -230,8 +248,143 @@ public class ToadletContextImpl implements ToadletContext {
 					Logger.minor(this, "set-cookie: " + cookieHeader);
 			}
 		}
+		if(shouldCompress(replyCode, mimeType, contentLength)) {
+			// We need all the data to know the compressed length, so send the headers later.
+			deferredReply = new DeferredReply(replyCode, replyDescription, mvt, mimeType, (int) contentLength, mTime, enableJavascript, allowFrames);
+			return;
+		}
 		sendReplyHeaders(sockOutputStream, replyCode, replyDescription, mvt, mimeType, contentLength, mTime, shouldDisconnect, enableJavascript, allowFrames);
 	}
+
+	/** Should we gzip a reply? Only if it is enabled, the client accepts it, and it's HTML, CSS
+	 * or Javascript of a reasonable size. */
+	private boolean shouldCompress(int replyCode, String mimeType, long contentLength) {
+		if(replyCode != 200 || mimeType == null) return false;
+		if(contentLength < MIN_COMPRESS_LENGTH || contentLength > MAX_COMPRESS_LENGTH) return false;
+		if(!container.enableCompression()) return false;
+		return isCompressibleType(mimeType) && acceptsGzip(headers.get("accept-encoding"));
+	}
+
+	static boolean isCompressibleType(String mimeType) {
+		int semicolon = mimeType.indexOf(';');
+		String type = (semicolon == -1 ? mimeType : mimeType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+		return type.equals("text/html") || type.equals("application/xhtml+xml") || type.equals("text/css") ||
+			type.equals("application/javascript") || type.equals("text/javascript") || type.equals("application/x-javascript");
+	}
+
+	/** @param acceptEncoding The value of the Accept-Encoding header, or null. */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if(acceptEncoding == null) return false;
+		for(String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			if(!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+			for(int i=1;i<parts.length;i++) {
+				String param = parts[i].trim();
+				if(param.startsWith("q=")) {
+					try {
+						if(Double.parseDouble(param.substring(2)) <= 0.0) return false;
+					} catch (NumberFormatException e) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/** The headers and data of a reply which will be compressed once it is complete. */
+	private static class DeferredReply {
+		final int replyCode;
+		final String replyDescription;
+		final MultiValueTable<String,String> mvt;
+		final String mimeType;
+		final int contentLength;
+		final Date mTime;
+		final boolean enableJavascript;
+		final boolean allowFrames;
+		final ByteArrayOutputStream data;
+
+		DeferredReply(int replyCode, String replyDescription, MultiValueTable<String,String> mvt, String mimeType, int contentLength, Date mTime, boolean enableJavascript, boolean allowFrames) {
+			this.replyCode = replyCode;
+			this.replyDescription = replyDescription;
+			this.mvt = mvt == null ? new MultiValueTable<String,String>() : mvt;
+			this.mimeType = mimeType;
+			this.contentLength = contentLength;
+			this.mTime = mTime;
+			this.enableJavascript = enableJavascript;
+			this.allowFrames = allowFrames;
+			this.data = new ByteArrayOutputStream(contentLength);
+		}
+
+		boolean isComplete() {
+			return data.size() >= contentLength;
+		}
+
+		/** @return How much more data we will buffer. Anything after the declared length is
+		 * dropped, as it would be read as the start of the next reply on the connection. */
+		int remaining() {
+			return contentLength - data.size();
+		}
+
+		void write(byte[] buf, int offset, int length) {
+			if(length > remaining()) {
+				Logger.error(this, "Toadlet wrote "+(data.size() + length)+" bytes but declared "+contentLength);
+				length = remaining();
+			}
+			data.write(buf, offset, length);
+		}
+	}
+
+	/**
+	 * Send a deferred reply. If all the data has arrived, it is compressed, unless that doesn't
+	 * make it any smaller. Otherwise (the toadlet sent less than it said it would, e.g. for a HEAD
+	 * request), the headers and whatever data we have are sent as they are.
+	 */
+	private void sendDeferredReply() throws IOException {
+		DeferredReply reply = deferredReply;
+		deferredReply = null;
+		byte[] raw = reply.data.toByteArray();
+		byte[] toSend = raw;
+		long length = reply.contentLength;
+		// Compressing a secret alongside text the attacker can influence (search terms, keys
+		// in URLs) lets them guess it from the compressed length (BREACH), so pages which carry
+		// the form password are always sent uncompressed.
+		if(reply.isComplete() && !containsSecret(raw, getFormPassword())) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(raw.length / 2);
+			GZIPOutputStream gzos = new GZIPOutputStream(baos);
+			gzos.write(raw);
+			gzos.close();
+			byte[] compressed = baos.toByteArray();
+			if(compressed.length < raw.length) {
+				toSend = compressed;
+				length = compressed.length;
+				reply.mvt.put("content-encoding", "gzip");
+			}
+		}
+		reply.mvt.put("vary", "Accept-Encoding");
+		sendReplyHeaders(sockOutputStream, reply.replyCode, reply.replyDescription, reply.mvt, reply.mimeType, length, reply.mTime, shouldDisconnect, reply.enableJavascript, reply.allowFrames);
+		sockOutputStream.write(toSend);
+	}
+
+	/** @return True if the secret occurs anywhere in the data, as ASCII. */
+	static boolean containsSecret(byte[] data, String secret) {
+		if(secret == null || secret.isEmpty()) return false;
+		byte[] s = secret.getBytes(StandardCharsets.US_ASCII);
+		outer:
+		for(int i=0;i<=data.length-s.length;i++) {
+			if(data[i] != s[0]) continue;
+			for(int j=1;j<s.length;j++)
+				if(data[i+j] != s[j]) continue outer;
+			return true;
+		}
+		return false;
+	}
+
+	/** Called after the toadlet has returned. Sends any reply still waiting to be compressed. */
+	void finishReply() throws IOException {
+		if(deferredReply != null) sendDeferredReply();
+	}
 	
 	@Override
 	public PageMaker getPageMaker() {
@@ -508,17 +661,34 @@ public class ToadletContextImpl implements ToadletContext {
 	 * Handle an incoming connection. Blocking, obviously.
 	 */
 	public static void handle(Socket sock, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		InputStream is;
+		try {
+			is = new BufferedInputStream(sock.getInputStream(), 4096);
+		} catch (IOException e) {
+			return;
+		}
+		handle(is, new HTTPConnection.SocketConnection(sock), container, pageMaker, userAlertManager, bookmarkManager, false);
+	}
+
+	/**
+	 * Handle requests read from a stream, writing the replies to the connection.
+	 * @param is The requests.
+	 * @param oneRequest If true, return after handling the first request, rather than reading
+	 * requests until the connection is closed. Used by {@link AsyncHTTPFrontEnd}, which passes
+	 * each request separately.
+	 * @return True if oneRequest is set and the connection can be used for another request.
+	 * False if the connection has been or must be closed, or has been detached.
+	 */
+	static boolean handle(InputStream is, HTTPConnection conn, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, boolean oneRequest) {
 		try {
-			InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
-			
 			LineReadingInputStream lis = new LineReadingInputStream(is);
 			
 			while(true) {
 				
 				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
 				if (firstLine == null) {
-					sock.close();
-					return;
+					conn.close();
+					return false;
 				} else if (firstLine.isEmpty()) {
 					continue;
 				}
@@ -539,8 +709,8 @@ public class ToadletContextImpl implements ToadletContext {
 					uri = URIPreEncoder.encodeURI(split[1]).normalize();
 					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
 				} catch (URISyntaxException e) {
-					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
+					sendURIParseError(conn.getOutputStream(), true, e);
+					return false;
 				}
 				String method = split[0];
 				
@@ -549,8 +719,8 @@ public class ToadletContextImpl implements ToadletContext {
 				while(true) {
 					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
 					if (line == null) {
-						sock.close();
-						return;
+						conn.close();
+						return false;
 					}
 					//System.out.println("Length="+line.length()+": "+line);
 					if(line.isEmpty()) break;
@@ -569,7 +739,7 @@ public class ToadletContextImpl implements ToadletContext {
 				boolean allowPost = container.allowPosts();
 				BucketFactory bf = container.getBucketFactory();
 				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
+				ToadletContextImpl ctx = new ToadletContextImpl(conn, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
 				ctx.shouldDisconnect = disconnect;
 				
 				/*
@@ -587,14 +757,14 @@ public class ToadletContextImpl implements ToadletContext {
 					if (slen == null) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
 					// <method> can not have data
 					if (slen != null) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 				}
 
@@ -606,7 +776,7 @@ public class ToadletContextImpl implements ToadletContext {
 					} catch (NumberFormatException e) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
 						data = bf.makeBucket(len);
@@ -616,10 +786,10 @@ public class ToadletContextImpl implements ToadletContext {
 						if (method.equals("POST")) {
 							ctx.sendMethodNotAllowed("POST", true);
 						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
+							sendError(conn.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
 						}
 						ctx.close();
-						return;
+						return false;
 					}
 				} else {
 					// we're not doing to use it, but we have to keep
@@ -629,8 +799,8 @@ public class ToadletContextImpl implements ToadletContext {
 
 				if (!container.enableExtendedMethodHandling()) {
 					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
+						sendError(conn.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
+						return false;
 					}
 				}
 
@@ -675,7 +845,7 @@ public class ToadletContextImpl implements ToadletContext {
 						}
 						
 						try {
-							callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
+							callToadletMethod(t, method, uri, req, ctx, data, conn, redirect);
 						} catch (RedirectException re) {
 							uri = re.newuri;
 							redirect = true;
@@ -683,10 +853,16 @@ public class ToadletContextImpl implements ToadletContext {
 							req.freeParts();
 						}
 					}
+					ctx.finishReply();
+					if(ctx.detached) {
+						// The toadlet owns the socket now.
+						return false;
+					}
 					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
+						conn.close();
+						return false;
 					}
+					if(oneRequest) return true;
 				} finally {
 					if(data != null) data.free();
 				}
@@ -694,13 +870,13 @@ public class ToadletContextImpl implements ToadletContext {
 			
 		} catch (ParseException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
+				sendError(conn.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
 		} catch (TooLongException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("headersLineTooLong"), true, null);
+				sendError(conn.getOutputStream(), 400, "Bad Request", l10n("headersLineTooLong"), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
@@ -719,21 +895,22 @@ public class ToadletContextImpl implements ToadletContext {
 				pw.flush();
 				msg = msg + sw + "</pre></body></html>";
 				byte[] messageBytes = msg.getBytes(StandardCharsets.UTF_8);
-				sendReplyHeaders(sock.getOutputStream(), 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
-				sock.getOutputStream().write(messageBytes);
+				sendReplyHeaders(conn.getOutputStream(), 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
+				conn.getOutputStream().write(messageBytes);
 			} catch (IOException e1) {
 				// ignore and return
 			}
 		}
+		return false;
 	}
 	
 	private static void callToadletMethod(Toadlet t, String method, URI uri, HTTPRequestImpl req, 
-			ToadletContextImpl ctx, Bucket data, Socket sock, boolean methodIsConfigurable) throws Throwable {
+			ToadletContextImpl ctx, Bucket data, HTTPConnection conn, boolean methodIsConfigurable) throws Throwable {
 		String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
 		if("GET".equals(method)) {
 			// Short cut the common case.
 			if (data != null) {
-				sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+				sendError(conn.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
 				ctx.close();
 				return;
 			}
@@ -748,13 +925,13 @@ public class ToadletContextImpl implements ToadletContext {
 				AllowData anno = m.getAnnotation(AllowData.class);
 				if (anno == null) {
 					if (data != null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+						sendError(conn.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
 						ctx.close();
 						return;
 					}
 				} else if (anno.value()) {
 					if (data == null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
+						sendError(conn.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
 						ctx.close();
 						return;
 					}
@@ -802,6 +979,11 @@ public class ToadletContextImpl implements ToadletContext {
 	@Override
 	public void writeData(byte[] data, int offset, int length) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
+		if(deferredReply != null) {
+			deferredReply.write(data, offset, length);
+			if(deferredReply.isComplete()) sendDeferredReply();
+			return;
+		}
 		sockOutputStream.write(data, offset, length);
 	}
 	
@@ -821,6 +1003,17 @@ public class ToadletContextImpl implements ToadletContext {
 	@Override
 	public void writeData(Bucket data) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
+		if(deferredReply != null) {
+			long length = data.size();
+			if(length > deferredReply.remaining()) {
+				Logger.error(this, "Toadlet wrote "+length+" bytes but only "+deferredReply.remaining()+" more were declared");
+				length = deferredReply.remaining();
+			}
+			BucketTools.copyTo(data, deferredReply.data, length);
+			data.free();
+			if(deferredReply.isComplete()) sendDeferredReply();
+			return;
+		}
 		BucketTools.copyTo(data, sockOutputStream, Long.MAX_VALUE);
 		data.free();
 	}
@@ -855,6 +1048,35 @@ public class ToadletContextImpl implements ToadletContext {
 		this.shouldDisconnect = true;
 	}
 
+	@Override
+	public OutputStream detachConnection() throws ToadletContextClosedException {
+		if(closed) throw new ToadletContextClosedException();
+		if(firstReplySendingException == null)
+			throw new IllegalStateException("Must send headers before detaching the connection");
+		try {
+			finishReply();
+		} catch (IOException e) {
+			closed = true;
+			throw new ToadletContextClosedException();
+		}
+		closed = true;
+		detached = true;
+		connection.detach();
+		return new FilterOutputStream(sockOutputStream) {
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				connection.close();
+			}
+
+		};
+	}
+
 	@Override
 	public ToadletContainer getContainer() {
 		return container;
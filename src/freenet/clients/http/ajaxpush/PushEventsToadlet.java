@@ -0,0 +1,116 @@
+package freenet.clients.http.ajaxpush;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.clients.http.RedirectException;
+import freenet.clients.http.SimpleToadletServer;
+import freenet.clients.http.Toadlet;
+import freenet.clients.http.ToadletContext;
+import freenet.clients.http.ToadletContextClosedException;
+import freenet.clients.http.updateableelements.PushDataManager;
+import freenet.clients.http.updateableelements.UpdaterConstants;
+import freenet.support.Base64;
+import freenet.support.Logger;
+import freenet.support.api.HTTPRequest;
+
+/**
+ * This toadlet provides notifications for a single page as a stream of Server-Sent Events. It
+ * requires the requestId parameter. Each event's data is the same as the body of a successful
+ * reply from {@link PushNotificationToadlet}, but without the leading SUCCESS. Unlike that
+ * toadlet it doesn't block: once the headers are sent the connection is handed over to the
+ * {@link PushDataManager}, which writes to it only when there is something to send.
+ */
+public class PushEventsToadlet extends Toadlet {
+
+	private static volatile boolean	logMINOR;
+
+	static {
+		Logger.registerClass(PushEventsToadlet.class);
+	}
+
+	/** How long the browser should wait before reconnecting, in milliseconds */
+	private static final int		RETRY_DELAY					= 5000;
+
+	private static final byte[]		KEEPALIVE					= ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+
+	public PushEventsToadlet(HighLevelSimpleClient client) {
+		super(client);
+	}
+
+	public void handleMethodGET(URI uri, HTTPRequest req, ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
+		String requestId = req.getParam("requestId");
+		PushDataManager pushDataManager = ((SimpleToadletServer) ctx.getContainer()).getPushDataManager();
+		// The stream only ends when the connection is closed.
+		ctx.forceDisconnect();
+		if (!pushDataManager.hasPage(requestId)) {
+			// 204 tells the browser not to reconnect.
+			ctx.sendReplyHeaders(204, "No Content", null, null, 0);
+			return;
+		}
+		ctx.sendReplyHeaders(200, "OK", null, "text/event-stream; charset=UTF-8", -1);
+		OutputStream os = ctx.detachConnection();
+		EventStreamSink sink = new EventStreamSink(os);
+		try {
+			os.write(("retry: " + RETRY_DELAY + "\n\n").getBytes(StandardCharsets.UTF_8));
+			os.flush();
+		} catch (IOException e) {
+			sink.close();
+			return;
+		}
+		if (!pushDataManager.openChannel(requestId, sink)) {
+			// The page has been cleaned up; the browser will get a 204 when it reconnects.
+			sink.close();
+			return;
+		}
+		if (logMINOR) {
+			Logger.minor(this, "Opened event stream for " + requestId);
+		}
+	}
+
+	@Override
+	public String path() {
+		return UpdaterConstants.eventsPath;
+	}
+
+	/** Writes notifications to the detached connection in event stream format */
+	private static class EventStreamSink implements PushDataManager.PushChannelSink {
+
+		private final OutputStream	os;
+
+		EventStreamSink(OutputStream os) {
+			this.os = os;
+		}
+
+		@Override
+		public void sendUpdates(String requestId, List<String> elementIds) throws IOException {
+			String prefix = "data: " + Base64.encodeStandard(requestId.getBytes(StandardCharsets.UTF_8)) + UpdaterConstants.SEPARATOR;
+			StringBuilder sb = new StringBuilder();
+			for (String elementId : elementIds) {
+				sb.append(prefix).append(elementId).append("\n\n");
+			}
+			os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+			os.flush();
+		}
+
+		@Override
+		public void sendKeepalive() throws IOException {
+			os.write(KEEPALIVE);
+			os.flush();
+		}
+
+		@Override
+		public void close() {
+			try {
+				os.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+}
@@ -1,15 +1,32 @@
 package freenet.clients.http.updateableelements;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.support.Logger;
 import freenet.support.Ticker;
 
-/** A manager class that manages all the pushing. All it's public method must be synchronized to maintain consistency. */
+/**
+ * A manager class that manages all the pushing. There is no global lock: the per-page state is
+ * kept in concurrent maps, and the only blocking left is in {@link #getNextNotification(String)},
+ * which waits on the leader's own queue.
+ *
+ * There are two ways of receiving notifications. The old long-polling protocol has one tab (the
+ * leader) poll for the notifications of every page, each poll occupying a thread until there is
+ * something to return. Alternatively a page may open a push channel ({@link #openChannel}), e.g.
+ * an event stream: it then receives only the updates for its own elements, without holding a
+ * thread while it waits. Repeated updates of an element are coalesced until they are sent.
+ */
 public class PushDataManager {
 
 	private static volatile boolean						logMINOR;
@@ -18,28 +35,59 @@ public class PushDataManager {
 		Logger.registerClass(PushDataManager.class);
 	}
 
+	/** Receives the notifications of a push channel. Only ever called from one thread at a time
+	 * for a given channel, and never while anything in the manager is locked. */
+	public interface PushChannelSink {
+		/** Send the ids of the elements which have changed on the page. May block on I/O.
+		 * @throws IOException If the client has gone; the channel will be closed. */
+		void sendUpdates(String requestId, List<String> elementIds) throws IOException;
+
+		/** Send something to keep the connection open.
+		 * @throws IOException If the client has gone; the channel will be closed. */
+		void sendKeepalive() throws IOException;
+
+		/** The channel has been closed, either by the manager or after an IOException. */
+		void close();
+	}
+
 	/** What notifications are waiting for the leader */
-	private Map<String, List<UpdateEvent>>				awaitingNotifications	= new HashMap<String, List<UpdateEvent>>();
+	private final Map<String, NotificationQueue>		awaitingNotifications	= new ConcurrentHashMap<String, NotificationQueue>();
 
-	/** What elements are on the page */
-	private Map<String, List<BaseUpdateableElement>>	pages					= new HashMap<String, List<BaseUpdateableElement>>();
+	/** The pages which have pushed elements, by request id */
+	private final Map<String, Page>						pages					= new ConcurrentHashMap<String, Page>();
 
 	/** What pages are on the element. It is redundant with the pages map. */
-	private Map<String, List<String>>					elements				= new HashMap<String, List<String>>();
-
-	/** Stores whether a keepalive was received for a request since the Cleaner last run */
-	private Map<String, Boolean>						isKeepaliveReceived		= new HashMap<String, Boolean>();
-	
-	private Map<String, Boolean>						isFirstKeepaliveReceived		= new HashMap<String, Boolean>();
+	private final ConcurrentHashMap<String, Set<String>>	elements			= new ConcurrentHashMap<String, Set<String>>();
 
 	/** The Cleaner that runs periodically and cleanes the failing requests */
-	private Ticker										cleaner;
+	private final Ticker								cleaner;
 
 	/** A task for the Cleaner that the Cleaner invokes */
-	private CleanerTimerTask							cleanerTask				= new CleanerTimerTask();
+	private final CleanerTimerTask						cleanerTask				= new CleanerTimerTask();
 
 	/** The Cleaner only runs when needed. If this field is true, then the Cleaner is scheduled to run */
-	private boolean										isScheduled				= false;
+	private final AtomicBoolean							isScheduled				= new AtomicBoolean();
+
+	/** Sends keepalives on the open push channels. Only scheduled while there are any. */
+	private final ChannelPinger							pinger					= new ChannelPinger();
+
+	private final AtomicBoolean							isPingerScheduled		= new AtomicBoolean();
+
+	private final AtomicInteger							openChannels			= new AtomicInteger();
+
+	/** Total notifications delivered to clients, by either protocol */
+	private final AtomicLong							eventsSent				= new AtomicLong();
+
+	/** Total updates which were merged with an update already waiting to be sent */
+	private final AtomicLong							eventsCoalesced			= new AtomicLong();
+
+	private final Object								rateLock				= new Object();
+	private long										rateSampleTime			= System.currentTimeMillis();
+	private long										rateSampleEvents;
+	private double										eventsPerSecond;
+
+	/** Minimum period over which {@link #getEventsPerSecond()} is measured */
+	private static final long							RATE_SAMPLE_PERIOD		= 10 * 1000;
 
 	public PushDataManager(Ticker ticker) {
 		cleaner = ticker;
@@ -47,198 +95,298 @@ public class PushDataManager {
 
 	/**
 	 * An element is updated and needs to be pushed to all requests.
-	 * 
+	 *
 	 * @param id
 	 *            - The id of the element that changed
 	 */
-	public synchronized void updateElement(String id) {
+	public void updateElement(String id) {
 		if (logMINOR) {
 			Logger.minor(this, "Element updated id:" + id);
 		}
-		boolean needsUpdate = false;
-		if(elements.containsKey(id)==false){
-			if(logMINOR){
-				Logger.minor(this, "Element is updating, but not present on elements! elements:"+elements+" pages:"+pages+" awaitingNotifications:"+awaitingNotifications);
+		Set<String> requestIds = elements.get(id);
+		if (requestIds == null) {
+			if (logMINOR) {
+				Logger.minor(this, "Element is updating, but not present on elements! elements:" + elements + " pages:" + pages.keySet());
 			}
+			return;
 		}
-		if (elements.containsKey(id)) for (String reqId : elements.get(id)) {
-			if(logMINOR){
-				Logger.minor(this, "Element is present on page:"+reqId+". Adding an UpdateEvent for all notification list.");
+		for (String reqId : requestIds) {
+			Page page = pages.get(reqId);
+			if (page == null) continue;
+			PushChannel channel = page.channel;
+			if (channel != null) {
+				// The page listens for itself, the leader doesn't need to tell it.
+				channel.offer(id);
+				continue;
 			}
-			for(Map.Entry<String, List<UpdateEvent>> entry : awaitingNotifications.entrySet()) {
-//			for (List<UpdateEvent> notificationList : awaitingNotifications.values()) {
-				List<UpdateEvent> notificationList = entry.getValue();
-				UpdateEvent updateEvent = new UpdateEvent(reqId, id);
-				if (notificationList.contains(updateEvent) == false) {
-					notificationList.add(updateEvent);
+			if (logMINOR) {
+				Logger.minor(this, "Element is present on page:" + reqId + ". Adding an UpdateEvent for all notification list.");
+			}
+			UpdateEvent updateEvent = new UpdateEvent(reqId, id);
+			for (Map.Entry<String, NotificationQueue> entry : awaitingNotifications.entrySet()) {
+				if (entry.getValue().offer(updateEvent)) {
 					if (logMINOR) {
-						Logger.minor(this, "Notification("+updateEvent+") added to a notification list for "+entry.getKey());
+						Logger.minor(this, "Notification(" + updateEvent + ") added to a notification list for " + entry.getKey());
 					}
 				} else {
-					if (logMINOR)
-						Logger.minor(this, "Not notifying "+entry.getKey()+" because already on list");
+					eventsCoalesced.incrementAndGet();
+					if (logMINOR) Logger.minor(this, "Not notifying " + entry.getKey() + " because already on list");
 				}
 			}
-			needsUpdate = true;
-		}
-		if (needsUpdate) {
-			if(logMINOR){
-				Logger.minor(this, "Waking up notification polls");
-			}
-			notifyAll();
 		}
 	}
 
 	/**
 	 * A pushed element is rendered and needs to be tracked.
-	 * 
+	 *
 	 * @param requestUniqueId
 	 *            - The requestId that rendered the element
 	 * @param element
 	 *            - The element that is rendered
 	 */
-	public synchronized void elementRendered(String requestUniqueId, BaseUpdateableElement element) {
+	public void elementRendered(String requestUniqueId, BaseUpdateableElement element) {
 		if(logMINOR){
 			Logger.minor(this, "Element is rendered in page:"+requestUniqueId+" element:"+element);
 		}
 		// Add to the pages
-		if (pages.containsKey(requestUniqueId) == false) {
-			pages.put(requestUniqueId, new ArrayList<BaseUpdateableElement>());
-		}
-		pages.get(requestUniqueId).add(element);
+		Page page = pages.computeIfAbsent(requestUniqueId, Page::new);
+		page.elements.add(element);
 		// Add to the elements
 		String id = element.getUpdaterId(requestUniqueId);
-		if (elements.containsKey(id) == false) {
-			elements.put(id, new ArrayList<String>());
-		}
-		elements.get(id).add(requestUniqueId);
+		elements.compute(id, (k, set) -> {
+			if (set == null) set = ConcurrentHashMap.newKeySet();
+			set.add(requestUniqueId);
+			return set;
+		});
 		// The request needs to be tracked
-		isKeepaliveReceived.put(requestUniqueId, true);
+		page.keepaliveReceived = true;
 
-		if (awaitingNotifications.containsKey(requestUniqueId) == false) {
-			awaitingNotifications.put(requestUniqueId, new ArrayList<UpdateEvent>());
+		if (page.channel == null) {
+			awaitingNotifications.computeIfAbsent(requestUniqueId, k -> new NotificationQueue());
 		}
 		// If the Cleaner isn't running, then we schedule it to clear this request if failing
-		if (isScheduled == false) {
+		if (isScheduled.compareAndSet(false, true)) {
 			if (logMINOR) {
 				Logger.minor(this, "Cleaner is queued(1) time:" + System.currentTimeMillis());
 			}
 			cleaner.queueTimedJob(cleanerTask, "cleanerTask", getDelayInMs(), false, true);
-			isScheduled = true;
 		}
 	}
 
 	/**
 	 * Returns the element's current state.
-	 * 
+	 *
 	 * @param requestId
 	 *            - The requestId that needs the element.
 	 * @param id
 	 *            - The element's id
 	 */
-	public synchronized BaseUpdateableElement getRenderedElement(String requestId, String id) {
+	public BaseUpdateableElement getRenderedElement(String requestId, String id) {
 		if(logMINOR){
 			Logger.minor(this, "Getting element data for element:"+id+" in page:"+requestId);
 		}
-		if (pages.get(requestId) != null) for (BaseUpdateableElement element : pages.get(requestId)) {
+		Page page = pages.get(requestId);
+		if (page != null) for (BaseUpdateableElement element : page.elements) {
 			if (element.getUpdaterId(requestId).compareTo(id) == 0) {
-				element.updateState(false);
+				// Two pages may share an element, don't update it concurrently.
+				synchronized (element) {
+					element.updateState(false);
+				}
 				return element;
 			}
 		}
-		Logger.error(this, "Could not find data for the element requested. requestId:"+requestId+" id:"+id+" pages:"+pages+" keepaliveReceived:"+isKeepaliveReceived);
+		Logger.error(this, "Could not find data for the element requested. requestId:"+requestId+" id:"+id+" pages:"+pages.keySet());
 		return null;
 	}
 
 	/**
 	 * Fails a request and copies all notifications directed to it to another request. It is invoked when a leadership change occurs.
-	 * 
+	 *
 	 * @param originalRequestId
 	 *            - The failing leader's id
 	 * @param newRequestId
 	 *            - The new leader's id
 	 * @return Was the failover successful?
 	 */
-	public synchronized boolean failover(String originalRequestId, String newRequestId) {
+	public boolean failover(String originalRequestId, String newRequestId) {
 		if (logMINOR) {
 			Logger.minor(this, "Failover, original:" + originalRequestId + " new:" + newRequestId);
 		}
-		if (awaitingNotifications.containsKey(originalRequestId)) {
-			awaitingNotifications.put(newRequestId, awaitingNotifications.remove(originalRequestId));
-			if (logMINOR) {
-				Logger.minor(this, "copied " + awaitingNotifications.get(newRequestId).size() + " notification:" + awaitingNotifications.get(newRequestId));
-			}
-			notifyAll();
-			return true;
-		} else {
+		NotificationQueue queue = awaitingNotifications.remove(originalRequestId);
+		if (queue == null) {
 			if (logMINOR) {
 				Logger.minor(this, "Does not contains key");
 			}
 			return false;
 		}
+		NotificationQueue replaced = awaitingNotifications.put(newRequestId, queue);
+		if (logMINOR) {
+			Logger.minor(this, "copied notifications: " + queue);
+		}
+		// Anyone polling for either id must look again.
+		queue.wakeUp();
+		if (replaced != null) replaced.wakeUp();
+		return true;
 	}
 
 	/**
 	 * The request leaves, so it needs to be deleted
-	 * 
+	 *
 	 * @param requestId
 	 *            - The id of the request that is leaving
 	 * @return Was a request deleted?
 	 */
-	public synchronized boolean leaving(String requestId) {
+	public boolean leaving(String requestId) {
 		return deleteRequest(requestId);
 	}
 
 	/**
 	 * A keepalive received.
-	 * 
+	 *
 	 * @param requestId
 	 *            - The id of the request that sent the keepalive
 	 * @return Was it successful?
 	 */
-	public synchronized boolean keepAliveReceived(String requestId) {
+	public boolean keepAliveReceived(String requestId) {
 		if(logMINOR){
 			Logger.minor(this, "Keepalive is received for page:"+requestId);
 		}
+		Page page = pages.get(requestId);
 		// If the request is already deleted, then fail
-		if (isKeepaliveReceived.containsKey(requestId) == false) {
+		if (page == null) {
 			if(logMINOR){
 				Logger.minor(this, "Keepalive failed");
 			}
 			return false;
 		}
-		isKeepaliveReceived.put(requestId, true);
-		isFirstKeepaliveReceived.put(requestId, true);
-		notifyAll();
+		page.keepaliveReceived = true;
+		if (!page.firstKeepaliveReceived) {
+			page.firstKeepaliveReceived = true;
+			// Notifications for this page may now be handed out by any leader.
+			for (NotificationQueue queue : awaitingNotifications.values())
+				queue.wakeUp();
+		}
 		return true;
 	}
 
 	/**
 	 * Waits and return the next notification. Calling this method setup the notification list.
-	 * 
+	 * Blocks the calling thread; pages which can use {@link #openChannel} should do so instead.
+	 *
 	 * @param requestId
 	 *            - The id of the request
 	 * @return The next notification when present
 	 */
-	public synchronized UpdateEvent getNextNotification(String requestId) {
+	public UpdateEvent getNextNotification(String requestId) {
 		if (logMINOR) {
 			Logger.minor(this, "Polling for notification:" + requestId);
 		}
-		while (awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).isEmpty() || // No notifications
-				(awaitingNotifications.get(requestId) != null && !awaitingNotifications.get(requestId).isEmpty() && isFirstKeepaliveReceived.containsKey(awaitingNotifications.get(requestId).get(0).requestId)==false)) { // Not asked us yet
-			try {
-				wait();
-			} catch (InterruptedException ie) {
+		while (true) {
+			NotificationQueue queue = awaitingNotifications.get(requestId);
+			if (queue == null) {
 				return null;
 			}
+			synchronized (queue) {
+				// The queue may have been moved to another leader or deleted.
+				if (awaitingNotifications.get(requestId) != queue) continue;
+				UpdateEvent event = queue.pollReady();
+				if (event != null) {
+					if (logMINOR) {
+						Logger.minor(this, "Getting notification, notification:" + event + ",remaining:" + queue.size());
+					}
+					eventsSent.incrementAndGet();
+					return event;
+				}
+				try {
+					queue.wait();
+				} catch (InterruptedException ie) {
+					return null;
+				}
+			}
 		}
-		if (awaitingNotifications.get(requestId) == null) {
-			return null;
+	}
+
+	/**
+	 * Open a push channel for a page. From now on updates to the page's elements are delivered
+	 * through the sink, coalesced and without blocking the updater, rather than through the
+	 * leader's notifications. The page counts as alive for as long as the channel is open.
+	 * Replaces any channel the page already had, e.g. after the client reconnects.
+	 *
+	 * @param requestId
+	 *            - The id of the page
+	 * @param sink
+	 *            - Where to send the notifications
+	 * @return False if the page is unknown (e.g. already cleaned up). The sink is not used.
+	 */
+	public boolean openChannel(String requestId, PushChannelSink sink) {
+		Page page = pages.get(requestId);
+		if (page == null) {
+			if (logMINOR) Logger.minor(this, "Not opening channel for unknown page " + requestId);
+			return false;
 		}
-		if (logMINOR) {
-			Logger.minor(this, "Getting notification, notification:" + awaitingNotifications.get(requestId).get(0) + ",remaining:" + (awaitingNotifications.get(requestId).size() - 1));
+		PushChannel channel = new PushChannel(page, sink);
+		PushChannel old;
+		synchronized (page) {
+			old = page.channel;
+			page.channel = channel;
+		}
+		if (old != null) old.close();
+		openChannels.incrementAndGet();
+		page.keepaliveReceived = true;
+		page.firstKeepaliveReceived = true;
+		// The page won't be polling any more.
+		NotificationQueue queue = awaitingNotifications.remove(requestId);
+		if (queue != null) queue.wakeUp();
+		removeEventsFor(requestId);
+		// Anything which changed between rendering and connecting must be sent too.
+		for (BaseUpdateableElement element : page.elements)
+			channel.offer(element.getUpdaterId(requestId));
+		if (isPingerScheduled.compareAndSet(false, true)) {
+			cleaner.queueTimedJob(pinger, "Push channel keepalive", getPingDelayInMs(), false, true);
+		}
+		if (logMINOR) Logger.minor(this, "Opened push channel for " + requestId);
+		return true;
+	}
+
+	/** @return The number of push channels currently open. */
+	public int getOpenChannels() {
+		return openChannels.get();
+	}
+
+	/** @return True if the page has pushed elements and hasn't been cleaned up. */
+	public boolean hasPage(String requestId) {
+		return pages.containsKey(requestId);
+	}
+
+	/** @return The number of pages with pushed elements. */
+	public int getPageCount() {
+		return pages.size();
+	}
+
+	/** @return The total number of notifications delivered to clients. */
+	public long getEventsSent() {
+		return eventsSent.get();
+	}
+
+	/** @return The total number of updates merged with one which had not been sent yet. */
+	public long getEventsCoalesced() {
+		return eventsCoalesced.get();
+	}
+
+	/** @return The rate at which notifications are delivered to clients, measured over at
+	 * least the last ten seconds. */
+	public double getEventsPerSecond() {
+		long now = System.currentTimeMillis();
+		synchronized (rateLock) {
+			long elapsed = now - rateSampleTime;
+			if (elapsed >= RATE_SAMPLE_PERIOD) {
+				long events = eventsSent.get();
+				eventsPerSecond = ((events - rateSampleEvents) * 1000.0) / elapsed;
+				rateSampleEvents = events;
+				rateSampleTime = now;
+			}
+			return eventsPerSecond;
 		}
-		return awaitingNotifications.get(requestId).remove(0);
 	}
 
 	/** Returns the cleaner's delay in ms */
@@ -246,51 +394,57 @@ public class PushDataManager {
 		return (int) (UpdaterConstants.KEEPALIVE_INTERVAL_SECONDS * 1000 * 2.1);
 	}
 
+	private int getPingDelayInMs() {
+		return UpdaterConstants.PUSH_CHANNEL_PING_INTERVAL_SECONDS * 1000;
+	}
+
 	/**
 	 * Deletes a request either because of failing or leaving
-	 * 
+	 *
 	 * @param requestId
 	 *            - The id of the request
 	 * @return Was a request deleted?
 	 */
-	private synchronized boolean deleteRequest(String requestId) {
+	private boolean deleteRequest(String requestId) {
 		if (logMINOR) {
 			Logger.minor(this, "DeleteRequest with requestId:" + requestId);
 		}
-		if (isKeepaliveReceived.containsKey(requestId) == false) {
+		Page page = pages.remove(requestId);
+		if (page == null) {
 			if (logMINOR) {
 				Logger.minor(this, "Request already cleaned, doing nothing");
-			}			
+			}
 			return false;
 		}
-		isKeepaliveReceived.remove(requestId);
-		isFirstKeepaliveReceived.remove(requestId);
 		// Iterate over all the pushed elements present on the page
-		for (BaseUpdateableElement element : new ArrayList<BaseUpdateableElement>(pages.get(requestId))) {
-			pages.get(requestId).remove(element);
-			// FIXME why can't we just unconditionally remove(requestId) at the end?
-			if (pages.get(requestId).isEmpty()) {
-				pages.remove(requestId);
-			}
+		for (BaseUpdateableElement element : page.elements) {
 			String id = element.getUpdaterId(requestId);
-			elements.get(id).remove(requestId);
-			if (elements.get(id).isEmpty()) {
-				elements.remove(id);
-			}
+			elements.computeIfPresent(id, (k, set) -> {
+				set.remove(requestId);
+				return set.isEmpty() ? null : set;
+			});
 			element.dispose();
-			// Delete all notification originated from the deleted element
-			for (String events : awaitingNotifications.keySet()) {
-				for (UpdateEvent updateEvent : new ArrayList<UpdateEvent>(awaitingNotifications.get(events))) {
-					if (updateEvent.requestId.compareTo(requestId) == 0) {
-						awaitingNotifications.get(events).remove(updateEvent);
-					}
-				}
-			}
 		}
-		awaitingNotifications.remove(requestId);
+		page.elements.clear();
+		// Delete all notification originated from the deleted page
+		removeEventsFor(requestId);
+		NotificationQueue queue = awaitingNotifications.remove(requestId);
+		if (queue != null) queue.wakeUp();
+		PushChannel channel;
+		synchronized (page) {
+			channel = page.channel;
+			page.channel = null;
+		}
+		if (channel != null) channel.close();
 		return true;
 	}
 
+	/** Remove the notifications about a page from every leader's queue */
+	private void removeEventsFor(String requestId) {
+		for (NotificationQueue queue : awaitingNotifications.values())
+			queue.removeFor(requestId);
+	}
+
 	/** An event that tells the client what and how it should be updated */
 	public class UpdateEvent {
 		private String	requestId;
@@ -320,7 +474,7 @@ public class PushDataManager {
 			}
 			return false;
 		}
-		
+
 		@Override
 		public int hashCode() {
 			return requestId.hashCode() + elementId.hashCode();
@@ -332,35 +486,216 @@ public class PushDataManager {
 		}
 	}
 
-	/** A task for the Cleaner, that periodically checks for failed requests. */
-	private class CleanerTimerTask implements Runnable {
+	/** The state of a page which has pushed elements */
+	private static class Page {
+		final String									requestId;
+		final List<BaseUpdateableElement>				elements				= new CopyOnWriteArrayList<BaseUpdateableElement>();
+		/** Whether a keepalive was received since the Cleaner last run */
+		volatile boolean								keepaliveReceived;
+		volatile boolean								firstKeepaliveReceived;
+		/** Set and cleared while synchronized on the page */
+		volatile PushChannel							channel;
+
+		Page(String requestId) {
+			this.requestId = requestId;
+		}
+	}
+
+	/** The notifications waiting for a leader, in order, without duplicates. Waiters are woken by
+	 * notifyAll() on the queue itself. */
+	private class NotificationQueue {
+		private final LinkedHashSet<UpdateEvent>		events					= new LinkedHashSet<UpdateEvent>();
+
+		/** @return False if the event was already waiting. */
+		synchronized boolean offer(UpdateEvent event) {
+			if (!events.add(event)) return false;
+			notifyAll();
+			return true;
+		}
+
+		/** @return The first event, if the page it is about has asked us for notifications yet. */
+		synchronized UpdateEvent pollReady() {
+			Iterator<UpdateEvent> it = events.iterator();
+			if (!it.hasNext()) return null;
+			UpdateEvent event = it.next();
+			Page page = pages.get(event.requestId);
+			if (page == null || !page.firstKeepaliveReceived) return null;
+			it.remove();
+			return event;
+		}
+
+		synchronized void removeFor(String requestId) {
+			boolean removed = false;
+			for (Iterator<UpdateEvent> it = events.iterator(); it.hasNext();) {
+				if (it.next().requestId.equals(requestId)) {
+					it.remove();
+					removed = true;
+				}
+			}
+			// The head may have changed.
+			if (removed) notifyAll();
+		}
+
+		synchronized int size() {
+			return events.size();
+		}
+
+		synchronized void wakeUp() {
+			notifyAll();
+		}
+
+		@Override
+		public synchronized String toString() {
+			return events.toString();
+		}
+	}
+
+	/**
+	 * Pending updates for one page. Offering an update never blocks: the element id is added to a
+	 * set, so repeated updates are coalesced, and a job is started on the executor unless one is
+	 * already running. The job sends everything pending and exits, so an idle channel uses no
+	 * thread at all.
+	 */
+	private class PushChannel implements Runnable {
+		private final Page								page;
+		private final PushChannelSink					sink;
+		private final Set<String>						pending					= ConcurrentHashMap.newKeySet();
+		/** True while a job is queued or running */
+		private final AtomicBoolean						running					= new AtomicBoolean();
+		private final AtomicBoolean						closed					= new AtomicBoolean();
+		private volatile boolean						pingPending;
+
+		PushChannel(Page page, PushChannelSink sink) {
+			this.page = page;
+			this.sink = sink;
+		}
+
+		void offer(String elementId) {
+			if (closed.get()) return;
+			if (!pending.add(elementId)) {
+				eventsCoalesced.incrementAndGet();
+				return;
+			}
+			schedule();
+		}
+
+		void ping() {
+			pingPending = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (running.compareAndSet(false, true))
+				cleaner.getExecutor().execute(this, "Push channel for " + page.requestId);
+		}
+
 		@Override
 		public void run() {
-			synchronized (PushDataManager.this) {
-				if (logMINOR) {
-					Logger.minor(this, "Cleaner running:" + isKeepaliveReceived);
+			while (true) {
+				if (closed.get()) {
+					running.set(false);
+					return;
+				}
+				List<String> updates = new ArrayList<String>(pending.size());
+				for (Iterator<String> it = pending.iterator(); it.hasNext();) {
+					updates.add(it.next());
+					it.remove();
 				}
-				isScheduled = false;
-				for (Entry<String, Boolean> entry : new HashMap<String, Boolean>(isKeepaliveReceived).entrySet()) {
-					if (entry.getValue() == false) {
-						if (logMINOR) {
-							Logger.minor(this, "Cleaner cleaned request:" + entry.getKey());
-						}
-						deleteRequest(entry.getKey());
-					} else {
-						if (logMINOR) {
-							Logger.minor(this, "Cleaner reseted request:" + entry.getKey());
-						}
-						isKeepaliveReceived.put(entry.getKey(), false);
+				boolean ping = pingPending;
+				pingPending = false;
+				if (updates.isEmpty() && !ping) {
+					running.set(false);
+					// Something may have been offered after we looked but before we cleared the flag.
+					if ((pending.isEmpty() && !pingPending) || !running.compareAndSet(false, true))
+						return;
+					continue;
+				}
+				try {
+					if (!updates.isEmpty()) {
+						sink.sendUpdates(page.requestId, updates);
+						eventsSent.addAndGet(updates.size());
 					}
+					if (ping) sink.sendKeepalive();
+				} catch (IOException e) {
+					if (logMINOR) Logger.minor(this, "Push channel for " + page.requestId + " closed: " + e);
+					detach();
+					running.set(false);
+					return;
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " sending push notifications for " + page.requestId, t);
+					detach();
+					running.set(false);
+					return;
 				}
-				if (!isKeepaliveReceived.isEmpty()) {
+			}
+		}
+
+		/** Remove the channel from its page, if it is still the page's channel, and close it. */
+		private void detach() {
+			synchronized (page) {
+				if (page.channel == this) page.channel = null;
+			}
+			close();
+		}
+
+		void close() {
+			if (!closed.compareAndSet(false, true)) return;
+			openChannels.decrementAndGet();
+			pending.clear();
+			try {
+				sink.close();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " closing push channel for " + page.requestId, t);
+			}
+		}
+	}
+
+	/** Periodically pings the open push channels. This keeps the connections open through
+	 * proxies, detects clients which have gone, and keeps the pages alive for the Cleaner. */
+	private class ChannelPinger implements Runnable {
+		@Override
+		public void run() {
+			isPingerScheduled.set(false);
+			boolean any = false;
+			for (Page page : pages.values()) {
+				PushChannel channel = page.channel;
+				if (channel == null) continue;
+				any = true;
+				page.keepaliveReceived = true;
+				channel.ping();
+			}
+			if (any && isPingerScheduled.compareAndSet(false, true)) {
+				cleaner.queueTimedJob(pinger, "Push channel keepalive", getPingDelayInMs(), false, true);
+			}
+		}
+	}
+
+	/** A task for the Cleaner, that periodically checks for failed requests. */
+	private class CleanerTimerTask implements Runnable {
+		@Override
+		public void run() {
+			if (logMINOR) {
+				Logger.minor(this, "Cleaner running: " + pages.size() + " pages");
+			}
+			isScheduled.set(false);
+			for (Page page : pages.values()) {
+				if (page.keepaliveReceived == false) {
 					if (logMINOR) {
-						Logger.minor(this, "Cleaner is queued(2) time:" + System.currentTimeMillis());
+						Logger.minor(this, "Cleaner cleaned request:" + page.requestId);
 					}
-					cleaner.queueTimedJob(cleanerTask, "cleanerTask", getDelayInMs(), false, true);
-					isScheduled = true;
+					deleteRequest(page.requestId);
+				} else {
+					if (logMINOR) {
+						Logger.minor(this, "Cleaner reseted request:" + page.requestId);
+					}
+					page.keepaliveReceived = false;
+				}
+			}
+			if (!pages.isEmpty() && isScheduled.compareAndSet(false, true)) {
+				if (logMINOR) {
+					Logger.minor(this, "Cleaner is queued(2) time:" + System.currentTimeMillis());
 				}
+				cleaner.queueTimedJob(cleanerTask, "cleanerTask", getDelayInMs(), false, true);
 			}
 		}
 	}
@@ -27,6 +27,10 @@ public class UpdaterConstants {
 	
 	public static final int		KEEPALIVE_INTERVAL_SECONDS	= 600;
 
+	/** How often a comment is sent down an idle push channel, so that proxies don't time it out
+	 * and we notice when the browser has gone. */
+	public static final int		PUSH_CHANNEL_PING_INTERVAL_SECONDS	= 30;
+
 	public static final String	SUCCESS						= "SUCCESS";
 
 	public static final String	FAILURE						= "FAILURE";
@@ -38,6 +42,8 @@ public class UpdaterConstants {
 
 	public static final String	notificationPath			= "/pushnotifications/";
 
+	public static final String	eventsPath					= "/pushevents/";
+
 	public static final String	keepalivePath				= "/keepalive/";
 
 	public static final String	failoverPath				= "/failover/";
@@ -0,0 +1,63 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.crypto.engines.AESLightEngine;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/** OCB ciphers keyed with a single key, for one direction, so that opening a stream only has to
+ * set the nonce, rather than creating the AES engines and redoing the key schedule. Ciphers are
+ * created when all the pooled ones are in use, and dropped if there are too many. */
+final class AEADCipherPool {
+    private static final int MAX_POOLED = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private final byte[] key;
+    private final boolean forEncryption;
+    private final ConcurrentLinkedQueue<AEADBlockCipher> ciphers =
+            new ConcurrentLinkedQueue<AEADBlockCipher>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    AEADCipherPool(byte[] key, boolean forEncryption) {
+        this.key = Arrays.copyOf(key, key.length);
+        this.forEncryption = forEncryption;
+    }
+
+    /** @return A cipher initialised with our key and the given nonce, for the caller's exclusive
+     * use. */
+    AEADBlockCipher acquire(byte[] nonce) {
+        AEADBlockCipher cipher = ciphers.poll();
+        KeyParameter keyParam = null; // Re-use the key.
+        if(cipher == null) {
+            cipher = createCipher();
+            keyParam = new KeyParameter(key);
+        } else {
+            pooled.decrementAndGet();
+        }
+        cipher.init(forEncryption, new AEADParameters(keyParam, AEADOutputStream.MAC_SIZE_BITS, nonce));
+        return cipher;
+    }
+
+    /** Return a cipher after doFinal() has succeeded. If anything failed the cipher is simply
+     * not returned, as we don't know its state. */
+    void release(AEADBlockCipher cipher) {
+        if(pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        ciphers.add(cipher);
+    }
+
+    /** The same OCB implementation as the streams use, so the format doesn't change. */
+    @SuppressWarnings("deprecation")
+    private static AEADBlockCipher createCipher() {
+        return new OCBBlockCipher_v149(new AESLightEngine(), JcaAESEngine.createAES());
+    }
+
+}
@@ -30,6 +30,9 @@ public class AEADCryptBucket implements Bucket, Serializable {
     private final Bucket underlying;
     private final byte[] key;
     private boolean readOnly;
+    /** Ciphers already keyed with our key, so opening a stream is cheap. */
+    private transient AEADCipherPool encryptCiphers;
+    private transient AEADCipherPool decryptCiphers;
     static final int OVERHEAD = AEADOutputStream.AES_OVERHEAD;
     
     public AEADCryptBucket(Bucket underlying, byte[] key) {
@@ -55,7 +58,7 @@ public class AEADCryptBucket implements Bucket, Serializable {
                 throw new IOException("Read only");
         }
         OutputStream os = underlying.getOutputStreamUnbuffered();
-        return AEADOutputStream.createAES(os, key, NodeStarter.getGlobalSecureRandom());
+        return AEADOutputStream.createAES(os, getCiphers(true), NodeStarter.getGlobalSecureRandom());
     }
     
     public InputStream getInputStream() throws IOException {
@@ -65,7 +68,19 @@ public class AEADCryptBucket implements Bucket, Serializable {
     @Override
     public InputStream getInputStreamUnbuffered() throws IOException {
         InputStream is = underlying.getInputStreamUnbuffered();
-        return AEADInputStream.createAES(is, key);
+        return AEADInputStream.createAES(is, getCiphers(false));
+    }
+    
+    private synchronized AEADCipherPool getCiphers(boolean forEncryption) {
+        if(forEncryption) {
+            if(encryptCiphers == null)
+                encryptCiphers = new AEADCipherPool(key, true);
+            return encryptCiphers;
+        } else {
+            if(decryptCiphers == null)
+                decryptCiphers = new AEADCipherPool(key, false);
+            return decryptCiphers;
+        }
     }
 
     @Override
@@ -7,8 +7,6 @@ import java.io.InputStream;
 
 import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.InvalidCipherTextException;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.engines.AESLightEngine;
 import org.bouncycastle.crypto.modes.AEADBlockCipher;
 import org.bouncycastle.crypto.params.AEADParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
@@ -17,6 +15,8 @@ public class AEADInputStream extends FilterInputStream {
     
     private static final int MAC_SIZE_BITS = AEADOutputStream.MAC_SIZE_BITS;
     private final AEADBlockCipher cipher;
+    /** If not null, the cipher came from here and is returned once the MAC has been checked. */
+    private final AEADCipherPool pool;
     private boolean finished;
     
     /** Create a decrypting, authenticating InputStream. IMPORTANT: We only authenticate when 
@@ -40,11 +40,23 @@ public class AEADInputStream extends FilterInputStream {
         KeyParameter keyParam = new KeyParameter(key);
         AEADParameters params = new AEADParameters(keyParam, MAC_SIZE_BITS, nonce);
         cipher.init(false, params);
+        pool = null;
         excess = new byte[mainCipher.getBlockSize()];
         excessEnd = 0;
         excessPtr = 0;
     }
     
+    /** Create a stream using a cipher from the pool, which is returned when we reach the end
+     * and the MAC is valid. Will read the nonce from the stream. */
+    AEADInputStream(InputStream is, AEADCipherPool pool) throws IOException {
+        super(is);
+        byte[] nonce = new byte[AEADOutputStream.AES_BLOCK_SIZE];
+        new DataInputStream(is).readFully(nonce);
+        cipher = pool.acquire(nonce);
+        this.pool = pool;
+        excess = new byte[AEADOutputStream.AES_BLOCK_SIZE];
+    }
+    
     public final int getIVSize() {
         return cipher.getUnderlyingCipher().getBlockSize() / 8;
     }
@@ -54,12 +66,20 @@ public class AEADInputStream extends FilterInputStream {
     private final byte[] excess;
     private int excessEnd;
     private int excessPtr;
+    /** Encrypted data read from the underlying stream, reused by every read(). Grows to the 
+     * largest read so far, up to MAX_BUFFER_SIZE. */
+    private byte[] inputBuffer = new byte[AEADOutputStream.BUFFER_SIZE];
+    /** Decrypted data when there is more than the caller asked for. Created when first needed. */
+    private byte[] outputBuffer;
+    private static final int MAX_BUFFER_SIZE = 64*1024;
+    /** For skip(). Created when first needed. */
+    private byte[] skipBuffer;
     
     @Override
     public int read() throws IOException {
         int length = read(onebyte);
         if(length <= 0) return -1;
-        else return onebyte[0];
+        else return onebyte[0] & 0xFF;
     }
     
     @Override
@@ -84,11 +104,14 @@ public class AEADInputStream extends FilterInputStream {
             }
         }
         if(finished) return -1;
-        // FIXME OPTIMISE Can we avoid allocating new buffers here? We can't safely use in=out when
-        // calling cipher.processBytes().
+        // We can't safely use in=out when calling cipher.processBytes(), so read into a buffer.
+        length = Math.min(length, MAX_BUFFER_SIZE);
+        if(length > inputBuffer.length) {
+            inputBuffer = new byte[length];
+            outputBuffer = null;
+        }
         while(true) {
-            byte[] temp = new byte[length];
-            int read = in.read(temp);
+            int read = in.read(inputBuffer, 0, length);
             if(read == 0) return read; // Nasty ambiguous case.
             if(read < 0) {
                 // End of stream.
@@ -99,6 +122,8 @@ public class AEADInputStream extends FilterInputStream {
                     throw new AEADVerificationFailedException();
                 }
                 finished = true;
+                if(pool != null)
+                    pool.release(cipher);
                 if(excessEnd > 0)
                     return read(buf, offset, length);
                 else
@@ -108,16 +133,17 @@ public class AEADInputStream extends FilterInputStream {
             assert(read <= length);
             int outLength = cipher.getUpdateOutputSize(read);
             if(outLength > length) {
-                byte[] outputTemp = new byte[outLength];
-                int decryptedBytes = cipher.processBytes(temp, 0, read, outputTemp, 0);
+                if(outputBuffer == null)
+                    outputBuffer = new byte[inputBuffer.length + excess.length];
+                int decryptedBytes = cipher.processBytes(inputBuffer, 0, read, outputBuffer, 0);
                 assert(decryptedBytes == outLength);
-                System.arraycopy(outputTemp, 0, buf, offset, length);
+                System.arraycopy(outputBuffer, 0, buf, offset, length);
                 excessEnd = outLength - length;
                 assert(excessEnd < excess.length);
-                System.arraycopy(outputTemp, length, excess, 0, excessEnd);
+                System.arraycopy(outputBuffer, length, excess, 0, excessEnd);
                 return length;
             } else {
-                int decryptedBytes = cipher.processBytes(temp, 0, read, buf, offset);
+                int decryptedBytes = cipher.processBytes(inputBuffer, 0, read, buf, offset);
                 if(decryptedBytes > 0) return decryptedBytes;
             }
         }
@@ -137,7 +163,9 @@ public class AEADInputStream extends FilterInputStream {
     public long skip(long n) throws IOException {
         // FIXME unit test skip()
         long skipped = 0;
-        byte[] temp = new byte[excess.length];
+        if(skipBuffer == null)
+            skipBuffer = new byte[AEADOutputStream.BUFFER_SIZE];
+        byte[] temp = skipBuffer;
         while(n > 0) {
             int excessLeft = excessEnd - excessPtr;
             if(excessLeft > 0) {
@@ -190,9 +218,12 @@ public class AEADInputStream extends FilterInputStream {
     }
     
     public static AEADInputStream createAES(InputStream is, byte[] key) throws IOException {
-        AESEngine mainCipher = new AESEngine();
-        AESLightEngine hashCipher = new AESLightEngine();
-        return new AEADInputStream(is, key, hashCipher, mainCipher);
+        return createAES(is, new AEADCipherPool(key, false));
+    }
+    
+    /** Create a stream using a cipher from a pool for decryption, see AEADCryptBucket. */
+    static AEADInputStream createAES(InputStream is, AEADCipherPool pool) throws IOException {
+        return new AEADInputStream(is, pool);
     }
 
 }
@@ -8,20 +8,25 @@ import java.util.Random;
 
 import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.InvalidCipherTextException;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.engines.AESLightEngine;
 import org.bouncycastle.crypto.modes.AEADBlockCipher;
 import org.bouncycastle.crypto.params.AEADParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 /** Uses bouncycastle's AEAD code. BC provides Cipher*Stream but they don't work with 
- * authenticating. FIXME This probably needs an internal buffer. Shouldn't be too inefficient 
- * provided that any short writes are buffered before they reach here though.
+ * authenticating. Encrypts into a buffer which is reused for every write, so short writes 
+ * should still be buffered before they reach here.
  * @author toad
  */
 public class AEADOutputStream extends FilterOutputStream {
     
     private final AEADBlockCipher cipher;
+    /** If not null, the cipher came from here and is returned on close(). */
+    private final AEADCipherPool pool;
+    /** Encrypted data, before it is written. Big enough for BUFFER_SIZE bytes of plaintext plus
+     * a partial block left over from the last write, or for the final block and the MAC. */
+    private final byte[] buffer = new byte[BUFFER_SIZE + AES_BLOCK_SIZE];
+    private final byte[] onebyte = new byte[1];
+    private boolean closed;
     
     /** Create an encrypting, authenticating OutputStream. Will write the nonce to the stream.
      * @param os The underlying OutputStream. 
@@ -41,11 +46,22 @@ public class AEADOutputStream extends FilterOutputStream {
         KeyParameter keyParam = new KeyParameter(key);
         AEADParameters params = new AEADParameters(keyParam, MAC_SIZE_BITS, nonce);
         cipher.init(true, params);
+        pool = null;
+    }
+    
+    /** Create a stream using a cipher from the pool, which is returned when the stream is 
+     * closed. Will write the nonce to the stream. */
+    AEADOutputStream(OutputStream os, byte[] nonce, AEADCipherPool pool) throws IOException {
+        super(os);
+        os.write(nonce);
+        cipher = pool.acquire(nonce);
+        this.pool = pool;
     }
     
     @Override
     public void write(int b) throws IOException {
-        write(new byte[] { (byte)b });
+        onebyte[0] = (byte)b;
+        write(onebyte, 0, 1);
     }
     
     @Override
@@ -55,21 +71,31 @@ public class AEADOutputStream extends FilterOutputStream {
     
     @Override
     public void write(byte[] buf, int offset, int length) throws IOException {
-        byte[] output = new byte[cipher.getUpdateOutputSize(length)];
-        cipher.processBytes(buf, offset, length, output, 0);
-        out.write(output);
+        if(closed) throw new IOException("Already closed");
+        while(length > 0) {
+            int chunk = Math.min(length, BUFFER_SIZE);
+            int encrypted = cipher.processBytes(buf, offset, chunk, buffer, 0);
+            if(encrypted > 0)
+                out.write(buffer, 0, encrypted);
+            offset += chunk;
+            length -= chunk;
+        }
     }
     
     @Override
     public void close() throws IOException {
-        byte[] output = new byte[cipher.getOutputSize(0)];
+        if(closed) return;
+        closed = true;
+        int length;
         try {
-            cipher.doFinal(output, 0);
+            length = cipher.doFinal(buffer, 0);
         } catch (InvalidCipherTextException e) {
             // Impossible???
             throw new RuntimeException("Impossible: "+e);
         }
-        out.write(output);
+        if(pool != null)
+            pool.release(cipher);
+        out.write(buffer, 0, length);
         out.close();
     }
     
@@ -77,6 +103,9 @@ public class AEADOutputStream extends FilterOutputStream {
     static final int MAC_SIZE_BYTES = MAC_SIZE_BITS/8;
     static final int AES_BLOCK_SIZE = 16;
     public static final int AES_OVERHEAD = AES_BLOCK_SIZE + MAC_SIZE_BYTES;
+    /** Maximum bytes encrypted at once. The same as BufferedOutputStream's default, so each write
+     * from AEADCryptBucket's buffer is encrypted in one go. */
+    static final int BUFFER_SIZE = 8192;
     
     public static AEADOutputStream createAES(OutputStream os, byte[] key, SecureRandom random) throws IOException {
         return innerCreateAES(os, key, random);
@@ -84,12 +113,20 @@ public class AEADOutputStream extends FilterOutputStream {
     
     /** For unit tests only */
     static AEADOutputStream innerCreateAES(OutputStream os, byte[] key, Random random) throws IOException {
-        AESEngine mainCipher = new AESEngine();
-        AESLightEngine hashCipher = new AESLightEngine();
-        byte[] nonce = new byte[mainCipher.getBlockSize()];
+        return innerCreateAES(os, new AEADCipherPool(key, true), random);
+    }
+    
+    /** Create a stream using a cipher from a pool for encryption, see AEADCryptBucket. */
+    static AEADOutputStream createAES(OutputStream os, AEADCipherPool pool, SecureRandom random) throws IOException {
+        return innerCreateAES(os, pool, random);
+    }
+    
+    /** For unit tests only */
+    static AEADOutputStream innerCreateAES(OutputStream os, AEADCipherPool pool, Random random) throws IOException {
+        byte[] nonce = new byte[AES_BLOCK_SIZE];
         random.nextBytes(nonce);
         nonce[0] &= 0x7F;
-        return new AEADOutputStream(os, key, nonce, hashCipher, mainCipher);
+        return new AEADOutputStream(os, nonce, pool);
     }
     
     @Override
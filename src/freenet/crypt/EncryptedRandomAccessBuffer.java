@@ -11,7 +11,8 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.SecretKey;
 
@@ -23,6 +24,7 @@ import freenet.client.async.ClientContext;
 import freenet.support.Fields;
 import freenet.support.Logger;
 import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBuffer;
 import freenet.support.io.BucketTools;
 import freenet.support.io.FilenameGenerator;
 import freenet.support.io.PersistentFileTracker;
@@ -31,18 +33,20 @@ import freenet.support.io.StorageFormatException;
 /**
  * EncryptedRandomAccessBuffer is a encrypted RandomAccessBuffer implementation using a 
  * SkippingStreamCipher. 
+ * 
+ * Reads and writes don't share any cipher state: each call takes a cipher from a pool and
+ * skips it to the offset it needs, which is cheap for ChaCha. So any number of reads and
+ * writes can run at once, limited only by the underlying buffer.
  * @author unixninja92
  * Suggested EncryptedRandomAccessBufferType to use: ChaCha128
  */
 public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable { 
     private static final long serialVersionUID = 1L;
-    private final ReentrantLock readLock = new ReentrantLock();
-    private final ReentrantLock writeLock = new ReentrantLock();
     private final EncryptedRandomAccessBufferType type;
     private final LockableRandomAccessBuffer underlyingBuffer;
     
-    private transient SkippingStreamCipher cipherRead;
-    private transient SkippingStreamCipher cipherWrite;
+    private transient CipherPool cipherRead;
+    private transient CipherPool cipherWrite;
     private transient ParametersWithIV cipherParams;//includes key
     
     private transient SecretKey headerMacKey;
@@ -82,9 +86,6 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     }
     
     private void setup(MasterSecret masterKey, boolean newFile) throws IOException, GeneralSecurityException {
-        this.cipherRead = this.type.get();
-        this.cipherWrite = this.type.get();
-        
         MasterSecret masterSecret = masterKey;
         
         this.headerEncKey = masterSecret.deriveKey(type.encryptKey);
@@ -137,8 +138,84 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
             throw new IllegalStateException(e); // Must be a bug.
         }
         this.cipherParams = tempPram;
-    	cipherRead.init(false, cipherParams);
-    	cipherWrite.init(true, cipherParams);
+        this.cipherRead = new CipherPool(type, false, cipherParams);
+        this.cipherWrite = new CipherPool(type, true, cipherParams);
+    }
+
+    /** Ciphers initialised with our key, each at whatever position it was last used at. Ciphers
+     * are created when all the pooled ones are in use, and dropped if there are too many. */
+    private static final class CipherPool {
+        private static final int MAX_POOLED = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+        private final EncryptedRandomAccessBufferType type;
+        private final boolean forEncryption;
+        private final ParametersWithIV params;
+        private final ConcurrentLinkedQueue<SkippingStreamCipher> ciphers = 
+                new ConcurrentLinkedQueue<SkippingStreamCipher>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        CipherPool(EncryptedRandomAccessBufferType type, boolean forEncryption, ParametersWithIV params) {
+            this.type = type;
+            this.forEncryption = forEncryption;
+            this.params = params;
+            release(create());
+        }
+
+        private SkippingStreamCipher create() {
+            SkippingStreamCipher cipher = type.get();
+            cipher.init(forEncryption, params);
+            return cipher;
+        }
+
+        /** @return A cipher positioned at offset, for the caller's exclusive use. */
+        SkippingStreamCipher acquire(long offset) {
+            SkippingStreamCipher cipher = ciphers.poll();
+            if(cipher == null) {
+                cipher = create();
+            } else {
+                pooled.decrementAndGet();
+            }
+            //cipher.seekTo(offset);
+            // seekTo() does reset() and then skip(). So it always skips from 0. 
+            // This is ridiculously slow for big tempfiles.
+            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
+            cipher.skip(offset - cipher.getPosition());
+            assert(cipher.getPosition() == offset);
+            return cipher;
+        }
+
+        /** Return a cipher after a successful call. If the call failed the cipher is simply not 
+         * returned, as we don't know its state. */
+        void release(SkippingStreamCipher cipher) {
+            if(pooled.incrementAndGet() > MAX_POOLED) {
+                pooled.decrementAndGet();
+                return;
+            }
+            ciphers.add(cipher);
+        }
+    }
+
+    /** Scratch space for encrypting writes, shared by all instances. */
+    private static final ConcurrentLinkedQueue<byte[]> scratchBuffers = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooledScratchBuffers = new AtomicInteger();
+    private static final int SCRATCH_BUFFER_SIZE = 32 * 1024;
+    private static final int MAX_POOLED_SCRATCH_BUFFERS = CipherPool.MAX_POOLED;
+    /** Maximum bytes of ciphertext to pass to the underlying pwritev() at once. */
+    private static final int MAX_WRITE_BATCH = 1024 * 1024;
+
+    private static byte[] acquireScratchBuffer() {
+        byte[] buf = scratchBuffers.poll();
+        if(buf == null) return new byte[SCRATCH_BUFFER_SIZE];
+        pooledScratchBuffers.decrementAndGet();
+        return buf;
+    }
+
+    private static void releaseScratchBuffer(byte[] buf) {
+        if(pooledScratchBuffers.incrementAndGet() > MAX_POOLED_SCRATCH_BUFFERS) {
+            pooledScratchBuffers.decrementAndGet();
+            return;
+        }
+        scratchBuffers.add(buf);
     }
 
     @Override
@@ -147,7 +224,9 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     }
 
     /**
-     * Reads the specified section of the underlying RAT and decrypts it. Decryption is thread-safe. 
+     * Reads the specified section of the underlying RAT and decrypts it. Decryption is thread-safe,
+     * and concurrent reads don't block each other. The data is decrypted in place, so if this 
+     * throws, buf may contain ciphertext.
      */
     @Override
     public void pread(long fileOffset, byte[] buf, int bufOffset, int length)
@@ -163,28 +242,18 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
                     (fileOffset+length)+" on block length "+size());
         }
         
-        byte[] cipherText = new byte[length];
-        underlyingBuffer.pread(fileOffset+type.headerLen, cipherText, 0, length);
+        underlyingBuffer.pread(fileOffset+type.headerLen, buf, bufOffset, length);
 
-        readLock.lock();
-        try{
-            //cipherRead.seekTo(fileOffset);
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherRead.getPosition();
-            long delta = fileOffset - position;
-            cipherRead.skip(delta);
-            assert(cipherRead.getPosition() == fileOffset);
-            cipherRead.processBytes(cipherText, 0, length, buf, bufOffset);
-            assert(cipherRead.getPosition() == fileOffset+length);
-        }finally{
-            readLock.unlock();
-        }
+        // Stream ciphers can process in place.
+        SkippingStreamCipher cipher = cipherRead.acquire(fileOffset);
+        cipher.processBytes(buf, bufOffset, length, buf, bufOffset);
+        assert(cipher.getPosition() == fileOffset+length);
+        cipherRead.release(cipher);
     }
 
     /**
-     * Encrypts the given data and writes it to the underlying RAT. Encryption is thread-safe. 
+     * Encrypts the given data and writes it to the underlying RAT. Encryption is thread-safe, and
+     * concurrent writes don't block each other. Large writes are encrypted and written in chunks.
      */
     @Override
     public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length)
@@ -200,24 +269,100 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
                     (fileOffset+length)+" on block length "+size());
         }
 
-        byte[] cipherText = new byte[length];
+        SkippingStreamCipher cipher = cipherWrite.acquire(fileOffset);
+        byte[] cipherText = acquireScratchBuffer();
+        try {
+            while(length > 0) {
+                int chunk = Math.min(length, cipherText.length);
+                cipher.processBytes(buf, bufOffset, chunk, cipherText, 0);
+                underlyingBuffer.pwrite(fileOffset+type.headerLen, cipherText, 0, chunk);
+                fileOffset += chunk;
+                bufOffset += chunk;
+                length -= chunk;
+            }
+        } finally {
+            releaseScratchBuffer(cipherText);
+        }
+        assert(cipher.getPosition() == fileOffset);
+        cipherWrite.release(cipher);
+    }
 
-        writeLock.lock();
-        try{
-            //cipherWrite.seekTo(fileOffset)
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherWrite.getPosition();
-            long delta = fileOffset - position;
-            cipherWrite.skip(delta);
-            assert(cipherWrite.getPosition() == fileOffset);
-            cipherWrite.processBytes(buf, bufOffset, length, cipherText, 0);
-            assert(cipherWrite.getPosition() == fileOffset+length);
-        }finally{
-            writeLock.unlock();
-        }
-        underlyingBuffer.pwrite(fileOffset+type.headerLen, cipherText, 0, length);
+    /**
+     * Reads all the ranges from the underlying RAT in one call, and decrypts them in place in
+     * order of offset with a single cipher. If this throws, some of the buffers may contain
+     * ciphertext.
+     */
+    @Override
+    public void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+        int[] order = RandomAccessBuffer.sortByOffset(fileOffsets, bufs);
+        if(isClosed){
+            throw new IOException("This RandomAccessBuffer has already been closed. It can no longer"
+                    + " be read from.");
+        }
+        long[] underlyingOffsets = new long[fileOffsets.length];
+        for(int i=0;i<fileOffsets.length;i++) {
+            checkEnd(fileOffsets[i], bufs[i].length);
+            underlyingOffsets[i] = fileOffsets[i]+type.headerLen;
+        }
+
+        underlyingBuffer.preadv(underlyingOffsets, bufs);
+
+        SkippingStreamCipher cipher = null;
+        for(int i : order) {
+            if(cipher == null)
+                cipher = cipherRead.acquire(fileOffsets[i]);
+            else
+                cipher.skip(fileOffsets[i] - cipher.getPosition());
+            cipher.processBytes(bufs[i], 0, bufs[i].length, bufs[i], 0);
+        }
+        if(cipher != null) cipherRead.release(cipher);
+    }
+
+    /**
+     * Encrypts the ranges in order of offset with a single cipher and writes them to the
+     * underlying RAT, in batches of up to MAX_WRITE_BATCH bytes so that the ciphertext of a
+     * large write isn't all in memory at once.
+     */
+    @Override
+    public void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+        int[] order = RandomAccessBuffer.sortByOffset(fileOffsets, bufs);
+        if(isClosed){
+            throw new IOException("This RandomAccessBuffer has already been closed. It can no longer"
+                    + " be written to.");
+        }
+        for(int i=0;i<fileOffsets.length;i++)
+            checkEnd(fileOffsets[i], bufs[i].length);
+
+        SkippingStreamCipher cipher = null;
+        int start = 0;
+        while(start < order.length) {
+            int end = start;
+            long bytes = 0;
+            while(end < order.length && (end == start || bytes + bufs[order[end]].length <= MAX_WRITE_BATCH))
+                bytes += bufs[order[end++]].length;
+            long[] underlyingOffsets = new long[end - start];
+            byte[][] cipherTexts = new byte[end - start][];
+            for(int j=start;j<end;j++) {
+                int i = order[j];
+                if(cipher == null)
+                    cipher = cipherWrite.acquire(fileOffsets[i]);
+                else
+                    cipher.skip(fileOffsets[i] - cipher.getPosition());
+                cipherTexts[j-start] = new byte[bufs[i].length];
+                cipher.processBytes(bufs[i], 0, bufs[i].length, cipherTexts[j-start], 0);
+                underlyingOffsets[j-start] = fileOffsets[i]+type.headerLen;
+            }
+            underlyingBuffer.pwritev(underlyingOffsets, cipherTexts);
+            start = end;
+        }
+        if(cipher != null) cipherWrite.release(cipher);
+    }
+
+    private void checkEnd(long fileOffset, int length) throws IOException {
+        if(fileOffset+length > size()){
+            throw new IOException("Cannot access after end: trying to access from "+fileOffset+" to "+
+                    (fileOffset+length)+" on block length "+size());
+        }
     }
     
     @Override
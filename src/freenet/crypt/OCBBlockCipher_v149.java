@@ -2,8 +2,6 @@
  * GPL compatible. */
 package freenet.crypt;
 
-import java.util.Vector;
-
 import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.DataLengthException;
@@ -34,6 +32,9 @@ public class OCBBlockCipher_v149
 {
 
     private static final int BLOCK_SIZE = 16;
+    /** processBytes() encrypts or decrypts up to this many bytes at a time with one call to the
+     * block cipher, when it is given more than one block. */
+    private static final int WORK_SIZE = 4096;
 
     private BlockCipher hashCipher;
     private BlockCipher mainCipher;
@@ -42,14 +43,17 @@ public class OCBBlockCipher_v149
      * CONFIGURATION
      */
     private boolean forEncryption;
+    /** The direction mainCipher was keyed for, so we know whether the key can be re-used. */
+    private boolean keyedForEncryption;
     private int macSize;
     private byte[] initialAssociatedText;
 
     /*
      * KEY-DEPENDENT
      */
-    // NOTE: elements are lazily calculated
-    private Vector<byte[]> L;
+    // NOTE: elements are lazily calculated. At most 64 are needed as block counts are longs.
+    private byte[][] L;
+    private int LSize;
     private byte[] L_Asterisk, L_Dollar;
 
     /*
@@ -67,6 +71,8 @@ public class OCBBlockCipher_v149
     private byte[] Sum;
     private byte[] OffsetMAIN;
     private byte[] Checksum;
+    // Scratch space for processing many blocks at once
+    private byte[] work, workOffsets;
 
     // NOTE: The MAC value is preserved after doFinal
     private byte[] macBlock;
@@ -112,12 +118,14 @@ public class OCBBlockCipher_v149
         return mainCipher.getAlgorithmName() + "/OCB";
     }
 
+    /**
+     * As well as the usual AEADParameters or ParametersWithIV, the key may be null, in which case
+     * we re-use the last key, as long as it is for the same direction. This avoids redoing the key
+     * schedule for every message when a cipher is reused with many nonces.
+     */
     public void init(boolean forEncryption, CipherParameters parameters)
         throws IllegalArgumentException
     {
-        this.forEncryption = forEncryption;
-        this.macBlock = null;
-
         KeyParameter keyParameter;
 
         byte[] N;
@@ -151,6 +159,21 @@ public class OCBBlockCipher_v149
             throw new IllegalArgumentException("invalid parameters passed to OCB");
         }
 
+        if (keyParameter == null)
+        {
+            if (L == null)
+            {
+                throw new IllegalArgumentException("no key to re-use");
+            }
+            if (forEncryption != keyedForEncryption)
+            {
+                throw new IllegalArgumentException("can't re-use a key in the other direction");
+            }
+        }
+
+        this.forEncryption = forEncryption;
+        this.macBlock = null;
+
         this.hashBlock = new byte[16];
         this.mainBlock = new byte[forEncryption ? BLOCK_SIZE : (BLOCK_SIZE + macSize)];
 
@@ -181,22 +204,22 @@ public class OCBBlockCipher_v149
          * KEY-DEPENDENT INITIALISATION
          */
 
-        if (keyParameter == null)
+        if (keyParameter != null)
         {
-            // TODO If 'keyParameter' is null we're re-using the last key.
-        }
-
-        // hashCipher always used in forward mode
-        hashCipher.init(true, keyParameter);
-        mainCipher.init(forEncryption, keyParameter);
+            // hashCipher always used in forward mode
+            hashCipher.init(true, keyParameter);
+            mainCipher.init(forEncryption, keyParameter);
+            this.keyedForEncryption = forEncryption;
 
-        this.L_Asterisk = new byte[16];
-        hashCipher.processBlock(L_Asterisk, 0, L_Asterisk, 0);
+            this.L_Asterisk = new byte[16];
+            hashCipher.processBlock(L_Asterisk, 0, L_Asterisk, 0);
 
-        this.L_Dollar = OCB_double(L_Asterisk);
+            this.L_Dollar = OCB_double(L_Asterisk);
 
-        this.L = new Vector<byte[]>();
-        this.L.addElement(OCB_double(L_Dollar));
+            this.L = new byte[64][];
+            this.L[0] = OCB_double(L_Dollar);
+            this.LSize = 1;
+        }
 
         /*
          * NONCE-DEPENDENT AND PER-ENCRYPTION/DECRYPTION INITIALISATION
@@ -335,6 +358,20 @@ public class OCBBlockCipher_v149
     {
         int resultLen = 0;
 
+        /*
+         * If there are at least two whole blocks (not counting the tag when decrypting), do them
+         * in batches, which uses up whatever is in mainBlock. The rest is buffered as usual.
+         */
+        int available = mainBlockPos + len - (forEncryption ? 0 : macSize);
+        if (available >= 2 * BLOCK_SIZE)
+        {
+            int blocks = available / BLOCK_SIZE;
+            int used = processMainBlocks(input, inOff, blocks, output, outOff);
+            inOff += used;
+            len -= used;
+            resultLen = blocks * BLOCK_SIZE;
+        }
+
         for (int i = 0; i < len; ++i)
         {
             mainBlock[mainBlockPos] = input[inOff + i];
@@ -454,11 +491,12 @@ public class OCBBlockCipher_v149
 
     protected byte[] getLSub(int n)
     {
-        while (n >= L.size())
+        while (n >= LSize)
         {
-            L.addElement(OCB_double(L.lastElement()));
+            L[LSize] = OCB_double(L[LSize - 1]);
+            ++LSize;
         }
-        return L.elementAt(n);
+        return L[n];
     }
 
     protected void processHashBlock()
@@ -498,6 +536,89 @@ public class OCBBlockCipher_v149
         }
     }
 
+    /**
+     * Process the given number of whole blocks, starting with whatever is in mainBlock, which
+     * must all be used. Gives the same results as calling processMainBlock() for each block, but
+     * the block cipher is called once per WORK_SIZE bytes, which is much faster with the JCA.
+     * @return The number of bytes used from the input.
+     */
+    protected int processMainBlocks(byte[] input, int inOff, int blocks, byte[] output, int outOff)
+    {
+        if (work == null)
+        {
+            work = new byte[WORK_SIZE];
+            workOffsets = new byte[WORK_SIZE];
+        }
+        int used = 0;
+        while (blocks > 0)
+        {
+            int n = Math.min(blocks, WORK_SIZE / BLOCK_SIZE);
+            int bytes = n * BLOCK_SIZE;
+            int buffered = mainBlockPos;
+            System.arraycopy(mainBlock, 0, work, 0, buffered);
+            System.arraycopy(input, inOff + used, work, buffered, bytes - buffered);
+            used += bytes - buffered;
+            mainBlockPos = 0;
+
+            if (forEncryption)
+            {
+                updateChecksum(work, 0, bytes);
+            }
+
+            for (int i = 0; i < bytes; i += BLOCK_SIZE)
+            {
+                byte[] LSub = getLSub(OCB_ntz(++mainBlockCount));
+                for (int j = 0; j < BLOCK_SIZE; ++j)
+                {
+                    byte offset = (byte)(OffsetMAIN[j] ^ LSub[j]);
+                    OffsetMAIN[j] = offset;
+                    workOffsets[i + j] = offset;
+                    work[i + j] ^= offset;
+                }
+            }
+
+            if (mainCipher instanceof JcaAESEngine)
+            {
+                ((JcaAESEngine)mainCipher).processBlocks(work, 0, n, work, 0);
+            }
+            else
+            {
+                for (int i = 0; i < bytes; i += BLOCK_SIZE)
+                {
+                    mainCipher.processBlock(work, i, work, i);
+                }
+            }
+
+            for (int i = 0; i < bytes; ++i)
+            {
+                output[outOff + i] = (byte)(work[i] ^ workOffsets[i]);
+            }
+
+            if (!forEncryption)
+            {
+                updateChecksum(output, outOff, bytes);
+            }
+            outOff += bytes;
+            blocks -= n;
+        }
+        return used;
+    }
+
+    /** XOR whole blocks of plaintext into Checksum, one byte position at a time, so the running
+     * value stays in a register. */
+    private void updateChecksum(byte[] buf, int off, int len)
+    {
+        for (int j = 0; j < BLOCK_SIZE; ++j)
+        {
+            int x = Checksum[j];
+            for (int i = off + j; i < off + len; i += BLOCK_SIZE)
+            {
+                x ^= buf[i];
+            }
+            Checksum[j] = (byte)x;
+        }
+    }
+
     protected void reset(boolean clearMac)
     {
         hashCipher.reset();
@@ -505,6 +626,8 @@ public class OCBBlockCipher_v149
 
         clear(hashBlock);
         clear(mainBlock);
+        clear(work);
+        clear(workOffsets);
 
         hashBlockPos = 0;
         mainBlockPos = 0;
@@ -560,18 +683,8 @@ public class OCBBlockCipher_v149
 
     protected static int OCB_ntz(long x)
     {
-        if (x == 0)
-        {
-            return 64;
-        }
-
-        int n = 0;
-        while ((x & 1L) == 0L)
-        {
-            ++n;
-            x >>= 1;
-        }
-        return n;
+        // 64 if x == 0
+        return Long.numberOfTrailingZeros(x);
     }
 
     protected static int shiftLeft(byte[] block, byte[] output)
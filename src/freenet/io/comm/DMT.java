@@ -142,6 +142,8 @@ public class DMT {
 	public static final String LINK_LENGTHS = "linkLengths";
 	public static final String UPTIME_PERCENT = "uptimePercent";
 	public static final String EXPECTED_HASH = "expectedHash";
+	public static final String FIRST_BLOCK = "firstBlock";
+	public static final String BLOCK_COUNT = "blockCount";
 	public static final String REJECT_STATS = "rejectStats";
 	public static final String OUTPUT_BANDWIDTH_CLASS = "outputBandwidthClass";
 	public static final String CAPACITY_USAGE = "capacityUsage";
@@ -1577,6 +1579,27 @@ public class DMT {
 		return msg;
 	}
 	
+	/** Like UOMFetchDependency, but only the given blocks should be sent, as a BulkTransmitter
+	 * transfer of those blocks. Used to fetch different parts of the same file from several
+	 * peers at once. */
+	public static final MessageType UOMFetchDependencyRange = new MessageType("UOMFetchDependencyRange", PRIORITY_LOW) {{
+		addField(UID, Long.class);
+		addField(EXPECTED_HASH, ShortBuffer.class);
+		addField(FILE_LENGTH, Long.class);
+		addField(FIRST_BLOCK, Integer.class);
+		addField(BLOCK_COUNT, Integer.class);
+	}};
+
+	public static Message createUOMFetchDependencyRange(long uid, byte[] hash, long length, int firstBlock, int blockCount) {
+		Message msg = new Message(UOMFetchDependencyRange);
+		msg.set(UID, uid);
+		msg.set(EXPECTED_HASH, new ShortBuffer(hash));
+		msg.set(FILE_LENGTH, length);
+		msg.set(FIRST_BLOCK, firstBlock);
+		msg.set(BLOCK_COUNT, blockCount);
+		return msg;
+	}
+
 	// Secondary messages (debug messages attached to primary messages)
 	
 	public static final MessageType FNPSwapNodeUIDs = new MessageType("FNPSwapNodeUIDs", PRIORITY_UNSPECIFIED) {{
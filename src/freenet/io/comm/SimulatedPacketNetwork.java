@@ -0,0 +1,228 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Random;
+
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.VirtualTicker;
+
+/**
+ * An in-memory packet network connecting any number of {@link SimulatedPacketSocketHandler}s
+ * inside one JVM. Packets never touch the operating system: sending one copies the bytes and
+ * queues a delivery job on the {@link Ticker}, after a delay computed from the sending
+ * handler's {@link LinkProperties} (serialisation at the link bandwidth plus fixed latency).
+ * Packets may also be dropped at random according to the link's loss probability.
+ *
+ * With a {@link VirtualTicker} the whole network runs on a virtual clock, so large simulations
+ * proceed as fast as the CPU allows and are reproducible given the same Random seed. With a
+ * normal ticker the delays are real milliseconds.
+ *
+ * Handlers are addressed by {@link Peer}, exactly as UDP handlers are, so the rest of the stack
+ * does not need to know it is talking to a simulated transport.
+ */
+public class SimulatedPacketNetwork {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SimulatedPacketNetwork.class);
+	}
+
+	/** Immutable characteristics of the uplink of a simulated node. */
+	public static final class LinkProperties {
+		/** One-way latency in milliseconds. */
+		public final long latency;
+		/** Uplink bandwidth in bytes per second, or 0 for unlimited. */
+		public final int bandwidth;
+		/** Probability between 0.0 and 1.0 of a packet being dropped. */
+		public final double lossProbability;
+
+		public LinkProperties(long latency, int bandwidth, double lossProbability) {
+			if(latency < 0) throw new IllegalArgumentException("Negative latency");
+			if(bandwidth < 0) throw new IllegalArgumentException("Negative bandwidth");
+			if(lossProbability < 0.0 || lossProbability > 1.0)
+				throw new IllegalArgumentException("Bad loss probability "+lossProbability);
+			this.latency = latency;
+			this.bandwidth = bandwidth;
+			this.lossProbability = lossProbability;
+		}
+
+		/** @return The time in milliseconds to put a packet of the given size on the wire. */
+		long transmitTime(int bytes) {
+			if(bandwidth == 0) return 0;
+			return (bytes * 1000L) / bandwidth;
+		}
+
+		@Override
+		public String toString() {
+			return "latency="+latency+"ms bandwidth="+bandwidth+"B/s loss="+lossProbability;
+		}
+	}
+
+	/** No latency, unlimited bandwidth, no loss. */
+	public static final LinkProperties PERFECT_LINK = new LinkProperties(0, 0, 0.0);
+
+	private final Ticker ticker;
+	private final Random random;
+	private final HashMap<Peer, SimulatedPacketSocketHandler> handlers =
+		new HashMap<Peer, SimulatedPacketSocketHandler>();
+	private LinkProperties defaultLink;
+
+	private long packetsSent;
+	private long packetsDelivered;
+	private long packetsLost;
+	private long packetsUnroutable;
+	private long bytesSent;
+	private long bytesDelivered;
+	private long totalTransitTime;
+
+	/**
+	 * @param ticker Used to schedule packet deliveries. If it is a {@link VirtualTicker} its clock
+	 * is used for all timing, otherwise the system clock is used.
+	 * @param random Source of randomness for packet loss. Seed it for reproducible simulations.
+	 * NOT CRYPTO SAFE and does not need to be.
+	 * @param defaultLink Link properties given to newly created handlers.
+	 */
+	public SimulatedPacketNetwork(Ticker ticker, Random random, LinkProperties defaultLink) {
+		this.ticker = ticker;
+		this.random = random;
+		this.defaultLink = defaultLink;
+	}
+
+	/** Create and register a handler on the loopback address with the given port. */
+	public SimulatedPacketSocketHandler createHandler(int port) {
+		return createHandler(new Peer(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/** Create and register a handler reachable at the given address.
+	 * @throws IllegalArgumentException If the address is already in use. */
+	public synchronized SimulatedPacketSocketHandler createHandler(Peer address) {
+		if(handlers.containsKey(address))
+			throw new IllegalArgumentException("Address already in use: "+address);
+		SimulatedPacketSocketHandler handler = new SimulatedPacketSocketHandler(this, address, defaultLink);
+		handlers.put(address, handler);
+		return handler;
+	}
+
+	/** Unregister a handler. Packets in flight to it will be counted as unroutable. */
+	synchronized void remove(SimulatedPacketSocketHandler handler) {
+		if(handlers.get(handler.getAddress()) == handler)
+			handlers.remove(handler.getAddress());
+	}
+
+	public synchronized int countHandlers() {
+		return handlers.size();
+	}
+
+	public synchronized void setDefaultLinkProperties(LinkProperties link) {
+		defaultLink = link;
+	}
+
+	public synchronized LinkProperties getDefaultLinkProperties() {
+		return defaultLink;
+	}
+
+	public Ticker getTicker() {
+		return ticker;
+	}
+
+	/** @return The current time, on the virtual clock if there is one. */
+	public long now() {
+		if(ticker instanceof VirtualTicker)
+			return ((VirtualTicker)ticker).currentTimeMillis();
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Queue a packet for delivery. Called by the sending handler.
+	 * @param sendAt The time at which the packet leaves the sender, after queueing behind earlier
+	 * packets on the sender's uplink.
+	 */
+	void send(final SimulatedPacketSocketHandler from, byte[] data, final Peer destination, long sendAt, LinkProperties link) {
+		final long now = now();
+		final long deliverAt = sendAt + link.latency;
+		boolean lost;
+		synchronized(this) {
+			packetsSent++;
+			bytesSent += data.length;
+			lost = link.lossProbability > 0.0 && random.nextDouble() < link.lossProbability;
+			if(lost) packetsLost++;
+		}
+		if(lost) {
+			if(logMINOR) Logger.minor(this, "Dropped packet "+from.getAddress()+" -> "+destination);
+			return;
+		}
+		// The caller may reuse the buffer.
+		final byte[] copy = data.clone();
+		ticker.queueTimedJob(new Runnable() {
+
+			@Override
+			public void run() {
+				deliver(from.getAddress(), copy, destination, now);
+			}
+
+		}, "Simulated packet delivery", deliverAt - now, true, false);
+	}
+
+	private void deliver(Peer source, byte[] data, Peer destination, long sentTime) {
+		SimulatedPacketSocketHandler to;
+		long now = now();
+		synchronized(this) {
+			to = handlers.get(destination);
+			if(to == null) {
+				packetsUnroutable++;
+			} else {
+				packetsDelivered++;
+				bytesDelivered += data.length;
+				totalTransitTime += now - sentTime;
+			}
+		}
+		if(to == null) {
+			if(logMINOR) Logger.minor(this, "No handler for "+destination+" from "+source);
+			return;
+		}
+		to.receivePacket(data, source, now);
+	}
+
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public synchronized long getPacketsDelivered() {
+		return packetsDelivered;
+	}
+
+	public synchronized long getPacketsLost() {
+		return packetsLost;
+	}
+
+	public synchronized long getPacketsUnroutable() {
+		return packetsUnroutable;
+	}
+
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	public synchronized long getBytesDelivered() {
+		return bytesDelivered;
+	}
+
+	/** @return The mean time between sending and delivering a packet, in milliseconds. */
+	public synchronized double getAverageTransitTime() {
+		if(packetsDelivered == 0) return 0.0;
+		return ((double)totalTransitTime) / packetsDelivered;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString()+": "+handlers.size()+" handlers, sent="+packetsSent+" delivered="+
+			packetsDelivered+" lost="+packetsLost+" unroutable="+packetsUnroutable;
+	}
+
+}
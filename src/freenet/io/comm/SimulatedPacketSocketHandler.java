@@ -0,0 +1,157 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import freenet.io.AddressTracker.Status;
+import freenet.io.comm.Peer.LocalAddressException;
+import freenet.io.comm.SimulatedPacketNetwork.LinkProperties;
+import freenet.support.Logger;
+
+/**
+ * In-memory {@link PacketSocketHandler}, connected to other handlers through a
+ * {@link SimulatedPacketNetwork} rather than a UDP socket. Incoming packets are passed to the
+ * low level filter on the network's ticker, just as UdpSocketHandler passes them from its
+ * receive thread, so no thread is needed per handler.
+ */
+public class SimulatedPacketSocketHandler implements PacketSocketHandler {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SimulatedPacketSocketHandler.class);
+	}
+
+	private final SimulatedPacketNetwork network;
+	private final Peer address;
+	private IncomingPacketFilter lowLevelFilter;
+	private LinkProperties link;
+	/** The time at which the uplink will have finished sending everything queued so far */
+	private long uplinkFreeAt;
+	private volatile boolean active = true;
+	private volatile int maxPacketSize = UdpSocketHandler.MAX_ALLOWED_MTU - UdpSocketHandler.UDP_HEADERS_LENGTH;
+	private long packetsReceived;
+	private long packetsSent;
+
+	SimulatedPacketSocketHandler(SimulatedPacketNetwork network, Peer address, LinkProperties link) {
+		this.network = network;
+		this.address = address;
+		this.link = link;
+	}
+
+	/** The address other handlers use to reach this one. */
+	public Peer getAddress() {
+		return address;
+	}
+
+	public int getPortNumber() {
+		return address.getPort();
+	}
+
+	public synchronized LinkProperties getLinkProperties() {
+		return link;
+	}
+
+	/** Change the uplink characteristics. Packets already in flight are not affected. */
+	public synchronized void setLinkProperties(LinkProperties link) {
+		this.link = link;
+	}
+
+	@Override
+	public void setLowLevelFilter(IncomingPacketFilter f) {
+		lowLevelFilter = f;
+	}
+
+	@Override
+	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
+		assert(blockToSend != null);
+		if(!active) {
+			Logger.error(this, "Trying to send packet but no longer active");
+			return;
+		}
+		long sendAt;
+		LinkProperties l;
+		synchronized(this) {
+			l = link;
+			long now = network.now();
+			// Packets queue behind each other on the uplink.
+			sendAt = Math.max(now, uplinkFreeAt) + l.transmitTime(getHeadersLength() + blockToSend.length);
+			uplinkFreeAt = sendAt;
+			packetsSent++;
+		}
+		network.send(this, blockToSend, destination, sendAt, l);
+		if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+destination);
+	}
+
+	/** Called by the network on the ticker when a packet arrives. */
+	void receivePacket(byte[] data, Peer source, long now) {
+		if(!active) return;
+		IncomingPacketFilter filter = lowLevelFilter;
+		if(filter == null) {
+			Logger.error(this, "No low level filter, dropping packet from "+source);
+			return;
+		}
+		synchronized(this) {
+			packetsReceived++;
+		}
+		try {
+			filter.process(data, 0, data.length, source, now);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from " + filter, t);
+		}
+	}
+
+	/** Stop sending and receiving, and detach from the network. */
+	public void close() {
+		active = false;
+		network.remove(this);
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public synchronized long getPacketsReceived() {
+		return packetsReceived;
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return maxPacketSize;
+	}
+
+	public void setMaxPacketSize(int size) {
+		maxPacketSize = size;
+	}
+
+	@Override
+	public int getHeadersLength() {
+		return UdpSocketHandler.UDP_HEADERS_LENGTH;
+	}
+
+	@Override
+	public int getHeadersLength(Peer peer) {
+		return getHeadersLength();
+	}
+
+	@Override
+	public int getPacketSendThreshold() {
+		return getMaxPacketSize() - 100;
+	}
+
+	/** There is no NAT on a simulated network. */
+	@Override
+	public Status getDetectedConnectivityStatus() {
+		return Status.DEFINITELY_PORT_FORWARDED;
+	}
+
+	@Override
+	public String toString() {
+		return "simulated:"+address;
+	}
+
+}
@@ -20,6 +20,7 @@ package freenet.io.xfer;
 
 import java.util.HashSet;
 import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.io.comm.AsyncMessageCallback;
 import freenet.io.comm.AsyncMessageFilterCallback;
@@ -81,8 +82,12 @@ public class BlockTransmitter {
 	private final boolean realTime;
 	final PartiallyReceivedBlock _prb;
 	private Deque<Integer> _unsent;
-	private BlockSenderJob _senderThread = new BlockSenderJob();
+	/** Protects the state of the transfer. Everything is driven by callbacks: the PRB, the message
+	 * queue's AsyncMessageCallback's, the message filters and the timeout on the ticker. */
+	private final Object _lock = new Object();
 	private BitArray _sentPackets;
+	/** Number of bits set in _sentPackets. LOCKING: _lock */
+	private int _numSent;
 	private long timeAllSent = -1;
 	final ByteCounter _ctr;
 	final int PACKET_SIZE;
@@ -109,103 +114,94 @@ public class BlockTransmitter {
 	/** Have we failed e.g. due to PRB abort, disconnection? */
 	private boolean _failed;
 	
-	static int runningBlockTransmits = 0;
+	private static final AtomicInteger runningBlockTransmits = new AtomicInteger();
 	
-	class BlockSenderJob implements PrioRunnable {
-		
-		private boolean running = false;
-		
-		@Override
-		public void run() {
-			synchronized(this) {
-				if(running) return;
-				running = true;
-			}
-			try {
-				while(true) {
-					int packetNo = -1;
-					BitArray copy;
-					synchronized(_senderThread) {
-						if(_failed || _receivedSendCompletion || _completed) return;
-						if(_unsent.isEmpty()) {
-							// Wait for PRB callback to tell us we have more packets.
-							return;
-						}
-						else {
-							packetNo = _unsent.removeFirst();
-							if(_sentPackets.bitAt(packetNo)) {
-								Logger.error(this, "Already sent packet in run(): "+packetNo+" for "+this+" unsent is "+_unsent+" sent is "+_sentPackets, new Exception("error"));
-								continue;
-							}
-						}
-						copy = _sentPackets.copy();
-						_sentPackets.setBit(packetNo, true);
+	/** True while a thread is sending the packets in _unsent. Packets are sent on the thread which
+	 * delivers the event that makes them available, i.e. sendAsync() or the PRB receiving a packet,
+	 * unless another thread is already sending, in which case it will send them too. So packets
+	 * go out in order, and no thread is needed while we wait for the data, the acks or the
+	 * receiver. LOCKING: _lock */
+	private boolean _sending;
+	
+	/** Send everything in _unsent, unless another thread is already doing so. */
+	private void sendQueuedPackets() {
+		synchronized(_lock) {
+			if(_sending) return;
+			_sending = true;
+		}
+		boolean stopped = false;
+		try {
+			while(true) {
+				int packetNo;
+				BitArray copy;
+				synchronized(_lock) {
+					if(_failed || _receivedSendCompletion || _completed || _unsent.isEmpty()) {
+						// Clear the flag in the same critical section as the check, so we can't
+						// miss a packet added in between.
+						_sending = false;
+						stopped = true;
+						return;
 					}
-					if(!innerRun(packetNo, copy)) return;
-				}
-			} finally {
-				synchronized(this) {
-					running = false;
+					packetNo = _unsent.removeFirst();
+					if(_sentPackets.bitAt(packetNo)) {
+						Logger.error(this, "Already sent packet in sendQueuedPackets(): "+packetNo+" for "+this+" unsent is "+_unsent+" sent is "+_sentPackets, new Exception("error"));
+						continue;
+					}
+					copy = _sentPackets.copy();
+					_sentPackets.setBit(packetNo, true);
+					_numSent++;
 				}
+				if(!sendPacket(packetNo, copy)) return;
 			}
-		}
-		
-		public void schedule() {
-			if(_failed || _receivedSendCompletion || _completed) {
-				if(logMINOR) Logger.minor(this, "Not scheduling for "+_uid+" to "+_destination+" :"+
-						(_failed ? "(failed) " : "") + (_receivedSendCompletion ? "(receivedSendCompletion) " : "") + (_completed ? "(completed) " : ""));
-				return;
+		} finally {
+			if(!stopped) {
+				synchronized(_lock) {
+					_sending = false;
+				}
 			}
-			_executor.execute(this, "BlockTransmitter block sender for "+_uid+" to "+_destination);
 		}
+	}
 
-		/** @return True . */
-		private boolean innerRun(int packetNo, BitArray copied) {
-			try {
-				Message msg = DMT.createPacketTransmit(_uid, packetNo, copied, _prb.getPacket(packetNo), realTime);
-				MyAsyncMessageCallback cb = new MyAsyncMessageCallback();
-				MessageItem item;
-				// Everything is throttled.
-				item = _destination.sendAsync(msg, cb, _ctr);
-				synchronized(itemsPending) {
-					itemsPending.add(item);
-				}
-			} catch (NotConnectedException e) {
-				onDisconnect();
-				return false;
-			} catch (AbortedException e) {
-				Logger.normal(this, "Terminating send due to abort: "+e);
-				// The PRB callback will deal with this.
-				return false;
+	/** @return True if there may be more packets to send. */
+	private boolean sendPacket(int packetNo, BitArray copied) {
+		try {
+			Message msg = DMT.createPacketTransmit(_uid, packetNo, copied, _prb.getPacket(packetNo), realTime);
+			MyAsyncMessageCallback cb = new MyAsyncMessageCallback();
+			MessageItem item;
+			// Everything is throttled.
+			item = _destination.sendAsync(msg, cb, _ctr);
+			synchronized(itemsPending) {
+				itemsPending.add(item);
 			}
-			boolean success = false;
-			boolean complete = false;
-			synchronized (_senderThread) {
-				if(_unsent.isEmpty() && getNumSent() == _prb._packets) {
-					//No unsent packets, no unreceived packets
-					sendAllSentNotification();
-					if(maybeAllSent()) {
-						if(maybeComplete()) {
-							complete = true;
-							success = _receivedSendSuccess;
-						} else return false;
-					} else {
-						return false;
-					}
+		} catch (NotConnectedException e) {
+			onDisconnect();
+			return false;
+		} catch (AbortedException e) {
+			Logger.normal(this, "Terminating send due to abort: "+e);
+			// The PRB callback will deal with this.
+			return false;
+		}
+		boolean success = false;
+		boolean complete = false;
+		synchronized (_lock) {
+			if(_unsent.isEmpty() && _numSent == _prb._packets) {
+				//No unsent packets, no unreceived packets
+				sendAllSentNotification();
+				if(maybeAllSent()) {
+					if(maybeComplete()) {
+						complete = true;
+						success = _receivedSendSuccess;
+					} else return false;
+				} else {
+					return false;
 				}
 			}
-			if(complete) {
-				callCallback(success);
-				return false; // No more blocks to send.
-			}
-			return true; // More blocks to send.
 		}
-
-		@Override
-		public int getPriority() {
-			return NativeThread.HIGH_PRIORITY;
+		if(complete) {
+			callCallback(success);
+			return false; // No more blocks to send.
 		}
-		
+		return true; // More blocks to send.
 	}
 	
 	public BlockTransmitter(MessageCore usm, Ticker ticker, PeerContext destination, long uid, PartiallyReceivedBlock source, ByteCounter ctr, ReceiverAbortHandler abortHandler, BlockTransmitterCompletion callback, boolean realTime, BlockTimeCallback blockTimes) {
@@ -234,7 +230,7 @@ public class BlockTransmitter {
 	private Runnable timeoutJob;
 	
 	public void scheduleTimeoutAfterBlockSends() {
-		synchronized(_senderThread) {
+		synchronized(_lock) {
 			if(_receivedSendCompletion) return;
 			if(timeoutJob != null) return;
 			if(logMINOR) Logger.minor(this, "Scheduling timeout on "+this);
@@ -245,7 +241,7 @@ public class BlockTransmitter {
 					String timeString;
 					String abortReason;
 					Future fail;
-					synchronized(_senderThread) {
+					synchronized(_lock) {
 						if(_completed) return;
 						boolean hadSendCompletion = _receivedSendCompletion;
 						if(!_receivedSendCompletion) {
@@ -283,15 +279,14 @@ public class BlockTransmitter {
 		}
 	}
 
-	/** LOCKING: Must be called with _senderThread held. 
+	/** LOCKING: Must be called with _lock held. 
 	 * @return True if everything has been sent and we are now just waiting for an
 	 * acknowledgement or timeout from the other side. */
 	public boolean maybeAllSent() {
-		if(blockSendsPending == 0 && _unsent.isEmpty() && getNumSent() == _prb._packets) {
+		if(blockSendsPending == 0 && _unsent.isEmpty() && _numSent == _prb._packets) {
 			timeAllSent = System.currentTimeMillis();
 			if(logMINOR)
 				Logger.minor(this, "Sent all blocks, none unsent on "+this);
-			_senderThread.notifyAll();
 			return true;
 		}
 		if(blockSendsPending == 0 && _failed) {
@@ -300,13 +295,13 @@ public class BlockTransmitter {
 				Logger.minor(this, "Sent blocks and failed on "+this);
 			return true;
 		}
-		if(logMINOR) Logger.minor(this, "maybeAllSent: block sends pending = "+blockSendsPending+" unsent = "+_unsent.size()+" sent = "+getNumSent()+" on "+this);
+		if(logMINOR) Logger.minor(this, "maybeAllSent: block sends pending = "+blockSendsPending+" unsent = "+_unsent.size()+" sent = "+_numSent+" on "+this);
 		return false;
 	}
 
 	/** Complete? maybeAllSent() must have already returned true. This method checks 
 	 * _sendCompleted and then uses _completed to complete only once. LOCKING: Must be 
-	 * called with _senderThread held. 
+	 * called with _lock held. 
 	 * Caller must call the callback then call cleanup() outside the lock if this returns true. */
 	public boolean maybeComplete() {
 		if(!_receivedSendCompletion) {
@@ -341,7 +336,7 @@ public class BlockTransmitter {
 	/** Only fail once. Called on a drastic failure e.g. disconnection. Unless we are sure
 	 * that we don't need to (e.g. on disconnection), the caller must call prepareSendAborted
 	 * afterwards, and if that returns true, send the sendAborted via innerSendAborted.
-	 * LOCKING: Must be called inside the _senderThread lock.
+	 * LOCKING: Must be called inside the _lock lock.
 	 * @return A Future which the caller must execute() outside the lock. */
 	public Future maybeFail(final int reason, final String description) {
 		if(_completed) {
@@ -476,7 +471,7 @@ public class BlockTransmitter {
 					Logger.minor(this, "Block send took "+transferTime+" : "+avgTimeTaken+" on "+BlockTransmitter.this);
 				}
 			}
-			synchronized(_senderThread) {
+			synchronized(_lock) {
 				_receivedSendCompletion = true;
 				_receivedSendSuccess = true;
 				if(!maybeAllSent()) return;
@@ -487,7 +482,7 @@ public class BlockTransmitter {
 
 		@Override
 		public boolean shouldTimeout() {
-			synchronized(_senderThread) {
+			synchronized(_lock) {
 				// We are waiting for the send completion, which is set on timeout as well as on receiving a message.
 				// In some corner cases we might want to get the allReceived after setting _failed, so don't timeout on _failed.
 				// We do want to timeout on _completed because that means everything is finished - it is only set in maybeComplete() and maybeFail().
@@ -525,7 +520,7 @@ public class BlockTransmitter {
 			if((!_prb.isAborted()) && abortHandler.onAbort())
 				_prb.abort(RetrievalException.CANCELLED_BY_RECEIVER, "Cascading cancel from receiver", true);
 			Future fail;
-			synchronized(_senderThread) {
+			synchronized(_lock) {
 				_receivedSendCompletion = true;
 				_receivedSendSuccess = false;
 				fail = maybeFail(msg.getInt(DMT.REASON), msg.getString(DMT.DESCRIPTION));
@@ -537,7 +532,7 @@ public class BlockTransmitter {
 
 		@Override
 		public boolean shouldTimeout() {
-			synchronized(_senderThread) {
+			synchronized(_lock) {
 				// We are waiting for the send completion, which is set on timeout as well as on receiving a message.
 				// We don't want to timeout on _failed because we can set _failed, send sendAborted, and then wait for the acknowledging sendAborted.
 				// We do want to timeout on _completed because that means everything is finished - it is only set in maybeComplete() and maybeFail().
@@ -572,7 +567,7 @@ public class BlockTransmitter {
 		Logger.normal(this, "Terminating send "+_uid+" to "+_destination+" from "+_destination.getSocketHandler()+" because node disconnected while waiting");
 		//They disconnected, can't send an abort to them then can we?
 		Future fail;
-		synchronized(_senderThread) {
+		synchronized(_lock) {
 			_receivedSendCompletion = true; // effectively
 			blockSendsPending = 0; // effectively
 			_sentSendAborted = true; // effectively
@@ -587,10 +582,9 @@ public class BlockTransmitter {
 	private void onAborted(int reason, String description) {
 		if(logMINOR) Logger.minor(this, "Aborting on "+this);
 		Future fail;
-		synchronized(_senderThread) {
+		synchronized(_lock) {
 			timeAllSent = -1;
 			_failed = true;
-			_senderThread.notifyAll();
 			fail = maybeFail(reason, description);
 		}
 		fail.execute();
@@ -612,7 +606,7 @@ public class BlockTransmitter {
 
 					@Override
 					public void packetReceived(int packetNo) {
-						synchronized(_senderThread) {
+						synchronized(_lock) {
 							if(logMINOR) Logger.minor(this, "Got packet "+packetNo+" for "+_uid+" to "+_destination);
 							if(_unsent.contains(packetNo)) {
 								Logger.error(this, "Already in unsent: "+packetNo+" for "+this+" unsent is "+_unsent, new Exception("error"));
@@ -624,8 +618,8 @@ public class BlockTransmitter {
 							}
 							_unsent.addLast(packetNo);
 							timeAllSent = -1;
-							_senderThread.schedule();
 						}
+						sendQueuedPackets();
 					}
 
 					@Override
@@ -634,7 +628,7 @@ public class BlockTransmitter {
 					}
 				});
 			}
-			_senderThread.schedule();
+			sendQueuedPackets();
 
 			MessageFilter mfAllReceived = MessageFilter.create().setType(DMT.allReceived).setField(DMT.UID, _uid).setSource(_destination).setNoTimeout();
 			MessageFilter mfSendAborted = MessageFilter.create().setType(DMT.sendAborted).setField(DMT.UID, _uid).setSource(_destination).setNoTimeout();
@@ -667,14 +661,14 @@ public class BlockTransmitter {
 
 	long timeLastBlockSendCompleted = -1;
 	
-	private static synchronized void incRunningBlockTransmits() {
-		runningBlockTransmits++;
-		if(logMINOR) Logger.minor(BlockTransmitter.class, "Started a block transmit, running: "+runningBlockTransmits);
+	private static void incRunningBlockTransmits() {
+		int running = runningBlockTransmits.incrementAndGet();
+		if(logMINOR) Logger.minor(BlockTransmitter.class, "Started a block transmit, running: "+running);
 	}
 
-	private static synchronized void decRunningBlockTransmits() {
-		runningBlockTransmits--;
-		if(logMINOR) Logger.minor(BlockTransmitter.class, "Finished a block transmit, running: "+runningBlockTransmits);
+	private static void decRunningBlockTransmits() {
+		int running = runningBlockTransmits.decrementAndGet();
+		if(logMINOR) Logger.minor(BlockTransmitter.class, "Finished a block transmit, running: "+running);
 	}
 
 	private void cleanup() {
@@ -688,7 +682,7 @@ public class BlockTransmitter {
 
 		
 		MyAsyncMessageCallback() {
-			synchronized(_senderThread) {
+			synchronized(_lock) {
 				blockSendsPending++;
 			}
 		}
@@ -724,7 +718,7 @@ public class BlockTransmitter {
 			long now = System.currentTimeMillis();
 			boolean callCallback = false;
 			long delta = -1;
-			synchronized(_senderThread) {
+			synchronized(_lock) {
 				if(completed) return;
 				completed = true;
 				if(lastSentPacket > 0) {
@@ -766,17 +760,6 @@ public class BlockTransmitter {
 	
 	private static MedianMeanRunningAverage avgTimeTaken = new MedianMeanRunningAverage();
 	
-	/** LOCKING: Must be called with _senderThread held. */
-	private int getNumSent() {
-		int ret = 0;
-		for (int x=0; x<_sentPackets.getSize(); x++) {
-			if (_sentPackets.bitAt(x)) {
-				ret++;
-			}
-		}
-		return ret;
-	}
-	
 	public void callCallback(final boolean success) {
 		if(_callback != null) {
 			_executor.execute(new Runnable() {
@@ -805,7 +788,7 @@ public class BlockTransmitter {
 		return "BlockTransmitter for "+_uid+" to "+_destination.shortToString();
 	}
 
-	public synchronized static int getRunningSends() {
-		return runningBlockTransmits;
+	public static int getRunningSends() {
+		return runningBlockTransmits.get();
 	}
 }
@@ -13,6 +13,7 @@ import freenet.io.comm.MessageFilter;
 import freenet.io.comm.NotConnectedException;
 import freenet.io.comm.PeerContext;
 import freenet.io.comm.RetrievalException;
+import freenet.support.Logger;
 import freenet.support.ShortBuffer;
 
 /**
@@ -33,6 +34,14 @@ public class BulkReceiver {
 	/** Not persistent over reboots */
 	final long peerBootID;
 	private final ByteCounter ctr;
+	/** The first block we want from this peer and one past the last. */
+	final int firstBlock;
+	final int endBlock;
+	/** If false, we are one of several receivers for different parts of the file, so a failure
+	 * only affects this receiver and doesn't abort the whole transfer. */
+	private final boolean wholeFile;
+	/** How long to wait for the next packet */
+	private final long timeout;
 
 	public BulkReceiver(PartiallyReceivedBulk prb, PeerContext peer, long uid, ByteCounter ctr) {
 		this.prb = prb;
@@ -40,10 +49,36 @@ public class BulkReceiver {
 		this.uid = uid;
 		this.peerBootID = peer.getBootID();
 		this.ctr = ctr;
-		
+		this.firstBlock = 0;
+		this.endBlock = prb.blocks;
+		this.wholeFile = true;
+		this.timeout = TIMEOUT;
+
 		prb.recv = this;
 	}
 
+	/**
+	 * Receive some of the blocks of a file from one peer, while other peers send the rest. If
+	 * this fails, the PartiallyReceivedBulk is not aborted; the blocks can be fetched elsewhere.
+	 * @param firstBlock The first block the peer will send.
+	 * @param blockCount The number of blocks the peer will send.
+	 * @param timeout How long to wait for each packet before deciding the peer has stalled.
+	 * @see BulkSwarmReceiver
+	 */
+	public BulkReceiver(PartiallyReceivedBulk prb, PeerContext peer, long uid, ByteCounter ctr, int firstBlock, int blockCount, long timeout) {
+		if(firstBlock < 0 || blockCount < 0 || blockCount > prb.blocks - firstBlock)
+			throw new IllegalArgumentException("Invalid range "+firstBlock+" + "+blockCount+" of "+prb.blocks+" blocks");
+		this.prb = prb;
+		this.peer = peer;
+		this.uid = uid;
+		this.peerBootID = peer.getBootID();
+		this.ctr = ctr;
+		this.firstBlock = firstBlock;
+		this.endBlock = firstBlock + blockCount;
+		this.wholeFile = false;
+		this.timeout = timeout;
+	}
+
 	public void onAborted() {
 		synchronized(this) {
 			if(sentCancel) return;
@@ -56,15 +91,38 @@ public class BulkReceiver {
 		}
 	}
 
+	/** Tell the sender to stop, e.g. because another peer has sent us the blocks. receive() will
+	 * return once the sender acknowledges this, or times out. */
+	public void cancel() {
+		onAborted();
+	}
+
+	private boolean complete() {
+		if(wholeFile)
+			return prb.hasWholeFile();
+		else
+			return prb.hasBlocks(firstBlock, endBlock);
+	}
+
+	private void fail(int reason, String description) {
+		if(wholeFile)
+			prb.abort(reason, description);
+		else {
+			Logger.normal(this, "Failed to receive blocks "+firstBlock+" to "+endBlock+" from "+peer.shortToString()+": "+description);
+			onAborted();
+		}
+	}
+
 	/**
 	 * Receive the file.
-	 * @return True if the whole file was received, false otherwise.
+	 * @return True if the whole file (or all the blocks we asked for) was received, false
+	 * otherwise.
 	 */
 	public boolean receive() {
 		while(true) {
-			MessageFilter mfSendKilled = MessageFilter.create().setSource(peer).setType(DMT.FNPBulkSendAborted) .setField(DMT.UID, uid).setTimeout(TIMEOUT);
-			MessageFilter mfPacket = MessageFilter.create().setSource(peer).setType(DMT.FNPBulkPacketSend) .setField(DMT.UID, uid).setTimeout(TIMEOUT);
-			if(prb.hasWholeFile()) {
+			MessageFilter mfSendKilled = MessageFilter.create().setSource(peer).setType(DMT.FNPBulkSendAborted) .setField(DMT.UID, uid).setTimeout(timeout);
+			MessageFilter mfPacket = MessageFilter.create().setSource(peer).setType(DMT.FNPBulkPacketSend) .setField(DMT.UID, uid).setTimeout(timeout);
+			if(complete()) {
 				try {
 					peer.sendAsync(DMT.createFNPBulkReceivedAll(uid), null, ctr);
 				} catch (NotConnectedException e) {
@@ -72,27 +130,37 @@ public class BulkReceiver {
 				}
 				return true;
 			}
+			if(!wholeFile && prb.isAborted()) {
+				onAborted();
+				return false;
+			}
 			Message m;
 			try {
 				m = prb.usm.waitFor(mfSendKilled.or(mfPacket), ctr);
 			} catch (DisconnectedException e) {
-				prb.abort(RetrievalException.SENDER_DISCONNECTED, "Sender disconnected");
+				fail(RetrievalException.SENDER_DISCONNECTED, "Sender disconnected");
 				return false;
 			}
 			if(peer.getBootID() != peerBootID) {
-				prb.abort(RetrievalException.SENDER_DIED, "Sender restarted");
+				fail(RetrievalException.SENDER_DIED, "Sender restarted");
 				return false;
 			}
 			if(m == null) {
-				prb.abort(RetrievalException.TIMED_OUT, "Sender timeout");
+				fail(RetrievalException.TIMED_OUT, "Sender timeout");
 				return false;
 			}
 			if(m.getSpec() == DMT.FNPBulkSendAborted) {
-				prb.abort(RetrievalException.SENDER_DIED, "Sender cancelled send");
+				// We may have cancelled it because another peer sent us the blocks.
+				if(!wholeFile && complete()) return true;
+				fail(RetrievalException.SENDER_DIED, "Sender cancelled send");
 				return false;
 			}
 			if(m.getSpec() == DMT.FNPBulkPacketSend) {
 				int packetNo = m.getInt(DMT.PACKET_NO);
+				if(packetNo < firstBlock || packetNo >= endBlock) {
+					Logger.error(this, "Peer "+peer.shortToString()+" sent block "+packetNo+" outside range "+firstBlock+" to "+endBlock);
+					continue;
+				}
 				byte[] data = ((ShortBuffer) m.getObject(DMT.DATA)).getData();
 				prb.received(packetNo, data, 0, data.length);
 			}
@@ -0,0 +1,268 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import freenet.io.comm.ByteCounter;
+import freenet.io.comm.NotConnectedException;
+import freenet.io.comm.PeerContext;
+import freenet.support.Logger;
+
+/**
+ * Receives a file from several peers at once, each sending different blocks of the same
+ * PartiallyReceivedBulk. Used when many peers have exactly the same file, e.g. a dependency of
+ * an update, which is identified by its hash.
+ *
+ * The file is split into chunks. Each peer is asked for one chunk at a time, which is received by
+ * a BulkReceiver for just that range, and when it finishes it is given another. If a peer stalls,
+ * disconnects or refuses, no more chunks are asked from it and the rest of its chunk is fetched
+ * from another peer. Once every chunk has been handed out, idle peers are asked for the missing
+ * blocks of chunks which are still being fetched, so a slow peer can't hold up the whole file.
+ *
+ * The blocks are not checked here: the caller must verify the file, e.g. against its hash.
+ */
+public class BulkSwarmReceiver {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(BulkSwarmReceiver.class);
+	}
+
+	/** Asks a peer to send part of the file. */
+	public interface RangeRequester {
+
+		/** Ask the peer to send blocks firstBlock to firstBlock+blockCount-1 as a bulk transfer
+		 * (see BulkTransmitter) with the given uid. */
+		void requestRange(PeerContext peer, long uid, int firstBlock, int blockCount) throws NotConnectedException;
+
+	}
+
+	/** 256 blocks is 256KiB with Node.PACKET_SIZE */
+	public static final int DEFAULT_CHUNK_BLOCKS = 256;
+	/** If a peer sends nothing for this long, give its chunk to another peer. */
+	public static final long DEFAULT_STALL_TIMEOUT = SECONDS.toMillis(30);
+	/** At most this many peers fetch the same chunk, towards the end of the transfer. */
+	static final int MAX_FETCHERS_PER_CHUNK = 2;
+
+	private final PartiallyReceivedBulk prb;
+	private final RangeRequester requester;
+	private final ByteCounter ctr;
+	private final Random random;
+	private final int chunkBlocks;
+	private final int chunks;
+	private final long stallTimeout;
+	/** The receivers working on each chunk. Empty lists are removed. */
+	private final HashMap<Integer, List<BulkReceiver>> fetching;
+	private final HashSet<PeerContext> sources;
+	private final HashSet<PeerContext> failedSources;
+	/** Number of sources still fetching or waiting for a chunk */
+	private int running;
+	/** Chunks given to another peer after a peer failed to send all of them */
+	private int chunksReassigned;
+	/** Chunks also requested from a second peer towards the end of the transfer */
+	private int chunksDuplicated;
+
+	public BulkSwarmReceiver(PartiallyReceivedBulk prb, RangeRequester requester, ByteCounter ctr, Random random) {
+		this(prb, requester, ctr, random, DEFAULT_CHUNK_BLOCKS, DEFAULT_STALL_TIMEOUT);
+	}
+
+	public BulkSwarmReceiver(PartiallyReceivedBulk prb, RangeRequester requester, ByteCounter ctr, Random random, int chunkBlocks, long stallTimeout) {
+		if(chunkBlocks <= 0) throw new IllegalArgumentException();
+		this.prb = prb;
+		this.requester = requester;
+		this.ctr = ctr;
+		this.random = random;
+		this.chunkBlocks = chunkBlocks;
+		this.chunks = (prb.blocks + chunkBlocks - 1) / chunkBlocks;
+		this.stallTimeout = stallTimeout;
+		fetching = new HashMap<Integer, List<BulkReceiver>>();
+		sources = new HashSet<PeerContext>();
+		failedSources = new HashSet<PeerContext>();
+	}
+
+	/**
+	 * Start fetching from a peer. Can be called before or during receive().
+	 * @return False if the peer has already been added, or the transfer is over.
+	 */
+	public boolean addSource(final PeerContext peer) {
+		synchronized(this) {
+			if(isOver()) return false;
+			if(!sources.add(peer)) return false;
+			running++;
+		}
+		prb.usm.getExecutor().execute(new Runnable() {
+
+			@Override
+			public void run() {
+				fetchFrom(peer);
+			}
+
+		}, "Swarm receive from "+peer.shortToString());
+		return true;
+	}
+
+	private synchronized boolean isOver() {
+		return prb.hasWholeFile() || prb.isAborted();
+	}
+
+	private int chunkStart(int chunk) {
+		return chunk * chunkBlocks;
+	}
+
+	private int chunkEnd(int chunk) {
+		return Math.min(prb.blocks, (chunk + 1) * chunkBlocks);
+	}
+
+	/**
+	 * Choose a chunk for a peer: one nobody is fetching, or failing that the one with the most
+	 * blocks missing which only one other peer is fetching. Caller must hold the lock.
+	 * @return The chunk, or -1.
+	 */
+	private int chooseChunk() {
+		int best = -1;
+		int bestMissing = 0;
+		for(int chunk=0;chunk<chunks;chunk++) {
+			List<BulkReceiver> receivers = fetching.get(chunk);
+			int fetchers = receivers == null ? 0 : receivers.size();
+			if(fetchers >= MAX_FETCHERS_PER_CHUNK) continue;
+			if(fetchers == 0) {
+				if(!prb.hasBlocks(chunkStart(chunk), chunkEnd(chunk))) return chunk;
+				continue;
+			}
+			int missing = prb.countMissing(chunkStart(chunk), chunkEnd(chunk));
+			if(missing > bestMissing) {
+				best = chunk;
+				bestMissing = missing;
+			}
+		}
+		return best;
+	}
+
+	private void fetchFrom(PeerContext peer) {
+		try {
+			while(true) {
+				int chunk;
+				int first;
+				int end;
+				BulkReceiver br;
+				synchronized(this) {
+					while(true) {
+						if(isOver()) return;
+						chunk = chooseChunk();
+						if(chunk >= 0) break;
+						// Everything is being fetched by other peers. Wait in case one of them
+						// fails, unless nobody else is fetching anything.
+						if(fetching.isEmpty()) return;
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+					end = chunkEnd(chunk);
+					first = prb.firstMissing(chunkStart(chunk), end);
+					List<BulkReceiver> receivers = fetching.get(chunk);
+					if(receivers == null) {
+						receivers = new ArrayList<BulkReceiver>(MAX_FETCHERS_PER_CHUNK);
+						fetching.put(chunk, receivers);
+					} else {
+						chunksDuplicated++;
+					}
+					br = new BulkReceiver(prb, peer, random.nextLong(), ctr, first, end - first, stallTimeout);
+					receivers.add(br);
+				}
+				if(logMINOR) Logger.minor(this, "Fetching blocks "+first+" to "+end+" from "+peer.shortToString()+" for "+this);
+				boolean success = false;
+				try {
+					requester.requestRange(peer, br.uid, first, end - first);
+					success = br.receive();
+				} catch (NotConnectedException e) {
+					if(logMINOR) Logger.minor(this, "Not connected to "+peer.shortToString());
+				} finally {
+					List<BulkReceiver> others = null;
+					synchronized(this) {
+						List<BulkReceiver> receivers = fetching.get(chunk);
+						receivers.remove(br);
+						if(receivers.isEmpty())
+							fetching.remove(chunk);
+						else if(success)
+							others = new ArrayList<BulkReceiver>(receivers);
+						if(!success && receivers.isEmpty() && !prb.hasBlocks(chunkStart(chunk), end))
+							chunksReassigned++;
+						notifyAll();
+					}
+					// The other peer fetching this chunk can stop now.
+					if(others != null) {
+						for(BulkReceiver other : others)
+							other.cancel();
+					}
+				}
+				if(!success) {
+					Logger.normal(this, "Stopped fetching from "+peer.shortToString()+" for "+this);
+					synchronized(this) {
+						failedSources.add(peer);
+					}
+					return;
+				}
+			}
+		} finally {
+			synchronized(this) {
+				running--;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait until the whole file has been received, or all the sources have failed.
+	 * @return True if we have the whole file. It still needs to be verified.
+	 */
+	public boolean receive() {
+		synchronized(this) {
+			while(running > 0 && !isOver()) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			// Wake up any sources waiting for work.
+			notifyAll();
+		}
+		boolean success = prb.hasWholeFile();
+		if(logMINOR) Logger.minor(this, (success ? "Received " : "Failed to receive ")+this);
+		return success;
+	}
+
+	/** @return The peers which stalled, disconnected or refused to send their chunk. */
+	public synchronized PeerContext[] getFailedSources() {
+		return failedSources.toArray(new PeerContext[failedSources.size()]);
+	}
+
+	public synchronized int getSourceCount() {
+		return sources.size();
+	}
+
+	public synchronized int getChunksReassigned() {
+		return chunksReassigned;
+	}
+
+	public synchronized int getChunksDuplicated() {
+		return chunksDuplicated;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString()+":"+prb.blocks+" blocks in "+chunks+" chunks from "+sources.size()+" peers ("+failedSources.size()+" failed, "+chunksReassigned+" chunks reassigned)";
+	}
+
+}
@@ -50,6 +50,10 @@ public class BulkTransmitter {
 	final long uid;
 	/** Blocks we have but haven't sent yet. 0 = block sent or not present, 1 = block present but not sent */
 	final BitArray blocksNotSentButPresent;
+	/** The first block to send and one past the last. The whole file unless the receiver is
+	 * fetching parts of it from other peers. */
+	final int firstBlock;
+	final int endBlock;
 	private boolean cancelled;
 	/** Not persistent over reboots */
 	final long peerBootID;
@@ -88,7 +92,27 @@ public class BulkTransmitter {
 	 * @throws DisconnectedException If the peer we are trying to send to becomes disconnected.
 	 */
 	public BulkTransmitter(PartiallyReceivedBulk prb, PeerContext peer, long uid, boolean noWait, ByteCounter ctr, boolean realTime, AllSentCallback cb) throws DisconnectedException {
+		this(prb, peer, uid, noWait, ctr, realTime, cb, 0, prb.blocks);
+	}
+
+	/**
+	 * Create a bulk data transmitter which only sends some of the blocks, because the receiver is
+	 * fetching the rest of the file from other peers.
+	 * @param firstBlock The first block to send.
+	 * @param blockCount The number of blocks to send.
+	 * @throws IllegalArgumentException If the range is not within the file.
+	 * @see BulkSwarmReceiver
+	 */
+	public BulkTransmitter(PartiallyReceivedBulk prb, PeerContext peer, long uid, boolean noWait, ByteCounter ctr, boolean realTime, int firstBlock, int blockCount) throws DisconnectedException {
+		this(prb, peer, uid, noWait, ctr, realTime, null, firstBlock, blockCount);
+	}
+
+	private BulkTransmitter(PartiallyReceivedBulk prb, PeerContext peer, long uid, boolean noWait, ByteCounter ctr, boolean realTime, AllSentCallback cb, int firstBlock, int blockCount) throws DisconnectedException {
+		if(firstBlock < 0 || blockCount < 0 || blockCount > prb.blocks - firstBlock)
+			throw new IllegalArgumentException("Invalid range "+firstBlock+" + "+blockCount+" of "+prb.blocks+" blocks");
 		this.prb = prb;
+		this.firstBlock = firstBlock;
+		this.endBlock = firstBlock + blockCount;
 		this.peer = peer;
 		this.uid = uid;
 		this.noWait = noWait;
@@ -104,6 +128,10 @@ public class BulkTransmitter {
 		synchronized(prb) {
 			// We can just clone it.
 			blocksNotSentButPresent = prb.cloneBlocksReceived();
+			for(int i=0;i<firstBlock;i++)
+				blocksNotSentButPresent.setBit(i, false);
+			for(int i=endBlock;i<prb.blocks;i++)
+				blocksNotSentButPresent.setBit(i, false);
 			prb.add(this);
 		}
 		try {
@@ -176,6 +204,7 @@ public class BulkTransmitter {
 	 * @param block The block number that has been received.
 	 */
 	synchronized void blockReceived(int block) {
+		if(block < firstBlock || block >= endBlock) return;
 		blocksNotSentButPresent.setBit(block, true);
 		notifyAll();
 	}
@@ -275,7 +304,7 @@ outer:	while(true) {
 			}
 			if(blockNo < 0) {
 				setAllQueued();
-				if(noWait && prb.hasWholeFile()) {
+				if(noWait && prb.hasBlocks(firstBlock, endBlock)) {
 					completed();
 					return true;
 				}
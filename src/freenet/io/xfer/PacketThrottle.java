@@ -18,6 +18,8 @@
  */
 package freenet.io.xfer;
 
+import java.util.concurrent.locks.StampedLock;
+
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -42,11 +44,15 @@ public class PacketThrottle {
 	protected static final long MIN_DELAY = 1;
 	public static final String VERSION = "$Id: PacketThrottle.java,v 1.3 2005/08/25 17:28:19 amphibian Exp $";
 	public static final long DEFAULT_DELAY = 200;
+	/** Guards the congestion state. Readers, e.g. the packet sender and the stats pages, use
+	 * optimistic reads, so they don't block ack processing, and only take the read lock if they
+	 * raced with a write. */
+	private final StampedLock lock = new StampedLock();
 	private long _roundTripTime = 500, _totalPackets, _droppedPackets;
 	/** The size of the window, in packets.
 	 * Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
 	 * But mostly it is because of the non-slow-start division by _windowSize! */
-	private float _windowSize = 2;
+	private volatile float _windowSize = 2;
 	private final int PACKET_SIZE;
 	private boolean slowStart = true;
 	
@@ -54,22 +60,34 @@ public class PacketThrottle {
 		PACKET_SIZE = packetSize;
 	}
 
-	public synchronized void setRoundTripTime(long rtt) {
-		_roundTripTime = Math.max(rtt, 10);
+	public void setRoundTripTime(long rtt) {
+		long stamp = lock.writeLock();
+		try {
+			_roundTripTime = Math.max(rtt, 10);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
 		if(logMINOR) Logger.minor(this, "Set round trip time to "+rtt+" on "+this);
 	}
 
-    public synchronized void notifyOfPacketsLost(int numPackets) {
+    public void notifyOfPacketsLost(int numPackets) {
         if (numPackets <= 0) {
             throw new IllegalArgumentException("Reported loss is zero or negative");
         }
-        _droppedPackets += numPackets;
-        _totalPackets += numPackets;
-        _windowSize *= Math.pow(PACKET_DROP_DECREASE_MULTIPLE, numPackets);
-        if (_windowSize < 1.0F) {
-            _windowSize = 1.0F;
+        long stamp = lock.writeLock();
+        try {
+            _droppedPackets += numPackets;
+            _totalPackets += numPackets;
+            // Assign once, as getWindowSize() doesn't take the lock.
+            float windowSize = (float) (_windowSize * Math.pow(PACKET_DROP_DECREASE_MULTIPLE, numPackets));
+            if (windowSize < 1.0F) {
+                windowSize = 1.0F;
+            }
+            _windowSize = windowSize;
+            slowStart = false;
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        slowStart = false;
         if (logMINOR) {
             Logger.minor(this, "notifyOfPacketsLost(): " + this);
         }
@@ -82,53 +100,99 @@ public class PacketThrottle {
      * does not get bigger than this. This works even for new packet format, and solves some of the 
      * problems that RFC 2861 does.
      */
-    public synchronized void notifyOfPacketAcknowledged(double maxWindowSize) {
-        _totalPackets++;
-		// If we didn't use the whole window, shrink the window a bit.
-		// This is similar but not identical to RFC2861
-		// See [freenet-dev] Major weakness in our current link-level congestion control
-        int windowSize = (int)getWindowSize();
-
-    	if(slowStart) {
-    		if(logMINOR) Logger.minor(this, "Still in slow start");
-    		_windowSize += _windowSize / SLOW_START_DIVISOR;
-    		// Avoid craziness if there is lag in detecting packet loss.
-    		if(_windowSize > maxWindowSize) slowStart = false;
-    		// Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
-    		// But mostly it is because of the non-slow-start division by _windowSize!
-    		if(_windowSize < 1.0F) _windowSize = 1.0F;
-    	} else {
-    		_windowSize += (PACKET_TRANSMIT_INCREMENT / _windowSize);
-    	}
-    	// Ensure that we the window size does not grow dramatically larger than the largest window
-    	// that has actually been in flight at one time.
-    	if(_windowSize > maxWindowSize)
-    		_windowSize = (float) maxWindowSize;
-    	if(_windowSize > (windowSize + 1))
-    		notifyAll();
-    	if(logMINOR)
-    		Logger.minor(this, "notifyOfPacketAcked(): "+this);
+    public void notifyOfPacketAcknowledged(double maxWindowSize) {
+        boolean wasSlowStart;
+        long stamp = lock.writeLock();
+        try {
+            _totalPackets++;
+            // If we didn't use the whole window, shrink the window a bit.
+            // This is similar but not identical to RFC2861
+            // See [freenet-dev] Major weakness in our current link-level congestion control
+            wasSlowStart = slowStart;
+            // Work on a local and assign once, as getWindowSize() doesn't take the lock.
+            float windowSize = _windowSize;
+            if(slowStart) {
+                windowSize += windowSize / SLOW_START_DIVISOR;
+                // Avoid craziness if there is lag in detecting packet loss.
+                if(windowSize > maxWindowSize) slowStart = false;
+                // Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
+                // But mostly it is because of the non-slow-start division by _windowSize!
+                if(windowSize < 1.0F) windowSize = 1.0F;
+            } else {
+                windowSize += (PACKET_TRANSMIT_INCREMENT / windowSize);
+            }
+            // Ensure that we the window size does not grow dramatically larger than the largest window
+            // that has actually been in flight at one time.
+            if(windowSize > maxWindowSize)
+                windowSize = (float) maxWindowSize;
+            _windowSize = windowSize;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if(logMINOR) {
+            if(wasSlowStart) Logger.minor(this, "Still in slow start");
+            Logger.minor(this, "notifyOfPacketAcked(): "+this);
+        }
     }
     
     /** Only used for diagnostics. We actually maintain a real window size. So we don't
      * need lots of sanity checking here. */
-	public synchronized long getDelay() {
-		// return (long) (_roundTripTime / _simulatedWindowSize);
-		return Math.max(MIN_DELAY, (long) (_roundTripTime / _windowSize));
+	public long getDelay() {
+		long stamp = lock.tryOptimisticRead();
+		long rtt = _roundTripTime;
+		float windowSize = _windowSize;
+		if(!lock.validate(stamp)) {
+			// Raced with a write. Wait for it rather than spinning.
+			stamp = lock.readLock();
+			try {
+				rtt = _roundTripTime;
+				windowSize = _windowSize;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return Math.max(MIN_DELAY, (long) (rtt / windowSize));
 	}
 
 	@Override
-	public synchronized String toString() {
-		return Double.toString(getBandwidth()) + " k/sec, (w: "
-				+ _windowSize + ", r:" + _roundTripTime + ", d:"
-				+ (((float) _droppedPackets / (float) _totalPackets)) + ") total="+_totalPackets+" : "+super.toString();
+	public String toString() {
+		long stamp = lock.tryOptimisticRead();
+		long rtt = _roundTripTime;
+		float windowSize = _windowSize;
+		long totalPackets = _totalPackets;
+		long droppedPackets = _droppedPackets;
+		if(!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				rtt = _roundTripTime;
+				windowSize = _windowSize;
+				totalPackets = _totalPackets;
+				droppedPackets = _droppedPackets;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return Double.toString(getBandwidth(rtt, windowSize)) + " k/sec, (w: "
+				+ windowSize + ", r:" + rtt + ", d:"
+				+ (((float) droppedPackets / (float) totalPackets)) + ") total="+totalPackets+" : "+super.toString();
 	}
 
-	public synchronized long getRoundTripTime() {
-		return _roundTripTime;
+	public long getRoundTripTime() {
+		long stamp = lock.tryOptimisticRead();
+		long rtt = _roundTripTime;
+		if(!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				rtt = _roundTripTime;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return rtt;
 	}
 
-	public synchronized double getWindowSize() {
+	public double getWindowSize() {
+		// A float is read atomically, and the writers never store an out of range value.
 		return Math.max(1.0, _windowSize);
 	}
 
@@ -136,12 +200,17 @@ public class PacketThrottle {
 	 * returns the number of bytes-per-second in the transmition link (?).
 	 * FIXME: Will not return more than 1M/s due to MIN_DELAY in getDelay().
 	 */
-	public synchronized double getBandwidth() {
+	public double getBandwidth() {
 		//PACKET_SIZE=1024 [bytes?]
 		//1000 ms/sec
 		return ((PACKET_SIZE * 1000.0 / getDelay()));
 	}
+
+	private double getBandwidth(long rtt, float windowSize) {
+		return ((PACKET_SIZE * 1000.0 / Math.max(MIN_DELAY, (long) (rtt / windowSize))));
+	}
 	
+	/** Wake up anything waiting on the throttle. Nothing in the node does at present. */
 	public synchronized void maybeDisconnected() {
 		notifyAll();
 	}
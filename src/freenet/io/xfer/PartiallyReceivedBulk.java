@@ -106,7 +106,7 @@ public class PartiallyReceivedBulk {
 	 * @param offset The start of the data in the buffer.
 	 */
 	void received(int blockNum, byte[] data, int offset, int length) {
-		if(blockNum > blocks) {
+		if(blockNum < 0 || blockNum >= blocks) {
 			Logger.error(this, "Received block "+blockNum+" of "+blocks+" !");
 			return;
 		}
@@ -170,6 +170,34 @@ public class PartiallyReceivedBulk {
 		return blocksReceivedCount >= blocks;
 	}
 
+	public int getBlockCount() {
+		return blocks;
+	}
+
+	/**
+	 * @return The first block from the given range which we haven't received yet, or -1 if we
+	 * have all of them.
+	 * @param from The first block in the range.
+	 * @param to One past the last block in the range.
+	 */
+	public synchronized int firstMissing(int from, int to) {
+		int first = blocksReceived.firstZero(from);
+		if(first < 0 || first >= to) return -1;
+		return first;
+	}
+
+	public boolean hasBlocks(int from, int to) {
+		return firstMissing(from, to) < 0;
+	}
+
+	/** @return The number of blocks in the range which we haven't received yet. */
+	public synchronized int countMissing(int from, int to) {
+		int missing = 0;
+		for(int i=from;i<to;i++)
+			if(!blocksReceived.bitAt(i)) missing++;
+		return missing;
+	}
+
 	public byte[] getBlockData(int blockNum) {
 		long fileOffset = (long)blockNum * (long)blockSize;
 		int bs = (int) Math.min(blockSize, size - fileOffset);
@@ -5,7 +5,6 @@ package freenet.node;
 
 import java.util.HashSet;
 
-import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
 import freenet.io.comm.Message;
@@ -20,7 +19,7 @@ import freenet.support.SimpleFieldSet;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 
-public class AnnounceSender implements PrioRunnable, ByteCounter {
+public class AnnounceSender implements PrioRunnable, BandwidthClass.Counter {
 	private static volatile boolean logMINOR;
 
 	static {
@@ -588,6 +587,11 @@ public class AnnounceSender implements PrioRunnable, ByteCounter {
 		// Doesn't count.
 	}
 
+	@Override
+	public BandwidthClass getBandwidthClass() {
+		return BandwidthClass.ANNOUNCEMENT;
+	}
+
 	@Override
 	public int getPriority() {
 		return NativeThread.HIGH_PRIORITY;
@@ -0,0 +1,62 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.io.comm.ByteCounter;
+import freenet.io.comm.DMT;
+
+/**
+ * The classes of outgoing traffic which share the output bandwidth limit. Each class is
+ * guaranteed a share of the limit, and can use up to a ceiling if the others leave spare
+ * bandwidth. The shares are configured as percentages of the output bandwidth limit, see
+ * BandwidthManager.
+ *
+ * Not to be confused with freenet.io.comm.TrafficClass, which is the IP type of service.
+ */
+public enum BandwidthClass {
+
+	/** Everything except data transfers: requests, replies, load management etc. */
+	CONTROL("control", 20, 100),
+	/** Realtime data transfers. */
+	REALTIME("realtime", 30, 100),
+	/** Bulk data transfers. */
+	BULK("bulk", 40, 100),
+	/** Opennet announcements, including the noderefs sent with them. */
+	ANNOUNCEMENT("announcement", 5, 25),
+	/** Update over mandatory: the update keys, and jar transfers to peers. */
+	UPDATE("update", 5, 50);
+
+	/** Used for the config option names. */
+	final String configName;
+	/** Default guarantee, as a percentage of the output bandwidth limit. These add up to 100. */
+	final int defaultAssured;
+	/** Default ceiling, as a percentage of the output bandwidth limit. */
+	final int defaultCeiling;
+
+	private BandwidthClass(String configName, int defaultAssured, int defaultCeiling) {
+		this.configName = configName;
+		this.defaultAssured = defaultAssured;
+		this.defaultCeiling = defaultCeiling;
+	}
+
+	/** A ByteCounter whose traffic always belongs to one class, regardless of priority. */
+	public interface Counter extends ByteCounter {
+
+		BandwidthClass getBandwidthClass();
+
+	}
+
+	/** @param priority The message priority.
+	 * @param ctr The counter the message's bytes are reported to. May be null. */
+	public static BandwidthClass classify(short priority, ByteCounter ctr) {
+		if(ctr instanceof Counter)
+			return ((Counter)ctr).getBandwidthClass();
+		if(priority == DMT.PRIORITY_REALTIME_DATA)
+			return REALTIME;
+		if(priority == DMT.PRIORITY_BULK_DATA)
+			return BULK;
+		return CONTROL;
+	}
+
+}
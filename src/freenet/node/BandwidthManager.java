@@ -2,13 +2,21 @@ package freenet.node;
 
 import freenet.clients.http.wizardsteps.BandwidthLimit;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.SubConfig;
 import freenet.l10n.NodeL10n;
 import freenet.node.useralerts.UpgradeConnectionSpeedUserAlert;
 import freenet.pluginmanager.FredPluginBandwidthIndicator;
+import freenet.support.HierarchicalTokenBucket;
 import freenet.support.Logger;
+import freenet.support.api.IntCallback;
 
 import static java.util.concurrent.TimeUnit.*;
 
+/**
+ * Offers to raise the bandwidth limits if the connection is faster than they suggest, and shares
+ * the output bandwidth limit between the {@link BandwidthClass}es, so that e.g. bulk transfers
+ * can't starve realtime requests when the limit is reached.
+ */
 public class BandwidthManager {
 
     private static final long DELAY_HOURS = 24;
@@ -18,8 +26,154 @@ public class BandwidthManager {
 
     private final Node node;
 
-    BandwidthManager(Node node) {
+    /** One child per BandwidthClass, by ordinal. */
+    private final HierarchicalTokenBucket limiter;
+    private int outputBandwidthLimit;
+    /** Percentages of the output bandwidth limit, by BandwidthClass ordinal. */
+    private final int[] assured;
+    private final int[] ceiling;
+
+    BandwidthManager(Node node, int obwLimit) {
         this.node = node;
+        BandwidthClass[] classes = BandwidthClass.values();
+        assured = new int[classes.length];
+        ceiling = new int[classes.length];
+        for(BandwidthClass c : classes) {
+            assured[c.ordinal()] = c.defaultAssured;
+            ceiling[c.ordinal()] = c.defaultCeiling;
+        }
+        outputBandwidthLimit = obwLimit;
+        limiter = new HierarchicalTokenBucket(obwLimit, bucketSize(obwLimit), classes.length);
+        for(BandwidthClass c : classes)
+            setRates(c);
+    }
+
+    /** Register the guarantee and ceiling for each bandwidth class.
+     * @return The next sort order. */
+    synchronized int registerConfigs(SubConfig nodeConfig, int sortOrder) {
+        for(final BandwidthClass c : BandwidthClass.values()) {
+            String assuredName = c.configName + "BandwidthAssured";
+            String ceilingName = c.configName + "BandwidthCeiling";
+            nodeConfig.register(assuredName, c.defaultAssured, sortOrder++, true, false,
+                    "Node." + assuredName, "Node." + assuredName + "Long", new IntCallback() {
+                @Override
+                public Integer get() {
+                    return getAssured(c);
+                }
+                @Override
+                public void set(Integer val) throws InvalidConfigValueException {
+                    setAssured(c, val);
+                }
+            }, false);
+            nodeConfig.register(ceilingName, c.defaultCeiling, sortOrder++, true, false,
+                    "Node." + ceilingName, "Node." + ceilingName + "Long", new IntCallback() {
+                @Override
+                public Integer get() {
+                    return getCeiling(c);
+                }
+                @Override
+                public void set(Integer val) throws InvalidConfigValueException {
+                    setCeiling(c, val);
+                }
+            }, false);
+        }
+        // Read them all before checking, since the guarantees are checked against each other.
+        int[] newAssured = new int[assured.length];
+        int[] newCeiling = new int[ceiling.length];
+        for(BandwidthClass c : BandwidthClass.values()) {
+            newAssured[c.ordinal()] = nodeConfig.getInt(c.configName + "BandwidthAssured");
+            newCeiling[c.ordinal()] = nodeConfig.getInt(c.configName + "BandwidthCeiling");
+        }
+        try {
+            checkShares(newAssured, newCeiling);
+            System.arraycopy(newAssured, 0, assured, 0, assured.length);
+            System.arraycopy(newCeiling, 0, ceiling, 0, ceiling.length);
+        } catch (InvalidConfigValueException e) {
+            Logger.error(this, "Invalid bandwidth class shares, using the defaults: "+e.getMessage());
+        }
+        for(BandwidthClass c : BandwidthClass.values())
+            setRates(c);
+        return sortOrder;
+    }
+
+    synchronized void setAssured(BandwidthClass c, int percent) throws InvalidConfigValueException {
+        int[] a = assured.clone();
+        a[c.ordinal()] = percent;
+        checkShares(a, ceiling);
+        assured[c.ordinal()] = percent;
+        setRates(c);
+    }
+
+    synchronized void setCeiling(BandwidthClass c, int percent) throws InvalidConfigValueException {
+        int[] ceil = ceiling.clone();
+        ceil[c.ordinal()] = percent;
+        checkShares(assured, ceil);
+        ceiling[c.ordinal()] = percent;
+        setRates(c);
+    }
+
+    static void checkShares(int[] assured, int[] ceiling) throws InvalidConfigValueException {
+        int total = 0;
+        for(int i = 0; i < assured.length; i++) {
+            if(assured[i] < 0 || ceiling[i] <= 0 || ceiling[i] > 100)
+                throw new InvalidConfigValueException(NodeL10n.getBase().getString("Node.bandwidthClassOutOfRange"));
+            if(assured[i] > ceiling[i])
+                throw new InvalidConfigValueException(NodeL10n.getBase().getString("Node.bandwidthClassAssuredOverCeiling"));
+            total += assured[i];
+        }
+        if(total > 100)
+            throw new InvalidConfigValueException(NodeL10n.getBase().getString("Node.bandwidthClassAssuredTooHigh",
+                    "total", Integer.toString(total)));
+    }
+
+    /** Called when the output bandwidth limit changes. */
+    synchronized void setOutputBandwidthLimit(int obwLimit) {
+        outputBandwidthLimit = obwLimit;
+        limiter.setRate(obwLimit, bucketSize(obwLimit));
+        for(BandwidthClass c : BandwidthClass.values())
+            setRates(c);
+    }
+
+    private synchronized void setRates(BandwidthClass c) {
+        long obwLimit = outputBandwidthLimit;
+        limiter.setChildRate(c.ordinal(), obwLimit * assured[c.ordinal()] / 100,
+                Math.max(1, obwLimit * ceiling[c.ordinal()] / 100));
+    }
+
+    /** Same as the node's output throttle: half a second, but at least one packet. */
+    private static long bucketSize(int obwLimit) {
+        return Math.max(obwLimit / 2, 2048);
+    }
+
+    /** @return The limiter, with one child for each BandwidthClass, by ordinal. */
+    public HierarchicalTokenBucket getLimiter() {
+        return limiter;
+    }
+
+    /** @return The guarantee for the class, as a percentage of the output bandwidth limit. */
+    public synchronized int getAssured(BandwidthClass c) {
+        return assured[c.ordinal()];
+    }
+
+    /** @return The ceiling for the class, as a percentage of the output bandwidth limit. */
+    public synchronized int getCeiling(BandwidthClass c) {
+        return ceiling[c.ordinal()];
+    }
+
+    /** @return The total bytes the class has sent, counting only the messages themselves. */
+    public long getBytesSent(BandwidthClass c) {
+        return limiter.getGrabbed(c.ordinal());
+    }
+
+    /** @return The bytes the class has sent beyond its guarantee, borrowing spare bandwidth. */
+    public long getBytesBorrowed(BandwidthClass c) {
+        return limiter.getBorrowed(c.ordinal());
+    }
+
+    /** @return The number of times a message was held back because the class was over its
+     * share. */
+    public long getTimesLimited(BandwidthClass c) {
+        return limiter.getRefused(c.ordinal());
     }
 
     public void start() {
@@ -0,0 +1,128 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.client.async.BinaryBlob;
+import freenet.client.async.BinaryBlobFormatException;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.store.KeyCollisionException;
+import freenet.support.Logger;
+import freenet.support.io.CountedOutputStream;
+
+/**
+ * Imports binary blobs straight into the datastore, and exports blocks from the datastore as
+ * binary blobs, one block at a time. So the heap used doesn't depend on the size of the blob,
+ * unlike BinaryBlob.readBinaryBlob() into a BlockSet or BinaryBlobWriter. Used to seed a new
+ * node's store from a blob of millions of blocks.
+ *
+ * Imports can be resumed from the last offset reported to the ProgressCallback, and blocks
+ * which are already in the store are not written again, so an interrupted import can also
+ * simply be restarted.
+ */
+public class BinaryBlobSeeder {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(BinaryBlobSeeder.class);
+	}
+
+	/** Told about progress after each block. */
+	public interface ProgressCallback {
+		/** @param offset The offset in the binary blob just after the last block handled. An
+		 * import can be resumed from here.
+		 * @param blocks The number of blocks read or written so far.
+		 * @param skipped The number of blocks which were already in the store, when importing,
+		 * or which were not in the store, when exporting. */
+		void onProgress(long offset, long blocks, long skipped);
+	}
+
+	private final Node node;
+
+	BinaryBlobSeeder(Node node) {
+		this.node = node;
+	}
+
+	/** Verify and store the blocks in a binary blob, one at a time. Blocks go to the datastore's
+	 * cache, as if they had been fetched, not to the client cache.
+	 * @param is The binary blob. Will be closed.
+	 * @param resumeOffset 0, or the last offset reported by a previous import of the same blob.
+	 * @param tolerant If true, skip unknown types of blobs.
+	 * @param callback Told about progress, may be null.
+	 * @return The number of blocks read, including any skipped because they were already in
+	 * the store, but not any read by a previous import. */
+	public long importBlob(InputStream is, long resumeOffset, boolean tolerant, final ProgressCallback callback) throws IOException, BinaryBlobFormatException {
+		final long[] counts = new long[2];
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+		try {
+			BinaryBlob.readBinaryBlob(dis, new BinaryBlob.BlockHandler() {
+
+				@Override
+				public void onBlock(KeyBlock block, long offset) {
+					counts[0]++;
+					if(node.hasKey(block.getKey(), false, false)) {
+						counts[1]++;
+					} else {
+						try {
+							node.store(block, false, false, true, false);
+						} catch (KeyCollisionException e) {
+							// We have a different SSK block for the same key.
+							counts[1]++;
+						}
+					}
+					if(callback != null)
+						callback.onProgress(offset, counts[0], counts[1]);
+				}
+
+			}, tolerant, resumeOffset);
+		} finally {
+			dis.close();
+		}
+		if(logMINOR) Logger.minor(this, "Imported "+counts[0]+" blocks, "+counts[1]+" already stored");
+		return counts[0];
+	}
+
+	/** Write the blocks we have for the given keys as a binary blob, fetching them from the store
+	 * one at a time. The client cache is not used, so this doesn't reveal what the user has
+	 * fetched.
+	 * @param keys The keys to export. Keys which are not in the store are skipped.
+	 * @param os Where to write the binary blob. Will be closed.
+	 * @param callback Told about progress, may be null.
+	 * @return The number of blocks written. */
+	public long exportBlob(Iterable<Key> keys, OutputStream os, ProgressCallback callback) throws IOException {
+		CountedOutputStream counted = new CountedOutputStream(new BufferedOutputStream(os));
+		DataOutputStream dos = new DataOutputStream(counted);
+		long blocks = 0;
+		long skipped = 0;
+		try {
+			BinaryBlob.writeBinaryBlobHeader(dos);
+			for(Key key : keys) {
+				KeyBlock block = node.fetch(key, false, false, false, false, null);
+				if(block == null) {
+					skipped++;
+				} else {
+					BinaryBlob.writeKey(dos, block, key);
+					blocks++;
+				}
+				if(callback != null)
+					callback.onProgress(counted.written(), blocks, skipped);
+			}
+			BinaryBlob.writeEndBlob(dos);
+		} finally {
+			dos.close();
+		}
+		if(logMINOR) Logger.minor(this, "Exported "+blocks+" blocks, "+skipped+" not in the store");
+		return blocks;
+	}
+
+}
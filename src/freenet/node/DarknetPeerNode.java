@@ -3,17 +3,14 @@ package freenet.node;
 import static java.util.concurrent.TimeUnit.DAYS;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -21,6 +18,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
@@ -445,26 +443,28 @@ public class DarknetPeerNode extends PeerNode {
 		node.getPeers().writePeersDarknetUrgent();
 	}
 
+	/** @return The section of the peer state journal which holds this peer's extra peer data. */
+	private String extraPeerDataSection() {
+		return "extra-peer-data/" + getIdentityString();
+	}
+
+	private PeerStateJournal journal() {
+		return node.getPeers().getJournal();
+	}
+
 	public boolean readExtraPeerData() {
-		String extraPeerDataDirPath = node.getExtraPeerDataDir();
-		File extraPeerDataPeerDir = new File(extraPeerDataDirPath+File.separator+getIdentityString());
-		if(!extraPeerDataPeerDir.exists()) {
-			return false;
-		}
-		if(!extraPeerDataPeerDir.isDirectory()) {
-			Logger.error(this, "Extra peer data directory for peer not a directory: "+extraPeerDataPeerDir.getPath());
-			return false;
-		}
-		File[] extraPeerDataFiles = extraPeerDataPeerDir.listFiles();
-		if(extraPeerDataFiles == null) {
+		PeerStateJournal journal = journal();
+		if(!journal.hasSection(extraPeerDataSection()))
+			migrateExtraPeerDataDir(journal);
+		Map<String, SimpleFieldSet> records = journal.getSection(extraPeerDataSection());
+		if(records == null) {
 			return false;
 		}
 		boolean gotError = false;
-		boolean readResult = false;
-		for (File extraPeerDataFile : extraPeerDataFiles) {
+		for (Map.Entry<String, SimpleFieldSet> entry : records.entrySet()) {
 			Integer fileNumber;
 			try {
-				fileNumber = Integer.valueOf(extraPeerDataFile.getName());
+				fileNumber = Integer.valueOf(entry.getKey());
 			} catch (NumberFormatException e) {
 				gotError = true;
 				continue;
@@ -472,50 +472,59 @@ public class DarknetPeerNode extends PeerNode {
 			synchronized(extraPeerDataFileNumbers) {
 				extraPeerDataFileNumbers.add(fileNumber);
 			}
-			readResult = readExtraPeerDataFile(extraPeerDataFile, fileNumber.intValue());
-			if(!readResult) {
+			if(!readExtraPeerData(entry.getValue(), fileNumber.intValue())) {
 				gotError = true;
 			}
 		}
 		return !gotError;
 	}
 
-	public boolean rereadExtraPeerDataFile(int fileNumber) {
-		if(logMINOR)
-			Logger.minor(this, "Rereading peer data file "+fileNumber+" for "+shortToString());
-		String extraPeerDataDirPath = node.getExtraPeerDataDir();
-		File extraPeerDataPeerDir = new File(extraPeerDataDirPath+File.separator+getIdentityString());
-		if(!extraPeerDataPeerDir.exists()) {
-			Logger.error(this, "Extra peer data directory for peer does not exist: "+extraPeerDataPeerDir.getPath());
-			return false;
+	/** Copy the extra peer data files written by older versions into the journal, and delete
+	 * them once they are on disk. */
+	private void migrateExtraPeerDataDir(PeerStateJournal journal) {
+		File extraPeerDataPeerDir = new File(node.getExtraPeerDataDir(), getIdentityString());
+		File[] extraPeerDataFiles = extraPeerDataPeerDir.listFiles();
+		if(extraPeerDataFiles == null) {
+			return;
 		}
-		if(!extraPeerDataPeerDir.isDirectory()) {
-			Logger.error(this, "Extra peer data directory for peer not a directory: "+extraPeerDataPeerDir.getPath());
-			return false;
+		for (File extraPeerDataFile : extraPeerDataFiles) {
+			Integer fileNumber;
+			try {
+				fileNumber = Integer.valueOf(extraPeerDataFile.getName());
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			SimpleFieldSet fs = readExtraPeerDataFile(extraPeerDataFile);
+			if(fs != null)
+				journal.put(extraPeerDataSection(), fileNumber.toString(), fs);
 		}
-		File extraPeerDataFile = new File(extraPeerDataDirPath+File.separator+getIdentityString()+File.separator+fileNumber);
-		if(!extraPeerDataFile.exists()) {
-			Logger.error(this, "Extra peer data file for peer does not exist: "+extraPeerDataFile.getPath());
-			return false;
+		if(journal.flush()) {
+			Logger.normal(this, "Moved extra peer data from "+extraPeerDataPeerDir+" to the peer state journal");
+			FileUtil.removeAll(extraPeerDataPeerDir);
 		}
-		return readExtraPeerDataFile(extraPeerDataFile, fileNumber);
 	}
 
-	public boolean readExtraPeerDataFile(File extraPeerDataFile, int fileNumber) {
-		if(logMINOR) Logger.minor(this, "Reading "+extraPeerDataFile+" : "+fileNumber+" for "+shortToString());
-		boolean gotError = false;
-		if(!extraPeerDataFile.exists()) {
-			if(logMINOR)
-				Logger.minor(this, "Does not exist");
+	public boolean rereadExtraPeerDataFile(int fileNumber) {
+		if(logMINOR)
+			Logger.minor(this, "Rereading peer data file "+fileNumber+" for "+shortToString());
+		SimpleFieldSet fs = journal().get(extraPeerDataSection(), Integer.toString(fileNumber));
+		if(fs == null) {
+			Logger.error(this, "Extra peer data "+fileNumber+" for peer does not exist: "+shortToString());
 			return false;
 		}
-		Logger.normal(this, "extraPeerDataFile: "+extraPeerDataFile.getPath());
+		return readExtraPeerData(fs, fileNumber);
+	}
+
+	/** Read an extra peer data file written by an older version.
+	 * @return The contents, or null if the file is unreadable, in which case it is deleted. */
+	private SimpleFieldSet readExtraPeerDataFile(File extraPeerDataFile) {
+		if(logMINOR) Logger.minor(this, "Reading "+extraPeerDataFile+" for "+shortToString());
 		FileInputStream fis;
 		try {
 			fis = new FileInputStream(extraPeerDataFile);
 		} catch (FileNotFoundException e1) {
 			Logger.normal(this, "Extra peer data file not found: "+extraPeerDataFile.getPath());
-			return false;
+			return null;
 		}
 		InputStreamReader isr = new InputStreamReader(fis, StandardCharsets.UTF_8);
 		BufferedReader br = new BufferedReader(isr);
@@ -536,29 +545,27 @@ public class DarknetPeerNode extends PeerNode {
 		}
 		if(fs == null) {
 			Logger.normal(this, "Deleting corrupt (too short?) file: "+extraPeerDataFile);
-			deleteExtraPeerDataFile(fileNumber);
-			return true;
+			extraPeerDataFile.delete();
 		}
-		boolean parseResult = false;
+		return fs;
+	}
+
+	private boolean readExtraPeerData(SimpleFieldSet fs, int fileNumber) {
 		try {
-			parseResult = parseExtraPeerData(fs, extraPeerDataFile, fileNumber);
-			if(!parseResult) {
-				gotError = true;
-			}
+			return parseExtraPeerData(fs, fileNumber);
 		} catch (FSParseException e2) {
 			Logger.error(this, "Could not parse extra peer data: "+e2+ '\n' +fs.toString(),e2);
-			gotError = true;
+			return false;
 		}
-		return !gotError;
 	}
 
-	private boolean parseExtraPeerData(SimpleFieldSet fs, File extraPeerDataFile, int fileNumber) throws FSParseException {
+	private boolean parseExtraPeerData(SimpleFieldSet fs, int fileNumber) throws FSParseException {
 		String extraPeerDataTypeString = fs.get("extraPeerDataType");
 		int extraPeerDataType = -1;
 		try {
 			extraPeerDataType = Integer.parseInt(extraPeerDataTypeString);
 		} catch (NumberFormatException e) {
-			Logger.error(this, "NumberFormatException parsing extraPeerDataType ("+extraPeerDataTypeString+") in file "+extraPeerDataFile.getPath());
+			Logger.error(this, "NumberFormatException parsing extraPeerDataType ("+extraPeerDataTypeString+") in extra peer data "+fileNumber);
 			return false;
 		}
 		if(extraPeerDataType == Node.EXTRA_PEER_DATA_TYPE_N2NTM) {
@@ -570,7 +577,7 @@ public class DarknetPeerNode extends PeerNode {
 			try {
 				peerNoteType = Integer.parseInt(peerNoteTypeString);
 			} catch (NumberFormatException e) {
-				Logger.error(this, "NumberFormatException parsing peerNoteType ("+peerNoteTypeString+") in file "+extraPeerDataFile.getPath());
+				Logger.error(this, "NumberFormatException parsing peerNoteType ("+peerNoteTypeString+") in extra peer data "+fileNumber);
 				return false;
 			}
 			if(peerNoteType == Node.PEER_NOTE_TYPE_PRIVATE_DARKNET_COMMENT) {
@@ -585,7 +592,7 @@ public class DarknetPeerNode extends PeerNode {
 				}
 				return true;
 			}
-			Logger.error(this, "Read unknown peer note type '"+peerNoteType+"' from file "+extraPeerDataFile.getPath());
+			Logger.error(this, "Read unknown peer note type '"+peerNoteType+"' from extra peer data "+fileNumber);
 			return false;
 		} else if(extraPeerDataType == Node.EXTRA_PEER_DATA_TYPE_QUEUED_TO_SEND_N2NM) {
 			int type = fs.getInt("n2nType");
@@ -625,25 +632,16 @@ public class DarknetPeerNode extends PeerNode {
 			handleFproxyDownloadFeed(fs, fileNumber);
 			return true;
 		}
-		Logger.error(this, "Read unknown extra peer data type '"+extraPeerDataType+"' from file "+extraPeerDataFile.getPath());
+		Logger.error(this, "Read unknown extra peer data type '"+extraPeerDataType+"' from extra peer data "+fileNumber);
 		return false;
 	}
 
+	/** Add an item of extra peer data. Written to disk with the next batch of changes to the
+	 * peer state journal.
+	 * @return The number of the item. */
 	public int writeNewExtraPeerDataFile(SimpleFieldSet fs, int extraPeerDataType) {
-		String extraPeerDataDirPath = node.getExtraPeerDataDir();
 		if(extraPeerDataType > 0)
 			fs.putOverwrite("extraPeerDataType", Integer.toString(extraPeerDataType));
-		File extraPeerDataPeerDir = new File(extraPeerDataDirPath+File.separator+getIdentityString());
-		if(!extraPeerDataPeerDir.exists()) {
-			if(!extraPeerDataPeerDir.mkdir()) {
-				Logger.error(this, "Extra peer data directory for peer could not be created: "+extraPeerDataPeerDir.getPath());
-				return -1;
-			}
-		}
-		if(!extraPeerDataPeerDir.isDirectory()) {
-			Logger.error(this, "Extra peer data directory for peer not a directory: "+extraPeerDataPeerDir.getPath());
-			return -1;
-		}
 		Integer[] localFileNumbers;
 		int nextFileNumber = 0;
 		synchronized(extraPeerDataFileNumbers) {
@@ -658,127 +656,37 @@ public class DarknetPeerNode extends PeerNode {
 			}
 			extraPeerDataFileNumbers.add(nextFileNumber);
 		}
-		FileOutputStream fos;
-		File extraPeerDataFile = new File(extraPeerDataPeerDir.getPath()+File.separator+nextFileNumber);
-		if(extraPeerDataFile.exists()) {
-			Logger.error(this, "Extra peer data file already exists: "+extraPeerDataFile.getPath());
-			return -1;
-		}
-		String f = extraPeerDataFile.getPath();
-		try {
-			fos = new FileOutputStream(f);
-		} catch (FileNotFoundException e2) {
-			Logger.error(this, "Cannot write extra peer data file to disk: Cannot create "
-					+ f + " - " + e2, e2);
-			return -1;
-		}
-		OutputStreamWriter w = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
-		BufferedWriter bw = new BufferedWriter(w);
-		try {
-			fs.writeTo(bw);
-			bw.close();
-		} catch (IOException e) {
-			try {
-				fos.close();
-			} catch (IOException e1) {
-				Logger.error(this, "Cannot close extra peer data file: "+e, e);
-			}
-			Logger.error(this, "Cannot write file: " + e, e);
-			return -1;
-		}
+		journal().put(extraPeerDataSection(), Integer.toString(nextFileNumber), fs);
 		return nextFileNumber;
 	}
 
 	public void deleteExtraPeerDataFile(int fileNumber) {
-		String extraPeerDataDirPath = node.getExtraPeerDataDir();
-		File extraPeerDataPeerDir = new File(extraPeerDataDirPath, getIdentityString());
-		if(!extraPeerDataPeerDir.exists()) {
-			Logger.error(this, "Extra peer data directory for peer does not exist: "+extraPeerDataPeerDir.getPath());
-			return;
-		}
-		if(!extraPeerDataPeerDir.isDirectory()) {
-			Logger.error(this, "Extra peer data directory for peer not a directory: "+extraPeerDataPeerDir.getPath());
-			return;
-		}
-		File extraPeerDataFile = new File(extraPeerDataPeerDir, Integer.toString(fileNumber));
-		if(!extraPeerDataFile.exists()) {
-			Logger.error(this, "Extra peer data file for peer does not exist: "+extraPeerDataFile.getPath());
-			return;
-		}
 		synchronized(extraPeerDataFileNumbers) {
-			extraPeerDataFileNumbers.remove(fileNumber);
-		}
-		if(!extraPeerDataFile.delete()) {
-			if(extraPeerDataFile.exists()) {
-				Logger.error(this, "Cannot delete file "+extraPeerDataFile+" after sending message to "+getPeer()+" - it may be resent on resting the node");
-			} else {
-				Logger.normal(this, "File does not exist when deleting: "+extraPeerDataFile+" after sending message to "+getPeer());
+			if(!extraPeerDataFileNumbers.remove(fileNumber)) {
+				Logger.error(this, "Extra peer data "+fileNumber+" for peer does not exist: "+shortToString());
+				return;
 			}
 		}
+		journal().remove(extraPeerDataSection(), Integer.toString(fileNumber));
 	}
 
 	public void removeExtraPeerDataDir() {
-		String extraPeerDataDirPath = node.getExtraPeerDataDir();
-		File extraPeerDataPeerDir = new File(extraPeerDataDirPath+File.separator+getIdentityString());
-		if(!extraPeerDataPeerDir.exists()) {
-			Logger.error(this, "Extra peer data directory for peer does not exist: "+extraPeerDataPeerDir.getPath());
-			return;
-		}
-		if(!extraPeerDataPeerDir.isDirectory()) {
-			Logger.error(this, "Extra peer data directory for peer not a directory: "+extraPeerDataPeerDir.getPath());
-			return;
-		}
-		Integer[] localFileNumbers;
 		synchronized(extraPeerDataFileNumbers) {
-			localFileNumbers = extraPeerDataFileNumbers.toArray(new Integer[extraPeerDataFileNumbers.size()]);
+			extraPeerDataFileNumbers.clear();
 		}
-		for (Integer localFileNumber : localFileNumbers) {
-			deleteExtraPeerDataFile(localFileNumber.intValue());
-		}
-		extraPeerDataPeerDir.delete();
+		journal().deleteSection(extraPeerDataSection());
 	}
 
 	public boolean rewriteExtraPeerDataFile(SimpleFieldSet fs, int extraPeerDataType, int fileNumber) {
-		String extraPeerDataDirPath = node.getExtraPeerDataDir();
 		if(extraPeerDataType > 0)
 			fs.putOverwrite("extraPeerDataType", Integer.toString(extraPeerDataType));
-		File extraPeerDataPeerDir = new File(extraPeerDataDirPath+File.separator+getIdentityString());
-		if(!extraPeerDataPeerDir.exists()) {
-			Logger.error(this, "Extra peer data directory for peer does not exist: "+extraPeerDataPeerDir.getPath());
-			return false;
-		}
-		if(!extraPeerDataPeerDir.isDirectory()) {
-			Logger.error(this, "Extra peer data directory for peer not a directory: "+extraPeerDataPeerDir.getPath());
-			return false;
-		}
-		File extraPeerDataFile = new File(extraPeerDataDirPath+File.separator+getIdentityString()+File.separator+fileNumber);
-		if(!extraPeerDataFile.exists()) {
-			Logger.error(this, "Extra peer data file for peer does not exist: "+extraPeerDataFile.getPath());
-			return false;
-		}
-		String f = extraPeerDataFile.getPath();
-		FileOutputStream fos;
-		try {
-			fos = new FileOutputStream(f);
-		} catch (FileNotFoundException e2) {
-			Logger.error(this, "Cannot write extra peer data file to disk: Cannot open "
-					+ f + " - " + e2, e2);
-			return false;
-		}
-		OutputStreamWriter w = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
-		BufferedWriter bw = new BufferedWriter(w);
-		try {
-			fs.writeTo(bw);
-			bw.close();
-		} catch (IOException e) {
-			try {
-				fos.close();
-			} catch (IOException e1) {
-				Logger.error(this, "Cannot close extra peer data file: "+e, e);
+		synchronized(extraPeerDataFileNumbers) {
+			if(!extraPeerDataFileNumbers.contains(fileNumber)) {
+				Logger.error(this, "Extra peer data "+fileNumber+" for peer does not exist: "+shortToString());
+				return false;
 			}
-			Logger.error(this, "Cannot write file: " + e, e);
-			return false;
 		}
+		journal().put(extraPeerDataSection(), Integer.toString(fileNumber), fs);
 		return true;
 	}
 
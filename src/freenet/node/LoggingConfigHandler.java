@@ -54,6 +54,8 @@ public class LoggingConfigHandler {
 	}
 
 	protected static final String LOG_PREFIX = "freenet";
+	/** Longer lines are truncated when logging through a ring buffer */
+	private static final int MAX_RING_LINE_LENGTH = 65536;
 	private final SubConfig config;
 	private FileLoggerHook fileLoggerHook;
 	private File logDir;
@@ -62,6 +64,8 @@ public class LoggingConfigHandler {
 	private long maxCachedLogBytes;
 	private int maxCachedLogLines;
 	private long maxBacklogNotBusy;
+	private boolean ringBuffer;
+	private boolean jsonLines;
 	private final Executor executor;
 	
 	public LoggingConfigHandler(SubConfig loggingConfig, Executor executor) throws InvalidConfigValueException {
@@ -256,6 +260,40 @@ public class LoggingConfigHandler {
 		}, false);
     	
 		maxBacklogNotBusy = config.getLong("maxBacklogNotBusy");
+
+		config.register("ringBuffer", false, 9, true, false, "LogConfigHandler.ringBuffer",
+				"LogConfigHandler.ringBufferLong",
+				new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return ringBuffer;
+					}
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val == ringBuffer) return;
+						ringBuffer = val;
+						throw new NodeNeedRestartException("logger.ringBuffer");
+					}
+				});
+
+		ringBuffer = config.getBoolean("ringBuffer");
+
+		config.register("jsonLines", false, 10, true, false, "LogConfigHandler.jsonLines",
+				"LogConfigHandler.jsonLinesLong",
+				new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return jsonLines;
+					}
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException {
+						if(val == jsonLines) return;
+						jsonLines = val;
+						if(fileLoggerHook != null) fileLoggerHook.setJSONLines(val);
+					}
+				});
+
+		jsonLines = config.getBoolean("jsonLines");
 		
 		if (loggingEnabled) enableLogger();
 		config.finishedInitialization();
@@ -314,6 +352,15 @@ public class LoggingConfigHandler {
 			}
 			hook.setMaxListBytes(maxCachedLogBytes);
 			hook.setMaxBacklogNotBusy(maxBacklogNotBusy);
+			if(ringBuffer) {
+				// About the same memory as the list would use, allocated up front. Slots grow
+				// if lines are longer.
+				int lines = Math.max(maxCachedLogLines, 1);
+				int slotSize = (int) Math.max(128, Math.min(4096, maxCachedLogBytes / lines));
+				lines = (int) Math.max(1, Math.min(lines, maxCachedLogBytes / slotSize));
+				hook.useRingBuffer(lines, slotSize, MAX_RING_LINE_LENGTH);
+			}
+			hook.setJSONLines(jsonLines);
 			fileLoggerHook = hook;
 			Logger.globalAddHook(hook);
 			hook.start();
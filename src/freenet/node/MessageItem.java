@@ -24,6 +24,7 @@ public class MessageItem {
 	final boolean formatted;
 	final ByteCounter ctrCallback;
 	private final short priority;
+	final BandwidthClass bandwidthClass;
 	private long cachedID;
 	private boolean hasCachedID;
 	final boolean sendLoadRT;
@@ -40,6 +41,7 @@ public class MessageItem {
 			priority = overridePriority;
 		else
 			priority = msg2.getPriority();
+		this.bandwidthClass = BandwidthClass.classify(priority, ctr);
 		this.sendLoadRT = msg2.needsLoadRT();
 		this.sendLoadBulk = msg2.needsLoadBulk();
 		buf = msg.encodeToPacket();
@@ -66,6 +68,7 @@ public class MessageItem {
 		this.ctrCallback = ctr;
 		this.submitted = System.currentTimeMillis();
 		this.priority = priority;
+		this.bandwidthClass = BandwidthClass.classify(priority, ctr);
 		this.sendLoadRT = sendLoadRT;
 		this.sendLoadBulk = sendLoadBulk;
 	}
@@ -100,6 +103,10 @@ public class MessageItem {
 		return priority;
 	}
 
+	public BandwidthClass getBandwidthClass() {
+		return bandwidthClass;
+	}
+
 	@Override
 	public String toString() {
 		return super.toString()+":formatted="+formatted+",msg="+msg;
@@ -91,15 +91,17 @@ public class MessageWrapper {
 			resends++;
 			sent.remove(start, end);
 
-			for(int[] range : acks) {
-				if(range[1] < start) continue;
-				if(range[0] > end) continue;
+			for(int i = 0; i < acks.rangeCount(); i++) {
+				int rangeStart = acks.rangeStart(i);
+				int rangeEnd = acks.rangeEnd(i);
+				if(rangeEnd < start) continue;
+				if(rangeStart > end) continue;
 
-				int toAddStart = Math.max(start, range[0]);
-				int toAddEnd = Math.min(end, range[1]);
+				int toAddStart = Math.max(start, rangeStart);
+				int toAddEnd = Math.min(end, rangeEnd);
 				if(toAddStart == toAddEnd || toAddStart > toAddEnd) continue;
 				Logger.warning(this, "Lost range (" + start + "->" + end + ") is overlapped by acked range ("
-						+ range[0] + "->" + range[1] + "). Adding " + toAddStart + "->"
+						+ rangeStart + "->" + rangeEnd + "). Adding " + toAddStart + "->"
 						+ toAddEnd + " to sent");
 				sent.add(toAddStart, toAddEnd);
 				size -= (toAddEnd - toAddStart + 1);
@@ -167,11 +169,12 @@ public class MessageWrapper {
 		int dataLength;
 		byte[] fragmentData;
 		synchronized(sent) {
-			for(int[] range : sent) {
-				if(range[0] == start) {
-					start = range[1] + 1;
-				} else if (range[0] - start > 0) {
-					end = range[0] - 1;
+			for(int i = 0; i < sent.rangeCount(); i++) {
+				int rangeStart = sent.rangeStart(i);
+				if(rangeStart == start) {
+					start = sent.rangeEnd(i) + 1;
+				} else if (rangeStart - start > 0) {
+					end = rangeStart - 1;
 				}
 			}
 
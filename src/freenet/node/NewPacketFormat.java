@@ -813,7 +813,7 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 								// We might in future split it across multiple threads but it'd be best to keep the same peer on the same thread.
 								Logger.error(this, "No availiable message ID, requeuing and sending packet (we already checked didn't we???)");
 								if(!wasGeneratedPing) {
-									messageQueue.pushfrontPrioritizedMessageItem(item);
+									messageQueue.returnMessageItem(item);
 									// No point adding to queue if it's just a ping:
 									//  We will try again next time.
 									//  But odds are the connection is broken and the other side isn't responding...
@@ -826,7 +826,7 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 							MessageWrapper wrapper = new MessageWrapper(item, messageID);
 							MessageFragment frag = wrapper.getMessageFragment(maxPacketSize - packet.getLength());
 							if(frag == null) {
-								messageQueue.pushfrontPrioritizedMessageItem(item);
+								messageQueue.returnMessageItem(item);
 								break prio;
 							}
 							packet.addMessageFragment(frag);
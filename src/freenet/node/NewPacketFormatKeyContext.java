@@ -1,9 +1,9 @@
 package freenet.node;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.TreeMap;
 
 import freenet.io.xfer.PacketThrottle;
 import freenet.node.NewPacketFormat.SentPacket;
@@ -29,7 +29,13 @@ public class NewPacketFormatKeyContext {
 	public int watchListPointer = 0;
 	public int watchListOffset = 0;
 	
-	private final TreeMap<Integer, Long> acks = new TreeMap<Integer, Long>();
+	/** Sequence numbers we need to ack, in ascending order, and when each was queued. Parallel
+	 * primitive arrays so queueing an ack doesn't allocate. Protected by ackLock. */
+	private int[] ackSeqNums = new int[INITIAL_ACKS];
+	private long[] ackTimes = new long[INITIAL_ACKS];
+	private int ackCount;
+	private final Object ackLock = new Object();
+	private static final int INITIAL_ACKS = 32;
 	private final HashMap<Integer, SentPacket> sentPackets = new HashMap<Integer, SentPacket>();
 	/** Keep this many sent times for lost packets, so we can compute an accurate round trip time if
 	 * they are acked after we had decided they were lost. */
@@ -146,14 +152,29 @@ public class NewPacketFormatKeyContext {
 	 * @return -1 If the ack was already queued, or the total number queued.
 	 */
 	public int queueAck(int seqno) {
-		synchronized(acks) {
-			if(!acks.containsKey(seqno)) {
-				acks.put(seqno, System.currentTimeMillis());
-				return acks.size();
-			} else return -1;
+		synchronized(ackLock) {
+			if(!insertAck(seqno, System.currentTimeMillis())) return -1;
+			return ackCount;
 		}
 	}
 
+	/** @return False if the ack was already queued. */
+	private boolean insertAck(int seqno, long time) {
+		int i = Arrays.binarySearch(ackSeqNums, 0, ackCount, seqno);
+		if(i >= 0) return false;
+		i = -(i + 1);
+		if(ackCount == ackSeqNums.length) {
+			ackSeqNums = Arrays.copyOf(ackSeqNums, ackCount * 2);
+			ackTimes = Arrays.copyOf(ackTimes, ackCount * 2);
+		}
+		System.arraycopy(ackSeqNums, i, ackSeqNums, i + 1, ackCount - i);
+		System.arraycopy(ackTimes, i, ackTimes, i + 1, ackCount - i);
+		ackSeqNums[i] = seqno;
+		ackTimes[i] = time;
+		ackCount++;
+		return true;
+	}
+
 	public void sent(int sequenceNumber, int length) {
 		synchronized(sentPackets) {
 			SentPacket sentPacket = sentPackets.get(sequenceNumber);
@@ -164,16 +185,19 @@ public class NewPacketFormatKeyContext {
 	class AddedAcks {
 		/** Are there any urgent acks? */
 		final boolean anyUrgentAcks;
-		private final HashMap<Integer, Long> moved;
+		private final int[] movedSeqNums;
+		private final long[] movedTimes;
 		
-		public AddedAcks(boolean mustSend, HashMap<Integer, Long> moved) {
+		public AddedAcks(boolean mustSend, int[] movedSeqNums, long[] movedTimes) {
 			this.anyUrgentAcks = mustSend;
-			this.moved = moved;
+			this.movedSeqNums = movedSeqNums;
+			this.movedTimes = movedTimes;
 		}
 
 		public void abort() {
-			synchronized(acks) {
-				acks.putAll(moved);
+			synchronized(ackLock) {
+				for(int i = 0; i < movedSeqNums.length; i++)
+					insertAck(movedSeqNums[i], movedTimes[i]);
 			}
 		}
 	}
@@ -183,33 +207,31 @@ public class NewPacketFormatKeyContext {
 	 * even if there isn't anything else in it. */
 	public AddedAcks addAcks(NPFPacket packet, int maxPacketSize, long now) {
 		boolean mustSend = false;
-		HashMap<Integer, Long> moved = null;
 		int numAcks = 0;
-		synchronized(acks) {
-			Iterator<Map.Entry<Integer, Long>> it = acks.entrySet().iterator();
-			while (it.hasNext() && packet.getLength() < maxPacketSize) {
-				Map.Entry<Integer, Long> entry = it.next();
-				int ack = entry.getKey();
+		int[] movedSeqNums;
+		long[] movedTimes;
+		synchronized(ackLock) {
+			while (numAcks < ackCount && packet.getLength() < maxPacketSize) {
+				int ack = ackSeqNums[numAcks];
 				// All acks must be sent within 200ms.
 				if(logDEBUG) Logger.debug(this, "Trying to ack "+ack);
 				if(!packet.addAck(ack, maxPacketSize)) {
 					if(logDEBUG) Logger.debug(this, "Can't add ack "+ack);
 					break;
 				}
-				if(entry.getValue() + MAX_ACK_DELAY < now)
+				if(ackTimes[numAcks] + MAX_ACK_DELAY < now)
 					mustSend = true;
-				if(moved == null) {
-					// FIXME some more memory efficient representation, since this will normally be very small?
-					moved = new HashMap<Integer, Long>();
-				}
-				moved.put(ack, entry.getValue());
 				++numAcks;
-				it.remove();
 			}
+			if(numAcks == 0)
+				return null;
+			movedSeqNums = Arrays.copyOf(ackSeqNums, numAcks);
+			movedTimes = Arrays.copyOf(ackTimes, numAcks);
+			ackCount -= numAcks;
+			System.arraycopy(ackSeqNums, numAcks, ackSeqNums, 0, ackCount);
+			System.arraycopy(ackTimes, numAcks, ackTimes, 0, ackCount);
 		}
-		if(numAcks == 0)
-			return null;
-		return new AddedAcks(mustSend, moved);
+		return new AddedAcks(mustSend, movedSeqNums, movedTimes);
 	}
 
 	public int countSentPackets() {
@@ -299,9 +321,9 @@ public class NewPacketFormatKeyContext {
 
 	public long timeCheckForAcks() {
 		long ret = Long.MAX_VALUE;
-		synchronized(acks) {
-			for(Long l : acks.values()) {
-				long timeout = l + MAX_ACK_DELAY;
+		synchronized(ackLock) {
+			for(int i = 0; i < ackCount; i++) {
+				long timeout = ackTimes[i] + MAX_ACK_DELAY;
 				if(ret > timeout) ret = timeout;
 			}
 		}
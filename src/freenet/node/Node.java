@@ -29,6 +29,7 @@ import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -37,6 +38,7 @@ import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import freenet.config.*;
 import freenet.node.diagnostics.*;
@@ -798,6 +800,8 @@ public class Node implements TimeSkewDetectorCallback {
 	/* It’s not the field that is deprecated but accessing it directly is. */
 	public final TokenBucket outputThrottle;
 
+	private final BandwidthManager bandwidthManager;
+
 	/**
 	 * @deprecated Use {@link #isThrottleLocalData()} instead of accessing this directly.
 	 */
@@ -920,6 +924,8 @@ public class Node implements TimeSkewDetectorCallback {
 	@Deprecated
 	/* It’s not the field that is deprecated but accessing it directly is. */
 	public final long startupTime;
+	/** How long each part of startup took */
+	private final StartupTimer startupTimer;
 
 	private SimpleToadletServer toadlets;
 
@@ -1211,6 +1217,7 @@ public class Node implements TimeSkewDetectorCallback {
 			logConfigHandler=lc;
 		getPubKey = new NodeGetPubkey(this);
 		startupTime = System.currentTimeMillis();
+		startupTimer = new StartupTimer(startupTime);
 		SimpleFieldSet oldConfig = config.getSimpleFieldSet();
 		// Setup node-specific configuration
 		final SubConfig nodeConfig = config.createSubConfig("node");
@@ -1358,6 +1365,7 @@ public class Node implements TimeSkewDetectorCallback {
 			this.fastWeakRandom = new MersenneTwister(buffer);
 		}else
 			this.fastWeakRandom = weakRandom;
+		startupTimer.phase("Configuration and random number generator");
 
 		nodeNameUserAlert = new MeaningfulNodeNameUserAlert(this);
 		this.config = config;
@@ -1458,6 +1466,8 @@ public class Node implements TimeSkewDetectorCallback {
             }
         }
 
+		startupTimer.phase("Master keys");
+
 		// Boot ID
 		bootID = random.nextLong();
 		// Fixed length file containing boot ID. Accessed with random access file. So hopefully it will always be
@@ -1727,6 +1737,7 @@ public class Node implements TimeSkewDetectorCallback {
 		sortOrder += NodeCryptoConfig.OPTION_COUNT;
 
 		darknetCrypto = new NodeCrypto(this, false, darknetConfig, startupTime, enableARKs);
+		startupTimer.phase("Darknet crypto");
 
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
@@ -1768,6 +1779,7 @@ public class Node implements TimeSkewDetectorCallback {
 				} catch (IllegalArgumentException e) {
 					throw new InvalidConfigValueException(e);
 				}
+				bandwidthManager.setOutputBandwidthLimit(obwLimit);
 				synchronized(Node.this) {
 					outputBandwidthLimit = obwLimit;
 				}
@@ -1801,6 +1813,10 @@ public class Node implements TimeSkewDetectorCallback {
 			throw new NodeInitException(NodeInitException.EXIT_BAD_BWLIMIT, e.getMessage());
 		}
 
+		// Share the output limit between the different kinds of traffic.
+		bandwidthManager = new BandwidthManager(this, obwLimit);
+		sortOrder = bandwidthManager.registerConfigs(nodeConfig, sortOrder);
+
 		nodeConfig.register("inputBandwidthLimit", "-1", sortOrder++, false, true, "Node.inBWLimit", "Node.inBWLimitLong",	new IntCallback() {
 			@Override
 			public Integer get() {
@@ -1968,6 +1984,8 @@ public class Node implements TimeSkewDetectorCallback {
 
 		nodeStats = new NodeStats(this, sortOrder, config.createSubConfig("node.load"), obwLimit, ibwLimit, lastVersion);
 
+		startupTimer.phase("Peers and load management");
+
 		// clientCore needs new load management and other settings from stats.
 		clientCore = new NodeClientCore(this, config, nodeConfig, installConfig, getDarknetPortNumber(), sortOrder, oldConfig, fproxyConfig, toadlets, databaseKey, persistentSecret);
 		toadlets.setCore(clientCore);
@@ -1979,6 +1997,8 @@ public class Node implements TimeSkewDetectorCallback {
 		if(showFriendsVisibilityAlert)
 			registerFriendsVisibilityAlert();
 		
+		startupTimer.phase("Client layer");
+
 		// Node updater support
 
 		System.out.println("Initializing Node Updater");
@@ -2160,6 +2180,8 @@ public class Node implements TimeSkewDetectorCallback {
 			throw new NodeInitException(NodeInitException.EXIT_BAD_DIR, msg);
 		}
 
+		startupTimer.phase("Node updater and opennet");
+
 		// Name
 		nodeConfig.register("name", myName, sortOrder++, false, true, "Node.nodeName", "Node.nodeNameLong",
 						new NodeNameCallback());
@@ -2510,6 +2532,7 @@ public class Node implements TimeSkewDetectorCallback {
 		} else {
 			initRAMFS();
 		}
+		startupTimer.phase("Datastore");
 
 		if(databaseAwaitingPassword) createPasswordUserAlert();
 
@@ -2580,6 +2603,7 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 		if(!startedClientCache)
 			initRAMClientCacheFS();
+		startupTimer.phase("Client cache");
 		
 		if(!clientCore.loadedDatabase() && databaseKey != null)  {
 			try {
@@ -2838,6 +2862,7 @@ public class Node implements TimeSkewDetectorCallback {
 		Logger.normal(this, "Initializing Plugin Manager");
 		System.out.println("Initializing Plugin Manager");
 		pluginManager = new PluginManager(this, lastVersion);
+		startupTimer.phase("Plugin manager");
 
 		shutdownHook.addEarlyJob(new NativeThread("Shutdown plugins", NativeThread.HIGH_PRIORITY, true) {
 			@Override
@@ -2880,10 +2905,11 @@ public class Node implements TimeSkewDetectorCallback {
 			toadlets.removeStartupToadlet();
 		}
 
+		startupTimer.phase("Other setup");
 		Logger.normal(this, "Node constructor completed");
 		System.out.println("Node constructor completed");
 
-		new BandwidthManager(this).start();
+		bandwidthManager.start();
 
 		nodeDiagnostics = new DefaultNodeDiagnostics(this.nodeStats, this.ticker);
 	}
@@ -3150,29 +3176,32 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void initSaltHashFS(final String suffix, boolean dontResizeOnStart, byte[] masterKey) throws NodeInitException {
 		try {
+			// Open the stores in parallel.
+			StartupExecutor startup = new StartupExecutor(executor, startupTimer);
 			final CHKStore chkDatastore = new CHKStore();
-			final FreenetStore<CHKBlock> chkDataFS = makeStore("CHK", true, chkDatastore, dontResizeOnStart, masterKey);
+			StoreLoader<CHKBlock> chkData = new StoreLoader<CHKBlock>(startup, "CHK", true, chkDatastore, dontResizeOnStart, masterKey);
 			final CHKStore chkDatacache = new CHKStore();
-			final FreenetStore<CHKBlock> chkCacheFS = makeStore("CHK", false, chkDatacache, dontResizeOnStart, masterKey);
-			((SaltedHashFreenetStore<CHKBlock>) chkCacheFS.getUnderlyingStore()).setAltStore(((SaltedHashFreenetStore<CHKBlock>) chkDataFS.getUnderlyingStore()));
+			StoreLoader<CHKBlock> chkCache = new StoreLoader<CHKBlock>(startup, "CHK", false, chkDatacache, dontResizeOnStart, masterKey);
+			chkCache.startWithAltStore(startup, chkData);
 			final PubkeyStore pubKeyDatastore = new PubkeyStore();
-			final FreenetStore<DSAPublicKey> pubkeyDataFS = makeStore("PUBKEY", true, pubKeyDatastore, dontResizeOnStart, masterKey);
+			StoreLoader<DSAPublicKey> pubkeyData = new StoreLoader<DSAPublicKey>(startup, "PUBKEY", true, pubKeyDatastore, dontResizeOnStart, masterKey);
 			final PubkeyStore pubKeyDatacache = new PubkeyStore();
-			final FreenetStore<DSAPublicKey> pubkeyCacheFS = makeStore("PUBKEY", false, pubKeyDatacache, dontResizeOnStart, masterKey);
-			((SaltedHashFreenetStore<DSAPublicKey>) pubkeyCacheFS.getUnderlyingStore()).setAltStore(((SaltedHashFreenetStore<DSAPublicKey>) pubkeyDataFS.getUnderlyingStore()));
+			StoreLoader<DSAPublicKey> pubkeyCache = new StoreLoader<DSAPublicKey>(startup, "PUBKEY", false, pubKeyDatacache, dontResizeOnStart, masterKey);
+			pubkeyCache.startWithAltStore(startup, pubkeyData);
 			final SSKStore sskDatastore = new SSKStore(getPubKey);
-			final FreenetStore<SSKBlock> sskDataFS = makeStore("SSK", true, sskDatastore, dontResizeOnStart, masterKey);
+			StoreLoader<SSKBlock> sskData = new StoreLoader<SSKBlock>(startup, "SSK", true, sskDatastore, dontResizeOnStart, masterKey);
 			final SSKStore sskDatacache = new SSKStore(getPubKey);
-			final FreenetStore<SSKBlock> sskCacheFS = makeStore("SSK", false, sskDatacache, dontResizeOnStart, masterKey);
-			((SaltedHashFreenetStore<SSKBlock>) sskCacheFS.getUnderlyingStore()).setAltStore(((SaltedHashFreenetStore<SSKBlock>) sskDataFS.getUnderlyingStore()));
-			
-			boolean delay =
-				chkDataFS.start(ticker, false) |
-				chkCacheFS.start(ticker, false) |
-				pubkeyDataFS.start(ticker, false) |
-				pubkeyCacheFS.start(ticker, false) |
-				sskDataFS.start(ticker, false) |
-				sskCacheFS.start(ticker, false);
+			StoreLoader<SSKBlock> sskCache = new StoreLoader<SSKBlock>(startup, "SSK", false, sskDatacache, dontResizeOnStart, masterKey);
+			sskCache.startWithAltStore(startup, sskData);
+			waitForStores(startup);
+			final FreenetStore<CHKBlock> chkDataFS = chkData.fs;
+			final FreenetStore<CHKBlock> chkCacheFS = chkCache.fs;
+			final FreenetStore<DSAPublicKey> pubkeyDataFS = pubkeyData.fs;
+			final FreenetStore<DSAPublicKey> pubkeyCacheFS = pubkeyCache.fs;
+			final FreenetStore<SSKBlock> sskDataFS = sskData.fs;
+			final FreenetStore<SSKBlock> sskCacheFS = sskCache.fs;
+
+			boolean delay = chkData.delay | chkCache.delay | pubkeyData.delay | pubkeyCache.delay | sskData.delay | sskCache.delay;
 
 			if(delay) {
 
@@ -3255,17 +3284,22 @@ public class Node implements TimeSkewDetectorCallback {
 	private void initSaltHashClientCacheFS(final String suffix, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws NodeInitException {
 
 		try {
+			StartupExecutor startup = new StartupExecutor(executor, startupTimer);
 			final CHKStore chkClientcache = new CHKStore();
-			final FreenetStore<CHKBlock> chkDataFS = makeClientcache("CHK", true, chkClientcache, dontResizeOnStart, clientCacheMasterKey);
+			StoreLoader<CHKBlock> chkData = new StoreLoader<CHKBlock>(startup, "CHK", "clientcache", maxClientCacheKeys, chkClientcache, dontResizeOnStart, clientCacheMasterKey);
+			chkData.start(startup);
 			final PubkeyStore pubKeyClientcache = new PubkeyStore();
-			final FreenetStore<DSAPublicKey> pubkeyDataFS = makeClientcache("PUBKEY", true, pubKeyClientcache, dontResizeOnStart, clientCacheMasterKey);
+			StoreLoader<DSAPublicKey> pubkeyData = new StoreLoader<DSAPublicKey>(startup, "PUBKEY", "clientcache", maxClientCacheKeys, pubKeyClientcache, dontResizeOnStart, clientCacheMasterKey);
+			pubkeyData.start(startup);
 			final SSKStore sskClientcache = new SSKStore(getPubKey);
-			final FreenetStore<SSKBlock> sskDataFS = makeClientcache("SSK", true, sskClientcache, dontResizeOnStart, clientCacheMasterKey);
+			StoreLoader<SSKBlock> sskData = new StoreLoader<SSKBlock>(startup, "SSK", "clientcache", maxClientCacheKeys, sskClientcache, dontResizeOnStart, clientCacheMasterKey);
+			sskData.start(startup);
+			waitForStores(startup);
+			final FreenetStore<CHKBlock> chkDataFS = chkData.fs;
+			final FreenetStore<DSAPublicKey> pubkeyDataFS = pubkeyData.fs;
+			final FreenetStore<SSKBlock> sskDataFS = sskData.fs;
 
-			boolean delay =
-				chkDataFS.start(ticker, false) |
-				pubkeyDataFS.start(ticker, false) |
-				sskDataFS.start(ticker, false);
+			boolean delay = chkData.delay | pubkeyData.delay | sskData.delay;
 
 			if(delay) {
 
@@ -3313,15 +3347,73 @@ public class Node implements TimeSkewDetectorCallback {
 		}
     }
 
-	private <T extends StorableBlock> FreenetStore<T> makeClientcache(String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
-		FreenetStore<T> store = makeStore(type, "clientcache", maxClientCacheKeys, cb, dontResizeOnStart, clientCacheMasterKey);
-		return store;
+	/**
+	 * Opens and then starts a salted hash store as startup tasks, so that several stores can
+	 * load at once. The results are only valid after waitForStores().
+	 */
+	private class StoreLoader<T extends StorableBlock> {
+
+		private final String name;
+		FreenetStore<T> fs;
+		/** True if the store needs a long start, see FreenetStore.start() */
+		boolean delay;
+
+		StoreLoader(StartupExecutor startup, String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] masterKey) {
+			this(startup, type, isStore ? "store" : "cache", isStore ? maxStoreKeys : maxCacheKeys, cb, dontResizeOnStart, masterKey);
+		}
+
+		StoreLoader(StartupExecutor startup, final String type, final String store, final long maxKeys, final StoreCallback<T> cb, final boolean lateStart, final byte[] masterKey) {
+			name = type+"-"+store;
+			startup.submit("Open "+name, new StartupExecutor.Task() {
+
+				@Override
+				public void run() throws IOException {
+					fs = makeStore(type, store, maxKeys, cb, lateStart, masterKey);
+				}
+
+			});
+		}
+
+		void start(StartupExecutor startup, String... dependencies) {
+			String[] deps = Arrays.copyOf(dependencies, dependencies.length + 1);
+			deps[dependencies.length] = "Open "+name;
+			startup.submit("Start "+name, new StartupExecutor.Task() {
+
+				@Override
+				public void run() throws IOException {
+					delay = fs.start(ticker, false);
+				}
+
+			}, deps);
+		}
+
+		/** Start this cache and the store it falls back to, after linking them. */
+		void startWithAltStore(StartupExecutor startup, final StoreLoader<T> store) {
+			String link = "Link "+name;
+			startup.submit(link, new StartupExecutor.Task() {
+
+				@Override
+				public void run() {
+					((SaltedHashFreenetStore<T>) fs.getUnderlyingStore()).setAltStore(((SaltedHashFreenetStore<T>) store.fs.getUnderlyingStore()));
+				}
+
+			}, "Open "+name, "Open "+store.name);
+			store.start(startup, link);
+			start(startup, link);
+		}
+
 	}
 
-	private <T extends StorableBlock> FreenetStore<T> makeStore(String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
-		String store = isStore ? "store" : "cache";
-		long maxKeys = isStore ? maxStoreKeys : maxCacheKeys;
-		return makeStore(type, store, maxKeys, cb, dontResizeOnStart, clientCacheMasterKey);
+	private void waitForStores(StartupExecutor startup) throws IOException {
+		try {
+			startup.waitForAll();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
 	}
 
 	private <T extends StorableBlock> FreenetStore<T> makeStore(String type, String store, long maxKeys, StoreCallback<T> cb, boolean lateStart, byte[] clientCacheMasterKey) throws IOException {
@@ -3341,8 +3433,10 @@ public class Node implements TimeSkewDetectorCallback {
 		
 		// IMPORTANT: Read the peers only after we have finished initializing Node.
 		// Peer constructors are complex and can call methods on Node.
+		peers.openJournal();
 		peers.tryReadPeers(nodeDir.file("peers-"+getDarknetPortNumber()).getPath(), darknetCrypto, null, false, false);
 		peers.updatePMUserAlert();
+		startupTimer.phase("Reading peers");
 		
 		dispatcher.start(nodeStats); // must be before usm
 		dnsr.start();
@@ -3419,6 +3513,7 @@ public class Node implements TimeSkewDetectorCallback {
 			nodeDiagnostics.start();
 		}
 
+		startupTimer.ready();
 		Logger.normal(this, "Started node");
 
 		hasStarted = true;
@@ -5237,6 +5332,10 @@ public class Node implements TimeSkewDetectorCallback {
         return outputThrottle;
     }
 
+    public BandwidthManager getBandwidthManager() {
+        return bandwidthManager;
+    }
+
     public boolean isThrottleLocalData() {
         return throttleLocalData;
     }
@@ -5305,6 +5404,10 @@ public class Node implements TimeSkewDetectorCallback {
         return startupTime;
     }
 
+    public StartupTimer getStartupTimer() {
+        return startupTimer;
+    }
+
     public RequestClient getNonPersistentClientBulk() {
         return nonPersistentClientBulk;
     }
@@ -84,6 +84,7 @@ import freenet.support.io.FilenameGenerator;
 import freenet.support.io.MaybeEncryptedRandomAccessBufferFactory;
 import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
+import freenet.support.io.PooledFileRandomAccessBuffer;
 import freenet.support.io.PooledFileRandomAccessBufferFactory;
 import freenet.support.io.TempBucketFactory;
 import freenet.support.plugins.helpers1.WebInterfaceToadlet;
@@ -252,6 +253,8 @@ public class NodeClientCore implements Persistable {
 	/** How much disk space must be free when starting a quick but disk-heavy job such as
 	 * completing a download? */
 	private long minDiskFreeShortTerm;
+	/** Maximum number of pooled files open at once, or 0 to base it on the process's limit. */
+	private int maxOpenFiles;
 	private final MasterSecret cryptoSecretTransient;
 
 	/**
@@ -518,6 +521,28 @@ public class NodeClientCore implements Persistable {
 					}
 				});
 
+		nodeConfig.register("maxOpenFiles", 0, sortOrder++, true, false,
+				    "NodeClientCore.maxOpenFiles",
+				    "NodeClientCore.maxOpenFilesLong", new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return maxOpenFiles;
+					}
+
+					@Override
+					public void set(Integer val)
+							throws InvalidConfigValueException {
+						if (val < 0)
+							throw new InvalidConfigValueException(
+									l10n("maxOpenFilesMustNotBeNegative"));
+						PooledFileRandomAccessBuffer.setMaxOpenFiles(val);
+						maxOpenFiles = val;
+					}
+				}, false);
+		maxOpenFiles = nodeConfig.getInt("maxOpenFiles");
+		PooledFileRandomAccessBuffer.setMaxOpenFiles(maxOpenFiles);
+
 		initDiskSpaceLimits(nodeConfig, sortOrder);
 
 		cryptoSecretTransient = new MasterSecret();
@@ -580,6 +605,24 @@ public class NodeClientCore implements Persistable {
 						   MAX_ARCHIVED_FILE_SIZE, MAX_CACHED_ELEMENTS,
 						   tempBucketFactory);
 
+		nodeConfig.register("indexedArchiveExtraction", true, sortOrder++, true, false,
+				    "NodeClientCore.indexedArchiveExtraction",
+				    "NodeClientCore.indexedArchiveExtractionLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    return archiveManager.isIndexedExtraction();
+					    }
+
+					    @Override
+					    public void set(Boolean val) {
+						    archiveManager.setIndexedExtraction(val);
+					    }
+
+				    });
+		archiveManager.setIndexedExtraction(nodeConfig.getBoolean("indexedArchiveExtraction"));
+
 		healingQueue = new SimpleHealingQueue(
 				new InsertContext(
 						0, 2, 0, 0, new SimpleEventProducer(),
@@ -2234,6 +2277,12 @@ public class NodeClientCore implements Persistable {
         return requestStarters;
     }
 
+    /** @return Imports binary blobs straight into the store, and exports them from it, one block
+     * at a time. */
+    public BinaryBlobSeeder getBinaryBlobSeeder() {
+        return new BinaryBlobSeeder(node);
+    }
+
     public String getFormPassword() {
         return formPassword;
     }
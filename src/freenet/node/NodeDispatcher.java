@@ -3,11 +3,16 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.crypt.HMAC;
 import freenet.io.comm.ByteCounter;
@@ -89,6 +94,7 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 		this.nodeStats = node.getNodeStats();
 		node.getTicker().queueTimedJob(this, STALE_CONTEXT_CHECK);
 		this.probe = new Probe(node);
+		registerHandlers();
 	}
 
 	ByteCounter pingCounter = new ByteCounter() {
@@ -130,163 +136,273 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 			}
 		}
 		MessageType spec = m.getSpec();
-		if(spec == DMT.FNPPing) {
-			// Send an FNPPong
-			Message reply = DMT.createFNPPong(m.getInt(DMT.PING_SEQNO));
-			try {
-				source.sendAsync(reply, null, pingCounter); // nothing we can do if can't contact source
-			} catch (NotConnectedException e) {
-				if(logMINOR) Logger.minor(this, "Lost connection replying to "+m);
-			}
-			return true;
-		} else if(spec == DMT.FNPDetectedIPAddress) {
-			Peer p = (Peer) m.getObject(DMT.EXTERNAL_ADDRESS);
-			source.setRemoteDetectedPeer(p);
-			node.getIpDetector().redetectAddress();
-			return true;
-		} else if(spec == DMT.FNPTime) {
-			return handleTime(m, source);
-		} else if(spec == DMT.FNPUptime) {
-			return handleUptime(m, source);
-		} else if(spec == DMT.FNPVisibility && source instanceof DarknetPeerNode) {
+		Registration r = handlers.get(spec);
+		if(r == null) return false;
+		if(r.realConnection && !source.isRealConnection()) return false;
+		if(r.darknet && !(source instanceof DarknetPeerNode)) return false;
+		if(r.updaterEnabled && !node.getNodeUpdater().isEnabled()) return false;
+		if(r.routable && !source.isRoutable()) {
+			if(logDEBUG) Logger.debug(this, "Not routable");
+			if(r.unroutable == null) return false;
+			return r.unroutable.handle(m, source);
+		}
+		long start = System.nanoTime();
+		try {
+			return r.handler.handle(m, source);
+		} finally {
+			r.dispatched(System.nanoTime() - start);
+		}
+	}
+
+	/** Handles one type of message. See registerHandler(). */
+	public interface MessageHandler {
+		/** @return True if the message was claimed. If false, it will be treated as unmatched. */
+		boolean handle(Message m, PeerNode source);
+	}
+
+	/** Conditions which must hold before a handler is called. If they don't, the message is not
+	 * claimed. */
+	public enum Guard {
+		/** The peer is not just connected to fetch an update. See PeerNode.isRealConnection(). */
+		REAL_CONNECTION,
+		/** The peer is a darknet peer. */
+		DARKNET,
+		/** Update over mandatory is enabled. */
+		UPDATER_ENABLED,
+		/** The peer is routable. Must be checked after the peer's location and load status have
+		 * been handled. */
+		ROUTABLE
+	}
+
+	private static class Registration {
+		final MessageHandler handler;
+		/** If not null, called instead of the handler if the peer is not routable. */
+		final MessageHandler unroutable;
+		final boolean realConnection;
+		final boolean darknet;
+		final boolean updaterEnabled;
+		final boolean routable;
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong totalNanos = new AtomicLong();
+
+		Registration(MessageHandler handler, MessageHandler unroutable, Guard[] guards) {
+			this.handler = handler;
+			this.unroutable = unroutable;
+			List<Guard> list = Arrays.asList(guards);
+			realConnection = list.contains(Guard.REAL_CONNECTION);
+			darknet = list.contains(Guard.DARKNET);
+			updaterEnabled = list.contains(Guard.UPDATER_ENABLED);
+			routable = unroutable != null || list.contains(Guard.ROUTABLE);
+		}
+
+		void dispatched(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+		}
+	}
+
+	private final ConcurrentHashMap<MessageType, Registration> handlers = 
+		new ConcurrentHashMap<MessageType, Registration>();
+
+	/** Register a handler for messages of a given type which are not claimed by a filter. Only
+	 * one handler can be registered for each type.
+	 * @throws IllegalArgumentException If a handler is already registered for the type. */
+	public void registerHandler(MessageType spec, MessageHandler handler, Guard... guards) {
+		register(spec, handler, null, guards);
+	}
+
+	/** Register a handler for requests, which need a routable peer. If the peer is not routable 
+	 * the request is rejected as overloaded. */
+	private void registerRequestHandler(MessageType spec, MessageHandler handler, final RejectCounter ctr) {
+		register(spec, handler, (m, source) -> rejectRequest(m, ctr.get()));
+	}
+
+	private interface RejectCounter {
+		ByteCounter get();
+	}
+
+	private void register(MessageType spec, MessageHandler handler, MessageHandler unroutable, Guard... guards) {
+		if(handlers.putIfAbsent(spec, new Registration(handler, unroutable, guards)) != null)
+			throw new IllegalArgumentException("Already have a handler for "+spec.getName());
+	}
+
+	/** @return True if there was a handler for the type. */
+	public boolean unregisterHandler(MessageType spec) {
+		return handlers.remove(spec) != null;
+	}
+
+	/** @return The number of messages dispatched to each handler and the time spent in them, in
+	 * nanoseconds, most total time first. */
+	public NodeStats.TimedStats[] getDispatchStatistics() {
+		List<NodeStats.TimedStats> stats = new ArrayList<NodeStats.TimedStats>();
+		for(Map.Entry<MessageType, Registration> entry : handlers.entrySet()) {
+			Registration r = entry.getValue();
+			long count = r.count.get();
+			if(count == 0) continue;
+			long total = r.totalNanos.get();
+			stats.add(new NodeStats.TimedStats(entry.getKey().getName(), count, total / count, total));
+		}
+		NodeStats.TimedStats[] ret = stats.toArray(new NodeStats.TimedStats[stats.size()]);
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	private void registerHandlers() {
+		registerHandler(DMT.FNPPing, this::handlePing);
+		registerHandler(DMT.FNPDetectedIPAddress, this::handleDetectedIPAddress);
+		registerHandler(DMT.FNPTime, this::handleTime);
+		registerHandler(DMT.FNPUptime, this::handleUptime);
+		registerHandler(DMT.FNPVisibility, (m, source) -> {
 			((DarknetPeerNode)source).handleVisibility(m);
 			return true;
-		} else if(spec == DMT.FNPVoid) {
-			return true;
-		} else if(spec == DMT.FNPDisconnect) {
+		}, Guard.DARKNET);
+		registerHandler(DMT.FNPVoid, (m, source) -> true);
+		registerHandler(DMT.FNPDisconnect, (m, source) -> {
 			handleDisconnect(m, source);
 			return true;
-		} else if(spec == DMT.nodeToNodeMessage) {
+		});
+		registerHandler(DMT.nodeToNodeMessage, (m, source) -> {
 			node.receivedNodeToNodeMessage(m, source);
 			return true;
-		} else if(spec == DMT.UOMAnnouncement && source.isRealConnection()) {
-			return node.getNodeUpdater().getUpdateOverMandatory().handleAnnounce(m, source);
-		} else if(spec == DMT.UOMRequestRevocation && source.isRealConnection()) {
-			return node.getNodeUpdater().getUpdateOverMandatory().handleRequestRevocation(m, source);
-		} else if(spec == DMT.UOMSendingRevocation && source.isRealConnection()) {
-			return node.getNodeUpdater().getUpdateOverMandatory().handleSendingRevocation(m, source);
-		} else if(spec == DMT.UOMRequestMainJar && node.getNodeUpdater().isEnabled() && source.isRealConnection()) {
+		});
+		registerHandler(DMT.UOMAnnouncement, 
+				(m, source) -> node.getNodeUpdater().getUpdateOverMandatory().handleAnnounce(m, source), 
+				Guard.REAL_CONNECTION);
+		registerHandler(DMT.UOMRequestRevocation, 
+				(m, source) -> node.getNodeUpdater().getUpdateOverMandatory().handleRequestRevocation(m, source), 
+				Guard.REAL_CONNECTION);
+		registerHandler(DMT.UOMSendingRevocation, 
+				(m, source) -> node.getNodeUpdater().getUpdateOverMandatory().handleSendingRevocation(m, source), 
+				Guard.REAL_CONNECTION);
+		registerHandler(DMT.UOMRequestMainJar, (m, source) -> {
 			node.getNodeUpdater().getUpdateOverMandatory().handleRequestJar(m, source);
 			return true;
-		} else if(spec == DMT.UOMSendingMainJar && node.getNodeUpdater().isEnabled() && source.isRealConnection()) {
-			return node.getNodeUpdater().getUpdateOverMandatory().handleSendingMain(m, source);
-		} else if(spec == DMT.UOMFetchDependency && node.getNodeUpdater().isEnabled() && source.isRealConnection()) {
+		}, Guard.UPDATER_ENABLED, Guard.REAL_CONNECTION);
+		registerHandler(DMT.UOMSendingMainJar, 
+				(m, source) -> node.getNodeUpdater().getUpdateOverMandatory().handleSendingMain(m, source), 
+				Guard.UPDATER_ENABLED, Guard.REAL_CONNECTION);
+		MessageHandler fetchDependency = (m, source) -> {
 			node.getNodeUpdater().getUpdateOverMandatory().handleFetchDependency(m, source);
 			return true;
-		} else if(spec == DMT.FNPOpennetAnnounceRequest) {
-			return handleAnnounceRequest(m, source);
-		} else if(spec == DMT.FNPRoutingStatus) {
-			if(source instanceof DarknetPeerNode) {
-				boolean value = m.getBoolean(DMT.ROUTING_ENABLED);
-				if(logMINOR)
-					Logger.minor(this, "The peer ("+source+") asked us to set routing="+value);
-				((DarknetPeerNode)source).setRoutingStatus(value, false);
-			}
-			// We claim it in any case
-			return true;
-		} else if(source.isRealConnection() && spec == DMT.FNPLocChangeNotificationNew) {
-			double newLoc = m.getDouble(DMT.LOCATION);
-			ShortBuffer buffer = ((ShortBuffer) m.getObject(DMT.PEER_LOCATIONS));
-			double[] locs = Fields.bytesToDoubles(buffer.getData());
-			
-			/**
-			 * Do *NOT* remove the sanity check below! 
-			 * @see http://archives.freenetproject.org/message/20080718.144240.359e16d3.en.html
-			 */
-			if((OpennetManager.MAX_PEERS_FOR_SCALING < locs.length) && (source.isOpennet())) {
-				if(locs.length > OpennetManager.PANIC_MAX_PEERS) {
-					// This can't happen by accident
-					Logger.error(this, "We received "+locs.length+ " locations from "+source.toString()+"! That should *NOT* happen! Possible attack!");
-					source.forceDisconnect();
-					return true;
-				} else {
-					// A few extra can happen by accident. Just use the first 20.
-					Logger.normal(this, "Too many locations from "+source.toString()+" : "+locs.length+" could be an accident, using the first "+OpennetManager.MAX_PEERS_FOR_SCALING);
-					locs = Arrays.copyOf(locs, OpennetManager.MAX_PEERS_FOR_SCALING);
-				}
-			}
-			// We are on darknet and we trust our peers OR we are on opennet
-			// and the amount of locations sent to us seems reasonable
-			source.updateLocation(newLoc, locs);
-			
-			return true;
-		} else if(spec == DMT.FNPPeerLoadStatusByte || spec == DMT.FNPPeerLoadStatusShort || spec == DMT.FNPPeerLoadStatusInt) {
-			// Must be handled before doing the routable check!
-			// We may not have received the Location yet, etc.
-			return handlePeerLoadStatus(m, source);
-		}
-		
-		if(!source.isRoutable()) {
-			if(logDEBUG) Logger.debug(this, "Not routable");
-
-			if(spec == DMT.FNPCHKDataRequest) {
-				rejectRequest(m, node.getNodeStats().chkRequestCtr);
-			} else if(spec == DMT.FNPSSKDataRequest) {
-				rejectRequest(m, node.getNodeStats().sskRequestCtr);
-			} else if(spec == DMT.FNPInsertRequest) {
-				rejectRequest(m, node.getNodeStats().chkInsertCtr);
-			} else if(spec == DMT.FNPSSKInsertRequest) {
-				rejectRequest(m, node.getNodeStats().sskInsertCtr);
-			} else if(spec == DMT.FNPSSKInsertRequestNew) {
-				rejectRequest(m, node.getNodeStats().sskInsertCtr);
-			} else if(spec == DMT.FNPGetOfferedKey) {
-				rejectRequest(m, node.getFailureTable().senderCounter);
-			} else {
-				return false;
-			}
-			return true;
-		}
+		};
+		registerHandler(DMT.UOMFetchDependency, fetchDependency, Guard.UPDATER_ENABLED, Guard.REAL_CONNECTION);
+		registerHandler(DMT.UOMFetchDependencyRange, fetchDependency, Guard.UPDATER_ENABLED, Guard.REAL_CONNECTION);
+		registerHandler(DMT.FNPOpennetAnnounceRequest, this::handleAnnounceRequest);
+		registerHandler(DMT.FNPRoutingStatus, this::handleRoutingStatus);
+		registerHandler(DMT.FNPLocChangeNotificationNew, this::handleLocChangeNotification, Guard.REAL_CONNECTION);
+		// Not routable, as we may not have received the Location yet, etc.
+		registerHandler(DMT.FNPPeerLoadStatusByte, this::handlePeerLoadStatus);
+		registerHandler(DMT.FNPPeerLoadStatusShort, this::handlePeerLoadStatus);
+		registerHandler(DMT.FNPPeerLoadStatusInt, this::handlePeerLoadStatus);
 
-		if(spec == DMT.FNPSwapRequest) {
-			return node.getLocationManager().handleSwapRequest(m, source);
-		} else if(spec == DMT.FNPSwapReply) {
-			return node.getLocationManager().handleSwapReply(m, source);
-		} else if(spec == DMT.FNPSwapRejected) {
-			return node.getLocationManager().handleSwapRejected(m, source);
-		} else if(spec == DMT.FNPSwapCommit) {
-			return node.getLocationManager().handleSwapCommit(m, source);
-		} else if(spec == DMT.FNPSwapComplete) {
-			return node.getLocationManager().handleSwapComplete(m, source);
-		} else if(spec == DMT.FNPCHKDataRequest) {
+		// Everything else needs a routable peer.
+		registerHandler(DMT.FNPSwapRequest, 
+				(m, source) -> node.getLocationManager().handleSwapRequest(m, source), Guard.ROUTABLE);
+		registerHandler(DMT.FNPSwapReply, 
+				(m, source) -> node.getLocationManager().handleSwapReply(m, source), Guard.ROUTABLE);
+		registerHandler(DMT.FNPSwapRejected, 
+				(m, source) -> node.getLocationManager().handleSwapRejected(m, source), Guard.ROUTABLE);
+		registerHandler(DMT.FNPSwapCommit, 
+				(m, source) -> node.getLocationManager().handleSwapCommit(m, source), Guard.ROUTABLE);
+		registerHandler(DMT.FNPSwapComplete, 
+				(m, source) -> node.getLocationManager().handleSwapComplete(m, source), Guard.ROUTABLE);
+		registerRequestHandler(DMT.FNPCHKDataRequest, (m, source) -> {
 			handleDataRequest(m, source, false);
 			return true;
-		} else if(spec == DMT.FNPSSKDataRequest) {
+		}, () -> node.getNodeStats().chkRequestCtr);
+		registerRequestHandler(DMT.FNPSSKDataRequest, (m, source) -> {
 			handleDataRequest(m, source, true);
 			return true;
-		} else if(spec == DMT.FNPInsertRequest) {
+		}, () -> node.getNodeStats().sskRequestCtr);
+		registerRequestHandler(DMT.FNPInsertRequest, (m, source) -> {
 			handleInsertRequest(m, source, false);
 			return true;
-		} else if(spec == DMT.FNPSSKInsertRequest) {
+		}, () -> node.getNodeStats().chkInsertCtr);
+		MessageHandler sskInsert = (m, source) -> {
 			handleInsertRequest(m, source, true);
 			return true;
-		} else if(spec == DMT.FNPSSKInsertRequestNew) {
-			handleInsertRequest(m, source, true);
-			return true;
-		} else if(spec == DMT.FNPRoutedPing) {
-			return handleRouted(m, source);
-		} else if(spec == DMT.FNPRoutedPong) {
-			return handleRoutedReply(m);
-		} else if(spec == DMT.FNPRoutedRejected) {
-			return handleRoutedRejected(m);
-		} else if(spec == DMT.FNPOfferKey) {
-			return handleOfferKey(m, source);
-		} else if(spec == DMT.FNPGetOfferedKey) {
-			return handleGetOfferedKey(m, source);
-		} else if(spec == DMT.FNPGetYourFullNoderef && source instanceof DarknetPeerNode) {
+		};
+		registerRequestHandler(DMT.FNPSSKInsertRequest, sskInsert, () -> node.getNodeStats().sskInsertCtr);
+		registerRequestHandler(DMT.FNPSSKInsertRequestNew, sskInsert, () -> node.getNodeStats().sskInsertCtr);
+		registerHandler(DMT.FNPRoutedPing, this::handleRouted, Guard.ROUTABLE);
+		registerHandler(DMT.FNPRoutedPong, (m, source) -> handleRoutedReply(m), Guard.ROUTABLE);
+		registerHandler(DMT.FNPRoutedRejected, (m, source) -> handleRoutedRejected(m), Guard.ROUTABLE);
+		registerHandler(DMT.FNPOfferKey, this::handleOfferKey, Guard.ROUTABLE);
+		registerRequestHandler(DMT.FNPGetOfferedKey, this::handleGetOfferedKey, 
+				() -> node.getFailureTable().senderCounter);
+		registerHandler(DMT.FNPGetYourFullNoderef, (m, source) -> {
 			((DarknetPeerNode)source).sendFullNoderef();
 			return true;
-		} else if(spec == DMT.FNPMyFullNoderef && source instanceof DarknetPeerNode) {
+		}, Guard.ROUTABLE, Guard.DARKNET);
+		registerHandler(DMT.FNPMyFullNoderef, (m, source) -> {
 			((DarknetPeerNode)source).handleFullNoderef(m);
 			return true;
-		} else if(spec == DMT.ProbeRequest) {
+		}, Guard.ROUTABLE, Guard.DARKNET);
+		registerHandler(DMT.ProbeRequest, (m, source) -> {
 			//Response is handled by callbacks within probe.
 			probe.request(m, source);
 			return true;
+		}, Guard.ROUTABLE);
+	}
+
+	private boolean handlePing(Message m, PeerNode source) {
+		// Send an FNPPong
+		Message reply = DMT.createFNPPong(m.getInt(DMT.PING_SEQNO));
+		try {
+			source.sendAsync(reply, null, pingCounter); // nothing we can do if can't contact source
+		} catch (NotConnectedException e) {
+			if(logMINOR) Logger.minor(this, "Lost connection replying to "+m);
 		}
-		return false;
+		return true;
+	}
+
+	private boolean handleDetectedIPAddress(Message m, PeerNode source) {
+		Peer p = (Peer) m.getObject(DMT.EXTERNAL_ADDRESS);
+		source.setRemoteDetectedPeer(p);
+		node.getIpDetector().redetectAddress();
+		return true;
+	}
+
+	private boolean handleRoutingStatus(Message m, PeerNode source) {
+		if(source instanceof DarknetPeerNode) {
+			boolean value = m.getBoolean(DMT.ROUTING_ENABLED);
+			if(logMINOR)
+				Logger.minor(this, "The peer ("+source+") asked us to set routing="+value);
+			((DarknetPeerNode)source).setRoutingStatus(value, false);
+		}
+		// We claim it in any case
+		return true;
 	}
 
-	private void rejectRequest(Message m, ByteCounter ctr) {
+	private boolean handleLocChangeNotification(Message m, PeerNode source) {
+		double newLoc = m.getDouble(DMT.LOCATION);
+		ShortBuffer buffer = ((ShortBuffer) m.getObject(DMT.PEER_LOCATIONS));
+		double[] locs = Fields.bytesToDoubles(buffer.getData());
+		
+		/**
+		 * Do *NOT* remove the sanity check below! 
+		 * @see http://archives.freenetproject.org/message/20080718.144240.359e16d3.en.html
+		 */
+		if((OpennetManager.MAX_PEERS_FOR_SCALING < locs.length) && (source.isOpennet())) {
+			if(locs.length > OpennetManager.PANIC_MAX_PEERS) {
+				// This can't happen by accident
+				Logger.error(this, "We received "+locs.length+ " locations from "+source.toString()+"! That should *NOT* happen! Possible attack!");
+				source.forceDisconnect();
+				return true;
+			} else {
+				// A few extra can happen by accident. Just use the first 20.
+				Logger.normal(this, "Too many locations from "+source.toString()+" : "+locs.length+" could be an accident, using the first "+OpennetManager.MAX_PEERS_FOR_SCALING);
+				locs = Arrays.copyOf(locs, OpennetManager.MAX_PEERS_FOR_SCALING);
+			}
+		}
+		// We are on darknet and we trust our peers OR we are on opennet
+		// and the amount of locations sent to us seems reasonable
+		source.updateLocation(newLoc, locs);
+		
+		return true;
+	}
+
+	private boolean rejectRequest(Message m, ByteCounter ctr) {
 		long uid = m.getLong(DMT.UID);
 		Message msg = DMT.createFNPRejectedOverload(uid, true, false, false);
 		// Send the load status anyway, hopefully this is a temporary problem.
@@ -297,6 +413,7 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 		} catch (NotConnectedException e) {
 			// Ignore
 		}
+		return true;
 	}
 
 	private boolean handlePeerLoadStatus(Message m, PeerNode source) {
@@ -461,6 +578,7 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 	private final ArrayBlockingQueue<Message> requestQueue = new ArrayBlockingQueue<Message>(100);
 	
 	private void handleDataRequest(Message m, PeerNode source, boolean isSSK) {
+		node.getStartupTimer().onRequest();
 		// FIXME check probablyInStore and if not, we can handle it inline.
 		// This and DatastoreChecker require that method be implemented...
 		// For now just handle everything on the thread...
@@ -552,6 +670,7 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 	 * @param isSSK True if it is an SSK insert, false if it is a CHK insert.
 	 */
 	private void handleInsertRequest(Message m, PeerNode source, boolean isSSK) {
+		node.getStartupTimer().onRequest();
 		ByteCounter ctr = isSSK ? node.getNodeStats().sskInsertCtr : node.getNodeStats().chkInsertCtr;
 		long id = m.getLong(DMT.UID);
         boolean realTimeFlag = DMT.getRealTimeFlag(m);
@@ -2476,7 +2476,12 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	private long announceBytesSent;
 	private long announceBytesPayload;
 
-	public final ByteCounter announceByteCounter = new ByteCounter() {
+	public final ByteCounter announceByteCounter = new BandwidthClass.Counter() {
+
+		@Override
+		public BandwidthClass getBandwidthClass() {
+			return BandwidthClass.ANNOUNCEMENT;
+		}
 
 		@Override
 		public void receivedBytes(int x) {
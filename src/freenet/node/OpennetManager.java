@@ -984,10 +984,6 @@ public class OpennetManager {
 		oldPeers.push(pn);
 	}
 
-	final String getOldPeersFilename() {
-		return node.nodeDir().file("openpeers-old-"+crypto.getPortNumber()).toString();
-	}
-
 	synchronized int countOldOpennetPeers() {
 		return oldPeers.size();
 	}
@@ -12,11 +12,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -68,12 +71,33 @@ public class PeerManager {
 	private PeerNode[] connectedPeers;
 	private String darkFilename;
         private String openFilename;
-        private String oldOpennetPeersFilename;
         // FIXME MEMORY use a hash. Not hashCode() though.
         // FIXME Strip metadata, except for peer locations.
         private String darknetPeersStringCache = null;
-        private String opennetPeersStringCache = null;
-        private String oldOpennetPeersStringCache = null;
+	/** Noderefs and metadata for all our peers, and darknet peers' extra peer data. Written
+	 * incrementally, so churn doesn't rewrite whole files. The darknet peers file is still
+	 * written on important changes. If the user edits it, it is read instead of the journal on
+	 * the next startup. */
+	private final PeerStateJournal journal;
+	static final String JOURNAL_DARKNET = "darknet";
+	static final String JOURNAL_OPENNET = "opennet";
+	static final String JOURNAL_OLD_OPENNET = "opennet-old";
+	/** The size and date of the darknet peers file when we last wrote or read it. */
+	static final String JOURNAL_PEERS_FILE = "peers-file";
+	/** Metadata which changes all the time while a peer is connected. Only written to the
+	 * journal on compaction or shutdown, so connected peers aren't appended every time. */
+	private static final String[] VOLATILE_PEER_FIELDS = new String[] {
+		"metadata.timeLastReceivedPacket",
+		"metadata.timeLastReceivedAck",
+		"metadata.timeLastConnected",
+		"metadata.timeLastRoutable",
+		"metadata.timeLastSuccess",
+		"metadata.peersLocation",
+		"metadata.hadRoutableConnectionCount",
+		"metadata.routableConnectionCheckCount"
+	};
+	/** Journal sections which have been read, and so may be written. Protected by writePeersSync. */
+	private final Set<String> journalSectionsRead = new HashSet<String>();
         private PeerManagerUserAlert ua;	// Peers stuff
 	/** age of oldest never connected peer (milliseconds) */
 	private long oldestNeverConnectedDarknetPeerAge;
@@ -173,20 +197,37 @@ public class PeerManager {
 		myPeers = new PeerNode[0];
 		connectedPeers = new PeerNode[0];
 		this.node = node;
+		journal = new PeerStateJournal(node.nodeDir().file("peers-journal-"+node.getDarknetPortNumber()), node.getTicker(), VOLATILE_PEER_FIELDS);
 		shutdownHook.addEarlyJob(new Thread() {
 			public void run() {
 				// Ensure we're not waiting 5mins here
 				writePeersDarknet();
 				writePeersOpennet();
 				writePeersNow(false);
+				journal.close();
 			}
 		});
 	}
 
+	/** Read the peer state journal. Must be called before reading any peers. */
+	void openJournal() {
+		journal.open();
+	}
+
+	PeerStateJournal getJournal() {
+		return journal;
+	}
+
+	private static String journalSection(boolean isOpennet, boolean oldOpennetPeers) {
+		if(oldOpennetPeers) return JOURNAL_OLD_OPENNET;
+		return isOpennet ? JOURNAL_OPENNET : JOURNAL_DARKNET;
+	}
+
 	/**
-	 * Attempt to read a file full of noderefs. Try the file as named first, then the .bak if it is empty or
-	 * otherwise doesn't work. WARNING: Only call this AFTER the Node constructor has completed! Methods may 
-	 * be called on Node!
+	 * Read a list of peers from the peer state journal, or if it doesn't have them yet, from a
+	 * file full of noderefs, which will then be copied to the journal. Try the file as named
+	 * first, then the .bak if it is empty or otherwise doesn't work. WARNING: Only call this AFTER
+	 * the Node constructor has completed! Methods may be called on Node!
 	 * @param filename The filename to read from. If this doesn't work, we try the .bak file.
 	 * @param crypto The cryptographic identity which these nodes are connected to.
 	 * @param opennet The opennet manager for the nodes. Only needed (for constructing the nodes) if isOpennet.
@@ -202,6 +243,59 @@ public class PeerManager {
 				else
 					darkFilename = filename;
 		}
+		String section = journalSection(isOpennet, oldOpennetPeers);
+		try {
+			Map<String, SimpleFieldSet> records = journal.getSection(section);
+			if(records != null && section.equals(JOURNAL_DARKNET) && peersFileChanged(filename)) {
+				String msg = "Darknet peers file " + filename + " has changed since it was written, reading it instead of " + journal;
+				Logger.normal(this, msg);
+				System.out.println(msg);
+				records = null;
+			}
+			if(records != null) {
+				readPeers(records, new File(filename + ".broken"), crypto, opennet, oldOpennetPeers);
+				String msg = "Read " + records.size() + " " + section + " peers from " + journal;
+				Logger.normal(this, msg);
+				System.out.println(msg);
+				return;
+			}
+			tryReadPeersFile(filename, crypto, opennet, isOpennet, oldOpennetPeers);
+			if(section.equals(JOURNAL_DARKNET))
+				recordPeersFile(filename);
+		} finally {
+			synchronized(writePeersSync) {
+				journalSectionsRead.add(section);
+			}
+			// Copy any peers read from the old file to the journal, and drop any broken ones.
+			writePeers(isOpennet);
+		}
+	}
+
+	/** @return True if the darknet peers file isn't the one we last wrote or read, i.e. the user
+	 * has edited it. */
+	private boolean peersFileChanged(String filename) {
+		SimpleFieldSet fs = journal.get(JOURNAL_PEERS_FILE, JOURNAL_DARKNET);
+		if(fs == null) {
+			// Written before we kept track. Assume it hasn't changed.
+			recordPeersFile(filename);
+			return false;
+		}
+		File f = new File(filename);
+		if(!f.exists()) return false;
+		return f.lastModified() != fs.getLong("lastModified", -1) || f.length() != fs.getLong("length", -1);
+	}
+
+	/** Remember the size and date of the darknet peers file, so we can tell if the user edits it. */
+	private void recordPeersFile(String filename) {
+		File f = new File(filename);
+		if(!f.exists()) return;
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.put("lastModified", f.lastModified());
+		fs.put("length", f.length());
+		journal.put(JOURNAL_PEERS_FILE, JOURNAL_DARKNET, fs);
+	}
+
+	private void tryReadPeersFile(String filename, NodeCrypto crypto, OpennetManager opennet, boolean isOpennet, boolean oldOpennetPeers) {
 		int maxBackups = isOpennet ? BACKUPS_OPENNET : BACKUPS_DARKNET;
 		for(int i=0;i<=maxBackups;i++) {
 			File peersFile = this.getBackupFilename(filename, i);
@@ -243,47 +337,8 @@ public class PeerManager {
 				// Read a single NodePeer
 				SimpleFieldSet fs;
 				fs = new SimpleFieldSet(br, false, true);
-				try {
-					PeerNode pn = PeerNode.create(fs, node, crypto, opennet, this);
-					if(oldOpennetPeers) {
-					    if(!(pn instanceof OpennetPeerNode))
-					        Logger.error(this, "Darknet node in old opennet peers?!: "+pn);
-					    else
-					        opennet.addOldOpennetNode((OpennetPeerNode)pn);
-					} else
-						addPeer(pn, true, false);
-				} catch(FSParseException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					System.err.println("Cannot parse a friend from the peers file: "+e2);
-					someBroken = true;
-					continue;
-				} catch(PeerParseException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					System.err.println("Cannot parse a friend from the peers file: "+e2);
+				if(!readPeer(fs, crypto, opennet, oldOpennetPeers, droppedOldPeers))
 					someBroken = true;
-					continue;
-				} catch(ReferenceSignatureVerificationException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					System.err.println("Cannot parse a friend from the peers file: "+e2);
-					someBroken = true;
-					continue;
-				} catch (RuntimeException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					System.err.println("Cannot parse a friend from the peers file: "+e2);
-					someBroken = true;
-					continue;
-					// FIXME tell the user???
-				} catch (PeerTooOldException e) {
-				    if(crypto.isOpennet()) {
-				        // Ignore.
-				        Logger.error(this, "Dropping too-old opennet peer");
-				    } else {
-				        // A lot more noisy!
-				        droppedOldPeers.add(e, fs.get("myName"));
-				    }
-                    someBroken = true;
-                    continue;
-                }
 			}
 		} catch(EOFException e) {
 			// End of file, fine
@@ -308,6 +363,72 @@ public class PeerManager {
 				System.err.println("Unable to copy broken peers file.");
 			}
 		}
+		registerDroppedOldPeers(droppedOldPeers);
+		return !someBroken;
+	}
+
+	/** Read peers from the journal. Any which are broken are written to brokenPeersFile. */
+	private void readPeers(Map<String, SimpleFieldSet> records, File brokenPeersFile, NodeCrypto crypto, OpennetManager opennet, boolean oldOpennetPeers) {
+		DroppedOldPeersUserAlert droppedOldPeers = new DroppedOldPeersUserAlert(brokenPeersFile);
+		StringBuilder broken = new StringBuilder();
+		for(SimpleFieldSet fs : records.values()) {
+			if(!readPeer(fs, crypto, opennet, oldOpennetPeers, droppedOldPeers))
+				broken.append(fs.toOrderedString());
+		}
+		if(broken.length() > 0) {
+			try (Writer w = new OutputStreamWriter(new FileOutputStream(brokenPeersFile), StandardCharsets.UTF_8)) {
+				w.write(broken.toString());
+				System.err.println("Broken peers copied to " + brokenPeersFile);
+			} catch (IOException e) {
+				System.err.println("Unable to copy broken peers.");
+			}
+		}
+		registerDroppedOldPeers(droppedOldPeers);
+	}
+
+	/** Create a peer from its noderef and metadata, and add it.
+	 * @return False if the peer is broken or too old. */
+	private boolean readPeer(SimpleFieldSet fs, NodeCrypto crypto, OpennetManager opennet, boolean oldOpennetPeers, DroppedOldPeersUserAlert droppedOldPeers) {
+		try {
+			PeerNode pn = PeerNode.create(fs, node, crypto, opennet, this);
+			if(oldOpennetPeers) {
+			    if(!(pn instanceof OpennetPeerNode))
+			        Logger.error(this, "Darknet node in old opennet peers?!: "+pn);
+			    else
+			        opennet.addOldOpennetNode((OpennetPeerNode)pn);
+			} else
+				addPeer(pn, true, false);
+		} catch(FSParseException e2) {
+			Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+			System.err.println("Cannot parse a friend from the peers file: "+e2);
+			return false;
+		} catch(PeerParseException e2) {
+			Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+			System.err.println("Cannot parse a friend from the peers file: "+e2);
+			return false;
+		} catch(ReferenceSignatureVerificationException e2) {
+			Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+			System.err.println("Cannot parse a friend from the peers file: "+e2);
+			return false;
+		} catch (RuntimeException e2) {
+			Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+			System.err.println("Cannot parse a friend from the peers file: "+e2);
+			return false;
+			// FIXME tell the user???
+		} catch (PeerTooOldException e) {
+		    if(crypto.isOpennet()) {
+		        // Ignore.
+		        Logger.error(this, "Dropping too-old opennet peer");
+		    } else {
+		        // A lot more noisy!
+		        droppedOldPeers.add(e, fs.get("myName"));
+		    }
+			return false;
+		}
+		return true;
+	}
+
+	private void registerDroppedOldPeers(DroppedOldPeersUserAlert droppedOldPeers) {
 		if(!droppedOldPeers.isEmpty()) {
 		    try {
 		        node.getClientCore().getAlerts().register(droppedOldPeers);
@@ -317,7 +438,6 @@ public class PeerManager {
 		        Logger.error(this, "Caught error telling user about dropped peers", t);
 		    }
 		}
-		return !someBroken;
 	}
 
     public boolean addPeer(PeerNode pn) {
@@ -420,6 +540,7 @@ public class PeerManager {
 				PeerNode[] newConnectedPeers = new PeerNode[a.size()];
 				newConnectedPeers = a.toArray(newConnectedPeers);
 				connectedPeers = newConnectedPeers;
+				routingIndex.invalidate();
 
 				// removing from myPeers
 				PeerNode[] newMyPeers = new PeerNode[myPeers.length - 1];
@@ -450,6 +571,7 @@ public class PeerManager {
 			oldPeers = myPeers;
 			myPeers = new PeerNode[0];
 			connectedPeers = new PeerNode[0];
+			routingIndex.invalidate();
 		}
 		for(PeerNode oldPeer: oldPeers)
 			oldPeer.onRemove();
@@ -477,6 +599,7 @@ public class PeerManager {
 			PeerNode[] newConnectedPeers = new PeerNode[a.size()];
 			newConnectedPeers = a.toArray(newConnectedPeers);
 			connectedPeers = newConnectedPeers;
+			routingIndex.invalidate();
 		}
                 if(!pn.isSeed())
                     updatePMUserAlert();
@@ -527,6 +650,7 @@ public class PeerManager {
 				Logger.minor(this, "Connecting: " + pn);
 			connectedPeers = Arrays.copyOf(connectedPeers, connectedPeers.length + 1);
 			connectedPeers[connectedPeers.length - 1] = pn;
+			routingIndex.invalidate();
 			if(logMINOR)
 				Logger.minor(this, "Connected peers: " + connectedPeers.length);
 		}
@@ -811,6 +935,7 @@ public class PeerManager {
 		if(logMINOR)
 			Logger.minor(this, "Connected peers (in getRandomPeer): " + newConnectedPeers.length + " was " + connectedPeers.length);
 		connectedPeers = newConnectedPeers;
+		routingIndex.invalidate();
 		if(lengthWithoutExcluded == 0)
 			return null;
 		return connectedPeers[node.getRandom().nextInt(lengthWithoutExcluded)];
@@ -957,6 +1082,18 @@ public class PeerManager {
 		if(key != null)
 			entry = node.getFailureTable().getTimedOutNodesList(key);
 		
+		if(USE_ROUTING_INDEX && entry == null && addUnpickedLocsTo == null) {
+			// No per-key timeouts to consider and nobody wants the list of locations we could
+			// have picked, so we only need the closest eligible peer: use the index.
+			double limit = maxDistance;
+			if(!ignoreSelf) limit = Math.min(limit, maxDiff);
+			PeerNode best = closerPeerIndexed(pn, routedTo, target, limit, minVersion, outgoingHTL,
+					ignoreBackoffUnder, realTime, now, newLoadManagement, myLoc, prevLoc);
+			if(best != null && calculateMisrouting)
+				reportBackedOffPercent();
+			return best;
+		}
+		
 		double[] selectionRates = new double[peers.length];
 		double totalSelectionRate = 0.0;
 		for(int i=0;i<peers.length;i++) {
@@ -975,48 +1112,17 @@ public class PeerManager {
 
 		for(int i = 0; i < peers.length; i++) {
 			PeerNode p = peers[i];
-			if(routedTo.contains(p)) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
-				continue;
-			}
-			if(p == pn) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (req came from): " + p.getPeer());
-				continue;
-			}
-			if(!p.isRoutable()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (not connected): " + p.getPeer());
-				continue;
-			}
-			if(p.isDisconnecting()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
-				continue;
-			}
-			if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
-				continue;
-			}
-			if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping old version: " + p.getPeer());
-				continue;
-			}
+			boolean overSelected = false;
 			if(enableFOAFMitigationHack) {
 				double selectionPercentage = 100.0 * selectionRates[i] / totalSelectionRate;
 				if(selectionPercentage > PeerNode.SELECTION_PERCENTAGE_WARNING) {
 					if(logMINOR)
-						Logger.minor(this, "Skipping over-selected peer(" + selectionPercentage + "%): " + p.getPeer());
-					continue;
+						Logger.minor(this, "Over-selected peer(" + selectionPercentage + "%): " + p.getPeer());
+					overSelected = true;
 				}
 			}
-			if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
-				if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
+			if(!isRoutingCandidate(p, pn, routedTo, minVersion, overSelected, realTime, now, newLoadManagement))
 				continue;
-			}
 			
 			/** For RecentlyFailed i.e. request quenching */
 			long timeoutRF = -1;
@@ -1222,12 +1328,8 @@ public class PeerManager {
 		// DO NOT PUT A ELSE HERE: we need to re-check the value!
 		if(best != null) {
 			//racy... getLocation() could have changed
-			if(calculateMisrouting) {
-				int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
-				int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
-				if(numberOfRoutingBackedOff + numberOfConnected > 0)
-					node.getNodeStats().backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
-			}
+			if(calculateMisrouting)
+				reportBackedOffPercent();
 			//racy... getLocation() could have changed
 			if(addUnpickedLocsTo != null)
 				//Add the location which we did not pick, if it exists.
@@ -1239,6 +1341,216 @@ public class PeerManager {
 		return best;
 	}
 
+	private void reportBackedOffPercent() {
+		int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
+		int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
+		if(numberOfRoutingBackedOff + numberOfConnected > 0)
+			node.getNodeStats().backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
+	}
+
+	/** Can we route to this peer at all? Does not consider location, backoff or failure tables.
+	 * @param overSelected True if the peer has been selected too often recently (FOAF mitigation). */
+	private boolean isRoutingCandidate(PeerNode p, PeerNode pn, Set<PeerNode> routedTo, int minVersion,
+			boolean overSelected, boolean realTime, long now, boolean newLoadManagement) {
+		if(routedTo.contains(p)) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
+			return false;
+		}
+		if(p == pn) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (req came from): " + p.getPeer());
+			return false;
+		}
+		if(!p.isRoutable()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (not connected): " + p.getPeer());
+			return false;
+		}
+		if(p.isDisconnecting()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
+			return false;
+		}
+		if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
+			return false;
+		}
+		if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping old version: " + p.getPeer());
+			return false;
+		}
+		if(overSelected) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping over-selected peer: " + p.getPeer());
+			return false;
+		}
+		if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
+			if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
+			return false;
+		}
+		return true;
+	}
+
+	/** Use the routing index in closerPeer() when there are no per-key timeouts to consider. */
+	static final boolean USE_ROUTING_INDEX = true;
+	/** How often to recompute which peers are over-selected for the routing index. Selection rates
+	 * are averaged over SELECTION_SAMPLING_PERIOD, so they change slowly. */
+	private static final long OVER_SELECTION_REFRESH_INTERVAL = SECONDS.toMillis(1);
+
+	/** Locations of connected peers and their peers, sorted, for closerPeer(). Invalidated
+	 * whenever connectedPeers or a peer's location changes. */
+	private final PeerRoutingIndex<PeerNode> routingIndex = new PeerRoutingIndex<PeerNode>();
+
+	/** Which peers in a routing index snapshot are over-selected. */
+	private static class OverSelection {
+		final PeerRoutingIndex.Snapshot<PeerNode> snapshot;
+		final long time;
+		/** Null if the FOAF mitigation is not active */
+		final boolean[] overSelected;
+
+		OverSelection(PeerRoutingIndex.Snapshot<PeerNode> snapshot, long time, boolean[] overSelected) {
+			this.snapshot = snapshot;
+			this.time = time;
+			this.overSelected = overSelected;
+		}
+	}
+
+	private volatile OverSelection overSelection;
+
+	/** Called when a connected peer's location or its peers' locations change. */
+	void onPeerLocationChanged() {
+		routingIndex.invalidate();
+	}
+
+	private PeerRoutingIndex.Snapshot<PeerNode> getRoutingIndex() {
+		PeerRoutingIndex.Snapshot<PeerNode> snapshot = routingIndex.current();
+		if(snapshot != null) return snapshot;
+		long version = routingIndex.getVersion();
+		PeerNode[] peers = connectedPeers();
+		double[] locs = new double[peers.length];
+		double[][] foafLocs = new double[peers.length][];
+		for(int i = 0; i < peers.length; i++) {
+			locs[i] = peers[i].getLocation();
+			foafLocs[i] = peers[i].getPeersLocationArray();
+		}
+		if(logMINOR) Logger.minor(this, "Rebuilding routing index for "+peers.length+" peers");
+		return routingIndex.rebuild(version, peers, locs, foafLocs);
+	}
+
+	private boolean[] getOverSelected(PeerRoutingIndex.Snapshot<PeerNode> snapshot, long now) {
+		OverSelection o = overSelection;
+		if(o != null && o.snapshot == snapshot && now - o.time < OVER_SELECTION_REFRESH_INTERVAL)
+			return o.overSelected;
+		int count = snapshot.countPeers();
+		double[] selectionRates = new double[count];
+		double totalSelectionRate = 0.0;
+		for(int i = 0; i < count; i++) {
+			selectionRates[i] = snapshot.getPeer(i).selectionRate();
+			totalSelectionRate += selectionRates[i];
+		}
+		boolean[] overSelected = null;
+		if(count >= PeerNode.SELECTION_MIN_PEERS && totalSelectionRate > 0.0) {
+			overSelected = new boolean[count];
+			for(int i = 0; i < count; i++) {
+				double selectionPercentage = 100.0 * selectionRates[i] / totalSelectionRate;
+				overSelected[i] = selectionPercentage > PeerNode.SELECTION_PERCENTAGE_WARNING;
+			}
+		}
+		overSelection = new OverSelection(snapshot, now, overSelected);
+		return overSelected;
+	}
+
+	/** Search state for closerPeerIndexed(), reused by each thread to avoid allocation. */
+	private class ClosestPeerFilter implements PeerRoutingIndex.EntryFilter<PeerNode> {
+		PeerNode pn;
+		Set<PeerNode> routedTo;
+		int minVersion;
+		short outgoingHTL;
+		long ignoreBackoffUnder;
+		boolean realTime;
+		long now;
+		boolean newLoadManagement;
+		double myLoc;
+		double prevLoc;
+		boolean[] overSelected;
+		/** The closest peer which we rejected only because it is backed off */
+		PeerNode closestBackedOff;
+
+		@Override
+		public boolean accept(PeerNode p, int peerIndex, double loc, boolean direct, double distance) {
+			if(!direct) {
+				if(!p.shallWeRouteAccordingToOurPeersLocation(outgoingHTL)) return false;
+				if(isExcludedLocation(loc)) return false;
+			}
+			if(!isRoutingCandidate(p, pn, routedTo, minVersion, overSelected != null && overSelected[peerIndex],
+					realTime, now, newLoadManagement))
+				return false;
+			if(p.isRoutingBackedOff(ignoreBackoffUnder, realTime)) {
+				if(closestBackedOff == null) {
+					if(logMINOR)
+						Logger.minor(PeerManager.this, "New best-backed-off: " + distance + " (" + loc + " for " + p.getPeer());
+					closestBackedOff = p;
+				}
+				return false;
+			}
+			if(logMINOR)
+				Logger.minor(PeerManager.this, "New best-not-backed-off: " + distance + " (" + loc + " for " + p.getPeer());
+			return true;
+		}
+
+		/** FOAF locations we must not route towards: ours, the previous hop's, and those of
+		 * nodes we have already routed to. */
+		private boolean isExcludedLocation(double loc) {
+			if(loc == myLoc || loc == prevLoc) return true;
+			for(PeerNode routedToNode : routedTo) {
+				if(loc == routedToNode.getLocation()) return true;
+			}
+			return false;
+		}
+	}
+
+	private final ThreadLocal<ClosestPeerFilter> closestPeerFilters = ThreadLocal.withInitial(() -> new ClosestPeerFilter());
+
+	/** closerPeer() for the common case of no failure table entry for the key. Walks outwards from
+	 * the target through the routing index and returns the first peer which is eligible and not
+	 * backed off, or failing that the closest eligible peer which is backed off.
+	 * @param maxDistance Ignore peers further than this from the target.
+	 */
+	private PeerNode closerPeerIndexed(PeerNode pn, Set<PeerNode> routedTo, double target, double maxDistance,
+			int minVersion, short outgoingHTL, long ignoreBackoffUnder, boolean realTime, long now,
+			boolean newLoadManagement, double myLoc, double prevLoc) {
+		PeerRoutingIndex.Snapshot<PeerNode> snapshot = getRoutingIndex();
+		ClosestPeerFilter filter = closestPeerFilters.get();
+		filter.pn = pn;
+		filter.routedTo = routedTo;
+		filter.minVersion = minVersion;
+		filter.outgoingHTL = outgoingHTL;
+		filter.ignoreBackoffUnder = ignoreBackoffUnder;
+		filter.realTime = realTime;
+		filter.now = now;
+		filter.newLoadManagement = newLoadManagement;
+		filter.myLoc = myLoc;
+		filter.prevLoc = prevLoc;
+		filter.overSelected = getOverSelected(snapshot, now);
+		filter.closestBackedOff = null;
+		try {
+			int entry = snapshot.findClosest(target, maxDistance, filter);
+			if(entry >= 0) return snapshot.getEntryPeer(entry);
+			if(filter.closestBackedOff != null && logMINOR)
+				Logger.minor(this, "Using best backed-off peer for key: " + filter.closestBackedOff.shortToString());
+			return filter.closestBackedOff;
+		} finally {
+			// Don't keep peers reachable from the thread.
+			filter.pn = null;
+			filter.routedTo = null;
+			filter.overSelected = null;
+			filter.closestBackedOff = null;
+		}
+	}
+
 	/**
 	 * @param peers 
 	 * @return The minimum number of peers which are waiting for timeouts due to RecentlyFailed or 
@@ -1435,62 +1747,71 @@ public class PeerManager {
 		return sb.toString();
 	}
 	
-	protected String getOpennetPeersString() {
-		StringBuilder sb = new StringBuilder();
-		PeerNode[] peers = myPeers();
+	/** @return The noderefs and metadata of the darknet or opennet peers, by identity. */
+	private static Map<String, SimpleFieldSet> exportPeers(PeerNode[] peers, boolean opennet) {
+		Map<String, SimpleFieldSet> records = new LinkedHashMap<String, SimpleFieldSet>();
 		for(PeerNode pn : peers) {
-			if(pn instanceof OpennetPeerNode)
-				sb.append(pn.exportDiskFieldSet().toOrderedString());
-		}
-		
-		return sb.toString();
-	}
-	
-	protected String getOldOpennetPeersString(OpennetManager om) {
-		StringBuilder sb = new StringBuilder();
-		for(PeerNode pn : om.getOldPeers()) {
-			if(pn instanceof OpennetPeerNode)
-				sb.append(pn.exportDiskFieldSet().toOrderedString());
+			if(opennet ? pn instanceof OpennetPeerNode : pn instanceof DarknetPeerNode)
+				records.put(pn.getIdentityString(), pn.exportDiskFieldSet());
 		}
-		
-		return sb.toString();
+		return records;
 	}
 	
 	private static final int BACKUPS_OPENNET = 1;
 	private static final int BACKUPS_DARKNET = 10;
 	
+	/**
+	 * Write the darknet peers to the journal. Only changed peers are written.
+	 * @param rotateBackups If true, this is an important change, so write it to disk now, and
+	 * also write the peers file and rotate its backups.
+	 */
 	private void writePeersInnerDarknet(boolean rotateBackups) {
-        String newDarknetPeersString = null;
+		Map<String, SimpleFieldSet> records = null;
+		String newDarknetPeersString = null;
 		synchronized(writePeersSync) {
-			if(darkFilename != null)
-				newDarknetPeersString = getDarknetPeersString();
+			if(darkFilename != null && journalSectionsRead.contains(JOURNAL_DARKNET)) {
+				records = exportPeers(myPeers(), false);
+				if(rotateBackups)
+					newDarknetPeersString = getDarknetPeersString();
+			}
 		}
+		if(records == null) return;
 		synchronized(writePeerFileSync) {
-			if(newDarknetPeersString != null && !newDarknetPeersString.equals(darknetPeersStringCache))
+			journal.setSection(JOURNAL_DARKNET, records);
+			if(newDarknetPeersString != null && !newDarknetPeersString.equals(darknetPeersStringCache)) {
 				writePeersInner(darkFilename, darknetPeersStringCache = newDarknetPeersString, BACKUPS_DARKNET, rotateBackups);
+				recordPeersFile(darkFilename);
+			}
 		}
+		if(rotateBackups)
+			journal.flush();
 	}
 
-	private void writePeersInnerOpennet(boolean rotateBackups) {
-        String newOpennetPeersString = null;
-        String newOldOpennetPeersString = null;
+	/**
+	 * Write the opennet peers and old opennet peers to the journal. Only changed peers are
+	 * written.
+	 * @param urgent If true, write to disk now, rather than with the next batch of changes.
+	 */
+	private void writePeersInnerOpennet(boolean urgent) {
+		Map<String, SimpleFieldSet> records = null;
+		Map<String, SimpleFieldSet> oldRecords = null;
 		synchronized(writePeersSync) {
 			OpennetManager om = node.getOpennet();
 			if(om != null) {
-				if(openFilename != null)
-					newOpennetPeersString = getOpennetPeersString();
-				oldOpennetPeersFilename = om.getOldPeersFilename();
-				newOldOpennetPeersString = getOldOpennetPeersString(om);
+				if(openFilename != null && journalSectionsRead.contains(JOURNAL_OPENNET))
+					records = exportPeers(myPeers(), true);
+				if(journalSectionsRead.contains(JOURNAL_OLD_OPENNET))
+					oldRecords = exportPeers(om.getOldPeers(), true);
 			}
 		}
 		synchronized(writePeerFileSync) {
-			if(newOpennetPeersString != null && !newOpennetPeersString.equals(opennetPeersStringCache)) {
-				writePeersInner(openFilename, opennetPeersStringCache = newOpennetPeersString, BACKUPS_OPENNET, rotateBackups);
-			}
-			if(newOldOpennetPeersString != null && !newOldOpennetPeersString.equals(oldOpennetPeersStringCache)) {
-				writePeersInner(oldOpennetPeersFilename, oldOpennetPeersStringCache = newOldOpennetPeersString, BACKUPS_OPENNET, rotateBackups);
-			}
+			if(records != null)
+				journal.setSection(JOURNAL_OPENNET, records);
+			if(oldRecords != null)
+				journal.setSection(JOURNAL_OLD_OPENNET, oldRecords);
 		}
+		if(urgent)
+			journal.flush();
 	}
 	
 	/**
@@ -2038,6 +2359,7 @@ public class PeerManager {
 			}
 			myPeers = keep.toArray(new PeerNode[keep.size()]);
 			connectedPeers = keep.toArray(new PeerNode[conn.size()]);
+			routingIndex.invalidate();
 		}
 		updatePMUserAlert();
 		notifyPeerStatusChangeListeners();
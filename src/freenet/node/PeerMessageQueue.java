@@ -1,5 +1,8 @@
 package freenet.node;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -9,6 +12,7 @@ import java.util.Map;
 import freenet.io.comm.DMT;
 import freenet.support.DoublyLinkedList;
 import freenet.support.DoublyLinkedListImpl;
+import freenet.support.HierarchicalTokenBucket;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -39,6 +43,16 @@ public class PeerMessageQueue {
 	private boolean mustSendLoadRT;
 	private boolean mustSendLoadBulk;
 	
+	/** Limits each BandwidthClass to its share of the output bandwidth. Null if not limited. */
+	private HierarchicalTokenBucket bandwidthLimiter;
+	/** If everything we tried to send last time was refused by the bandwidthLimiter, the
+	 * earliest time at which it might allow some of it. Reset when a message is queued. */
+	private long throttledUntil;
+	/** Maximum number of messages set aside in one priority because their bandwidth class was
+	 * over its share, before giving up on that priority. Round-robin between UID's means we
+	 * will usually reach a different transfer long before this. */
+	static final int MAX_DEFERRED = 8;
+	
 	private class PrioQueue {
 		
 		// FIXME refactor into PrioQueue and RoundRobinByUIDPrioQueue
@@ -775,6 +789,7 @@ public class PeerMessageQueue {
 			mustSendLoadRT = true;
 		if(addMe.sendLoadBulk)
 			mustSendLoadBulk = true;
+		throttledUntil = 0;
 	}
 
 	/**
@@ -791,6 +806,21 @@ public class PeerMessageQueue {
 			mustSendLoadRT = true;
 		if(addMe.sendLoadBulk)
 			mustSendLoadBulk = true;
+		throttledUntil = 0;
+	}
+
+	/** Put back a message taken by grabQueuedMessageItem() which couldn't be sent after all,
+	 * refunding its bandwidth class, as it will be charged again when it is next taken. */
+	synchronized void returnMessageItem(MessageItem item) {
+		if(bandwidthLimiter != null)
+			bandwidthLimiter.refund(item.bandwidthClass.ordinal(), item.getLength());
+		pushfrontPrioritizedMessageItem(item);
+	}
+
+	/** Only send messages whose bandwidth class is within its share of the output bandwidth.
+	 * Messages are charged to their class when they are taken from the queue. */
+	synchronized void setBandwidthLimiter(HierarchicalTokenBucket limiter) {
+		bandwidthLimiter = limiter;
 	}
 
 	public synchronized MessageItem[] grabQueuedMessageItems() {
@@ -818,10 +848,14 @@ public class PeerMessageQueue {
 	 * @return The next urgent time, but can be too high if it is less than now.
 	 */
 	public synchronized long getNextUrgentTime(long t, long returnIfBefore) {
+		long max = t;
 		for(PrioQueue queue: queuesByPriority) {
 			t = Math.min(t, queue.getNextUrgentTime(t, returnIfBefore));
-			if(t <= returnIfBefore) return t; // How much in the past doesn't matter, as long as it's in the past.
+			if(t <= returnIfBefore) break; // How much in the past doesn't matter, as long as it's in the past.
 		}
+		// Everything which was urgent was refused by the bandwidth limiter, so don't try again
+		// until it might be allowed.
+		if(throttledUntil > t) t = Math.min(max, throttledUntil);
 		return t;
 	}
 
@@ -859,7 +893,50 @@ public class PeerMessageQueue {
 	 * check in advance if possible. */
 	public synchronized MessageItem grabQueuedMessageItem(int minPriority) {
 		long now = System.currentTimeMillis();
-		
+		if(bandwidthLimiter == null)
+			return innerGrabQueuedMessageItem(minPriority, now, null);
+		ArrayList<MessageItem> deferred = new ArrayList<MessageItem>(0);
+		MessageItem ret = innerGrabQueuedMessageItem(minPriority, now, deferred);
+		if(deferred.isEmpty()) return ret;
+		long wait = Long.MAX_VALUE;
+		// Put them back in the order they were taken.
+		for(int i=deferred.size()-1;i>=0;i--) {
+			MessageItem item = deferred.get(i);
+			pushfrontPrioritizedMessageItem(item);
+			wait = Math.min(wait, bandwidthLimiter.nanosUntilMayGrab(item.bandwidthClass.ordinal()));
+		}
+		if(ret == null) {
+			throttledUntil = now + NANOSECONDS.toMillis(wait) + 1;
+			if(logMINOR) Logger.minor(this, "Bandwidth limited "+deferred.size()+" messages until "+throttledUntil);
+		}
+		return ret;
+	}
+
+	/** Take a message from one priority, setting aside any which their bandwidth class isn't
+	 * allowed to send yet.
+	 * @param deferred Messages set aside, which the caller must put back. Null if we aren't
+	 * limiting by bandwidth class. */
+	private MessageItem addPriorityMessages(int prio, long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk, ArrayList<MessageItem> deferred) {
+		for(int i=0;i<MAX_DEFERRED;i++) {
+			MessageItem item = queuesByPriority[prio].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			if(item == null || deferred == null) return item;
+			// Once a class has been refused, refuse the rest of its messages too, so that messages
+			// within a transfer aren't reordered if the limiter changes its mind.
+			if(!isDeferred(item.bandwidthClass, deferred) &&
+					bandwidthLimiter.tryGrab(item.bandwidthClass.ordinal(), item.getLength())) return item;
+			if(logDEBUG) Logger.debug(this, "Bandwidth class "+item.bandwidthClass+" over its share, not sending "+item);
+			deferred.add(item);
+		}
+		return null;
+	}
+
+	private static boolean isDeferred(BandwidthClass c, ArrayList<MessageItem> deferred) {
+		for(MessageItem item : deferred)
+			if(item.bandwidthClass == c) return true;
+		return false;
+	}
+
+	private MessageItem innerGrabQueuedMessageItem(int minPriority, long now, ArrayList<MessageItem> deferred) {
 		MutableBoolean addPeerLoadStatsRT = new MutableBoolean();
 		MutableBoolean addPeerLoadStatsBulk = new MutableBoolean();
 		
@@ -869,7 +946,7 @@ public class PeerMessageQueue {
 		for(int i=0;i<DMT.PRIORITY_REALTIME_DATA;i++) {
 			if(i < minPriority) continue;
 			if(logMINOR) Logger.minor(this, "Adding from priority "+i);
-			MessageItem ret = queuesByPriority[i].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			MessageItem ret = addPriorityMessages(i, now, addPeerLoadStatsRT, addPeerLoadStatsBulk, deferred);
 			if(ret != null) return ret;
 		}
 		
@@ -891,28 +968,29 @@ public class PeerMessageQueue {
 			tryRealtimeFirst = false;
 		}
 		
-		// FIXME token bucket?
+		// Whichever goes first, the bandwidth limiter stops bulk starving realtime, or vice
+		// versa, beyond their configured shares.
 		if(tryRealtimeFirst) {
 			// Try realtime first
 			if(logMINOR) Logger.minor(this, "Trying realtime first");
-			MessageItem ret = queuesByPriority[DMT.PRIORITY_REALTIME_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			MessageItem ret = addPriorityMessages(DMT.PRIORITY_REALTIME_DATA, now, addPeerLoadStatsRT, addPeerLoadStatsBulk, deferred);
 			if(ret != null) return ret;
 			if(logMINOR) Logger.minor(this, "Trying bulk");
-			ret = queuesByPriority[DMT.PRIORITY_BULK_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			ret = addPriorityMessages(DMT.PRIORITY_BULK_DATA, now, addPeerLoadStatsRT, addPeerLoadStatsBulk, deferred);
 			if(ret != null) return ret;
 		} else {
 			// Try bulk first
 			if(logMINOR) Logger.minor(this, "Trying bulk first");
-			MessageItem ret = queuesByPriority[DMT.PRIORITY_BULK_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			MessageItem ret = addPriorityMessages(DMT.PRIORITY_BULK_DATA, now, addPeerLoadStatsRT, addPeerLoadStatsBulk, deferred);
 			if(ret != null) return ret;
 			if(logMINOR) Logger.minor(this, "Trying realtime");
-			ret = queuesByPriority[DMT.PRIORITY_REALTIME_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			ret = addPriorityMessages(DMT.PRIORITY_REALTIME_DATA, now, addPeerLoadStatsRT, addPeerLoadStatsBulk, deferred);
 			if(ret != null) return ret;
 		}
 		for(int i=DMT.PRIORITY_BULK_DATA+1;i<DMT.NUM_PRIORITIES;i++) {
 			if(i < minPriority) continue;
 			if(logMINOR) Logger.minor(this, "Adding from priority "+i);
-			MessageItem ret = queuesByPriority[i].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			MessageItem ret = addPriorityMessages(i, now, addPeerLoadStatsRT, addPeerLoadStatsBulk, deferred);
 			if(ret != null) return ret;
 		}
 		// Nothing to send.
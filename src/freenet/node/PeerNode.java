@@ -616,6 +616,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		probeRequestsInterval = new SimpleRunningAverage(50, Node.MIN_INTERVAL_BETWEEN_INCOMING_PROBE_REQUESTS);
 
 		messageQueue = new PeerMessageQueue();
+		messageQueue.setBandwidthLimiter(node.getBandwidthManager().getLimiter());
 
 		decrementHTLAtMaximum = node.getRandom().nextFloat() < Node.DECREMENT_AT_MAX_PROB;
 		decrementHTLAtMinimum = node.getRandom().nextFloat() < Node.DECREMENT_AT_MIN_PROB;
@@ -1742,8 +1743,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void updateLocation(double newLoc, double[] newLocs) {
 		boolean anythingChanged = location.updateLocation(newLoc, newLocs);
 		node.getPeers().updatePMUserAlert();
-		if(anythingChanged)
+		if(anythingChanged) {
+		    node.getPeers().onPeerLocationChanged();
 		    writePeers();
+		}
 		setPeerNodeStatus(System.currentTimeMillis());
 	}
 
@@ -2518,6 +2521,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 					if(!Location.isValid(oldLoc))
 						shouldUpdatePeerCounts = true;
 					changedAnything = true;
+					node.getPeers().onPeerLocationChanged();
 				}
 			}
 		}
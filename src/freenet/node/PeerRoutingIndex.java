@@ -0,0 +1,204 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the locations of our connected peers, and of their peers (FOAF locations), sorted
+ * around the circular keyspace. Used by {@link PeerManager#closerPeer} so that finding the
+ * closest eligible peer to a key means walking outwards from the key's position (found by binary
+ * search) and stopping at the first acceptable entry, rather than examining every location of
+ * every peer on every routed request.
+ *
+ * The index is an immutable {@link Snapshot}. Anything which changes the set of connected peers
+ * or their locations must call {@link #invalidate()}; the next lookup then rebuilds it. Peer
+ * state which changes with time (backoff, failure table timeouts) is deliberately not indexed;
+ * the {@link EntryFilter} checks it lazily for only the entries actually visited.
+ *
+ * @param <T> The type of a peer. PeerManager uses PeerNode; tests use anything.
+ */
+public class PeerRoutingIndex<T> {
+
+	/** Decides whether a visited entry is acceptable. Implementations may keep state, e.g. the
+	 * closest entry which was rejected only because the peer was backed off. */
+	public interface EntryFilter<T> {
+		/**
+		 * @param peer The peer owning the entry.
+		 * @param peerIndex The index of the peer in the snapshot, for use with per-peer caches.
+		 * @param location The location of the entry: the peer's own location if direct, otherwise
+		 * one of its peers' locations.
+		 * @param direct True if the location is the peer's own location.
+		 * @param distance The distance from the location to the target.
+		 * @return True to stop the search and return this entry.
+		 */
+		boolean accept(T peer, int peerIndex, double location, boolean direct, double distance);
+	}
+
+	public static final class Snapshot<T> {
+		private final T[] peers;
+		/** Sorted locations of all entries */
+		private final double[] locations;
+		/** For each entry, the index of the peer it belongs to */
+		private final int[] owners;
+		/** For each entry, whether it is the peer's own location (rather than a FOAF location) */
+		private final boolean[] direct;
+		private final long version;
+
+		private Snapshot(T[] peers, double[] locations, int[] owners, boolean[] direct, long version) {
+			this.peers = peers;
+			this.locations = locations;
+			this.owners = owners;
+			this.direct = direct;
+			this.version = version;
+		}
+
+		/** @return The number of peers in the snapshot. */
+		public int countPeers() {
+			return peers.length;
+		}
+
+		public T getPeer(int peerIndex) {
+			return peers[peerIndex];
+		}
+
+		/** @return The number of locations (direct and FOAF) in the snapshot. */
+		public int size() {
+			return locations.length;
+		}
+
+		/**
+		 * Visit entries in order of increasing distance from the target, until the filter accepts
+		 * one or the distance exceeds maxDistance. Entries at exactly maxDistance are visited.
+		 * Does not allocate.
+		 * @return The index of the accepted entry, or -1.
+		 */
+		public int findClosest(double target, double maxDistance, EntryFilter<? super T> filter) {
+			final int n = locations.length;
+			if(n == 0) return -1;
+			int right = ceilingEntry(target);
+			int left = (right == 0) ? n - 1 : right - 1;
+			for(int visited = 0; visited < n; visited++) {
+				double leftDist = Location.distance(locations[left], target);
+				double rightDist = Location.distance(locations[right], target);
+				int entry;
+				double distance;
+				if(leftDist <= rightDist) {
+					entry = left;
+					distance = leftDist;
+					left = (left == 0) ? n - 1 : left - 1;
+				} else {
+					entry = right;
+					distance = rightDist;
+					right = (right == n - 1) ? 0 : right + 1;
+				}
+				if(distance > maxDistance) return -1;
+				int owner = owners[entry];
+				if(filter.accept(peers[owner], owner, locations[entry], direct[entry], distance))
+					return entry;
+			}
+			return -1;
+		}
+
+		public T getEntryPeer(int entry) {
+			return peers[owners[entry]];
+		}
+
+		public double getEntryLocation(int entry) {
+			return locations[entry];
+		}
+
+		public boolean isEntryDirect(int entry) {
+			return direct[entry];
+		}
+
+		/** @return The first entry whose location is at least the target, wrapping around to 0. */
+		private int ceilingEntry(double target) {
+			int low = 0;
+			int high = locations.length;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(locations[mid] < target)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low == locations.length ? 0 : low;
+		}
+	}
+
+	private final AtomicLong version = new AtomicLong();
+	private volatile Snapshot<T> snapshot;
+
+	/** Mark the index as out of date. Cheap, may be called from anywhere. */
+	public void invalidate() {
+		version.incrementAndGet();
+	}
+
+	/** @return The current snapshot, or null if it must be rebuilt. */
+	public Snapshot<T> current() {
+		Snapshot<T> s = snapshot;
+		if(s == null || s.version != version.get()) return null;
+		return s;
+	}
+
+	/** @return A version number to pass to {@link #rebuild}. Must be read before reading the peers'
+	 * locations, so that changes made while we rebuild invalidate the result. */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Build a new snapshot and make it current.
+	 * @param version The value of {@link #getVersion()} before reading the locations.
+	 * @param peers The connected peers.
+	 * @param peerLocations The location of each peer. Invalid locations are not indexed.
+	 * @param foafLocations The locations of each peer's peers; an element may be null.
+	 */
+	public Snapshot<T> rebuild(long version, T[] peers, double[] peerLocations, double[][] foafLocations) {
+		int count = 0;
+		for(int i = 0; i < peers.length; i++) {
+			if(Location.isValid(peerLocations[i])) count++;
+			if(foafLocations[i] != null) count += foafLocations[i].length;
+		}
+		// Collect the entries unsorted, then sort them by location. Only done when something
+		// changes, so the allocation here doesn't matter.
+		double[] locs = new double[count];
+		int[] owners = new int[count];
+		boolean[] direct = new boolean[count];
+		int x = 0;
+		for(int i = 0; i < peers.length; i++) {
+			if(Location.isValid(peerLocations[i])) {
+				locs[x] = peerLocations[i];
+				owners[x] = i;
+				direct[x] = true;
+				x++;
+			}
+			if(foafLocations[i] == null) continue;
+			for(double l : foafLocations[i]) {
+				locs[x] = l;
+				owners[x] = i;
+				x++;
+			}
+		}
+		Integer[] order = new Integer[count];
+		for(int i = 0; i < count; i++) order[i] = i;
+		final double[] unsorted = locs;
+		Arrays.sort(order, (a, b) -> Double.compare(unsorted[a], unsorted[b]));
+		double[] sortedLocs = new double[count];
+		int[] sortedOwners = new int[count];
+		boolean[] sortedDirect = new boolean[count];
+		for(int i = 0; i < count; i++) {
+			int e = order[i];
+			sortedLocs[i] = locs[e];
+			sortedOwners[i] = owners[e];
+			sortedDirect[i] = direct[e];
+		}
+		Snapshot<T> s = new Snapshot<T>(peers, sortedLocs, sortedOwners, sortedDirect, version);
+		snapshot = s;
+		return s;
+	}
+
+}
@@ -0,0 +1,503 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Ticker;
+import freenet.support.io.FileUtil;
+
+/**
+ * Append-only journal of peer state: noderefs and peer metadata, and darknet peers' extra peer
+ * data (N2NTMs, notes, bookmarks etc). Saves rewriting whole peers files whenever anything
+ * changes, and writing a file for each extra peer data item.
+ *
+ * The state is a set of sections, each holding SimpleFieldSet records by id, e.g. section
+ * "opennet" holds a record for each opennet peer by identity. Changes are appended to the file
+ * as they are made, and written to disk in batches, so that many changes cost a single fsync.
+ * When most of the file is records which have since been replaced or removed, it is compacted
+ * by writing the current state to a new file and renaming it over the old one. The whole file is
+ * read sequentially on startup.
+ *
+ * Some fields change all the time but don't matter much, e.g. when a peer last sent a packet. A
+ * record in which only these have changed is updated in memory, but isn't written until the file
+ * is compacted or closed, so it is lost in a crash.
+ *
+ * On disk, each change is a SimpleFieldSet, with Op (create or delete a section, put or remove a
+ * record), Section, Id, and the record itself under Data. A change which was only partly written
+ * when the node stopped has no end marker, and is discarded along with anything after it.
+ */
+public class PeerStateJournal {
+
+	/** How long to wait before writing changes to disk, so that they are batched. */
+	static final long FLUSH_DELAY = SECONDS.toMillis(10);
+	/** Don't compact until the file is at least this big. */
+	static final long MIN_COMPACT_SIZE = 1024 * 1024;
+	/** Compact when the file is this many times the size of the current state. */
+	static final int COMPACT_RATIO = 4;
+
+	private static final String OP_CREATE = "create";
+	private static final String OP_DELETE = "delete";
+	private static final String OP_PUT = "put";
+	private static final String OP_REMOVE = "remove";
+	private static final String END_MARKER = "End";
+
+	private final File file;
+	/** If not null, used to write changes to disk after FLUSH_DELAY. */
+	private final Ticker ticker;
+	/** Keys of the volatile fields, as they appear in a change, e.g. Data.metadata.timeLastConnected */
+	private final Set<String> volatileKeys = new HashSet<String>();
+	/** The current records by section and id, each as it is written to disk, in the order they
+	 * were first added. */
+	private final Map<String, LinkedHashMap<String, String>> sections = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+	/** Changes not yet written to disk. */
+	private StringBuilder pending = new StringBuilder();
+	/** Characters in the file, including pending changes. */
+	private long fileLength;
+	/** Characters in the current state, i.e. in the file after compaction. */
+	private long liveLength;
+	private boolean flushQueued;
+	/** Set if records have changed in memory but not on disk, because only volatile fields
+	 * changed. */
+	private boolean volatileChanged;
+	private boolean opened;
+	/** Set by close(). Later changes are kept in memory but not written. */
+	private boolean closed;
+	/** Taken before the journal's own lock, while writing to disk. */
+	private final Object fileSync = new Object();
+	/** The file, open for appending. Protected by fileSync. */
+	private Writer out;
+	private FileOutputStream fos;
+
+	private final Runnable flushJob = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+
+	};
+
+	/**
+	 * @param file The journal file. Need not exist yet.
+	 * @param ticker Used to write changes to disk after FLUSH_DELAY. If null, changes are only
+	 * written by flush().
+	 */
+	public PeerStateJournal(File file, Ticker ticker) {
+		this(file, ticker, new String[0]);
+	}
+
+	/**
+	 * @param file The journal file. Need not exist yet.
+	 * @param ticker Used to write changes to disk after FLUSH_DELAY. If null, changes are only
+	 * written by flush().
+	 * @param volatileFields Fields of the records, e.g. "metadata.timeLastConnected", which are
+	 * only written when the file is compacted or closed.
+	 */
+	public PeerStateJournal(File file, Ticker ticker, String[] volatileFields) {
+		this.file = file;
+		this.ticker = ticker;
+		for(String field : volatileFields)
+			volatileKeys.add("Data." + field);
+	}
+
+	/** Read the journal, compacting it if it was not cleanly written. Must be called before
+	 * anything else. If the file can't be read, it is moved aside and we start empty. */
+	public void open() {
+		synchronized(fileSync) {
+			boolean compact;
+			synchronized(this) {
+				if(opened) throw new IllegalStateException("Already open");
+				opened = true;
+				try {
+					compact = !read();
+				} catch (IOException e) {
+					File corrupt = new File(file.getPath()+".corrupt");
+					Logger.error(this, "Cannot read peer state journal "+file+", moving it to "+corrupt+": "+e, e);
+					System.err.println("Cannot read peer state journal "+file+", moving it to "+corrupt+": "+e);
+					sections.clear();
+					corrupt.delete();
+					FileUtil.renameTo(file, corrupt);
+					compact = true;
+				}
+			}
+			if(compact)
+				compact();
+			else
+				openForAppend();
+		}
+	}
+
+	/** @return False if the last change was incomplete, or the file doesn't end with a complete
+	 * line, so it must be rewritten before we can append to it. */
+	private boolean read() throws IOException {
+		FileInputStream fis;
+		try {
+			fis = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			return true;
+		}
+		int changes = 0;
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(fis, StandardCharsets.UTF_8))) {
+			while(true) {
+				SimpleFieldSet fs;
+				try {
+					fs = new SimpleFieldSet(br, false, true);
+				} catch (EOFException e) {
+					break;
+				}
+				if(!END_MARKER.equals(fs.getEndMarker()) || !apply(fs)) {
+					Logger.error(this, "Discarding incomplete change at the end of "+file+" after "+changes+" changes");
+					return false;
+				}
+				changes++;
+			}
+		} finally {
+			Logger.normal(this, "Read "+changes+" changes from "+file+", "+liveLength+" of "+fileLength+" characters current");
+		}
+		if(!endsWithNewline()) {
+			// The last line is complete as far as the reader is concerned, but the next change
+			// would be appended to it.
+			Logger.error(this, "No newline at the end of "+file);
+			return false;
+		}
+		return true;
+	}
+
+	private boolean endsWithNewline() throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			long length = raf.length();
+			if(length == 0) return true;
+			raf.seek(length - 1);
+			return raf.read() == '\n';
+		}
+	}
+
+	/** Apply a change read from disk. @return False if it is not a valid change. */
+	private boolean apply(SimpleFieldSet fs) {
+		String op = fs.get("Op");
+		String section = fs.get("Section");
+		if(op == null || section == null) return false;
+		String record = fs.toOrderedString();
+		fileLength += record.length();
+		if(op.equals(OP_CREATE)) {
+			createSection(section);
+		} else if(op.equals(OP_DELETE)) {
+			deleteSectionInner(section);
+		} else {
+			String id = fs.get("Id");
+			if(id == null) return false;
+			if(op.equals(OP_PUT)) {
+				if(fs.subset("Data") == null) return false;
+				putInner(createSection(section), id, record);
+			} else if(op.equals(OP_REMOVE)) {
+				removeInner(section, id);
+			} else
+				return false;
+		}
+		return true;
+	}
+
+	/** @return True if the section has been created, even if it is empty. */
+	public synchronized boolean hasSection(String section) {
+		return sections.containsKey(section);
+	}
+
+	/** @return The records in a section, by id, in the order they were added, or null if the
+	 * section doesn't exist. The records are copies, so the caller may change them. */
+	public synchronized LinkedHashMap<String, SimpleFieldSet> getSection(String section) {
+		LinkedHashMap<String, String> records = sections.get(section);
+		if(records == null) return null;
+		LinkedHashMap<String, SimpleFieldSet> ret = new LinkedHashMap<String, SimpleFieldSet>();
+		for(Map.Entry<String, String> entry : records.entrySet())
+			ret.put(entry.getKey(), parse(entry.getValue()));
+		return ret;
+	}
+
+	/** @return A copy of the record, or null. */
+	public synchronized SimpleFieldSet get(String section, String id) {
+		LinkedHashMap<String, String> records = sections.get(section);
+		if(records == null) return null;
+		String record = records.get(id);
+		return record == null ? null : parse(record);
+	}
+
+	/** Add or replace a record, creating the section if necessary. Does nothing if the record
+	 * hasn't changed, and only updates it in memory if just the volatile fields have. */
+	public synchronized void put(String section, String id, SimpleFieldSet data) {
+		checkOpen();
+		LinkedHashMap<String, String> records = sections.get(section);
+		if(records == null) {
+			records = createSection(section);
+			append(change(OP_CREATE, section, null, null));
+		}
+		String record = change(OP_PUT, section, id, data);
+		String old = records.get(id);
+		if(record.equals(old)) return;
+		putInner(records, id, record);
+		if(old != null && !volatileKeys.isEmpty() && withoutVolatile(record).equals(withoutVolatile(old))) {
+			volatileChanged = true;
+			return;
+		}
+		append(record);
+	}
+
+	/** @return The change without the lines for volatile fields. */
+	private String withoutVolatile(String change) {
+		StringBuilder sb = new StringBuilder(change.length());
+		for(String line : change.split("\n")) {
+			int eq = line.indexOf('=');
+			if(eq >= 0 && volatileKeys.contains(line.substring(0, eq))) continue;
+			sb.append(line).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public synchronized void remove(String section, String id) {
+		checkOpen();
+		if(removeInner(section, id))
+			append(change(OP_REMOVE, section, id, null));
+	}
+
+	/** Make a section hold exactly the given records, creating it if necessary. Only the
+	 * records which have changed are written. */
+	public synchronized void setSection(String section, Map<String, SimpleFieldSet> records) {
+		checkOpen();
+		if(!sections.containsKey(section)) {
+			createSection(section);
+			append(change(OP_CREATE, section, null, null));
+		}
+		for(String id : new ArrayList<String>(sections.get(section).keySet()))
+			if(!records.containsKey(id))
+				remove(section, id);
+		for(Map.Entry<String, SimpleFieldSet> entry : records.entrySet())
+			put(section, entry.getKey(), entry.getValue());
+	}
+
+	/** Remove a section and all its records. */
+	public synchronized void deleteSection(String section) {
+		checkOpen();
+		if(deleteSectionInner(section))
+			append(change(OP_DELETE, section, null, null));
+	}
+
+	private LinkedHashMap<String, String> createSection(String section) {
+		LinkedHashMap<String, String> records = sections.get(section);
+		if(records == null) {
+			records = new LinkedHashMap<String, String>();
+			sections.put(section, records);
+			liveLength += change(OP_CREATE, section, null, null).length();
+		}
+		return records;
+	}
+
+	private boolean deleteSectionInner(String section) {
+		LinkedHashMap<String, String> records = sections.remove(section);
+		if(records == null) return false;
+		for(String record : records.values())
+			liveLength -= record.length();
+		liveLength -= change(OP_CREATE, section, null, null).length();
+		return true;
+	}
+
+	private void putInner(LinkedHashMap<String, String> records, String id, String record) {
+		String old = records.put(id, record);
+		if(old != null) liveLength -= old.length();
+		liveLength += record.length();
+	}
+
+	private boolean removeInner(String section, String id) {
+		LinkedHashMap<String, String> records = sections.get(section);
+		if(records == null) return false;
+		String old = records.remove(id);
+		if(old == null) return false;
+		liveLength -= old.length();
+		return true;
+	}
+
+	private static String change(String op, String section, String id, SimpleFieldSet data) {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Op", op);
+		fs.putSingle("Section", section);
+		if(id != null) fs.putSingle("Id", id);
+		if(data != null) fs.put("Data", data);
+		return fs.toOrderedString();
+	}
+
+	private SimpleFieldSet parse(String record) {
+		try {
+			return new SimpleFieldSet(record, false, false, false).subset("Data");
+		} catch (IOException e) {
+			// Impossible, we wrote it.
+			throw new Error(e);
+		}
+	}
+
+	private void checkOpen() {
+		if(!opened) throw new IllegalStateException("Not open");
+	}
+
+	private void append(String change) {
+		pending.append(change);
+		fileLength += change.length();
+		if(ticker != null && !flushQueued) {
+			flushQueued = true;
+			ticker.queueTimedJob(flushJob, "Write peer state journal", FLUSH_DELAY, false, true);
+		}
+	}
+
+	/** Write any changes to disk now, and compact the file if it is mostly out of date. Errors
+	 * are logged, and the changes are kept in memory so they will be written on compaction.
+	 * Changes to only volatile fields are not written.
+	 * @return True if all changes so far are on disk. */
+	public boolean flush() {
+		return flush(false);
+	}
+
+	/** @param volatileToo If true, compact the file if that is the only way to write changes to
+	 * volatile fields. */
+	private boolean flush(boolean volatileToo) {
+		synchronized(fileSync) {
+			String toWrite;
+			boolean compact;
+			synchronized(this) {
+				flushQueued = false;
+				if(!opened || closed) return false;
+				toWrite = pending.toString();
+				pending = new StringBuilder();
+				compact = (fileLength > MIN_COMPACT_SIZE && fileLength > liveLength * COMPACT_RATIO) ||
+						(volatileToo && volatileChanged);
+			}
+			if(compact || out == null) {
+				// Compaction writes everything, including the pending changes.
+				return compact();
+			}
+			if(toWrite.isEmpty()) return true;
+			try {
+				out.write(toWrite);
+				out.flush();
+				fos.getFD().sync();
+				return true;
+			} catch (IOException e) {
+				Logger.error(this, "Cannot write peer state journal "+file+": "+e, e);
+				// The file may now end with a partial change. Rewrite it from scratch.
+				return compact();
+			}
+		}
+	}
+
+	/** Write the current state to a new file and replace the journal with it.
+	 * @return True if the state is now on disk. */
+	private boolean compact() {
+		assert(Thread.holdsLock(fileSync));
+		closeFile();
+		StringBuilder sb = new StringBuilder();
+		synchronized(this) {
+			for(Map.Entry<String, LinkedHashMap<String, String>> entry : sections.entrySet()) {
+				sb.append(change(OP_CREATE, entry.getKey(), null, null));
+				for(String record : entry.getValue().values())
+					sb.append(record);
+			}
+			pending = new StringBuilder();
+			fileLength = sb.length();
+			volatileChanged = false;
+		}
+		File full = file.getAbsoluteFile();
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(full.getName()+".", ".tmp", full.getParentFile());
+			try (FileOutputStream tmpStream = new FileOutputStream(tmp);
+					Writer w = new OutputStreamWriter(tmpStream, StandardCharsets.UTF_8)) {
+				w.write(sb.toString());
+				w.flush();
+				tmpStream.getFD().sync();
+			}
+			if(!FileUtil.renameTo(tmp, full))
+				throw new IOException("Cannot rename "+tmp+" to "+full);
+			tmp = null;
+			Logger.normal(this, "Compacted "+file+" to "+sb.length()+" characters");
+		} catch (IOException e) {
+			// Keep what we have in memory. The file isn't open, so the next flush() will try
+			// again.
+			Logger.error(this, "Cannot compact peer state journal "+file+": "+e, e);
+			synchronized(this) {
+				volatileChanged = true;
+			}
+			return false;
+		} finally {
+			if(tmp != null) tmp.delete();
+		}
+		openForAppend();
+		return true;
+	}
+
+	private void openForAppend() {
+		assert(Thread.holdsLock(fileSync));
+		try {
+			fos = new FileOutputStream(file, true);
+			out = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+		} catch (FileNotFoundException e) {
+			Logger.error(this, "Cannot open peer state journal "+file+" for writing: "+e, e);
+			fos = null;
+			out = null;
+		}
+	}
+
+	private void closeFile() {
+		try {
+			// Closing the writer closes the stream.
+			if(out != null)
+				out.close();
+			else if(fos != null)
+				fos.close();
+		} catch (IOException e) {
+			Logger.error(this, "Cannot close peer state journal "+file+": "+e, e);
+		} finally {
+			out = null;
+			fos = null;
+		}
+	}
+
+	/** Write any changes, including to volatile fields, and close the file. */
+	public void close() {
+		synchronized(fileSync) {
+			flush(true);
+			closeFile();
+			synchronized(this) {
+				closed = true;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+
+	/** For tests. */
+	synchronized long getFileLength() {
+		return fileLength;
+	}
+
+}
@@ -0,0 +1,178 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * Runs independent parts of node startup, such as opening each datastore, in parallel. Each task
+ * can depend on tasks submitted before it, and only starts once they have all succeeded. If a task
+ * fails, everything which depends on it fails too, and waitFor() throws.
+ *
+ * Tasks must not wait for each other other than through dependencies, and must be safe to run on
+ * another thread than the Node constructor.
+ */
+public class StartupExecutor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(StartupExecutor.class);
+	}
+
+	public interface Task {
+		void run() throws Exception;
+	}
+
+	private class Job implements Runnable {
+		final String name;
+		final Task task;
+		/** Number of dependencies which haven't finished yet */
+		int waitingFor;
+		final ArrayList<Job> dependents = new ArrayList<Job>();
+		boolean started;
+		boolean finished;
+		Throwable failure;
+
+		Job(String name, Task task) {
+			this.name = name;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			long start = System.currentTimeMillis();
+			Throwable failure = null;
+			try {
+				task.run();
+			} catch (Throwable t) {
+				failure = t;
+			}
+			long end = System.currentTimeMillis();
+			if(timer != null) timer.task(name, start, end);
+			if(failure != null)
+				Logger.error(this, "Startup task "+name+" failed: "+failure, failure);
+			else if(logMINOR)
+				Logger.minor(this, "Startup task "+name+" took "+(end-start)+"ms");
+			finished(this, failure);
+		}
+	}
+
+	private final Executor executor;
+	private final StartupTimer timer;
+	private final HashMap<String, Job> jobs;
+
+	/**
+	 * @param executor Runs the tasks. If null, each task is run on the calling thread when it is
+	 * submitted, i.e. everything runs in sequence.
+	 * @param timer Records how long each task took. Can be null.
+	 */
+	public StartupExecutor(Executor executor, StartupTimer timer) {
+		this.executor = executor;
+		this.timer = timer;
+		jobs = new HashMap<String, Job>();
+	}
+
+	/**
+	 * Run a task once the tasks it depends on have succeeded.
+	 * @param name Unique name for the task, used for dependencies and in the timing report.
+	 * @param dependencies Tasks which must have been submitted already.
+	 */
+	public void submit(String name, Task task, String... dependencies) {
+		Job job = new Job(name, task);
+		Throwable failed = null;
+		synchronized(this) {
+			if(jobs.containsKey(name)) throw new IllegalArgumentException("Already have a task called "+name);
+			for(String dependency : dependencies) {
+				Job dep = jobs.get(dependency);
+				if(dep == null) throw new IllegalArgumentException("Unknown dependency "+dependency+" of "+name);
+				if(dep.failure != null) {
+					failed = dep.failure;
+				} else if(!dep.finished) {
+					job.waitingFor++;
+					dep.dependents.add(job);
+				}
+			}
+			jobs.put(name, job);
+			if(failed == null && job.waitingFor == 0)
+				job.started = true;
+		}
+		if(failed != null)
+			finished(job, failed);
+		else if(job.started)
+			start(job);
+	}
+
+	private void start(Job job) {
+		if(executor == null)
+			job.run();
+		else
+			executor.execute(job, "Startup: "+job.name);
+	}
+
+	private void finished(Job job, Throwable failure) {
+		ArrayList<Job> toStart = new ArrayList<Job>();
+		ArrayList<Job> toFail = new ArrayList<Job>();
+		synchronized(this) {
+			job.finished = true;
+			job.failure = failure;
+			for(Job dependent : job.dependents) {
+				if(dependent.finished || dependent.started) continue;
+				if(failure != null) {
+					// Don't run it, but don't fail it twice either.
+					dependent.started = true;
+					toFail.add(dependent);
+				} else if(--dependent.waitingFor == 0) {
+					dependent.started = true;
+					toStart.add(dependent);
+				}
+			}
+			notifyAll();
+		}
+		for(Job dependent : toFail)
+			finished(dependent, failure);
+		for(Job dependent : toStart)
+			start(dependent);
+	}
+
+	/**
+	 * Wait for some tasks to finish.
+	 * @throws ExecutionException If any of them failed, or a task they depend on failed. The
+	 * cause is what the task threw.
+	 */
+	public void waitFor(String... names) throws ExecutionException {
+		Throwable failure = null;
+		synchronized(this) {
+			for(String name : names) {
+				Job job = jobs.get(name);
+				if(job == null) throw new IllegalArgumentException("Unknown task "+name);
+				while(!job.finished) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				if(job.failure != null && failure == null)
+					failure = job.failure;
+			}
+		}
+		if(failure != null) throw new ExecutionException(failure);
+	}
+
+	/** Wait for every task submitted so far. */
+	public void waitForAll() throws ExecutionException {
+		String[] names;
+		synchronized(this) {
+			names = jobs.keySet().toArray(new String[jobs.size()]);
+		}
+		waitFor(names);
+	}
+
+}
@@ -0,0 +1,123 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+
+import freenet.support.Logger;
+import freenet.support.TimeUtil;
+
+/**
+ * Records how long each part of node startup took, so we can see what is slowing down the time
+ * until the node can handle its first request. Phases are the sequential steps of the Node
+ * constructor and Node.start(); tasks are run by a StartupExecutor, possibly in parallel with
+ * each other and with the phases.
+ */
+public class StartupTimer {
+
+	public static class Phase {
+		public final String name;
+		/** When it started, relative to the start of startup */
+		public final long start;
+		public final long duration;
+		/** True if it ran on another thread, in parallel with other work */
+		public final boolean parallel;
+
+		Phase(String name, long start, long duration, boolean parallel) {
+			this.name = name;
+			this.start = start;
+			this.duration = duration;
+			this.parallel = parallel;
+		}
+
+		@Override
+		public String toString() {
+			return name+(parallel ? " (parallel)" : "")+": "+format(duration)+" at "+format(start);
+		}
+	}
+
+	private final long startTime;
+	/** The end of the last sequential phase */
+	private long lastPhaseEnd;
+	private final ArrayList<Phase> phases;
+	/** Time from the start until the node was started, or -1 */
+	private long timeToReady = -1;
+	/** Time from the start until the first request from another node, or -1 */
+	private volatile long timeToFirstRequest = -1;
+
+	public StartupTimer(long startTime) {
+		this.startTime = startTime;
+		this.lastPhaseEnd = startTime;
+		phases = new ArrayList<Phase>();
+	}
+
+	/** The sequential phase which began when the last one ended has finished. */
+	public void phase(String name) {
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			phases.add(new Phase(name, lastPhaseEnd - startTime, now - lastPhaseEnd, false));
+			lastPhaseEnd = now;
+		}
+	}
+
+	/** A task run in parallel has finished. Ignored once the node has started, e.g. when the
+	 * store is reopened after changing its settings. */
+	synchronized void task(String name, long start, long end) {
+		if(timeToReady != -1) return;
+		phases.add(new Phase(name, start - startTime, end - start, true));
+	}
+
+	/** The node has started and can handle requests. Logs the report. */
+	public void ready() {
+		phase("Start");
+		String report;
+		synchronized(this) {
+			timeToReady = lastPhaseEnd - startTime;
+			report = toString();
+		}
+		Logger.normal(this, report);
+		System.out.println(report);
+	}
+
+	/** Called for every request from another node; only the first one is recorded. */
+	public void onRequest() {
+		if(timeToFirstRequest != -1) return;
+		synchronized(this) {
+			if(timeToFirstRequest != -1) return;
+			timeToFirstRequest = System.currentTimeMillis() - startTime;
+		}
+		Logger.normal(this, "First request received "+format(timeToFirstRequest)+" after startup began");
+	}
+
+	/** Format a time for the report. Unlike TimeUtil.formatTime(), shows 0 as "0s". */
+	public static String format(long time) {
+		if(time == 0) return "0s";
+		return TimeUtil.formatTime(time, 2, true);
+	}
+
+	public synchronized Phase[] getPhases() {
+		return phases.toArray(new Phase[phases.size()]);
+	}
+
+	/** @return Time from the start until the node was started, or -1 if it hasn't started yet. */
+	public synchronized long getTimeToReady() {
+		return timeToReady;
+	}
+
+	/** @return Time from the start until the first request from another node, or -1. */
+	public long getTimeToFirstRequest() {
+		return timeToFirstRequest;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder("Startup times:");
+		for(Phase phase : phases)
+			sb.append("\n  ").append(phase);
+		if(timeToReady != -1)
+			sb.append("\nNode started in ").append(format(timeToReady));
+		return sb.toString();
+	}
+
+}
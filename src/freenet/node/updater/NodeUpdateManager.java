@@ -29,6 +29,7 @@ import freenet.io.comm.Message;
 import freenet.io.comm.NotConnectedException;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
+import freenet.node.BandwidthClass;
 import freenet.node.Node;
 import freenet.node.NodeFile;
 import freenet.node.NodeInitException;
@@ -1846,7 +1847,12 @@ public class NodeUpdateManager {
 	 */
 	@Deprecated
 	/* It’s not the field that is deprecated but accessing it directly is. */
-	final ByteCounter ctr = new ByteCounter() {
+	final ByteCounter ctr = new BandwidthClass.Counter() {
+
+		@Override
+		public BandwidthClass getBandwidthClass() {
+			return BandwidthClass.UPDATE;
+		}
 
 		@Override
 		public void receivedBytes(int x) {
@@ -16,6 +16,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -46,7 +47,9 @@ import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
 import freenet.io.comm.Message;
 import freenet.io.comm.NotConnectedException;
+import freenet.io.comm.PeerContext;
 import freenet.io.xfer.BulkReceiver;
+import freenet.io.xfer.BulkSwarmReceiver;
 import freenet.io.xfer.BulkTransmitter;
 import freenet.io.xfer.PartiallyReceivedBulk;
 import freenet.keys.FreenetURI;
@@ -1677,7 +1680,12 @@ public class UpdateOverMandatoryManager implements RequestClient {
 	}
 	
 	static final int MAX_TRANSFERS_PER_PEER = 2;
+	/** First build which understands UOMFetchDependencyRange */
+	static final int MIN_VERSION_RANGE_FETCH = 1499;
+	/** Fetch a dependency from up to this many peers at once, if they can send parts of it. */
+	static final int MAX_SWARM_PEERS = 4;
 
+	/** Handle a UOMFetchDependency or UOMFetchDependencyRange message. */
 	public void handleFetchDependency(Message m, final PeerNode source) {
 		File data;
 		final ShortBuffer buf = (ShortBuffer)m.getObject(DMT.EXPECTED_HASH);
@@ -1720,8 +1728,21 @@ public class UpdateOverMandatoryManager implements RequestClient {
 		    fail = true;
 		}
 		
+		int firstBlock = 0;
+		int blockCount = prb.getBlockCount();
+		if(m.getSpec() == DMT.UOMFetchDependencyRange && !fail) {
+			firstBlock = m.getInt(DMT.FIRST_BLOCK);
+			blockCount = m.getInt(DMT.BLOCK_COUNT);
+			if(firstBlock < 0 || blockCount <= 0 || blockCount > prb.getBlockCount() - firstBlock) {
+				Logger.error(this, "Peer " + source + " asked for invalid range "+firstBlock+" + "+blockCount+" of "+prb.getBlockCount()+" blocks of dependency with hash "+HexUtil.bytesToHex(buf.getData()));
+				firstBlock = 0;
+				blockCount = prb.getBlockCount();
+				fail = true;
+			}
+		}
+		
 		try {
-			bt = new BulkTransmitter(prb, source, uid, false, updateManager.getByteCounter(), true);
+			bt = new BulkTransmitter(prb, source, uid, false, updateManager.getByteCounter(), true, firstBlock, blockCount);
 		} catch(DisconnectedException e) {
 			Logger.error(this, "Peer " + source + " asked us for the dependency with hash "+HexUtil.bytesToHex(buf.getData())+" jar then disconnected", e);
 			raf.close();
@@ -1853,6 +1874,10 @@ public class UpdateOverMandatoryManager implements RequestClient {
 		private final UOMDependencyFetcherCallback cb;
 		private final WeakHashSet<PeerNode> peersFailed;
 		private final HashSet<PeerNode> peersFetching;
+		private boolean swarming;
+		/** Set if a file fetched from several peers was bad. We can't tell which peer sent the
+		 * bad blocks, so go back to fetching from one peer at a time. */
+		private boolean swarmFailed;
 		
 		private UOMDependencyFetcher(byte[] expectedHash, long size, File saveTo, boolean executable, UOMDependencyFetcherCallback callback) {
 			this.expectedHash = expectedHash;
@@ -1941,33 +1966,7 @@ public class UpdateOverMandatoryManager implements RequestClient {
 						raf.close();
 						raf = null;
 						if(!failed) {
-							// Check the hash.
-							if(MainJarDependenciesChecker.validFile(tmp, expectedHash, size, executable)) {
-								if(FileUtil.renameTo(tmp, saveTo)) {
-									synchronized(UOMDependencyFetcher.this) {
-										if(completed) return;
-										completed = true;
-									}
-									synchronized(UpdateOverMandatoryManager.this) {
-										dependencyFetchers.remove(expectedHashBuffer);
-									}
-									cb.onSuccess();
-								} else {
-									synchronized(UOMDependencyFetcher.this) {
-										if(completed) return;
-									}
-									failed = true;
-									System.err.println("Update failing: Saved dependency to "+tmp+" for "+saveTo+" but cannot rename it! Permissions problems?");
-								}
-								peerMaybeFreeAllSlots(fetchFrom);
-							} else {
-								synchronized(UOMDependencyFetcher.this) {
-									if(completed) return;
-								}
-								failed = true;
-								System.err.println("Update failing: Downloaded file "+saveTo+" from "+fetchFrom+" but file does not match expected hash.");
-								// Wrong length -> transfer would have failed.
-							}
+							failed = !saveDownload(tmp, fetchFrom.toString(), fetchFrom);
 						} else {
 							System.out.println("Download failed: "+saveTo+" from "+fetchFrom);
 							failed = true;
@@ -2021,6 +2020,138 @@ public class UpdateOverMandatoryManager implements RequestClient {
 			return true;
 		}
 		
+		/**
+		 * Check the hash of a downloaded file and move it into place.
+		 * @param from The peer(s) it came from, for messages.
+		 * @return False if the file was bad or couldn't be saved.
+		 */
+		private boolean saveDownload(File tmp, String from, PeerNode... sources) {
+			if(MainJarDependenciesChecker.validFile(tmp, expectedHash, size, executable)) {
+				boolean saved = FileUtil.renameTo(tmp, saveTo);
+				synchronized(this) {
+					if(completed) return true;
+					if(saved) completed = true;
+				}
+				if(saved) {
+					synchronized(UpdateOverMandatoryManager.this) {
+						dependencyFetchers.remove(expectedHashBuffer);
+					}
+					cb.onSuccess();
+				} else {
+					System.err.println("Update failing: Saved dependency to "+tmp+" for "+saveTo+" but cannot rename it! Permissions problems?");
+				}
+				for(PeerNode source : sources)
+					peerMaybeFreeAllSlots(source);
+				return saved;
+			} else {
+				synchronized(this) {
+					if(completed) return true;
+				}
+				System.err.println("Update failing: Downloaded file "+saveTo+" from "+from+" but file does not match expected hash.");
+				// Wrong length -> transfer would have failed.
+				return false;
+			}
+		}
+
+		/**
+		 * If several connected peers can send us parts of the file, fetch different parts from
+		 * each of them at once.
+		 * @return True if we started fetching.
+		 */
+		private boolean maybeSwarm() {
+			HashSet<PeerNode> candidates = new HashSet<PeerNode>();
+			synchronized(UpdateOverMandatoryManager.this) {
+				candidates.addAll(nodesSentMainJar);
+				candidates.addAll(nodesSendingMainJar);
+				candidates.addAll(allNodesOfferedMainJar);
+			}
+			final ArrayList<PeerNode> chosen = new ArrayList<PeerNode>();
+			synchronized(this) {
+				if(completed || swarming || swarmFailed || !peersFetching.isEmpty()) return false;
+				for(PeerNode pn : candidates) {
+					if(peersFailed.contains(pn)) continue;
+					if(!pn.isConnected()) continue;
+					if(pn.getVersionNumber() < MIN_VERSION_RANGE_FETCH) continue;
+					chosen.add(pn);
+				}
+				if(chosen.size() < 2) return false;
+				Collections.shuffle(chosen, updateManager.getNode().getFastWeakRandom());
+				while(chosen.size() > MAX_SWARM_PEERS)
+					chosen.remove(chosen.size()-1);
+				swarming = true;
+				peersFetching.addAll(chosen);
+			}
+			updateManager.getNode().getExecutor().execute(new Runnable() {
+
+				@Override
+				public void run() {
+					swarm(chosen);
+				}
+
+			});
+			return true;
+		}
+
+		private void swarm(List<PeerNode> sources) {
+			boolean failed = true;
+			File tmp = null;
+			BulkSwarmReceiver swarm = null;
+			try {
+				System.out.println("Fetching "+saveTo+" from "+sources.size()+" peers at once");
+				tmp = FileUtil.createTempFile(saveTo.getName(), NodeUpdateManager.TEMP_FILE_SUFFIX, saveTo.getParentFile());
+				boolean received;
+				try (FileRandomAccessBuffer raf = new FileRandomAccessBuffer(tmp, size, false)) {
+					PartiallyReceivedBulk prb = 
+						new PartiallyReceivedBulk(updateManager.getNode().getUSM(), size,
+							Node.PACKET_SIZE, raf, false);
+					swarm = new BulkSwarmReceiver(prb, new BulkSwarmReceiver.RangeRequester() {
+
+						@Override
+						public void requestRange(PeerContext peer, long uid, int firstBlock, int blockCount) throws NotConnectedException {
+							peer.sendAsync(DMT.createUOMFetchDependencyRange(uid, expectedHash, size, firstBlock, blockCount), null, updateManager.getByteCounter());
+						}
+
+					}, updateManager.getByteCounter(), updateManager.getNode().getFastWeakRandom());
+					for(PeerNode source : sources)
+						swarm.addSource(source);
+					received = swarm.receive();
+				}
+				if(received) {
+					failed = !saveDownload(tmp, sources.toString(), sources.toArray(new PeerNode[sources.size()]));
+					if(failed) {
+						synchronized(this) {
+							swarmFailed = true;
+						}
+					}
+				} else {
+					System.out.println("Download failed: "+saveTo+" from "+sources.size()+" peers");
+				}
+				Logger.normal(this, "Fetched "+saveTo+" from several peers: "+swarm);
+			} catch (IOException e) {
+				System.out.println("IOException while downloading "+saveTo+" : "+e);
+				Logger.error(this, "IOException while downloading "+saveTo+" : "+e, e);
+			} catch (RuntimeException e) {
+				Logger.error(this, "Caught fetching "+saveTo+" from "+sources+" : "+e, e);
+				System.err.println("Fetch failed due to internal error (bug or severe local problem?): "+e);
+				e.printStackTrace();
+			} finally {
+				synchronized(this) {
+					if(swarm != null) {
+						for(PeerContext peer : swarm.getFailedSources()) {
+							if(peer.isConnected())
+								peersFailed.add((PeerNode) peer);
+						}
+					}
+					peersFetching.removeAll(sources);
+					swarming = false;
+				}
+				if(tmp != null)
+					tmp.delete();
+				if(failed)
+					start();
+			}
+		}
+
 		private synchronized PeerNode chooseRandomPeer(HashSet<PeerNode> uomPeers) {
 			if(completed) return null;
 			if(peersFetching.size() >= MAX_NODES_SENDING_JAR) {
@@ -2055,6 +2186,7 @@ public class UpdateOverMandatoryManager implements RequestClient {
 		}
 
 		void start() {
+			if(maybeSwarm()) return;
 			while(maybeFetch());
 		}
 
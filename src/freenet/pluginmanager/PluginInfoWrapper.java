@@ -181,6 +181,8 @@ public class PluginInfoWrapper implements Comparable<PluginInfoWrapper> {
 			}
 		}
 		
+		pr.closeKeyValueStore();
+
 		// Close the jar file, so we may delete / reload it
 		ClassLoader cl = plug.getClass().getClassLoader();
 		if (cl instanceof JarClassLoader) {
@@ -0,0 +1,994 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.pluginmanager;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.HMAC;
+import freenet.support.Executor;
+import freenet.support.Fields;
+import freenet.support.Logger;
+
+/**
+ * A log-structured key/value store for plugins with more data than fits comfortably in a
+ * PluginStore. Unlike a PluginStore, which is loaded into memory and written out as a whole,
+ * only the keys are kept in memory: values stay on disk, and each write only appends to a log.
+ *
+ * The store is a directory of segment files. Each write is a batch of puts and deletes, which
+ * is appended to the current segment as a single checksummed record, so it is applied
+ * atomically: after a crash, a batch is either completely present or completely absent. When
+ * the current segment is full a new one is started. Overwritten and deleted values are garbage;
+ * once there is more garbage than live data, the full segments are compacted in the background
+ * by copying the live values into a new segment and deleting the old ones.
+ *
+ * If a key is given, records are encrypted with AES in CTR mode, keyed on the segment's random
+ * IV and the position in the file, and authenticated with HMAC-SHA256. The MACs are checked
+ * when the store is opened, not on every read.
+ *
+ * Keys are ordered as unsigned bytes, so range scans work naturally with big-endian numbers
+ * and UTF-8 strings. Reads and scans can run concurrently with writes and compaction; writes
+ * are serialised.
+ */
+public class PluginKeyValueStore implements Closeable {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(PluginKeyValueStore.class);
+	}
+
+	/** Default maximum size of a segment before starting a new one */
+	public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public static final int MAX_KEY_LENGTH = 64 * 1024;
+	public static final int MAX_VALUE_LENGTH = 64 * 1024 * 1024;
+	private static final int MAX_BATCH_LENGTH = Integer.MAX_VALUE - 1024;
+	/** Don't compact until there is at least this much garbage */
+	private static final long MIN_COMPACTION_GARBAGE = 1024 * 1024;
+	/** Size of the records written when copying live values during compaction */
+	private static final int COMPACTION_RECORD_SIZE = 1024 * 1024;
+
+	private static final int MAGIC = 0x464b5631; // "FKV1"
+	private static final int FLAG_ENCRYPTED = 1;
+	private static final int IV_LENGTH = 16;
+	private static final int MAC_LENGTH = 32;
+	private static final String SUFFIX = ".seg";
+	private static final byte OP_PUT = 1;
+	private static final byte OP_DELETE = 2;
+
+	private static final byte[] ENCRYPTION_KEY = "ENCRYPT".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] MAC_KEY = "MAC".getBytes(StandardCharsets.UTF_8);
+
+	/** A set of puts and deletes which are written atomically. Not thread-safe. */
+	public static class Batch {
+
+		private final List<byte[]> keys = new ArrayList<byte[]>();
+		/** null for a delete */
+		private final List<byte[]> values = new ArrayList<byte[]>();
+		private int length = 4;
+
+		public Batch put(byte[] key, byte[] value) {
+			if(value == null) throw new NullPointerException();
+			if(value.length > MAX_VALUE_LENGTH) throw new IllegalArgumentException("Value too long: "+value.length);
+			add(key, Arrays.copyOf(value, value.length));
+			return this;
+		}
+
+		public Batch delete(byte[] key) {
+			add(key, null);
+			return this;
+		}
+
+		private void add(byte[] key, byte[] value) {
+			if(key.length > MAX_KEY_LENGTH) throw new IllegalArgumentException("Key too long: "+key.length);
+			int entry = entryLength(key.length, value == null ? -1 : value.length);
+			if((long) length + entry > MAX_BATCH_LENGTH) throw new IllegalArgumentException("Batch too big");
+			keys.add(Arrays.copyOf(key, key.length));
+			values.add(value);
+			length += entry;
+		}
+
+		public int size() {
+			return keys.size();
+		}
+
+		public boolean isEmpty() {
+			return keys.isEmpty();
+		}
+
+		/** @return The length of the encoded batch. */
+		int length() {
+			return length;
+		}
+
+		public void clear() {
+			keys.clear();
+			values.clear();
+			length = 4;
+		}
+
+	}
+
+	/** Iterates over a range of keys in order. Values are only read if asked for. */
+	public interface Cursor {
+
+		/** Move to the next key.
+		 * @return False if there are no more keys in the range. */
+		boolean next();
+
+		byte[] key();
+
+		/** @return The current value for the key, or null if it has been deleted since the cursor
+		 * reached it. */
+		byte[] value() throws IOException;
+
+	}
+
+	private static class Segment {
+		final long id;
+		final File file;
+		/** Reopened if a thread using it is interrupted, which closes it for all threads. */
+		private volatile FileChannel channel;
+		final byte[] iv;
+		/** The end of the last complete record. Only changed by the thread writing to it. */
+		volatile long size;
+		/** Set when the segment has been deleted after compaction, or the store closed */
+		volatile boolean closed;
+		/** Set if a write failed part way, so no more records may be appended */
+		volatile boolean failed;
+
+		Segment(long id, File file, FileChannel channel, byte[] iv) {
+			this.id = id;
+			this.file = file;
+			this.channel = channel;
+			this.iv = iv;
+		}
+
+		void read(ByteBuffer buf, long position) throws IOException {
+			boolean interrupted = false;
+			try {
+				while(true) {
+					FileChannel c = channel;
+					try {
+						readFully(c, buf, position);
+						return;
+					} catch (ClosedChannelException e) {
+						if(Thread.interrupted()) interrupted = true;
+						reopen(c, e);
+					}
+				}
+			} finally {
+				if(interrupted) Thread.currentThread().interrupt();
+			}
+		}
+
+		void write(ByteBuffer buf, long position) throws IOException {
+			boolean interrupted = false;
+			try {
+				while(true) {
+					FileChannel c = channel;
+					try {
+						while(buf.hasRemaining())
+							c.write(buf, position + buf.position());
+						return;
+					} catch (ClosedChannelException e) {
+						if(Thread.interrupted()) interrupted = true;
+						reopen(c, e);
+					}
+				}
+			} finally {
+				if(interrupted) Thread.currentThread().interrupt();
+			}
+		}
+
+		void force() throws IOException {
+			boolean interrupted = false;
+			try {
+				while(true) {
+					FileChannel c = channel;
+					try {
+						c.force(false);
+						return;
+					} catch (ClosedChannelException e) {
+						if(Thread.interrupted()) interrupted = true;
+						reopen(c, e);
+					}
+				}
+			} finally {
+				if(interrupted) Thread.currentThread().interrupt();
+			}
+		}
+
+		private synchronized void reopen(FileChannel failed, ClosedChannelException e) throws IOException {
+			if(closed) throw e;
+			if(channel != failed) return;
+			channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		synchronized void close() throws IOException {
+			closed = true;
+			channel.close();
+		}
+
+		@Override
+		public String toString() {
+			return file.getName();
+		}
+	}
+
+	/** Where a value is stored */
+	private static class Location {
+		final Segment segment;
+		final long offset;
+		final int length;
+
+		Location(Segment segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final File dir;
+	private final String name;
+	private final Executor executor;
+	private final long segmentSize;
+	private final boolean encrypted;
+	private final SecretKeySpec cipherKey;
+	private final SecretKeySpec macKey;
+	private final ThreadLocal<Cipher> ciphers;
+	private final SecureRandom random;
+	private final ConcurrentSkipListMap<byte[], Location> index;
+	/** Held for reading while reading values, for writing while deleting compacted segments. */
+	private final ReadWriteLock segmentLock;
+	/** Full segments, oldest first. Protected by this. */
+	private final TreeMap<Long, Segment> sealed;
+	/** The segment being written to. Protected by this. */
+	private Segment active;
+	private long nextSegmentID;
+	/** Total size of the entries in the index. Protected by this. */
+	private long liveBytes;
+	/** Total size of all segments. Protected by this. */
+	private long totalBytes;
+	private boolean compacting;
+	private boolean closed;
+
+	/**
+	 * Open a store, creating it if necessary.
+	 * @param dir The directory containing the segment files.
+	 * @param key If not null, the store is encrypted with a key derived from this. It must be
+	 * the same every time the store is opened.
+	 * @param executor If not null, used to compact the store in the background. Otherwise
+	 * compact() must be called explicitly.
+	 * @param segmentSize Start a new segment when the current one reaches this size.
+	 * @throws IOException If the store cannot be read, is corrupt, or was written with a
+	 * different key.
+	 */
+	public PluginKeyValueStore(File dir, byte[] key, Executor executor, long segmentSize) throws IOException {
+		this.dir = dir;
+		this.name = dir.getName();
+		this.executor = executor;
+		this.segmentSize = segmentSize;
+		this.encrypted = key != null;
+		if(encrypted) {
+			cipherKey = new SecretKeySpec(HMAC.macWithSHA256(key, ENCRYPTION_KEY), "AES");
+			macKey = new SecretKeySpec(HMAC.macWithSHA256(key, MAC_KEY), "HmacSHA256");
+			ciphers = new ThreadLocal<Cipher>() {
+				@Override
+				protected Cipher initialValue() {
+					try {
+						return Cipher.getInstance("AES/CTR/NoPadding");
+					} catch (GeneralSecurityException e) {
+						throw new Error(e);
+					}
+				}
+			};
+		} else {
+			cipherKey = null;
+			macKey = null;
+			ciphers = null;
+		}
+		random = new SecureRandom();
+		index = new ConcurrentSkipListMap<byte[], Location>(new Fields.ByteArrayComparator());
+		segmentLock = new ReentrantReadWriteLock();
+		sealed = new TreeMap<Long, Segment>();
+		if(!(dir.mkdirs() || dir.isDirectory()))
+			throw new IOException("Unable to create "+dir);
+		try {
+			load();
+			active = createSegment(nextSegmentID++);
+		} catch (IOException e) {
+			closeSegments();
+			throw e;
+		}
+		if(logMINOR) Logger.minor(this, "Opened "+this+": "+index.size()+" keys, "+liveBytes+" live bytes in "+totalBytes);
+	}
+
+	public PluginKeyValueStore(File dir, byte[] key, Executor executor) throws IOException {
+		this(dir, key, executor, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/** Length of an entry in a record. A delete has a value length of -1. */
+	private static int entryLength(int keyLength, int valueLength) {
+		return valueLength < 0 ? 5 + keyLength : 9 + keyLength + valueLength;
+	}
+
+	private int headerLength() {
+		return 8 + IV_LENGTH + (encrypted ? MAC_LENGTH : 0);
+	}
+
+	private int checksumLength() {
+		return encrypted ? MAC_LENGTH : 4;
+	}
+
+	// Opening the store
+
+	private void load() throws IOException {
+		File[] files = dir.listFiles();
+		if(files == null) throw new IOException("Unable to list "+dir);
+		TreeMap<Long, File> found = new TreeMap<Long, File>();
+		for(File f : files) {
+			String filename = f.getName();
+			if(!filename.endsWith(SUFFIX)) continue;
+			try {
+				found.put(Long.parseLong(filename.substring(0, filename.length() - SUFFIX.length())), f);
+			} catch (NumberFormatException e) {
+				// Ignore
+			}
+		}
+		for(Map.Entry<Long, File> entry : found.entrySet()) {
+			long id = entry.getKey();
+			nextSegmentID = id + 1;
+			Segment segment = openSegment(id, entry.getValue());
+			if(segment == null) continue;
+			sealed.put(id, segment);
+			replay(segment);
+			totalBytes += segment.size;
+		}
+		// Remove segments which are empty, e.g. because the node was restarted without writing.
+		for(Iterator<Segment> it = sealed.values().iterator(); it.hasNext();) {
+			Segment segment = it.next();
+			if(segment.size == headerLength()) {
+				it.remove();
+				totalBytes -= segment.size;
+				segment.close();
+				deleteFile(segment.file);
+			}
+		}
+	}
+
+	/** @return The segment, or null if it was created but never written to, and has been deleted. */
+	private Segment openSegment(long id, File file) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		boolean success = false;
+		try {
+			if(channel.size() < headerLength()) {
+				// Crashed while creating it.
+				channel.close();
+				success = true;
+				deleteFile(file);
+				return null;
+			}
+			ByteBuffer header = ByteBuffer.allocate(headerLength());
+			readFully(channel, header, 0);
+			header.flip();
+			if(header.getInt() != MAGIC) throw new IOException("Not a key/value store segment: "+file);
+			int flags = header.getInt();
+			if(((flags & FLAG_ENCRYPTED) != 0) != encrypted)
+				throw new IOException(file+(encrypted ? " is not encrypted" : " is encrypted"));
+			byte[] iv = new byte[IV_LENGTH];
+			header.get(iv);
+			if(encrypted) {
+				byte[] mac = new byte[MAC_LENGTH];
+				header.get(mac);
+				if(!MessageDigest.isEqual(mac, headerMAC(flags, iv)))
+					throw new IOException("Wrong key for "+file+", or it is corrupt");
+			}
+			Segment segment = new Segment(id, file, channel, iv);
+			segment.size = headerLength();
+			success = true;
+			return segment;
+		} finally {
+			if(!success) channel.close();
+		}
+	}
+
+	/** Read the records in a segment into the index. A torn record at the end of a segment is
+	 * assumed to be from a crash during writing, and is truncated. */
+	private void replay(Segment segment) throws IOException {
+		FileChannel channel = segment.channel;
+		long fileSize = channel.size();
+		long offset = segment.size;
+		ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+		while(offset < fileSize) {
+			boolean torn = false;
+			byte[] record = null;
+			int length = -1;
+			if(fileSize - offset < 4 + checksumLength()) {
+				torn = true;
+			} else {
+				lengthBuf.clear();
+				readFully(channel, lengthBuf, offset);
+				length = lengthBuf.getInt(0);
+				if(length < 4 || length > fileSize - offset - 4 - checksumLength()) {
+					torn = true;
+				} else {
+					record = new byte[4 + length + checksumLength()];
+					readFully(channel, ByteBuffer.wrap(record), offset);
+					if(!verify(segment, offset, record, length)) {
+						// A crash can leave a complete record with garbage in it, but only at the end.
+						if(offset + record.length == fileSize)
+							torn = true;
+						else
+							throw new IOException("Corrupt record in "+segment.file+" at "+offset);
+					}
+				}
+			}
+			if(torn) {
+				Logger.error(this, "Discarding incomplete write at end of "+segment.file+" at "+offset+" of "+fileSize);
+				channel.truncate(offset);
+				break;
+			}
+			if(encrypted)
+				crypt(segment, offset + 4, record, 4, length);
+			apply(segment, offset, record, length);
+			offset += record.length;
+			segment.size = offset;
+		}
+	}
+
+	private void apply(Segment segment, long offset, byte[] record, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(record, 4, length);
+		int count = buf.getInt();
+		for(int i=0;i<count;i++) {
+			byte op = buf.get();
+			int keyLength = buf.getInt();
+			if(keyLength < 0 || keyLength > buf.remaining()) throw new IOException("Bad key length in "+segment.file+" at "+offset);
+			byte[] key = new byte[keyLength];
+			if(op == OP_PUT) {
+				int valueLength = buf.getInt();
+				if(valueLength < 0 || keyLength + valueLength > buf.remaining()) throw new IOException("Bad value length in "+segment.file+" at "+offset);
+				buf.get(key);
+				Location location = new Location(segment, offset + buf.position(), valueLength);
+				buf.position(buf.position() + valueLength);
+				removed(key, index.put(key, location));
+				liveBytes += entryLength(keyLength, valueLength);
+			} else if(op == OP_DELETE) {
+				buf.get(key);
+				removed(key, index.remove(key));
+			} else {
+				throw new IOException("Bad operation "+op+" in "+segment.file+" at "+offset);
+			}
+		}
+	}
+
+	private void removed(byte[] key, Location old) {
+		if(old != null) liveBytes -= entryLength(key.length, old.length);
+	}
+
+	// Reading
+
+	/** @return The value for the key, or null if there isn't one. */
+	public byte[] get(byte[] key) throws IOException {
+		return read(key, index.get(key));
+	}
+
+	public boolean containsKey(byte[] key) {
+		return index.containsKey(key);
+	}
+
+	/** Read a value. If the segment has been compacted since the location was looked up, looks
+	 * it up again. */
+	private byte[] read(byte[] key, Location location) throws IOException {
+		while(location != null) {
+			segmentLock.readLock().lock();
+			try {
+				if(!location.segment.closed) {
+					byte[] value = new byte[location.length];
+					location.segment.read(ByteBuffer.wrap(value), location.offset);
+					if(encrypted)
+						crypt(location.segment, location.offset, value, 0, value.length);
+					return value;
+				}
+			} finally {
+				segmentLock.readLock().unlock();
+			}
+			location = index.get(key);
+		}
+		return null;
+	}
+
+	/**
+	 * Iterate over the keys from <code>from</code> (inclusive) to <code>to</code> (exclusive).
+	 * The cursor sees a consistent view of each key, but not of the whole range: keys written
+	 * during the scan may or may not be included.
+	 * @param from The first key, or null to start at the beginning.
+	 * @param to The key after the last one, or null to continue to the end.
+	 */
+	public Cursor scan(byte[] from, byte[] to) {
+		NavigableMap<byte[], Location> range;
+		if(from == null && to == null)
+			range = index;
+		else if(from == null)
+			range = index.headMap(to, false);
+		else if(to == null)
+			range = index.tailMap(from, true);
+		else
+			range = index.subMap(from, true, to, false);
+		final Iterator<Map.Entry<byte[], Location>> it = range.entrySet().iterator();
+		return new Cursor() {
+
+			private Map.Entry<byte[], Location> current;
+
+			@Override
+			public boolean next() {
+				current = it.hasNext() ? it.next() : null;
+				return current != null;
+			}
+
+			@Override
+			public byte[] key() {
+				return Arrays.copyOf(current.getKey(), current.getKey().length);
+			}
+
+			@Override
+			public byte[] value() throws IOException {
+				return get(current.getKey());
+			}
+
+		};
+	}
+
+	/** @return The number of keys. */
+	public int size() {
+		return index.size();
+	}
+
+	// Writing
+
+	public void put(byte[] key, byte[] value) throws IOException {
+		write(new Batch().put(key, value));
+	}
+
+	public void delete(byte[] key) throws IOException {
+		write(new Batch().delete(key));
+	}
+
+	/** Write a batch atomically. It may be lost in a crash unless sync() is called, but if it
+	 * is not lost, later batches won't be either. */
+	public void write(Batch batch) throws IOException {
+		if(batch.isEmpty()) return;
+		synchronized(this) {
+			if(closed) throw new IOException("Closed");
+			if(active.failed || (active.size > headerLength() && active.size + batch.length() + 4 + checksumLength() > segmentSize))
+				startSegment();
+			long offset = active.size;
+			byte[] record = encode(batch);
+			append(active, record);
+			long position = offset + 8;
+			for(int i=0;i<batch.keys.size();i++) {
+				byte[] key = batch.keys.get(i);
+				byte[] value = batch.values.get(i);
+				if(value == null) {
+					removed(key, index.remove(key));
+					position += entryLength(key.length, -1);
+				} else {
+					position += 9 + key.length;
+					removed(key, index.put(key, new Location(active, position, value.length)));
+					position += value.length;
+					liveBytes += entryLength(key.length, value.length);
+				}
+			}
+			totalBytes += record.length;
+		}
+		maybeCompact();
+	}
+
+	/** Make sure everything written so far is on disk. */
+	public void sync() throws IOException {
+		Segment segment;
+		synchronized(this) {
+			if(closed) return;
+			segment = active;
+		}
+		segment.force();
+	}
+
+	private byte[] encode(Batch batch) {
+		byte[] record = new byte[4 + batch.length() + checksumLength()];
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		buf.putInt(batch.length());
+		buf.putInt(batch.size());
+		for(int i=0;i<batch.keys.size();i++) {
+			byte[] key = batch.keys.get(i);
+			byte[] value = batch.values.get(i);
+			buf.put(value == null ? OP_DELETE : OP_PUT);
+			buf.putInt(key.length);
+			if(value != null) buf.putInt(value.length);
+			buf.put(key);
+			if(value != null) buf.put(value);
+		}
+		return record;
+	}
+
+	/** Encrypt and checksum an encoded record and append it to a segment. Only one thread may
+	 * append to a given segment, and not after a failed append. */
+	private void append(Segment segment, byte[] record) throws IOException {
+		long offset = segment.size;
+		int length = record.length - 4 - checksumLength();
+		if(encrypted) {
+			crypt(segment, offset + 4, record, 4, length);
+			System.arraycopy(recordMAC(segment, offset, record, length), 0, record, 4 + length, MAC_LENGTH);
+		} else {
+			CRC32 crc = new CRC32();
+			crc.update(record, 0, 4 + length);
+			ByteBuffer.wrap(record).putInt(4 + length, (int) crc.getValue());
+		}
+		try {
+			segment.write(ByteBuffer.wrap(record), offset);
+		} catch (IOException e) {
+			// Part of the record may be on disk. Writing another record at this offset would
+			// reuse the keystream, and writing after it would leave garbage in the middle of the
+			// segment, so start a new segment for the next write.
+			segment.failed = true;
+			throw e;
+		}
+		segment.size = offset + record.length;
+	}
+
+	/** Seal the active segment and start a new one. Caller must hold the lock. */
+	private void startSegment() throws IOException {
+		Segment old = active;
+		active = createSegment(nextSegmentID++);
+		sealed.put(old.id, old);
+		// The new segment will be forced on the next sync, so the old one must be now.
+		old.force();
+	}
+
+	private Segment createSegment(long id) throws IOException {
+		File file = new File(dir, id + SUFFIX);
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		int flags = encrypted ? FLAG_ENCRYPTED : 0;
+		ByteBuffer header = ByteBuffer.allocate(headerLength());
+		header.putInt(MAGIC);
+		header.putInt(flags);
+		header.put(iv);
+		if(encrypted) header.put(headerMAC(flags, iv));
+		header.flip();
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			channel.truncate(0);
+			while(header.hasRemaining())
+				channel.write(header, header.position());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		Segment segment = new Segment(id, file, channel, iv);
+		segment.size = headerLength();
+		totalBytes += segment.size;
+		return segment;
+	}
+
+	// Compaction
+
+	private synchronized boolean needsCompaction() {
+		if(closed || compacting) return false;
+		long garbage = totalBytes - liveBytes;
+		return garbage >= MIN_COMPACTION_GARBAGE && garbage > liveBytes;
+	}
+
+	private void maybeCompact() {
+		if(executor == null || !needsCompaction()) return;
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if(needsCompaction()) compact();
+				} catch (IOException e) {
+					Logger.error(this, "Unable to compact "+PluginKeyValueStore.this+" : "+e, e);
+				}
+			}
+
+		}, "Compacting "+this);
+	}
+
+	/**
+	 * Copy the live values in the full segments into a new segment and delete the old ones.
+	 * Reads and writes can continue while this runs. Normally called in the background.
+	 */
+	public void compact() throws IOException {
+		Segment output;
+		Set<Segment> old;
+		synchronized(this) {
+			if(closed) throw new IOException("Closed");
+			while(compacting) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+				if(closed) throw new IOException("Closed");
+			}
+			compacting = true;
+			old = new HashSet<Segment>(sealed.values());
+			old.add(active);
+			// The output must be replayed after the old segments and before new writes.
+			output = createSegment(nextSegmentID++);
+			Segment previous = active;
+			active = createSegment(nextSegmentID++);
+			previous.force();
+		}
+		long startTime = System.currentTimeMillis();
+		boolean success = false;
+		try {
+			// Keys can be skipped if they are written while we copy them, so repeat until nothing
+			// points to the old segments.
+			while(copyLive(old, output) > 0) {}
+			output.force();
+			segmentLock.writeLock().lock();
+			try {
+				for(Segment segment : old)
+					segment.closed = true;
+			} finally {
+				segmentLock.writeLock().unlock();
+			}
+			synchronized(this) {
+				for(Segment segment : old) {
+					sealed.remove(segment.id);
+					totalBytes -= segment.size;
+				}
+				if(output.size == headerLength()) {
+					totalBytes -= output.size;
+					output.closed = true;
+				} else {
+					sealed.put(output.id, output);
+				}
+			}
+			for(Segment segment : old) {
+				segment.close();
+				deleteFile(segment.file);
+			}
+			if(output.closed) {
+				output.close();
+				deleteFile(output.file);
+			}
+			success = true;
+			if(logMINOR) Logger.minor(this, "Compacted "+old.size()+" segments of "+this+" in "+(System.currentTimeMillis() - startTime)+"ms");
+		} finally {
+			if(!success) {
+				// The old segments are still valid. The partial output will be replayed on top of
+				// them, with the same values, so it can be kept.
+				synchronized(this) {
+					sealed.put(output.id, output);
+				}
+			}
+			synchronized(this) {
+				compacting = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/** Copy the entries which are still in the old segments to the output segment.
+	 * @return The number of entries copied. */
+	private int copyLive(Set<Segment> old, Segment output) throws IOException {
+		int copied = 0;
+		Batch batch = new Batch();
+		List<Location> from = new ArrayList<Location>();
+		for(Map.Entry<byte[], Location> entry : index.entrySet()) {
+			Location location = entry.getValue();
+			if(!old.contains(location.segment)) continue;
+			byte[] value = read(entry.getKey(), location);
+			if(value == null) continue;
+			batch.add(entry.getKey(), value);
+			from.add(location);
+			if(batch.length() >= COMPACTION_RECORD_SIZE) {
+				copied += copy(batch, from, output);
+				batch.clear();
+				from.clear();
+			}
+		}
+		if(!batch.isEmpty())
+			copied += copy(batch, from, output);
+		return copied;
+	}
+
+	private int copy(Batch batch, List<Location> from, Segment output) throws IOException {
+		synchronized(this) {
+			if(closed) throw new IOException("Closed");
+		}
+		long offset = output.size;
+		append(output, encode(batch));
+		synchronized(this) {
+			totalBytes += output.size - offset;
+		}
+		long position = offset + 8;
+		int copied = 0;
+		for(int i=0;i<batch.keys.size();i++) {
+			byte[] key = batch.keys.get(i);
+			int length = batch.values.get(i).length;
+			position += 9 + key.length;
+			// Only if it hasn't been written since we read it.
+			if(index.replace(key, from.get(i), new Location(output, position, length)))
+				copied++;
+			position += length;
+		}
+		return copied;
+	}
+
+	/** @return The number of bytes in the index's entries. */
+	public synchronized long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/** @return The total size of the segments, including garbage. */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	// Closing
+
+	/** Wait for any compaction to finish, sync and close the store. */
+	@Override
+	public void close() throws IOException {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+			while(compacting) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+		try {
+			active.force();
+		} finally {
+			closeSegments();
+		}
+	}
+
+	private synchronized void closeSegments() {
+		for(Segment segment : sealed.values())
+			closeQuietly(segment);
+		if(active != null)
+			closeQuietly(active);
+	}
+
+	private static void closeQuietly(Segment segment) {
+		try {
+			segment.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	/** Delete a store. It must be closed. */
+	public static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				if(f.getName().endsWith(SUFFIX))
+					f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private void deleteFile(File file) {
+		if(!file.delete() && file.exists())
+			Logger.error(this, "Unable to delete "+file);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+name;
+	}
+
+	// Crypto
+
+	/** Encrypt or decrypt in place. Each segment is a CTR mode stream keyed by its IV and the
+	 * position in the file, so any part can be decrypted. A position is never written twice
+	 * because we only append, and never to a segment which existed when the store was opened. */
+	private void crypt(Segment segment, long position, byte[] buf, int offset, int length) throws IOException {
+		try {
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(counter(segment.iv, position >>> 4)));
+			int skip = (int) (position & 15);
+			if(skip > 0) cipher.update(new byte[skip]);
+			if(cipher.update(buf, offset, length, buf, offset) != length)
+				throw new IOException("Cipher did not process all of the data");
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/** @return The IV plus the block number, as a big-endian 128-bit counter. */
+	static byte[] counter(byte[] iv, long block) {
+		byte[] counter = Arrays.copyOf(iv, iv.length);
+		long carry = block;
+		for(int i=counter.length-1;i>=0 && carry != 0;i--) {
+			long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+			counter[i] = (byte) sum;
+			carry = (carry >>> 8) + (sum >>> 8);
+		}
+		return counter;
+	}
+
+	private byte[] headerMAC(int flags, byte[] iv) throws IOException {
+		Mac mac = mac();
+		mac.update(ByteBuffer.allocate(8).putInt(MAGIC).putInt(flags).array());
+		mac.update(iv);
+		return mac.doFinal();
+	}
+
+	/** MAC of the record's length and ciphertext, and where it is, so it can't be moved. */
+	private byte[] recordMAC(Segment segment, long offset, byte[] record, int length) throws IOException {
+		Mac mac = mac();
+		mac.update(segment.iv);
+		mac.update(ByteBuffer.allocate(8).putLong(offset).array());
+		mac.update(record, 0, 4 + length);
+		return mac.doFinal();
+	}
+
+	private Mac mac() throws IOException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(macKey);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private boolean verify(Segment segment, long offset, byte[] record, int length) throws IOException {
+		if(encrypted) {
+			byte[] expected = recordMAC(segment, offset, record, length);
+			return MessageDigest.isEqual(expected, Arrays.copyOfRange(record, 4 + length, 4 + length + MAC_LENGTH));
+		} else {
+			CRC32 crc = new CRC32();
+			crc.update(record, 0, 4 + length);
+			return ByteBuffer.wrap(record).getInt(4 + length) == (int) crc.getValue();
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining()) {
+			if(channel.read(buf, position + buf.position()) == -1)
+				throw new EOFException();
+		}
+	}
+
+}
@@ -37,6 +37,7 @@ public class PluginRespirator {
 	private final PluginStores stores;
 
 	private PluginStore store;
+	private PluginKeyValueStore keyValueStore;
 	
 	public PluginRespirator(Node node, PluginInfoWrapper pi) {
 		this.node = node;
@@ -269,6 +270,36 @@ public class PluginRespirator {
         }
 	}
 
+	/**
+	 * Get the plugin's key/value store, for plugins with too much data to keep in a PluginStore.
+	 * Writes go straight to disk, so there is no need to call putStore(). Like the PluginStore,
+	 * it is encrypted according to the physical security level. It is closed when the plugin
+	 * is unloaded.
+	 * @return The store, opened on the first call.
+	 * @throws IOException If the store could not be opened.
+	 * @throws PersistenceDisabledException If the node's database key is not available yet.
+	 */
+	public synchronized PluginKeyValueStore getKeyValueStore() throws IOException, PersistenceDisabledException {
+		if(keyValueStore == null)
+			keyValueStore = stores.openKeyValueStore(this.plugin.getClass().getCanonicalName());
+		return keyValueStore;
+	}
+
+	/** Close the key/value store, if it was opened. Called when the plugin is unloaded. */
+	void closeKeyValueStore() {
+		PluginKeyValueStore s;
+		synchronized(this) {
+			s = keyValueStore;
+			keyValueStore = null;
+		}
+		if(s == null) return;
+		try {
+			s.close();
+		} catch (IOException e) {
+			System.err.println("Unable to close plugin data for "+plugin.getClass().getCanonicalName()+" : "+e);
+		}
+	}
+
 	/**
 	 * Get a new session manager for use with the specified path.
 	 * 	See {@link SessionManager} for a detailed explanation of what cookie paths are.
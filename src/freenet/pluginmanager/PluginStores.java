@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import freenet.client.async.PersistenceDisabledException;
 import freenet.config.SubConfig;
 import freenet.crypt.AEADCryptBucket;
 import freenet.node.FSParseException;
@@ -13,6 +14,7 @@ import freenet.node.Node;
 import freenet.node.NodeInitException;
 import freenet.node.ProgramDirectory;
 import freenet.support.IllegalBase64Exception;
+import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
 import freenet.support.io.FileBucket;
@@ -165,4 +167,71 @@ public class PluginStores {
         }
     }
 
+    private File getKeyValueStoreDir(String storeIdentifier, boolean encrypted) {
+        String filename = storeIdentifier + ".kv";
+        if(encrypted)
+            filename += ".crypt";
+        return pluginStoresDir.file(filename);
+    }
+
+    /**
+     * Open a plugin's key/value store, creating it if necessary. Like a PluginStore, it is
+     * encrypted if the physical security level requires it, with a key derived from the node's
+     * master secret. If the security level has changed since it was written, the data is copied
+     * to a new store.
+     * @throws PersistenceDisabledException If the store should be encrypted but the database
+     * key is not available yet.
+     */
+    public PluginKeyValueStore openKeyValueStore(String storeIdentifier) throws IOException, PersistenceDisabledException {
+        boolean isEncrypted = node.wantEncryptedDatabase();
+        byte[] key = null;
+        if(isEncrypted) {
+            key = node.getPluginStoreKey(storeIdentifier);
+            if(key == null) throw new PersistenceDisabledException();
+        }
+        File dir = getKeyValueStoreDir(storeIdentifier, isEncrypted);
+        File otherDir = getKeyValueStoreDir(storeIdentifier, !isEncrypted);
+        if(otherDir.exists() && !dir.exists()) {
+            byte[] otherKey = isEncrypted ? null : node.getPluginStoreKey(storeIdentifier);
+            if(isEncrypted || otherKey != null)
+                migrateKeyValueStore(otherDir, otherKey, dir, key);
+            else
+                System.err.println("Unable to decrypt plugin data for "+storeIdentifier+" to store it unencrypted");
+        }
+        return new PluginKeyValueStore(dir, key, node.getExecutor());
+    }
+
+    /** Copy a store to a new one with different encryption, then delete it. The copy is made
+     * under a temporary name so an interrupted migration is started again. */
+    private void migrateKeyValueStore(File from, byte[] fromKey, File to, byte[] toKey) throws IOException {
+        File temp = new File(to.getPath() + ".tmp");
+        PluginKeyValueStore.delete(temp);
+        PluginKeyValueStore source = new PluginKeyValueStore(from, fromKey, null);
+        try {
+            PluginKeyValueStore dest = new PluginKeyValueStore(temp, toKey, null);
+            try {
+                PluginKeyValueStore.Batch batch = new PluginKeyValueStore.Batch();
+                PluginKeyValueStore.Cursor cursor = source.scan(null, null);
+                while(cursor.next()) {
+                    byte[] value = cursor.value();
+                    if(value == null) continue;
+                    batch.put(cursor.key(), value);
+                    if(batch.length() >= 1024 * 1024) {
+                        dest.write(batch);
+                        batch.clear();
+                    }
+                }
+                dest.write(batch);
+            } finally {
+                dest.close();
+            }
+        } finally {
+            source.close();
+        }
+        if(!temp.renameTo(to))
+            throw new IOException("Unable to rename "+temp+" to "+to);
+        Logger.normal(this, "Migrated plugin data from "+from+" to "+to);
+        PluginKeyValueStore.delete(from);
+    }
+
 }
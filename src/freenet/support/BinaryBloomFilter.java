@@ -23,7 +23,11 @@ public class BinaryBloomFilter extends BloomFilter {
 	 *            length in bits
 	 */
 	protected BinaryBloomFilter(int length, int k) {
-		super(length, k);
+		this(length, k, false);
+	}
+
+	protected BinaryBloomFilter(int length, int k, boolean blocked) {
+		super(length, k, blocked, 8);
 		filter = ByteBuffer.allocate(this.length / 8);
 	}
 
@@ -37,7 +41,11 @@ public class BinaryBloomFilter extends BloomFilter {
 	 * @throws IOException
 	 */
 	protected BinaryBloomFilter(File file, int length, int k) throws IOException {
-		super(length, k);
+		this(file, length, k, false);
+	}
+
+	protected BinaryBloomFilter(File file, int length, int k, boolean blocked) throws IOException {
+		super(length, k, blocked, 8);
 		if (!file.exists() || file.length() != length / 8)
 			needRebuild = true;
 
@@ -54,7 +62,11 @@ public class BinaryBloomFilter extends BloomFilter {
 	}
 
 	public BinaryBloomFilter(ByteBuffer slice, int length, int k) {
-		super(length, k);
+		this(slice, length, k, false);
+	}
+
+	public BinaryBloomFilter(ByteBuffer slice, int length, int k, boolean blocked) {
+		super(length, k, blocked, 8);
 		filter = slice;
 	}
 
@@ -86,9 +98,9 @@ public class BinaryBloomFilter extends BloomFilter {
 		try {
 			File tempFile = File.createTempFile("bloom-", ".tmp");
 			tempFile.deleteOnExit();
-			forkedFilter = new BinaryBloomFilter(tempFile, length, k);
+			forkedFilter = new BinaryBloomFilter(tempFile, length, k, blocked);
 		} catch (IOException e) {
-			forkedFilter = new BinaryBloomFilter(length, k);
+			forkedFilter = new BinaryBloomFilter(length, k, blocked);
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -18,6 +18,21 @@ public abstract class BloomFilter {
 	/** Number of hash functions */
 	protected final int k;
 	protected final int length;
+	/** If true, all the hashes for a key are in a single cache line, and are derived from the key
+	 * bytes by double hashing rather than by seeding a MersenneTwister. Lookups do not take the
+	 * lock. Not compatible with the bits written by an unblocked filter. */
+	protected final boolean blocked;
+	/** Bytes per block for a blocked filter: One cache line. */
+	static final int BLOCK_BYTES = 64;
+	/** Elements per block, and number of blocks, if blocked. The last partial block is unused. */
+	private final int blockLength;
+	private final int blocks;
+	/** Number of locks for the blocks of a blocked filter. */
+	private static final int BLOCK_LOCKS = 64;
+	/** Locks for the blocks of a blocked filter, by block number modulo BLOCK_LOCKS. Adding or
+	 * removing a key holds the read lock and the lock for its block, so keys in different blocks
+	 * can be updated in parallel, while merge() etc hold the write lock and so exclude them. */
+	private final Object[] blockLocks;
 
 	protected transient ReadWriteLock lock = new ReentrantReadWriteLock();
 	
@@ -26,12 +41,16 @@ public abstract class BloomFilter {
 	}
 
 	public static BloomFilter createFilter(int length, int k, boolean counting) {
+		return createFilter(length, k, counting, false);
+	}
+	
+	public static BloomFilter createFilter(int length, int k, boolean counting, boolean blocked) {
 		if (length == 0)
 			return new NullBloomFilter(length, k);
 		if (counting)
-			return new CountingBloomFilter(length, k);
+			return new CountingBloomFilter(length, k, blocked);
 		else
-			return new BinaryBloomFilter(length, k);
+			return new BinaryBloomFilter(length, k, blocked);
 	}
 	
 	public static BloomFilter createFilter(File file, int length, int k, boolean counting) throws IOException {
@@ -44,6 +63,14 @@ public abstract class BloomFilter {
 	}
 	
 	protected BloomFilter(int length, int k) {
+		this(length, k, false, 8);
+	}
+	
+	/**
+	 * @param elementsPerByte
+	 *            number of elements stored in each byte, used to size the blocks
+	 */
+	protected BloomFilter(int length, int k, boolean blocked, int elementsPerByte) {
 		if (length < 0) {
 			throw new IllegalArgumentException("Filter must have postitive or zero length");
 		}
@@ -63,17 +90,41 @@ public abstract class BloomFilter {
 
 		this.length = length;
 		this.k = k;
+		this.blocked = blocked;
+		blockLength = Math.min(length, BLOCK_BYTES * elementsPerByte);
+		blocks = blockLength == 0 ? 0 : length / blockLength;
+		if (blocked) {
+			blockLocks = new Object[BLOCK_LOCKS];
+			for (int i = 0; i < BLOCK_LOCKS; i++)
+				blockLocks[i] = new Object();
+		} else {
+			blockLocks = null;
+		}
 	}
 
 	//-- Core
 	public void addKey(byte[] key) {
-		Random hashes = getHashes(key);
-		lock.writeLock().lock();
-		try {
-			for (int i = 0; i < k; i++)
-				setBit(hashes.nextInt(length));
-		} finally {
-			lock.writeLock().unlock();
+		if (blocked) {
+			long hash = blockedHash(key);
+			int step = blockedStep(hash);
+			lock.readLock().lock();
+			try {
+				synchronized (blockLocks[blockOf(hash) % BLOCK_LOCKS]) {
+					for (int i = 0; i < k; i++)
+						setBit(blockedIndex(hash, step, i));
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		} else {
+			Random hashes = getHashes(key);
+			lock.writeLock().lock();
+			try {
+				for (int i = 0; i < k; i++)
+					setBit(hashes.nextInt(length));
+			} finally {
+				lock.writeLock().unlock();
+			}
 		}
 
 		if (forkedFilter != null)
@@ -87,6 +138,15 @@ public abstract class BloomFilter {
 	}
 
 	public boolean checkFilter(byte[] key) {
+		if (blocked) {
+			// Racing with a write may miss a key which is being added, which is fine.
+			long hash = blockedHash(key);
+			int step = blockedStep(hash);
+			for (int i = 0; i < k; i++)
+				if (!getBit(blockedIndex(hash, step, i)))
+					return false;
+			return true;
+		}
 		Random hashes = getHashes(key);
 		lock.readLock().lock();
 		try {
@@ -100,13 +160,27 @@ public abstract class BloomFilter {
 	}
 
 	public void removeKey(byte[] key) {
-		Random hashes = getHashes(key);
-		lock.writeLock().lock();
-		try {
-			for (int i = 0; i < k; i++)
-				unsetBit(hashes.nextInt(length));
-		} finally {
-			lock.writeLock().unlock();
+		if (blocked) {
+			long hash = blockedHash(key);
+			int step = blockedStep(hash);
+			lock.readLock().lock();
+			try {
+				synchronized (blockLocks[blockOf(hash) % BLOCK_LOCKS]) {
+					for (int i = 0; i < k; i++)
+						unsetBit(blockedIndex(hash, step, i));
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		} else {
+			Random hashes = getHashes(key);
+			lock.writeLock().lock();
+			try {
+				for (int i = 0; i < k; i++)
+					unsetBit(hashes.nextInt(length));
+			} finally {
+				lock.writeLock().unlock();
+			}
 		}
 
 		if (forkedFilter != null)
@@ -131,6 +205,46 @@ public abstract class BloomFilter {
 		return new MersenneTwister(key);
 	}
 
+	/** Hash the key for a blocked filter. The keys are usually already hashes, but we mix them
+	 * anyway so that any key works. */
+	static long blockedHash(byte[] key) {
+		long h = 0x9E3779B97F4A7C15L ^ key.length;
+		int i = 0;
+		for (; i + 8 <= key.length; i += 8)
+			h = Long.rotateLeft(h ^ (Fields.bytesToLong(key, i) * 0x87C37B91114253D5L), 31) * 0x4CF5AD432745937FL;
+		for (; i < key.length; i++)
+			h = (h ^ (key[i] & 0xFF)) * 0x100000001B3L;
+		return mix(h);
+	}
+
+	/** The MurmurHash3 finalizer. */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** @return The second hash for double hashing, derived from the first. */
+	private static int blockedStep(long hash) {
+		return (int) mix(hash) | 1;
+	}
+
+	/** @return The block for a key in a blocked filter. */
+	private int blockOf(long hash) {
+		return (int) (((hash >>> 32) * blocks) >>> 32);
+	}
+
+	/** @return The i'th element for a key in a blocked filter. The top half of the hash chooses
+	 * the block, and the bottom half plus i times the step gives the element within the block. */
+	private int blockedIndex(long hash, int step, int i) {
+		int block = blockOf(hash);
+		long h = ((int) hash + i * step) & 0xFFFFFFFFL;
+		return block * blockLength + (int) ((h * blockLength) >>> 32);
+	}
+
 	//-- Fork & Merge
 	protected BloomFilter forkedFilter;
 
@@ -251,13 +365,14 @@ public abstract class BloomFilter {
 	}
 	
     public int copyTo(byte[] buf, int offset) {
-        lock.readLock().lock();
+        // The write lock, because a blocked filter adds and removes keys under the read lock.
+        lock.writeLock().lock();
         try {
             int capacity = filter.capacity();
             System.arraycopy(filter.array(), filter.arrayOffset(), buf, offset, capacity);
             return capacity;
         } finally {
-            lock.readLock().unlock();
+            lock.writeLock().unlock();
         }
     }
     
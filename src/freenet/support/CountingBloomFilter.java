@@ -30,7 +30,11 @@ public class CountingBloomFilter extends BloomFilter {
 	 *            length in bits
 	 */
 	public CountingBloomFilter(int length, int k) {
-		super(length, k);
+		this(length, k, false);
+	}
+
+	public CountingBloomFilter(int length, int k, boolean blocked) {
+		super(length, k, blocked, 4);
 		filter = ByteBuffer.allocate(this.length / 4);
 	}
 
@@ -44,7 +48,11 @@ public class CountingBloomFilter extends BloomFilter {
 	 * @throws IOException
 	 */
 	protected CountingBloomFilter(File file, int length, int k) throws IOException {
-		super(length, k);
+		this(file, length, k, false);
+	}
+
+	protected CountingBloomFilter(File file, int length, int k, boolean blocked) throws IOException {
+		super(length, k, blocked, 4);
 		int fileLength = length / 4;
 		if (!file.exists() || file.length() != fileLength)
 			needRebuild = true;
@@ -62,7 +70,11 @@ public class CountingBloomFilter extends BloomFilter {
 	}
 
 	public CountingBloomFilter(int length, int k, byte[] buffer) {
-		super(length, k);
+		this(length, k, buffer, false);
+	}
+
+	public CountingBloomFilter(int length, int k, byte[] buffer, boolean blocked) {
+		super(length, k, blocked, 4);
 		assert(buffer.length == length / 4);
 		filter = ByteBuffer.wrap(buffer);
 	}
@@ -112,9 +124,9 @@ public class CountingBloomFilter extends BloomFilter {
 		try {
 			File tempFile = File.createTempFile("bloom-", ".tmp");
 			tempFile.deleteOnExit();
-			forkedFilter = new CountingBloomFilter(tempFile, length, k);
+			forkedFilter = new CountingBloomFilter(tempFile, length, k, blocked);
 		} catch (IOException e) {
-			forkedFilter = new CountingBloomFilter(length, k);
+			forkedFilter = new CountingBloomFilter(length, k, blocked);
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -89,6 +89,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	private DateFormat df;
+	/** If false, the date format only shows whole seconds, so can be cached for a second. */
+	private boolean dateHasMillis;
+	private volatile CachedDate cachedDate;
 	private int[] fmt;
 	private String[] str;
 
@@ -128,6 +131,23 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	 */
 	protected final ArrayBlockingQueue<byte[]> list;
 	protected long listBytes = 0;
+	/** Lines dropped from list because the writer fell behind. Protected by list. */
+	private long droppedLines;
+
+	/** If not null, lines are queued here instead of in list. See useRingBuffer(). */
+	private volatile LogRingBuffer ring;
+	/** Reused for formatting lines when using the ring buffer */
+	private static final ThreadLocal<StringBuilder> lineBuffer = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(512);
+		}
+	};
+	/** Don't keep a line buffer bigger than this for the next line */
+	private static final int MAX_REUSED_LINE_BUFFER = 16384;
+
+	/** Write each line as a JSON object rather than using the format string */
+	private volatile boolean jsonLines;
 
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<OldLogFile>();
@@ -323,6 +343,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 							}
 						}
 					}
+					if(ring != null) {
+						if(writeFromRing(ring, flush)) return;
+						continue;
+					}
 					boolean died = false;
 					boolean timeoutFlush = false;
 					synchronized (list) {
@@ -384,22 +408,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				        	myWrite(altLogStream, null);
 					}
 					if(died) {
-						try {
-							logStream.close();
-						} catch (IOException e) {
-							System.err.println("Failed to close log stream: "+e);
-						}
-						if(altLogStream != null) {
-							try {
-								altLogStream.close();
-							} catch (IOException e) {
-								System.err.println("Failed to close compressed log stream: "+e);
-							}
-						}
-						synchronized(list) {
-							closedFinished = true;
-							list.notifyAll();
-						}
+						closeStreams();
 						return;
 					}
 					if(o == null) continue;
@@ -419,6 +428,73 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 		}
 
+		private void closeStreams() {
+			try {
+				logStream.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close log stream: "+e);
+			}
+			if(altLogStream != null) {
+				try {
+					altLogStream.close();
+				} catch (IOException e) {
+					System.err.println("Failed to close compressed log stream: "+e);
+				}
+			}
+			synchronized(list) {
+				closedFinished = true;
+				list.notifyAll();
+			}
+		}
+
+		/** Lines copied out of the ring buffer */
+		private byte[] batch;
+		/** Time of the last write which hasn't been flushed yet, or -1 */
+		private long lastUnflushedWrite = -1;
+		/** Dropped lines we have already reported */
+		private long reportedDropped;
+
+		/**
+		 * Write whatever is in the ring buffer, waiting a while if it is empty.
+		 * @return True if the hook has been closed and everything has been written out.
+		 */
+		private boolean writeFromRing(LogRingBuffer ring, long flush) {
+			if(batch == null)
+				batch = new byte[Math.max(65536, ring.getMaxLineLength())];
+			long dropped = ring.getDropped();
+			if(dropped != reportedDropped) {
+				byte[] buf = ("GRRR: ERROR: Logging too fast, dropped "+(dropped - reportedDropped)+" lines, "+dropped+" since startup\n").getBytes(ENCODING);
+				reportedDropped = dropped;
+				myWrite(logStream, buf, buf.length);
+				if(altLogStream != null)
+					myWrite(altLogStream, buf, buf.length);
+			}
+			// Anything logged before close() is written out.
+			boolean wasClosed = closed;
+			// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
+			int length = ring.drain(batch, wasClosed ? 0 : Math.min(500L, Math.max(flush, 1)));
+			long now = System.currentTimeMillis();
+			if(length > 0) {
+				myWrite(logStream, batch, length);
+				if(altLogStream != null)
+					myWrite(altLogStream, batch, length);
+				if(lastUnflushedWrite == -1) lastUnflushedWrite = now;
+				return false;
+			}
+			if(lastUnflushedWrite != -1 && (wasClosed || now - lastUnflushedWrite >= flush)) {
+				// Flush to disk
+				myWrite(logStream, null);
+				if(altLogStream != null)
+					myWrite(altLogStream, null);
+				lastUnflushedWrite = -1;
+			}
+			if(wasClosed) {
+				closeStreams();
+				return true;
+			}
+			return false;
+		}
+
 		private File rotateLog(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
 	        // Switch logs
 	        try {
@@ -466,12 +542,22 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		 *            the bytes to write, null to flush
 		 */
 		protected void myWrite(OutputStream os, byte[] b) {
+			myWrite(os, b, b == null ? 0 : b.length);
+		}
+
+		/**
+		 * @param b
+		 *            the bytes to write, null to flush
+		 * @param length
+		 *            the number of bytes to write from the start of b
+		 */
+		protected void myWrite(OutputStream os, byte[] b, int length) {
 			long sleepTime = 1000;
 			while (true) {
 				boolean thrown = false;
 				try {
 					if (b != null)
-						os.write(b);
+						os.write(b, 0, length);
 					else
 						os.flush();
 				} catch (IOException e) {
@@ -922,6 +1008,32 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			df = DateFormat.getDateTimeInstance();
 
 		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		dateHasMillis = !(df instanceof SimpleDateFormat) || ((SimpleDateFormat) df).toPattern().indexOf('S') != -1;
+	}
+
+	/** The last date we formatted. Usually many lines are logged in the same second or millisecond. */
+	private static class CachedDate {
+		/** The time in milliseconds, or seconds if the format doesn't show milliseconds */
+		final long time;
+		final String text;
+
+		CachedDate(long time, String text) {
+			this.time = time;
+			this.text = text;
+		}
+	}
+
+	private String formatDate(long now) {
+		long time = dateHasMillis ? now : now / 1000;
+		CachedDate cached = cachedDate;
+		if(cached != null && cached.time == time) return cached.text;
+		String text;
+		synchronized (this) {
+			myDate.setTime(now);
+			text = df.format(myDate);
+		}
+		cachedDate = new CachedDate(time, text);
+		return text;
 	}
 
 	@Override
@@ -931,8 +1043,41 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 		if (closed)
 			return;
-		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+
+		LogRingBuffer ring = this.ring;
+		StringBuilder sb;
+		if(ring != null) {
+			sb = lineBuffer.get();
+			// Only if something we called logged something.
+			if(sb.length() != 0) sb = new StringBuilder(512);
+		} else
+			sb = new StringBuilder( e == null ? 512 : 1024 );
+
+		if(jsonLines)
+			formatJSON(sb, o, c, msg, e, priority);
+		else
+			formatText(sb, o, c, msg, e, priority);
+
+		if(ring != null) {
+			ring.put(sb);
+			if(sb.capacity() > MAX_REUSED_LINE_BUFFER)
+				lineBuffer.remove();
+			else
+				sb.setLength(0);
+			return;
+		}
+
+		try {
+			logString(sb.toString().getBytes(ENCODING));
+		} catch (UnsupportedEncodingException e1) {
+			throw new IllegalStateException(
+				"Failed to convert log message to bytes. Unsupported charset encoding: " + ENCODING.name(),
+				e1
+			);
+		}
+	}
+
+	private void formatText(StringBuilder sb, Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
 		int sctr = 0;
 
 		for (int f: fmt) {
@@ -941,11 +1086,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
+					sb.append(formatDate(System.currentTimeMillis()));
 					break;
 				case CLASS :
 					sb.append(c == null ? "<none>" : c.getName());
@@ -972,7 +1113,11 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		}
 		sb.append('\n');
 
-		// Write stacktrace if available
+		appendThrowable(sb, e);
+	}
+
+	/** Write stacktrace if available */
+	private static void appendThrowable(StringBuilder sb, Throwable e) {
 		for(int j=0;j<20 && e != null;j++) {
 			sb.append(e.toString());
 			
@@ -995,21 +1140,86 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			if(cause != e) e = cause;
 			else break;
 		}
+	}
 
-		try {
-			logString(sb.toString().getBytes(ENCODING));
-		} catch (UnsupportedEncodingException e1) {
-			throw new IllegalStateException(
-				"Failed to convert log message to bytes. Unsupported charset encoding: " + ENCODING.name(),
-				e1
-			);
+	/**
+	 * One JSON object per line, so logs can be processed by other tools. The format string is
+	 * ignored, apart from whether to include the host name.
+	 */
+	private void formatJSON(StringBuilder sb, Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
+		sb.append("{\"time\":");
+		appendJSON(sb, formatDate(System.currentTimeMillis()));
+		sb.append(",\"priority\":\"").append(priority.name());
+		sb.append("\",\"class\":");
+		appendJSON(sb, c == null ? null : c.getName());
+		sb.append(",\"object\":");
+		appendJSON(sb, o == null ? null : Integer.toHexString(o.hashCode()));
+		sb.append(",\"thread\":");
+		appendJSON(sb, Thread.currentThread().getName());
+		for(int f : fmt) {
+			if(f == UNAME) {
+				sb.append(",\"host\":");
+				appendJSON(sb, uname);
+				break;
+			}
+		}
+		sb.append(",\"message\":");
+		appendJSON(sb, msg);
+		if(e != null) {
+			StringBuilder trace = new StringBuilder(1024);
+			appendThrowable(trace, e);
+			sb.append(",\"throwable\":");
+			appendJSON(sb, trace);
+		}
+		sb.append("}\n");
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	static void appendJSON(StringBuilder sb, CharSequence s) {
+		if(s == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		int length = s.length();
+		for(int i=0;i<length;i++) {
+			char ch = s.charAt(i);
+			switch(ch) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if(ch < 0x20 || ch == 0x2028 || ch == 0x2029)
+					sb.append("\\u").append(HEX[ch >> 12]).append(HEX[(ch >> 8) & 0xF]).append(HEX[(ch >> 4) & 0xF]).append(HEX[ch & 0xF]);
+				else
+					sb.append(ch);
+			}
 		}
+		sb.append('"');
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
 	
 	public void logString(byte[] b) throws UnsupportedEncodingException {
+		LogRingBuffer ring = this.ring;
+		if(ring != null) {
+			ring.put(new String(b, ENCODING));
+			return;
+		}
 		synchronized (list) {
 			int sz = list.size();
 			if(!list.offer(b)) {
@@ -1017,6 +1227,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
 				ss = list.poll();
 				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
+				droppedLines += 2;
 				String err =
 					"GRRR: ERROR: Logging too fast, chopped "
 						+ 2
@@ -1039,6 +1250,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					listBytes -= (ss.length + LINE_OVERHEAD);
 					x++;
 				}
+				droppedLines += x;
 				String err =
 					"GRRR: ERROR: Logging too fast, chopped "
 						+ x
@@ -1065,6 +1277,35 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		}
 	}
 
+	/** @return The number of lines dropped because they were logged faster than they could be
+	 * written. */
+	public long getDroppedLines() {
+		LogRingBuffer ring = this.ring;
+		if(ring != null) return ring.getDropped();
+		synchronized (list) {
+			return droppedLines;
+		}
+	}
+
+	/**
+	 * Queue lines in a LogRingBuffer instead of a list of byte arrays. Each thread formats lines
+	 * into a reused buffer, and they are encoded straight into the ring buffer's slots, so
+	 * logging allocates very little and doesn't take a lock. If the ring buffer is full, lines
+	 * are dropped and counted, and the count is written to the log. setMaxListBytes() has no
+	 * effect. Must be called before start().
+	 * @param slots The maximum number of lines waiting to be written.
+	 * @param slotSize The initial space for each line. Lines up to maxLineLength are still
+	 * logged, but need more memory.
+	 */
+	public void useRingBuffer(int slots, int slotSize, int maxLineLength) {
+		ring = new LogRingBuffer(slots, slotSize, maxLineLength);
+	}
+
+	/** Write each line as a JSON object, ignoring the format string. Can be changed at any time. */
+	public void setJSONLines(boolean jsonLines) {
+		this.jsonLines = jsonLines;
+	}
+
 	public static int numberOf(char c) {
 		switch (c) {
 			case 'd' :
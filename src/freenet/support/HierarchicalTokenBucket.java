@@ -0,0 +1,207 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A two level token bucket, for sharing a bandwidth limit between several classes of traffic.
+ * Each child has an assured rate, which it can always use, and a ceiling, which it can never
+ * exceed. Between the two, it borrows from the parent, which refills at the overall limit and is
+ * charged for everything the children send, so the spare bandwidth goes to whichever classes
+ * want it once the assured rates have been served.
+ *
+ * Lock-free: each bucket is a single AtomicLong holding the time at which it would have been
+ * empty (a virtual scheduling / GCRA bucket), so there is no separate refill step and grabbing is
+ * one compare and swap per bucket. Checking and charging several buckets isn't atomic, so
+ * concurrent senders can overshoot by a message each, which is fine for bandwidth limiting.
+ * All sizes are in bytes and all rates in bytes per second.
+ */
+public class HierarchicalTokenBucket {
+
+	/** A single bucket. Holds between -size and size tokens. */
+	private static class Bucket {
+
+		/** The time at which the bucket held no tokens, assuming it refilled without limit. */
+		private final AtomicLong emptyTime;
+		private volatile long nanosPerByte;
+		private volatile long size;
+
+		Bucket(long bytesPerSecond, long size, long now) {
+			emptyTime = new AtomicLong();
+			nanosPerByte = nanosPerByte(bytesPerSecond);
+			this.size = size;
+			// Start full.
+			emptyTime.set(now - size * nanosPerByte);
+		}
+
+		/** Change the rate, keeping the number of tokens. Not atomic with respect to grab(), so
+		 * a concurrent grab may be lost, but rate changes are rare. */
+		void setRate(long bytesPerSecond, long size, long now) {
+			long npb = nanosPerByte(bytesPerSecond);
+			if(size <= 0) throw new IllegalArgumentException();
+			long tokens = Math.min(size, getCount(now));
+			nanosPerByte = npb;
+			this.size = size;
+			emptyTime.set(now - tokens * npb);
+		}
+
+		private static long nanosPerByte(long bytesPerSecond) {
+			if(bytesPerSecond <= 0) throw new IllegalArgumentException();
+			return Math.max(1, SECONDS.toNanos(1) / bytesPerSecond);
+		}
+
+		long getCount(long now) {
+			return Math.min(size, (now - emptyTime.get()) / nanosPerByte);
+		}
+
+		void grab(long bytes, long now) {
+			long npb = nanosPerByte;
+			long full = size * npb;
+			while(true) {
+				long old = emptyTime.get();
+				// Tokens beyond the bucket size are lost.
+				long updated = Math.max(old, now - full) + bytes * npb;
+				// Don't go into debt by more than one bucket, so a class which has been
+				// borrowing for a long time isn't locked out for a long time afterwards.
+				updated = Math.min(updated, now + full);
+				if(emptyTime.compareAndSet(old, updated)) return;
+			}
+		}
+
+		/** @return Nanoseconds until the bucket will hold at least one token. */
+		long nanosUntilPositive(long now) {
+			return Math.max(0, emptyTime.get() + nanosPerByte - now);
+		}
+
+	}
+
+	private final Bucket parent;
+	private final Bucket[] assured;
+	private final Bucket[] ceiling;
+	/** Bytes charged to each child. */
+	private final AtomicLongArray grabbed;
+	/** Bytes charged to each child while it was over its assured rate. */
+	private final AtomicLongArray borrowed;
+	/** Number of times each child was refused. */
+	private final AtomicLongArray refused;
+
+	/**
+	 * @param bytesPerSecond The overall limit.
+	 * @param bucketSize The maximum burst, for the parent and for each child.
+	 * @param children The number of children. Until setChildRate() is called, each child can use
+	 * all of the overall limit and has nothing assured beyond that.
+	 */
+	public HierarchicalTokenBucket(long bytesPerSecond, long bucketSize, int children) {
+		long now = System.nanoTime();
+		parent = new Bucket(bytesPerSecond, bucketSize, now);
+		assured = new Bucket[children];
+		ceiling = new Bucket[children];
+		for(int i=0;i<children;i++) {
+			assured[i] = new Bucket(1, 1, now);
+			ceiling[i] = new Bucket(bytesPerSecond, bucketSize, now);
+		}
+		grabbed = new AtomicLongArray(children);
+		borrowed = new AtomicLongArray(children);
+		refused = new AtomicLongArray(children);
+	}
+
+	/** Change the overall limit. Children's rates are absolute so must be changed separately. */
+	public void setRate(long bytesPerSecond, long bucketSize) {
+		parent.setRate(bytesPerSecond, bucketSize, System.nanoTime());
+	}
+
+	/**
+	 * @param assuredBytesPerSecond The rate the child can always use, regardless of the others.
+	 * The assured rates should add up to no more than the overall limit.
+	 * @param ceilingBytesPerSecond The rate the child can never exceed, even if nothing else is
+	 * using the bandwidth.
+	 */
+	public void setChildRate(int child, long assuredBytesPerSecond, long ceilingBytesPerSecond) {
+		if(assuredBytesPerSecond > ceilingBytesPerSecond) throw new IllegalArgumentException();
+		long size = parent.size;
+		long now = System.nanoTime();
+		// A bucket can't hold more than a second's worth, but it must be able to hold
+		// something, so that a tiny assured rate still allows one message at a time.
+		assured[child].setRate(Math.max(1, assuredBytesPerSecond), Math.max(1, Math.min(size, assuredBytesPerSecond)), now);
+		ceiling[child].setRate(ceilingBytesPerSecond, Math.max(1, Math.min(size, ceilingBytesPerSecond)), now);
+	}
+
+	/** @return True if the child may send now, that is, it is under its ceiling, and either
+	 * under its assured rate or the parent has bandwidth to spare. */
+	public boolean mayGrab(int child) {
+		long now = System.nanoTime();
+		if(ceiling[child].getCount(now) <= 0) return false;
+		return assured[child].getCount(now) > 0 || parent.getCount(now) > 0;
+	}
+
+	/** Charge a child for bytes it has sent or is about to send, regardless of whether it was
+	 * allowed to send them. */
+	public void forceGrab(int child, long bytes) {
+		long now = System.nanoTime();
+		if(assured[child].getCount(now) <= 0)
+			borrowed.addAndGet(child, bytes);
+		assured[child].grab(bytes, now);
+		ceiling[child].grab(bytes, now);
+		parent.grab(bytes, now);
+		grabbed.addAndGet(child, bytes);
+	}
+
+	/** If the child may send, charge it for the bytes.
+	 * @return True if the child may send. */
+	public boolean tryGrab(int child, long bytes) {
+		if(!mayGrab(child)) {
+			refused.incrementAndGet(child);
+			return false;
+		}
+		forceGrab(child, bytes);
+		return true;
+	}
+
+	/** Give back bytes which a child was charged for but didn't send after all. The bytes it
+	 * borrowed aren't adjusted, as we don't know whether these were borrowed. */
+	public void refund(int child, long bytes) {
+		long now = System.nanoTime();
+		assured[child].grab(-bytes, now);
+		ceiling[child].grab(-bytes, now);
+		parent.grab(-bytes, now);
+		grabbed.addAndGet(child, -bytes);
+	}
+
+	/** @return Nanoseconds until mayGrab() will return true, if nothing else is sent. */
+	public long nanosUntilMayGrab(int child) {
+		long now = System.nanoTime();
+		long borrow = Math.min(assured[child].nanosUntilPositive(now), parent.nanosUntilPositive(now));
+		return Math.max(ceiling[child].nanosUntilPositive(now), borrow);
+	}
+
+	/** @return The number of tokens currently in the parent bucket. Negative if the children
+	 * are over the overall limit. */
+	public long getCount() {
+		return parent.getCount(System.nanoTime());
+	}
+
+	/** @return The total bytes charged to the child. */
+	public long getGrabbed(int child) {
+		return grabbed.get(child);
+	}
+
+	/** @return The total bytes charged to the child beyond its assured rate. */
+	public long getBorrowed(int child) {
+		return borrowed.get(child);
+	}
+
+	/** @return The number of times the child was not allowed to send. */
+	public long getRefused(int child) {
+		return refused.get(child);
+	}
+
+	public int countChildren() {
+		return assured.length;
+	}
+
+}
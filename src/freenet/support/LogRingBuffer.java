@@ -0,0 +1,223 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size queue of log lines, for many threads logging and one thread writing them out.
+ * Each line is encoded as UTF-8 into a preallocated slot, which is reused once the writer has
+ * copied it out, so logging doesn't allocate memory or take a lock. If the writer falls behind
+ * and the buffer is full, new lines are dropped and counted.
+ *
+ * Slots grow if a line doesn't fit, up to the maximum line length; longer lines are truncated.
+ */
+public class LogRingBuffer {
+
+	private static final byte[] TRUNCATED = "...\n".getBytes(StandardCharsets.UTF_8);
+
+	private final byte[][] slots;
+	private final int[] lengths;
+	/** For each slot, the sequence number of the line in it plus one, once it is complete. */
+	private final AtomicLongArray published;
+	private final int mask;
+	private final int maxLineLength;
+	/** The sequence number of the next line to be added */
+	private final AtomicLong head;
+	/** The sequence number of the next line to be read. Only changed by the reader. */
+	private volatile long tail;
+	private final AtomicLong dropped;
+	/** True if the reader is waiting for a line */
+	private volatile boolean waiting;
+
+	/**
+	 * @param slotCount Number of lines which can be buffered, rounded up to a power of 2.
+	 * @param slotSize Initial size of each slot. Most lines should fit.
+	 * @param maxLineLength Lines longer than this, including the newline, are truncated.
+	 */
+	public LogRingBuffer(int slotCount, int slotSize, int maxLineLength) {
+		if(slotCount <= 0 || slotCount > (1 << 24)) throw new IllegalArgumentException("Bad slot count "+slotCount);
+		if(slotSize < TRUNCATED.length || maxLineLength < slotSize) throw new IllegalArgumentException("Bad slot size "+slotSize+" max "+maxLineLength);
+		int size = Integer.highestOneBit(slotCount);
+		if(size < slotCount) size <<= 1;
+		slots = new byte[size][];
+		for(int i=0;i<size;i++)
+			slots[i] = new byte[slotSize];
+		lengths = new int[size];
+		published = new AtomicLongArray(size);
+		mask = size - 1;
+		this.maxLineLength = maxLineLength;
+		head = new AtomicLong();
+		dropped = new AtomicLong();
+	}
+
+	/** @return The number of lines which can be buffered. */
+	public int capacity() {
+		return slots.length;
+	}
+
+	public int getMaxLineLength() {
+		return maxLineLength;
+	}
+
+	/**
+	 * Add a line. Can be called by any number of threads at once.
+	 * @param line The line, which should end with a newline.
+	 * @return False if the buffer was full and the line was dropped.
+	 */
+	public boolean put(CharSequence line) {
+		long seq;
+		do {
+			seq = head.get();
+			if(seq - tail >= slots.length) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		} while(!head.compareAndSet(seq, seq + 1));
+		int slot = (int) (seq & mask);
+		lengths[slot] = encode(line, slot);
+		published.set(slot, seq + 1);
+		if(waiting) {
+			synchronized(this) {
+				notifyAll();
+			}
+		}
+		return true;
+	}
+
+	/** Encode the line as UTF-8 into a slot, growing or truncating as needed. */
+	private int encode(CharSequence line, int slot) {
+		byte[] buf = slots[slot];
+		int length = line.length();
+		// Each char is at most 3 bytes, so most lines don't need to be measured.
+		if(length * 3 > buf.length && buf.length < maxLineLength) {
+			int needed = utf8Length(line, 0);
+			if(needed > buf.length) {
+				buf = new byte[Math.min(maxLineLength, Math.max(buf.length * 2, needed))];
+				slots[slot] = buf;
+			}
+		}
+		int limit = buf.length - TRUNCATED.length;
+		int pos = 0;
+		for(int i=0;i<length;i++) {
+			int c = line.charAt(i);
+			if(Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(line.charAt(i + 1))) {
+				c = Character.toCodePoint((char) c, line.charAt(i + 1));
+			} else if(Character.isSurrogate((char) c)) {
+				c = '?';
+			}
+			int bytes = utf8Length(c);
+			if(pos + bytes > limit) {
+				if(pos + utf8Length(line, i) > buf.length) {
+					System.arraycopy(TRUNCATED, 0, buf, pos, TRUNCATED.length);
+					return pos + TRUNCATED.length;
+				}
+				// The rest fits.
+				limit = buf.length;
+			}
+			switch(bytes) {
+			case 1:
+				buf[pos++] = (byte) c;
+				break;
+			case 2:
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+				break;
+			case 3:
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+				break;
+			default:
+				buf[pos++] = (byte) (0xF0 | (c >> 18));
+				buf[pos++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+				i++;
+			}
+		}
+		return pos;
+	}
+
+	private static int utf8Length(int c) {
+		return c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+	}
+
+	/** @return The length of line[from...] in UTF-8. Unpaired surrogates are encoded as '?'. */
+	private static int utf8Length(CharSequence line, int from) {
+		int bytes = 0;
+		int length = line.length();
+		for(int i=from;i<length;i++) {
+			char c = line.charAt(i);
+			if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(line.charAt(i + 1))) {
+				bytes += 4;
+				i++;
+			} else if(Character.isSurrogate(c)) {
+				bytes++;
+			} else {
+				bytes += utf8Length(c);
+			}
+		}
+		return bytes;
+	}
+
+	private boolean isPublished(long seq) {
+		return published.get((int) (seq & mask)) == seq + 1;
+	}
+
+	/**
+	 * Copy as many complete lines as will fit into a buffer. Must only be called by one thread.
+	 * @param buf Must be at least getMaxLineLength() bytes.
+	 * @param timeout How long to wait for a line if there are none.
+	 * @return The number of bytes copied, 0 if there were no lines.
+	 */
+	public int drain(byte[] buf, long timeout) {
+		if(buf.length < maxLineLength) throw new IllegalArgumentException("Buffer too small");
+		long seq = tail;
+		if(!isPublished(seq) && timeout > 0) {
+			long deadline = System.currentTimeMillis() + timeout;
+			synchronized(this) {
+				waiting = true;
+				try {
+					while(!isPublished(seq)) {
+						long wait = deadline - System.currentTimeMillis();
+						if(wait <= 0) break;
+						try {
+							wait(wait);
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+				} finally {
+					waiting = false;
+				}
+			}
+		}
+		int pos = 0;
+		while(isPublished(seq)) {
+			int slot = (int) (seq & mask);
+			int length = lengths[slot];
+			if(pos + length > buf.length) break;
+			System.arraycopy(slots[slot], 0, buf, pos, length);
+			pos += length;
+			seq++;
+			// Frees the slot.
+			tail = seq;
+		}
+		return pos;
+	}
+
+	/** @return The number of lines waiting to be read, including any still being added. */
+	public int size() {
+		return (int) (head.get() - tail);
+	}
+
+	/** @return The total number of lines dropped because the buffer was full. */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+}
@@ -0,0 +1,116 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * A fixed size set of bits which can count the bits set below an index, and find the n'th bit
+ * set, in O(log n). The number of bits set in each word is kept in a binary indexed (Fenwick)
+ * tree, so picking a random member doesn't need a scan of the whole set. Not threadsafe.
+ */
+public class RankedBitSet {
+
+	private final int size;
+	private final long[] words;
+	/** Binary indexed tree over the number of bits set in each word. tree[i] is the sum of the
+	 * counts for the words (i - (i & -i)) to i-1. */
+	private final int[] tree;
+	/** The largest power of 2 not greater than words.length, for select(). */
+	private final int topBit;
+	private int cardinality;
+
+	public RankedBitSet(int size) {
+		if(size < 0) throw new IllegalArgumentException();
+		this.size = size;
+		words = new long[(size + 63) >>> 6];
+		tree = new int[words.length + 1];
+		topBit = words.length == 0 ? 0 : Integer.highestOneBit(words.length);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int cardinality() {
+		return cardinality;
+	}
+
+	public boolean get(int index) {
+		checkIndex(index);
+		return (words[index >>> 6] & (1L << index)) != 0;
+	}
+
+	/** @return True if the bit was not already set. */
+	public boolean set(int index) {
+		checkIndex(index);
+		int word = index >>> 6;
+		long bit = 1L << index;
+		if((words[word] & bit) != 0) return false;
+		words[word] |= bit;
+		update(word, 1);
+		return true;
+	}
+
+	/** @return True if the bit was set. */
+	public boolean clear(int index) {
+		checkIndex(index);
+		int word = index >>> 6;
+		long bit = 1L << index;
+		if((words[word] & bit) == 0) return false;
+		words[word] &= ~bit;
+		update(word, -1);
+		return true;
+	}
+
+	/** @return The number of bits set with an index less than the given index. */
+	public int countBelow(int index) {
+		if(index <= 0) return 0;
+		if(index >= size) return cardinality;
+		int word = index >>> 6;
+		int count = 0;
+		for(int i = word; i > 0; i -= i & -i)
+			count += tree[i];
+		long mask = (1L << index) - 1;
+		return count + Long.bitCount(words[word] & mask);
+	}
+
+	/** @param rank 0 for the first bit set, 1 for the second etc.
+	 * @return The index of the bit. */
+	public int select(int rank) {
+		if(rank < 0 || rank >= cardinality)
+			throw new IndexOutOfBoundsException("Rank "+rank+" but only "+cardinality+" bits set");
+		// Find the word by descending the tree.
+		int word = 0;
+		for(int step = topBit; step > 0; step >>>= 1) {
+			int next = word + step;
+			if(next <= words.length && tree[next] <= rank) {
+				word = next;
+				rank -= tree[next];
+			}
+		}
+		long w = words[word];
+		for(int i = 0; i < rank; i++)
+			w &= w - 1;
+		return (word << 6) + Long.numberOfTrailingZeros(w);
+	}
+
+	public void clearAll() {
+		for(int i = 0; i < words.length; i++)
+			words[i] = 0;
+		for(int i = 0; i < tree.length; i++)
+			tree[i] = 0;
+		cardinality = 0;
+	}
+
+	private void update(int word, int delta) {
+		cardinality += delta;
+		for(int i = word + 1; i < tree.length; i += i & -i)
+			tree[i] += delta;
+	}
+
+	private void checkIndex(int index) {
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index "+index+" size "+size);
+	}
+
+}
@@ -1,26 +1,31 @@
 package freenet.support;
 
-import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
-import java.util.NavigableSet;
-import java.util.TreeSet;
+import java.util.NoSuchElementException;
 
+/**
+ * A set of ints, stored as sorted ranges in two primitive arrays, so adding and removing
+ * doesn't create an object per range. Use rangeCount(), rangeStart() and rangeEnd() to go
+ * through the ranges without allocating. Not threadsafe.
+ */
 public class SparseBitmap implements Iterable<int[]> {
-	// Ranges ordered by start time. Invariant: ranges do not overlap and do not touch.
-	private final TreeSet<Range> ranges;
+	// Ranges ordered by start. Invariant: ranges do not overlap and do not touch.
+	private int[] starts;
+	private int[] ends; // inclusive
+	private int count;
+
+	private static final int INITIAL_RANGES = 4;
 
 	public SparseBitmap() {
-		ranges = new TreeSet<Range>(new RangeComparator());
+		starts = new int[INITIAL_RANGES];
+		ends = new int[INITIAL_RANGES];
 	}
 
 	public SparseBitmap(SparseBitmap original) {
-		ranges = new TreeSet<Range>(new RangeComparator());
-
-		for(int[] range : original) {
-			add(range[0], range[1]);
-		}
+		starts = Arrays.copyOf(original.starts, Math.max(INITIAL_RANGES, original.count));
+		ends = Arrays.copyOf(original.ends, Math.max(INITIAL_RANGES, original.count));
+		count = original.count;
 	}
 
 	/**
@@ -30,23 +35,23 @@ public class SparseBitmap implements Iterable<int[]> {
 		if(start > end) {
 			throw new IllegalArgumentException("Tried adding bad range. Start: " + start + ", end: " + end);
 		}
-		NavigableSet<Range> toReplace = overlaps(start, end, true);
-		if (!toReplace.isEmpty()) {
-			Range first = toReplace.first();
-			if (first.start < start) {
-				start = first.start;
-			}
-			Range last = toReplace.last();
-			if (last.end > end) {
-				end = last.end;
-			}
-			toReplace.clear();
-		}
-		ranges.add(new Range(start, end));
+		// Ranges which overlap or touch the new one are merged with it.
+		int first = firstEndingAtOrAfter(start - 1L);
+		int last = lastStartingAtOrBefore(end + 1L);
+		if(first > last) {
+			// Nothing to merge with.
+			replace(first, first, 1);
+			starts[first] = start;
+			ends[first] = end;
+			return;
+		}
+		starts[first] = Math.min(start, starts[first]);
+		ends[first] = Math.max(end, ends[last]);
+		replace(first + 1, last + 1, 0);
 	}
 
 	public void clear() {
-		ranges.clear();
+		count = 0;
 	}
 
 	/**
@@ -56,11 +61,9 @@ public class SparseBitmap implements Iterable<int[]> {
 		if(start > end) {
 			throw new IllegalArgumentException("Tried checking bad range. Start: " + start + ", end: " + end);
 		}
-
 		// Find the latest range starting before (or at) start, if any exists.
-		Range floor = ranges.floor(new Range(start, end));
-		// By definition of floor(), lower.start <= start.
-		return floor != null && floor.end >= end;
+		int i = lastStartingAtOrBefore(start);
+		return i >= 0 && ends[i] >= end;
 	}
 
 	/**
@@ -70,128 +73,139 @@ public class SparseBitmap implements Iterable<int[]> {
 		if(start > end) {
 			throw new IllegalArgumentException("Removing bad range. Start: " + start + ", end: " + end);
 		}
-
-		List<Range> toAdd = new ArrayList<Range>();
-
-		Iterator<Range> it = overlaps(start, end, false).iterator();
-		while (it.hasNext()) {
-			Range range = it.next();
-
-			if (range.start < start) {
-				if (range.end <= end) {
-					//Overlaps beginning
-					toAdd.add(new Range(range.start, start - 1));
-				} else if (range.end > end) {
-					//Overlaps entire range
-					toAdd.add(new Range(range.start, start - 1));
-					toAdd.add(new Range(end + 1, range.end));
-				}
-			} else {
-				if (range.end > end) {
-					// Overlaps end
-					toAdd.add(new Range(end + 1, range.end));
-				}
-				//Else it is equal or inside
-			}
-			it.remove();
+		int first = firstEndingAtOrAfter(start);
+		int last = lastStartingAtOrBefore(end);
+		if(first > last) return;
+		// Keep whatever sticks out of either end.
+		boolean keepStart = starts[first] < start;
+		boolean keepEnd = ends[last] > end;
+		int firstStart = starts[first];
+		int lastEnd = ends[last];
+		int kept = (keepStart ? 1 : 0) + (keepEnd ? 1 : 0);
+		replace(first, last + 1, kept);
+		int i = first;
+		if(keepStart) {
+			starts[i] = firstStart;
+			ends[i] = start - 1;
+			i++;
+		}
+		if(keepEnd) {
+			starts[i] = end + 1;
+			ends[i] = lastEnd;
 		}
+	}
 
-		ranges.addAll(toAdd);
+	/** @return The number of separate ranges. */
+	public int rangeCount() {
+		return count;
+	}
+
+	/** @return The first slot in the i'th range, in ascending order. */
+	public int rangeStart(int i) {
+		checkRange(i);
+		return starts[i];
+	}
+
+	/** @return The last slot in the i'th range, inclusive. */
+	public int rangeEnd(int i) {
+		checkRange(i);
+		return ends[i];
 	}
 
 	@Override
 	public Iterator<int[]> iterator() {
-		return new SparseBitmapIterator(this);
+		return new SparseBitmapIterator();
 	}
 
 	public boolean isEmpty() {
-		return ranges.isEmpty();
+		return count == 0;
 	}
 
 	@Override
 	public String toString() {
 		StringBuffer s = new StringBuffer();
-		for(int[] range : this) {
+		for(int i = 0; i < count; i++) {
 			if(s.length() != 0) s.append(", ");
-			s.append(range[0] + "->" + range[1]);
+			s.append(starts[i] + "->" + ends[i]);
 		}
 		return s.toString();
 	}
 
-	/** Finds all ranges that overlap or touch the given range. */
-	private NavigableSet<Range> overlaps(int start, int end, boolean includeTouching) {
-		// Establish bounds on start times to select ranges that would overlap or touch
-		Range startRange = new Range(start, 0);
-		Range lower = ranges.lower(startRange);
-		if (lower != null && lower.end >= (includeTouching ? start - 1 : start)) {
-			// This range would overlap (or touch, if those are to be included)
-			startRange = new Range(lower.start, 0);
+	/** @return The index of the first range which ends at or after the given slot, or count. */
+	private int firstEndingAtOrAfter(long slot) {
+		int lo = 0, hi = count;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(ends[mid] < slot) lo = mid + 1;
+			else hi = mid;
 		}
-		Range endRange = new Range(end + 1, 0);
-		// Any range with start time within startRange and endRange would touch or overlap
-		return ranges.subSet(startRange, true, endRange, includeTouching);
+		return lo;
 	}
 
-	private static class SparseBitmapIterator implements Iterator<int[]> {
-		Iterator<Range> it;
-
-		public SparseBitmapIterator(SparseBitmap map) {
-			it = map.ranges.iterator();
-		}
-
-		@Override
-		public boolean hasNext() {
-			return it.hasNext();
+	/** @return The index of the last range which starts at or before the given slot, or -1. */
+	private int lastStartingAtOrBefore(long slot) {
+		int lo = 0, hi = count;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(starts[mid] <= slot) lo = mid + 1;
+			else hi = mid;
 		}
+		return lo - 1;
+	}
 
-		@Override
-		public int[] next() {
-			Range r = it.next();
-			return new int[] {r.start, r.end};
-		}
+	/** Replace the ranges from index from (inclusive) to to (exclusive) with the given number of
+	 * ranges, which the caller must fill in. */
+	private void replace(int from, int to, int ranges) {
+		int newCount = count - (to - from) + ranges;
+		if(newCount > starts.length) {
+			int size = Math.max(newCount, starts.length * 2);
+			starts = Arrays.copyOf(starts, size);
+			ends = Arrays.copyOf(ends, size);
+		}
+		System.arraycopy(starts, to, starts, from + ranges, count - to);
+		System.arraycopy(ends, to, ends, from + ranges, count - to);
+		count = newCount;
+	}
 
-		@Override
-		public void remove() {
-			it.remove();
-		}
+	private void checkRange(int i) {
+		if(i < 0 || i >= count) throw new IndexOutOfBoundsException("Range "+i+" of "+count);
 	}
 
-	private static class Range {
-		final int start; // inclusive
-		final int end;   // inclusive
+	private class SparseBitmapIterator implements Iterator<int[]> {
+		private int next;
+		/** The index of the range last returned by next(), or -1 if it has been removed */
+		private int last = -1;
 
-		public Range(int start, int end) {
-			this.start = start;
-			this.end = end;
+		@Override
+		public boolean hasNext() {
+			return next < count;
 		}
 
 		@Override
-		public String toString() {
-			return "Range:"+start+"->"+end;
+		public int[] next() {
+			if(next >= count) throw new NoSuchElementException();
+			int[] ret = new int[] {starts[next], ends[next]};
+			last = next;
+			next++;
+			return ret;
 		}
-	}
 
-	private static class RangeComparator implements Comparator<Range> {
 		@Override
-		public int compare(Range r1, Range r2) {
-			return r1.start - r2.start;
+		public void remove() {
+			if(last < 0) throw new IllegalStateException();
+			replace(last, last + 1, 0);
+			next = last;
+			last = -1;
 		}
 	}
 
 	/** @return The number of slots between start and end that are not marked as present */
 	public int notOverlapping(int start, int end) {
 		int count = end - start + 1;
-		for (Range range : overlaps(start, end, false)) {
-			if (range.end < start || range.start > end) {
-				throw new IllegalStateException();
-			}
-			int overlap = range.end - range.start + 1;
-			if (range.start < start) {
-				overlap -= start - range.start;
-			}
-			if (range.end > end) {
-				overlap -= range.end - end;
-			}
+		int first = firstEndingAtOrAfter(start);
+		int last = lastStartingAtOrBefore(end);
+		for(int i = first; i <= last; i++) {
+			int overlap = Math.min(end, ends[i]) - Math.max(start, starts[i]) + 1;
 			count -= overlap;
 		}
 		return count;
@@ -0,0 +1,196 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Ticker driven by a virtual clock rather than by wall-clock time. Nothing runs until the owner
+ * advances the clock with {@link #runUntil(long)}, {@link #runFor(long)} or {@link #runAll()};
+ * jobs are then run in time order (FIFO for equal times) on the calling thread, so a simulation
+ * is single-threaded and fully reproducible. Used by the in-process packet transport
+ * (freenet.io.comm.SimulatedPacketNetwork) to simulate hundreds of nodes without sleeping.
+ *
+ * Jobs queued while a job is running are run in the same call if they fall due before the
+ * target time. The clock never goes backwards: jobs queued in the past run at the current time.
+ */
+public class VirtualTicker implements Ticker {
+
+	private static class Job implements Comparable<Job> {
+		final Runnable job;
+		final long time;
+		final long seq;
+
+		Job(Runnable job, long time, long seq) {
+			this.job = job;
+			this.time = time;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Job o) {
+			if(time != o.time) return time < o.time ? -1 : 1;
+			if(seq != o.seq) return seq < o.seq ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private final PriorityQueue<Job> queue = new PriorityQueue<Job>();
+	/** Only the most recently queued copy of each job, for removeQueuedJob() and noDupes */
+	private final HashMap<Runnable, Job> queued = new HashMap<Runnable, Job>();
+	private final Executor executor = new VirtualExecutor();
+	private long now;
+	private long seq;
+	private long jobsRun;
+
+	/** @param startTime The initial value of the virtual clock, in milliseconds. */
+	public VirtualTicker(long startTime) {
+		this.now = startTime;
+	}
+
+	public VirtualTicker() {
+		this(0);
+	}
+
+	/** @return The current virtual time in milliseconds. */
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, null, offset, false, false);
+	}
+
+	@Override
+	public synchronized void queueTimedJob(Runnable job, String name, long offset,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		queueTimedJobAbsolute(job, name, now + Math.max(0, offset), runOnTickerAnyway, noDupes);
+	}
+
+	@Override
+	public synchronized void queueTimedJobAbsolute(Runnable job, String name, long time,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		if(noDupes && queued.containsKey(job)) return;
+		Job j = new Job(job, Math.max(time, now), seq++);
+		queue.add(j);
+		queued.put(job, j);
+	}
+
+	@Override
+	public synchronized void removeQueuedJob(Runnable job) {
+		Job j = queued.remove(job);
+		if(j != null) queue.remove(j);
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/** @return The time of the next job due to run, or Long.MAX_VALUE if the queue is empty. */
+	public synchronized long nextJobTime() {
+		Job j = queue.peek();
+		return j == null ? Long.MAX_VALUE : j.time;
+	}
+
+	/** @return The number of jobs waiting to run. */
+	public synchronized int queuedJobs() {
+		return queue.size();
+	}
+
+	/** @return The total number of jobs run since the ticker was created. */
+	public synchronized long jobsRun() {
+		return jobsRun;
+	}
+
+	/**
+	 * Run every job due at or before the given time, in order, advancing the clock as we go. On
+	 * return the clock reads exactly {@code time} (unless it was already later).
+	 * @return The number of jobs run.
+	 */
+	public int runUntil(long time) {
+		int count = 0;
+		while(true) {
+			Runnable r;
+			synchronized(this) {
+				Job j = queue.peek();
+				if(j == null || j.time > time) {
+					if(time > now) now = time;
+					return count;
+				}
+				queue.poll();
+				if(queued.get(j.job) == j) queued.remove(j.job);
+				now = j.time;
+				jobsRun++;
+				r = j.job;
+			}
+			try {
+				r.run();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" running "+r, t);
+			}
+			count++;
+		}
+	}
+
+	/** Advance the clock by the given number of milliseconds, running everything due. */
+	public int runFor(long millis) {
+		long target;
+		synchronized(this) {
+			target = now + millis;
+		}
+		return runUntil(target);
+	}
+
+	/** Run jobs until the queue is empty. Jobs which keep rescheduling themselves will make this
+	 * loop forever; use {@link #runUntil(long)} for those. */
+	public int runAll() {
+		int count = 0;
+		while(true) {
+			long next = nextJobTime();
+			if(next == Long.MAX_VALUE) return count;
+			count += runUntil(next);
+		}
+	}
+
+	/** Runs jobs passed to the Executor at the current virtual time, on the ticker's thread. */
+	private class VirtualExecutor implements Executor {
+
+		@Override
+		public void execute(Runnable job) {
+			execute(job, null, false);
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName) {
+			execute(job, jobName, false);
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			synchronized(VirtualTicker.this) {
+				queue.add(new Job(job, now, seq++));
+			}
+		}
+
+		@Override
+		public int[] waitingThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int[] runningThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+
+	}
+
+}
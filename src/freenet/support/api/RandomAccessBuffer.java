@@ -5,6 +5,8 @@ package freenet.support.api;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * Trivial random access file base interface. Guaranteed to be thread-safe - that is, either the 
@@ -30,6 +32,54 @@ public interface RandomAccessBuffer extends Closeable {
 	
 	public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException;
 
+	/** Read several whole buffers from different locations in the file. Equivalent to calling
+	 * pread() for each buffer, but the reads are done in order of file offset, which is much
+	 * faster on a disk than the random order blocks typically arrive in. Implementations may
+	 * also take any locks once and skip seeks between adjacent ranges.
+	 * @param fileOffsets The offset within the file to read each buffer from.
+	 * @param bufs The buffers to fill completely.
+	 * @throws IOException If we were unable to read any of the ranges. Some of the buffers may
+	 * have been filled.
+	 * @throws IllegalArgumentException If the arrays are different lengths or an offset is
+	 * negative.
+	 */
+	public default void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+		for(int i : sortByOffset(fileOffsets, bufs))
+			pread(fileOffsets[i], bufs[i], 0, bufs[i].length);
+	}
+
+	/** Write several whole buffers to different locations in the file, in order of file offset.
+	 * Equivalent to calling pwrite() for each buffer. If the ranges overlap, the result is
+	 * undefined.
+	 * @see #preadv(long[], byte[][]) */
+	public default void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+		for(int i : sortByOffset(fileOffsets, bufs))
+			pwrite(fileOffsets[i], bufs[i], 0, bufs[i].length);
+	}
+
+	/** @return The indexes of the ranges in order of file offset, for implementing preadv() and
+	 * pwritev(). */
+	public static int[] sortByOffset(final long[] fileOffsets, byte[][] bufs) {
+		if(fileOffsets.length != bufs.length) throw new IllegalArgumentException();
+		Integer[] order = new Integer[fileOffsets.length];
+		for(int i=0;i<order.length;i++) {
+			if(fileOffsets[i] < 0) throw new IllegalArgumentException();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(fileOffsets[a], fileOffsets[b]);
+			}
+
+		});
+		int[] ret = new int[order.length];
+		for(int i=0;i<order.length;i++)
+			ret[i] = order[i];
+		return ret;
+	}
+
 	@Override
 	public void close();
 	
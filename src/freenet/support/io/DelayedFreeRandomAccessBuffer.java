@@ -44,6 +44,22 @@ public class DelayedFreeRandomAccessBuffer implements LockableRandomAccessBuffer
         underlying.pwrite(fileOffset, buf, bufOffset, length);
     }
 
+    @Override
+    public void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+        }
+        underlying.preadv(fileOffsets, bufs);
+    }
+
+    @Override
+    public void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+        }
+        underlying.pwritev(fileOffsets, bufs);
+    }
+
     @Override
     public void close() {
         synchronized(this) {
@@ -7,18 +7,24 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.client.async.ClientContext;
 import freenet.support.Logger;
 import freenet.support.WrapperKeepalive;
 import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBuffer;
 
 /** Random access files with a limited number of open files, using a pool.
- * LOCKING OPTIMISATION: Contention on DEFAULT_FDTRACKER likely here. It's not clear how to avoid that, FIXME.
- * However, this is doing disk I/O (even if cached, system calls), so maybe it's not a big deal ...
+ * Locking a buffer that is already open only touches the buffer itself. When a file has to be
+ * opened and the pool is full, an unlocked file is closed, chosen by a CLOCK (second chance)
+ * sweep, so recently used files tend to stay open.
  *
  * FIXME does this need a shutdown hook? I don't see why it would matter ... ??? */
 public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable {
@@ -30,43 +36,187 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
 
     private static final long serialVersionUID = 1L;
 
-    static class FDTracker implements Serializable {
-        private int maxOpenFDs;
-        private int totalOpenFDs = 0;
-        private final LinkedHashSet<PooledFileRandomAccessBuffer> closables = new LinkedHashSet<PooledFileRandomAccessBuffer>();
+    /** Tracks the open fd's and closes unlocked ones when there are too many. */
+    public static class FDTracker implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private volatile int maxOpenFDs;
+        /** Number of fd's open or being opened. */
+        private final AtomicInteger totalOpenFDs = new AtomicInteger();
+        /** Buffers which may have an open fd, in the order the clock hand visits them. */
+        private final ConcurrentLinkedQueue<PooledFileRandomAccessBuffer> clock = new ConcurrentLinkedQueue<PooledFileRandomAccessBuffer>();
+        /** Number of threads waiting for an fd. LOCKING: Only changed while synchronized on this. */
+        private volatile int waiters;
+        private final AtomicLong reuses = new AtomicLong();
+        private final AtomicLong opens = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
         FDTracker(int maxOpenFDs) {
             this.maxOpenFDs = maxOpenFDs;
         }
 
         /** Set the size of the fd pool */
-        synchronized void setMaxFDs(int max) {
+        public void setMaxFDs(int max) {
             if(max <= 0) throw new IllegalArgumentException();
             maxOpenFDs = max;
+            wakeWaiters();
+        }
+
+        public int getMaxFDs() {
+            return maxOpenFDs;
         }
 
         /** How many fd's are open right now? Mainly for tests but also for stats. */
-        synchronized int getOpenFDs() {
-            return totalOpenFDs;
+        public int getOpenFDs() {
+            return totalOpenFDs.get();
+        }
+
+        /** How many buffers in the pool are not locked, so could be closed? Walks the whole pool. */
+        public int getClosableFDs() {
+            int count = 0;
+            for(PooledFileRandomAccessBuffer buffer : clock) {
+                if(buffer.lockLevel == 0)
+                    count++;
+            }
+            return count;
+        }
+
+        /** @return How many times a file was locked while it was already open. */
+        public long getReuses() {
+            return reuses.get();
+        }
+
+        /** @return How many times a file was opened. */
+        public long getOpens() {
+            return opens.get();
+        }
+
+        /** @return How many times a file was closed to make room for another. */
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        /** Reserve an fd. If the pool is full, close an unlocked one, or wait until one is
+         * unlocked. */
+        private void reserve() {
+            while(true) {
+                if(tryReserve()) return;
+                synchronized(this) {
+                    waiters++;
+                    try {
+                        // Anyone unlocking after this sees waiters > 0 and wakes us.
+                        if(tryReserve()) return;
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    } finally {
+                        waiters--;
+                    }
+                }
+            }
+        }
+
+        private boolean tryReserve() {
+            while(true) {
+                int open = totalOpenFDs.get();
+                if(open < maxOpenFDs) {
+                    if(totalOpenFDs.compareAndSet(open, open + 1)) return true;
+                } else if(!evictOne()) {
+                    return false;
+                }
+            }
+        }
+
+        /** Move the clock hand until we find an unlocked buffer which hasn't been used since the
+         * hand last passed it, and close it.
+         * @return False if every open buffer is locked. */
+        private boolean evictOne() {
+            // Every buffer gets a second chance, so two turns of the clock are enough.
+            // Buffers which are dropped because they are already closed don't count.
+            int limit = 2 * (totalOpenFDs.get() + 1);
+            for(int i=0;i<limit;) {
+                PooledFileRandomAccessBuffer buffer = clock.poll();
+                if(buffer == null) return false;
+                buffer.queued = 0;
+                if(buffer.tryEvict()) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                if(buffer.queued != 0) i++;
+            }
+            return false;
+        }
+
+        /** An fd has been closed. */
+        private void release() {
+            totalOpenFDs.decrementAndGet();
+            wakeWaiters();
+        }
+
+        private void wakeWaiters() {
+            if(waiters > 0) {
+                synchronized(this) {
+                    notifyAll();
+                }
+            }
         }
+    }
+
+    /** Used if we can't find out the process's open file limit. */
+    static final int DEFAULT_MAX_FDS = 100;
+    /** Upper bound on the automatic limit. */
+    static final int MAX_AUTO_FDS = 4096;
 
-        synchronized int getClosableFDs() {
-            return closables.size();
+    /** @return A quarter of the process's open file limit (ulimit -n), but at least
+     * DEFAULT_MAX_FDS and at most MAX_AUTO_FDS. The rest are needed for sockets, the datastore,
+     * plugins etc. */
+    static int getAutoMaxFDs() {
+        try {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if(os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+                long max = ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+                return (int) Math.max(DEFAULT_MAX_FDS, Math.min(MAX_AUTO_FDS, max / 4));
+            }
+        } catch (LinkageError e) {
+            // Not available on this JVM, e.g. Android.
         }
+        return DEFAULT_MAX_FDS;
     }
+
     // static variables are always transient
-    private static final FDTracker DEFAULT_FDTRACKER = new FDTracker(100);
+    private static final FDTracker DEFAULT_FDTRACKER = new FDTracker(getAutoMaxFDs());
     private transient FDTracker fds;
 
+    public static FDTracker getDefaultFDTracker() {
+        return DEFAULT_FDTRACKER;
+    }
+
+    /** Set the maximum number of files open at once.
+     * @param max The limit, or 0 to set it from the process's open file limit. */
+    public static void setMaxOpenFiles(int max) {
+        DEFAULT_FDTRACKER.setMaxFDs(max == 0 ? getAutoMaxFDs() : max);
+    }
+
     public final File file;
     private final boolean readOnly;
     /** >0 means locked. We will wait until we get the lock if necessary, this is always accurate.
-     * LOCKING: Synchronized on fds. */
-    private int lockLevel;
-    /** The actual RAF. Non-null only if open. LOCKING: Synchronized on (this).
-     * LOCKING: Always take (this) last, i.e. after fds. */
-    private transient RandomAccessFile raf;
+     * EXCLUSIVE means the fd is being closed. LOCKING: Changed with LOCK_LEVEL. */
+    private volatile int lockLevel;
+    private static final AtomicIntegerFieldUpdater<PooledFileRandomAccessBuffer> LOCK_LEVEL =
+        AtomicIntegerFieldUpdater.newUpdater(PooledFileRandomAccessBuffer.class, "lockLevel");
+    private static final int EXCLUSIVE = -1;
+    /** The actual RAF. Non-null only if open. Only opened while locked and synchronized on (this),
+     * and only closed while EXCLUSIVE. I/O is synchronized on (this).
+     * LOCKING: Opening may wait for fds while holding (this), so never take (this) while
+     * synchronized on fds. */
+    private transient volatile RandomAccessFile raf;
+    /** Set when locked while already open, cleared when the clock hand passes. */
+    private transient volatile boolean referenced;
+    /** 1 if we are on fds.clock. Changed with QUEUED. */
+    private transient volatile int queued;
+    private static final AtomicIntegerFieldUpdater<PooledFileRandomAccessBuffer> QUEUED =
+        AtomicIntegerFieldUpdater.newUpdater(PooledFileRandomAccessBuffer.class, "queued");
     private final long length;
-    private boolean closed;
+    private volatile boolean closed;
     /** -1 = not persistent-temp. Otherwise the ID. We need the ID so we can move files if the
      * prefix changes. */
     private final long persistentTempID;
@@ -112,10 +262,8 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             this.length = currentLength;
             lock.unlock();
         } catch (IOException e) {
-            synchronized(this) {
-                raf.close();
-                raf = null;
-            }
+            lock.unlock();
+            closeRAF();
             throw e;
         }
     }
@@ -134,10 +282,8 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             raf.write(initialContents, offset, size);
             lock.unlock();
         } catch (IOException e) {
-            synchronized(this) {
-                raf.close();
-                raf = null;
-            }
+            lock.unlock();
+            closeRAF();
             throw e;
         }
     }
@@ -196,17 +342,62 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         }
     }
 
+    /** Reads all the ranges while holding the fd and the lock once, and only seeks between
+     * ranges which aren't adjacent. */
+    @Override
+    public void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+        int[] order = RandomAccessBuffer.sortByOffset(fileOffsets, bufs);
+        RAFLock lock = lockOpen();
+        try {
+            synchronized(this) {
+                long position = -1;
+                for(int i : order) {
+                    if(fileOffsets[i] != position)
+                        raf.seek(fileOffsets[i]);
+                    raf.readFully(bufs[i]);
+                    position = fileOffsets[i] + bufs[i].length;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+        int[] order = RandomAccessBuffer.sortByOffset(fileOffsets, bufs);
+        if(readOnly) throw new IOException("Read only");
+        RAFLock lock = lockOpen();
+        try {
+            synchronized(this) {
+                long position = -1;
+                for(int i : order) {
+                    if(fileOffsets[i] + bufs[i].length > this.length)
+                        throw new IOException("Length limit exceeded");
+                    if(fileOffsets[i] != position)
+                        raf.seek(fileOffsets[i]);
+                    raf.write(bufs[i]);
+                    position = fileOffsets[i] + bufs[i].length;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void close() {
         if(logMINOR) Logger.minor(this, "Closing "+this, new Exception("debug"));
-        synchronized(fds) {
-            if(lockLevel != 0)
-                throw new IllegalStateException("Must unlock first!");
+        lockExclusive();
+        try {
             closed = true;
             // Essential to avoid memory leak!
-            // Potentially slow but only happens on close(). Plus the size of closables is bounded anyway by the fd limit.
-            fds.closables.remove(this);
-            closeRAF();
+            // Potentially slow but only happens on close(). Plus the size of the clock is bounded anyway by the fd limit.
+            fds.clock.remove(this);
+            queued = 0;
+            closeFD();
+        } finally {
+            lockLevel = 0;
         }
     }
 
@@ -224,68 +415,116 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             }
 
         };
-        synchronized(fds) {
-            while(true) {
-                fds.closables.remove(this);
-                if(closed) throw new IOException("Already closed "+this);
-                if(raf != null) {
-                    lockLevel++; // Already open, may or may not be already locked.
-                    return lock;
-                } else if(fds.totalOpenFDs < fds.maxOpenFDs) {
-                    raf = new RandomAccessFile(file, (readOnly && !forceWrite) ? "r" : "rw");
-                    lockLevel++;
-                    fds.totalOpenFDs++;
-                    return lock;
-                } else {
-                    PooledFileRandomAccessBuffer closable = pollFirstClosable();
-                    if(closable != null) {
-                        closable.closeRAF();
-                        continue;
-                    }
-                    try {
-                        fds.wait();
-                    } catch (InterruptedException e) {
-                        // Ignore
+        while(true) {
+            int level = lockLevel;
+            if(level == EXCLUSIVE) {
+                // Being closed, which doesn't take long.
+                Thread.yield();
+            } else if(LOCK_LEVEL.compareAndSet(this, level, level + 1)) {
+                break;
+            }
+        }
+        // Now the fd can't be closed until we unlock.
+        boolean success = false;
+        try {
+            if(closed) throw new IOException("Already closed "+this);
+            if(raf != null) {
+                // Already open, may or may not be already locked.
+                referenced = true;
+                fds.reuses.incrementAndGet();
+            } else {
+                synchronized(this) {
+                    if(raf == null) {
+                        fds.reserve();
+                        try {
+                            raf = new RandomAccessFile(file, (readOnly && !forceWrite) ? "r" : "rw");
+                        } catch (IOException e) {
+                            fds.release();
+                            throw e;
+                        }
+                        fds.opens.incrementAndGet();
+                        enqueue();
+                    } else {
+                        // Another thread opened it while we waited.
+                        fds.reuses.incrementAndGet();
                     }
                 }
             }
+            success = true;
+            return lock;
+        } finally {
+            if(!success) unlock();
         }
     }
 
-    private PooledFileRandomAccessBuffer pollFirstClosable() {
-        synchronized(fds) {
-            Iterator<PooledFileRandomAccessBuffer> it = fds.closables.iterator();
-            if (it.hasNext()) {
-                PooledFileRandomAccessBuffer first = it.next();
-                it.remove();
-                return first;
+    /** Called by the clock hand, which has just taken us off the clock. Close the fd if it is not
+     * locked and hasn't been used since the hand last passed, otherwise put it back.
+     * @return True if the fd was closed. */
+    private boolean tryEvict() {
+        if(!LOCK_LEVEL.compareAndSet(this, 0, EXCLUSIVE)) {
+            // Locked, or being closed.
+            if(raf != null) enqueue();
+            return false;
+        }
+        try {
+            if(raf == null) return false;
+            if(referenced) {
+                referenced = false;
+                enqueue();
+                return false;
             }
-            return null;
+            closeFD();
+            return true;
+        } finally {
+            lockLevel = 0;
+        }
+    }
+
+    /** Put us on the clock if we aren't already on it. */
+    private void enqueue() {
+        if(QUEUED.compareAndSet(this, 0, 1))
+            fds.clock.offer(this);
+    }
+
+    /** Wait for anyone else closing the fd, then stop anyone locking it.
+     * @throws IllegalStateException If it is locked. */
+    private void lockExclusive() {
+        while(true) {
+            int level = lockLevel;
+            if(level > 0) throw new IllegalStateException("Must unlock first!");
+            if(level == 0 && LOCK_LEVEL.compareAndSet(this, 0, EXCLUSIVE)) return;
+            Thread.yield();
         }
     }
 
-    /** Exposed for tests only. Used internally. Must be unlocked. */
+    /** Close the fd if it is open. Must be EXCLUSIVE. */
+    private void closeFD() {
+        RandomAccessFile f = raf;
+        if(f == null) return;
+        try {
+            f.close();
+        } catch (IOException e) {
+            Logger.error(this, "Error closing "+this+" : "+e, e);
+        }
+        raf = null;
+        fds.release();
+    }
+
+    /** Exposed for tests only. Used internally. Must be unlocked. We stay on the clock until the
+     * hand reaches us. */
     protected void closeRAF() {
-        synchronized(fds) {
-            if(lockLevel != 0) throw new IllegalStateException();
-            if(raf == null) return;
-            try {
-                raf.close();
-            } catch (IOException e) {
-                Logger.error(this, "Error closing "+this+" : "+e, e);
-            }
-            raf = null;
-            fds.totalOpenFDs--;
+        if(lockLevel > 0) throw new IllegalStateException();
+        lockExclusive();
+        try {
+            closeFD();
+        } finally {
+            lockLevel = 0;
         }
     }
 
     private void unlock() {
-        synchronized(fds) {
-            lockLevel--;
-            if(lockLevel > 0) return;
-            fds.closables.add(this);
-            fds.notify();
-        }
+        if(LOCK_LEVEL.decrementAndGet(this) == 0)
+            fds.wakeWaiters();
     }
 
     public void setSecureDelete(boolean secureDelete) {
@@ -309,15 +548,11 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     }
 
     boolean isOpen() {
-        synchronized(fds) {
-            return raf != null;
-        }
+        return raf != null;
     }
 
     boolean isLocked() {
-        synchronized(fds) {
-            return lockLevel != 0;
-        }
+        return lockLevel > 0;
     }
 
     @Override
@@ -38,6 +38,16 @@ public class ReadOnlyRandomAccessBuffer implements LockableRandomAccessBuffer {
         throw new IOException("Read only");
     }
 
+    @Override
+    public void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+        underlying.preadv(fileOffsets, bufs);
+    }
+
+    @Override
+    public void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+        throw new IOException("Read only");
+    }
+
     @Override
     public void close() {
         underlying.close();
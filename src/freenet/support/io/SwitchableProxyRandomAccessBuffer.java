@@ -66,6 +66,38 @@ abstract class SwitchableProxyRandomAccessBuffer implements LockableRandomAccess
         }
     }
 
+    @Override
+    public void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+        checkRanges(fileOffsets, bufs);
+        try {
+            lock.readLock().lock();
+            if(underlying == null || closed) throw new IOException("Already closed");
+            underlying.preadv(fileOffsets, bufs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+        checkRanges(fileOffsets, bufs);
+        try {
+            lock.readLock().lock();
+            if(underlying == null || closed) throw new IOException("Already closed");
+            underlying.pwritev(fileOffsets, bufs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void checkRanges(long[] fileOffsets, byte[][] bufs) throws IOException {
+        if(fileOffsets.length != bufs.length) throw new IllegalArgumentException();
+        for(int i=0;i<fileOffsets.length;i++) {
+            if(fileOffsets[i] < 0) throw new IllegalArgumentException();
+            if(fileOffsets[i]+bufs[i].length > size) throw new IOException("Tried to access past end of file");
+        }
+    }
+
     @Override
     public void close() {
         try {
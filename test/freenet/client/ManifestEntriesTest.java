@@ -0,0 +1,274 @@
+package freenet.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import freenet.client.Metadata.DocumentType;
+import freenet.client.Metadata.SimpleManifestComposer;
+import freenet.keys.FreenetURI;
+import freenet.support.TestProperty;
+
+public class ManifestEntriesTest {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+
+	private static Metadata redirect(String name) throws MalformedURLException {
+		return new Metadata(DocumentType.SIMPLE_REDIRECT, null, null, new FreenetURI(CHK + name), new ClientMetadata("text/html"));
+	}
+
+	private static byte[] manifest(int count) throws Exception {
+		SimpleManifestComposer smc = new SimpleManifestComposer();
+		smc.addItem("", redirect("index.html"));
+		for(int i = 0; i < count; i++)
+			smc.addItem("file" + i + ".html", redirect("file" + i + ".html"));
+		smc.addItem("été.html", redirect("ete.html"));
+		return smc.getMetadata().writeToByteArray();
+	}
+
+	private static void assertTarget(String name, Metadata m) throws MalformedURLException {
+		assertEquals(new FreenetURI(CHK + name), m.getSingleTarget());
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		Metadata m = Metadata.construct(manifest(100));
+		assertTrue(m.isSimpleManifest());
+		assertEquals(102, m.countDocuments());
+		assertTarget("index.html", m.getDefaultDocument());
+		for(int i = 0; i < 100; i++)
+			assertTarget("file" + i + ".html", m.getDocument("file" + i + ".html"));
+		assertTarget("ete.html", m.getDocument("été.html"));
+		assertNull(m.getDocument("file100.html"));
+		assertNull(m.getDocument("file1"));
+		assertEquals(101, m.getDocuments().size());
+		// Decoded documents are kept.
+		assertTrue(m.getDocument("file5.html") == m.getDocument("file5.html"));
+	}
+
+	@Test
+	public void testGrabAndClone() throws Exception {
+		Metadata m = Metadata.construct(manifest(10));
+		Metadata copy = (Metadata) m.clone();
+		Metadata doc = m.getDocument("file1.html");
+		assertNotNull(m.grabDefaultDocument());
+		assertNull(m.getDefaultDocument());
+		assertNull(m.grabDefaultDocument());
+		assertEquals(11, m.countDocuments());
+		// The clone is not affected.
+		assertEquals(12, copy.countDocuments());
+		assertNotNull(copy.getDefaultDocument());
+		assertNotSame(doc, copy.getDocument("file1.html"));
+		Metadata copy2 = (Metadata) m.clone();
+		assertNull(copy2.getDefaultDocument());
+		assertNotSame(doc, copy2.getDocument("file1.html"));
+		assertTarget("file1.html", copy2.getDocument("file1.html"));
+	}
+
+	@Test
+	public void testWriteAgain() throws Exception {
+		Metadata m = Metadata.construct(manifest(20));
+		m.grabDocument("file3.html");
+		Metadata again = Metadata.construct(m.writeToByteArray());
+		assertEquals(21, again.countDocuments());
+		assertNull(again.getDocument("file3.html"));
+		assertTarget("file4.html", again.getDocument("file4.html"));
+	}
+
+	@Test
+	public void testSerialization() throws Exception {
+		Metadata m = Metadata.construct(manifest(20));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(m);
+		oos.close();
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+		Metadata read = (Metadata) ois.readObject();
+		assertEquals(22, read.countDocuments());
+		assertTarget("file7.html", read.getDocument("file7.html"));
+		assertTarget("file7.html", m.getDocument("file7.html"));
+	}
+
+	private static int indexOf(byte[] buf, byte[] target) {
+		outer: for(int i = 0; i <= buf.length - target.length; i++) {
+			for(int j = 0; j < target.length; j++)
+				if(buf[i + j] != target[j]) continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	private static void writeEntry(DataOutputStream dos, String name, byte[] data) throws IOException {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		dos.writeShort(nameBytes.length);
+		dos.write(nameBytes);
+		dos.writeShort(data.length);
+		dos.write(data);
+	}
+
+	@Test
+	public void testDuplicatesAndInvalidEntries() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		writeEntry(dos, "a", redirect("first").writeToByteArray());
+		writeEntry(dos, "bad", new byte[] { 1, 2, 3 });
+		writeEntry(dos, "a", redirect("second").writeToByteArray());
+		writeEntry(dos, "b", redirect("b").writeToByteArray());
+		dos.close();
+		byte[] buf = baos.toByteArray();
+		ManifestEntries entries = ManifestEntries.read(new DataInputStream(new ByteArrayInputStream(buf)), 4, buf.length);
+		assertEquals(3, entries.size());
+		// The last entry with the same name wins, as it did with a HashMap.
+		assertTarget("second", entries.get("a"));
+		assertTrue(entries.containsKey("bad"));
+		assertNull(entries.get("bad"));
+		assertTarget("b", entries.get("b"));
+		// Invalid entries are present, with a null value, when iterating.
+		HashMap<String, Metadata> copy = new HashMap<String, Metadata>(entries);
+		assertEquals(3, copy.size());
+		assertTrue(copy.containsKey("bad"));
+		assertNull(copy.get("bad"));
+		try {
+			entries.document("bad");
+			fail();
+		} catch (MetadataParseException e) {
+			// Expected.
+		}
+		try {
+			entries.removeDocument("bad");
+			fail();
+		} catch (MetadataParseException e) {
+			// Expected.
+		}
+		assertEquals(3, entries.size());
+		assertNull(entries.document("missing"));
+	}
+
+	@Test
+	public void testInvalidDocument() throws Exception {
+		SimpleManifestComposer smc = new SimpleManifestComposer();
+		smc.addItem("", redirect("index"));
+		smc.addItem("bad", redirect("bad"));
+		byte[] buf = smc.getMetadata().writeToByteArray();
+		// Corrupt the magic number of the entry's metadata.
+		byte[] bad = redirect("bad").writeToByteArray();
+		int offset = indexOf(buf, bad);
+		assertTrue(offset > 0);
+		buf[offset] ^= 1;
+		Metadata m = Metadata.construct(buf);
+		assertEquals(2, m.countDocuments());
+		assertTarget("index", m.getDefaultDocument());
+		assertNull(m.getDocument("missing"));
+		try {
+			m.getDocument("bad");
+			fail("An invalid entry must not look like a missing one");
+		} catch (MetadataParseException e) {
+			// Expected.
+		}
+		// Still invalid after serialization.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(m);
+		oos.close();
+		Metadata read = (Metadata) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(2, read.countDocuments());
+		try {
+			read.grabDocument("bad");
+			fail();
+		} catch (MetadataParseException e) {
+			// Expected.
+		}
+		// It can't be written back, so it is left out.
+		assertEquals(1, Metadata.construct(m.writeToByteArray()).countDocuments());
+	}
+
+	@Test(expected = MetadataParseException.class)
+	public void testNegativeNameLength() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeShort(-1);
+		dos.close();
+		byte[] buf = baos.toByteArray();
+		ManifestEntries.read(new DataInputStream(new ByteArrayInputStream(buf)), 1, buf.length);
+	}
+
+	@Test
+	public void testManifestCache() throws Exception {
+		ManifestCache cache = new ManifestCache(ManifestCache.DEFAULT_MAX_SIZE);
+		FreenetURI uri = new FreenetURI(CHK);
+		Metadata m = Metadata.construct(manifest(10));
+		cache.put(uri, null, m);
+		cache.put(new FreenetURI("KSK@test"), null, m);
+		cache.put(uri, "other", redirect("x"));
+		assertEquals(1, cache.getEntryCount());
+		m.grabDefaultDocument();
+		Metadata cached = cache.get(uri, null);
+		assertNotNull(cached);
+		assertNotNull(cached.grabDefaultDocument());
+		assertNotNull(cache.get(uri, null).getDefaultDocument());
+		assertNull(cache.get(uri, ArchiveManager.METADATA_NAME));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		long entrySize = m.indexedManifestSize() + ManifestCache.ENTRY_OVERHEAD;
+		ManifestCache small = new ManifestCache(entrySize * 2);
+		small.put(uri, "a", m);
+		small.put(uri, "b", m);
+		small.put(uri, "c", m);
+		assertEquals(2, small.getEntryCount());
+		assertEquals(entrySize * 2, small.getSize());
+		assertNull(small.get(uri, "a"));
+		assertNotNull(small.get(uri, "c"));
+	}
+
+	/** Resolve one path in a huge manifest: decoding every entry versus only the one needed. */
+	@Test
+	public void testLookupBenchmark() throws Exception {
+		// ant -Dtest.skip=false -Dtest.class=freenet.client.ManifestEntriesTest -Dtest.benchmark=true unit
+		if(!TestProperty.BENCHMARK) return;
+		int entries = 50000;
+		byte[] data = manifest(entries);
+		String name = "file" + (entries / 3) + ".html";
+		int rounds = 20;
+		for(int warmup = 0; warmup < 2; warmup++) {
+			long eager = 0;
+			long lazy = 0;
+			for(int i = 0; i < rounds; i++) {
+				long start = System.nanoTime();
+				Metadata m = Metadata.construct(data);
+				// What parsing used to do: decode every entry.
+				assertEquals(entries + 1, m.getDocuments().size());
+				assertNotNull(m.getDocument(name));
+				eager += System.nanoTime() - start;
+				start = System.nanoTime();
+				m = Metadata.construct(data);
+				assertNotNull(m.getDocument(name));
+				lazy += System.nanoTime() - start;
+			}
+			if(warmup == 1) {
+				System.out.println("Resolving one path in a " + entries + " entry manifest (" + data.length + " bytes):");
+				System.out.println("Decode all entries: " + (eager / rounds / 1000) + "us");
+				System.out.println("Decode one entry: " + (lazy / rounds / 1000) + "us");
+			}
+		}
+		assertFalse(data.length == 0);
+	}
+
+}
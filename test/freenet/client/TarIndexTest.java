@@ -0,0 +1,235 @@
+package freenet.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Test;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class TarIndexTest {
+
+	private static final String LONG_NAME = "a/very/long/path/" + repeat('x', 120) + "/file.txt";
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private static byte[] content(int size, int seed) {
+		byte[] data = new byte[size];
+		for(int i = 0; i < size; i++)
+			data[i] = (byte) (i * 31 + seed);
+		return data;
+	}
+
+	private static void add(TarArchiveOutputStream tar, String name, byte[] data) throws IOException {
+		TarArchiveEntry entry = new TarArchiveEntry(name);
+		entry.setSize(data.length);
+		tar.putArchiveEntry(entry);
+		tar.write(data);
+		tar.closeArchiveEntry();
+	}
+
+	private static byte[] archive(int bigSize) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(baos);
+		tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+		tar.putArchiveEntry(new TarArchiveEntry("dir/"));
+		tar.closeArchiveEntry();
+		add(tar, "index.html", content(1000, 1));
+		add(tar, "/dir/empty", new byte[0]);
+		add(tar, LONG_NAME, content(513, 2));
+		add(tar, "index.html", content(10, 3));
+		add(tar, "big.bin", content(bigSize, 4));
+		add(tar, "last", content(512, 5));
+		tar.close();
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void testIndex() throws Exception {
+		byte[] data = archive(5000);
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		TarIndex index = TarIndex.copyAndIndex(new ByteArrayInputStream(data), copy, null);
+		byte[] copied = copy.toByteArray();
+		assertEquals(index.archiveLength(), copied.length);
+		assertArrayEquals(Arrays.copyOf(data, copied.length), copied);
+		assertEquals(5, index.size());
+		assertEquals(1000 + 513 + 5000 + 512, index.dataSize());
+		assertNull(index.get("dir/"));
+		assertNull(index.get("dir"));
+		assertEquals(0, index.get("dir/empty").size);
+		// The first of two files with the same name wins, as when unpacking.
+		assertMember(copied, index, "index.html", content(1000, 1));
+		assertMember(copied, index, LONG_NAME, content(513, 2));
+		assertMember(copied, index, "big.bin", content(5000, 4));
+		assertMember(copied, index, "last", content(512, 5));
+	}
+
+	private static void assertMember(byte[] archive, TarIndex index, String name, byte[] expected) {
+		TarIndex.Member member = index.get(name);
+		assertNotNull(name, member);
+		assertEquals(expected.length, member.size);
+		assertArrayEquals(expected, Arrays.copyOfRange(archive, (int) member.offset, (int) (member.offset + member.size)));
+	}
+
+	@Test
+	public void testCorruptHeader() throws Exception {
+		byte[] data = archive(100);
+		data[0] ^= 1;
+		try {
+			TarIndex.copyAndIndex(new ByteArrayInputStream(data), new ByteArrayOutputStream(), null);
+			fail();
+		} catch (ArchiveFailureException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testTruncated() throws Exception {
+		byte[] data = archive(5000);
+		try {
+			TarIndex.copyAndIndex(new ByteArrayInputStream(Arrays.copyOf(data, 3000)), new ByteArrayOutputStream(), null);
+			fail();
+		} catch (ArchiveFailureException e) {
+			// Expected.
+		}
+	}
+
+	private static class Callback implements ArchiveExtractCallback {
+
+		private static final long serialVersionUID = 1L;
+		Bucket data;
+		boolean notInArchive;
+
+		@Override
+		public void gotBucket(Bucket data, ClientContext context) {
+			this.data = data;
+		}
+
+		@Override
+		public void notInArchive(ClientContext context) {
+			notInArchive = true;
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ClientContext context) {
+			throw new AssertionError(e);
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ClientContext context) {
+			throw new AssertionError(e);
+		}
+
+	}
+
+	private static Callback extract(ArchiveManager manager, FreenetURI key, byte[] data, String element) throws Exception {
+		Callback callback = new Callback();
+		ArchiveStoreContext ctx = new ArchiveStoreContext(key, ARCHIVE_TYPE.TAR);
+		manager.extractToCache(key, ARCHIVE_TYPE.TAR, null, new ArrayBucket(data), new ArchiveContext(Long.MAX_VALUE, 10), ctx, element, callback, null);
+		return callback;
+	}
+
+	@Test
+	public void testIndexedExtraction() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024 * 1024, 4096, 1000, new ArrayBucketFactory());
+		FreenetURI key = new FreenetURI("CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/site.tar");
+		byte[] data = archive(5000);
+		Callback callback = extract(manager, key, data, "index.html");
+		assertArrayEquals(content(1000, 1), BucketTools.toByteArray(callback.data));
+		assertEquals(1, manager.getArchivesIndexed());
+		assertEquals(1, manager.getFilesExtracted());
+		assertEquals(1000, manager.getBytesExtracted());
+		assertEquals(513 + 5000 + 512, manager.getBytesNotExtracted());
+		// Metadata is generated for the files small enough to cache.
+		Bucket metadata = manager.getCached(key, ArchiveManager.METADATA_NAME);
+		assertNotNull(metadata);
+		Metadata m = Metadata.construct(BucketTools.toByteArray(metadata));
+		assertNotNull(m.getDocument("index.html"));
+		assertNull(m.getDocument("big.bin"));
+
+		// Other files are copied out of the cached archive on demand.
+		assertArrayEquals(content(513, 2), BucketTools.toByteArray(manager.getCached(key, LONG_NAME)));
+		assertEquals(2, manager.getFilesExtracted());
+		assertEquals(5000 + 512, manager.getBytesNotExtracted());
+		assertArrayEquals(content(513, 2), BucketTools.toByteArray(manager.getCached(key, LONG_NAME)));
+		assertEquals(2, manager.getFilesExtracted());
+		// Too big to cache, but still served.
+		assertArrayEquals(content(5000, 4), BucketTools.toByteArray(manager.getCached(key, "big.bin")));
+		assertArrayEquals(content(5000, 4), BucketTools.toByteArray(manager.getCached(key, "big.bin")));
+		assertEquals(4, manager.getFilesExtracted());
+		assertNull(manager.getCached(key, "missing"));
+
+		callback = extract(manager, key, data, "missing");
+		assertTrue(callback.notInArchive);
+		callback = extract(manager, key, data, "big.bin");
+		assertArrayEquals(content(5000, 4), BucketTools.toByteArray(callback.data));
+	}
+
+	@Test
+	public void testEvictionBySize() throws Exception {
+		int archiveSize = archive(100000).length;
+		// Each archive is just small enough to keep, so older archives must be dropped.
+		long maxCachedData = archiveSize * (long) ArchiveManager.MAX_INDEXED_FRACTION;
+		ArchiveManager manager = new ArchiveManager(10, maxCachedData, 4096, 1000, new ArrayBucketFactory());
+		FreenetURI[] keys = new FreenetURI[ArchiveManager.MAX_INDEXED_FRACTION + 2];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = new FreenetURI("KSK@archive" + i);
+			extract(manager, keys[i], archive(100000), "index.html");
+			assertTrue(manager.getCachedDataSize() <= maxCachedData);
+		}
+		assertNull(manager.getCached(keys[0], "last"));
+		assertNotNull(manager.getCached(keys[keys.length - 1], "last"));
+	}
+
+	@Test
+	public void testArchiveTooBigToKeep() throws Exception {
+		byte[] data = archive(100000);
+		// Too big to keep whole, so every small file is cached, as without indexing.
+		ArchiveManager manager = new ArchiveManager(10, data.length, 4096, 1000, new ArrayBucketFactory());
+		FreenetURI key = new FreenetURI("KSK@archive");
+		Callback callback = extract(manager, key, data, "last");
+		assertArrayEquals(content(512, 5), BucketTools.toByteArray(callback.data));
+		assertEquals(1, manager.getArchivesIndexed());
+		long extracted = manager.getFilesExtracted();
+		// The second file is served from the cache, not from the archive.
+		assertArrayEquals(content(1000, 1), BucketTools.toByteArray(manager.getCached(key, "index.html")));
+		assertArrayEquals(content(513, 2), BucketTools.toByteArray(manager.getCached(key, LONG_NAME)));
+		assertEquals(extracted, manager.getFilesExtracted());
+		assertNull(manager.getCached(key, "big.bin"));
+		assertFalse(manager.getCachedDataSize() > data.length);
+	}
+
+	@Test
+	public void testUnindexedExtraction() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024 * 1024, 4096, 1000, new ArrayBucketFactory());
+		manager.setIndexedExtraction(false);
+		FreenetURI key = new FreenetURI("KSK@archive");
+		Callback callback = extract(manager, key, archive(5000), LONG_NAME);
+		assertArrayEquals(content(513, 2), BucketTools.toByteArray(callback.data));
+		assertEquals(0, manager.getArchivesIndexed());
+		assertArrayEquals(content(1000, 1), BucketTools.toByteArray(manager.getCached(key, "index.html")));
+	}
+
+}
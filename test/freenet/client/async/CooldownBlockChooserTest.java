@@ -0,0 +1,229 @@
+package freenet.client.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import freenet.support.TestProperty;
+
+public class CooldownBlockChooserTest {
+
+    @Test
+    public void testChooseFewestRetries() {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(10, new Random(1), 3);
+        for(int i=0;i<9;i++)
+            assertFalse(chooser.onNonFatalFailure(i));
+        for(int i=0;i<20;i++)
+            assertEquals(9, chooser.chooseKey());
+        chooser.onSuccess(9);
+        Set<Integer> chosen = new HashSet<Integer>();
+        for(int i=0;i<200;i++)
+            chosen.add(chooser.chooseKey());
+        assertEquals(9, chosen.size());
+        assertFalse(chosen.contains(9));
+        assertEquals(9, chooser.countFetchable());
+    }
+
+    @Test
+    public void testMaxRetries() {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(2, new Random(1), 1);
+        assertFalse(chooser.onNonFatalFailure(0));
+        assertTrue(chooser.onNonFatalFailure(0));
+        for(int i=0;i<20;i++)
+            assertEquals(1, chooser.chooseKey());
+        assertEquals(1, chooser.countFailedBlocks());
+        assertEquals(1, chooser.countFetchable());
+        chooser.onSuccess(1);
+        assertEquals(-1, chooser.chooseKey());
+        assertEquals(0, chooser.countFetchable());
+        chooser.onUnSuccess(1);
+        assertEquals(1, chooser.chooseKey());
+    }
+
+    @Test
+    public void testCheckValid() {
+        final boolean[] fetching = new boolean[100];
+        SimpleBlockChooser chooser = new SimpleBlockChooser(100, new Random(1), -1) {
+
+            @Override
+            protected boolean checkValid(int chosen) {
+                return super.checkValid(chosen) && !fetching[chosen];
+            }
+
+        };
+        for(int i=0;i<99;i++)
+            fetching[i] = true;
+        for(int i=0;i<20;i++)
+            assertEquals(99, chooser.chooseKey());
+        fetching[99] = true;
+        assertEquals(-1, chooser.chooseKey());
+        // Blocks with more retries are chosen if the ones with fewer aren't valid.
+        chooser.onNonFatalFailure(50);
+        fetching[50] = false;
+        assertEquals(50, chooser.chooseKey());
+    }
+
+    @Test
+    public void testUniform() {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(200, new Random(1), -1);
+        for(int i=0;i<200;i+=2)
+            chooser.onSuccess(i);
+        int[] counts = new int[200];
+        for(int i=0;i<100000;i++)
+            counts[chooser.chooseKey()]++;
+        for(int i=0;i<200;i++) {
+            if(i % 2 == 0)
+                assertEquals(0, counts[i]);
+            else
+                assertTrue("Block "+i+" chosen "+counts[i]+" times", counts[i] > 800 && counts[i] < 1200);
+        }
+    }
+
+    @Test
+    public void testCooldown() throws InterruptedException {
+        CooldownBlockChooser chooser = new CooldownBlockChooser(3, new Random(1), -1, 2, 200);
+        // Every second failure puts the block into cooldown.
+        for(int i=0;i<3;i++)
+            chooser.onNonFatalFailure(i);
+        assertTrue(chooser.chooseKey() != -1);
+        assertEquals(0, chooser.overallCooldownTime());
+        long now = System.currentTimeMillis();
+        for(int i=0;i<3;i++)
+            chooser.onNonFatalFailure(i);
+        assertEquals(-1, chooser.chooseKey());
+        long wakeUp = chooser.overallCooldownTime();
+        assertTrue(wakeUp >= now + 200);
+        assertTrue(wakeUp <= System.currentTimeMillis() + 200);
+        for(int i=0;i<3;i++)
+            assertTrue(chooser.getCooldownTime(i) >= wakeUp);
+        // A block which is no longer downloaded comes out of cooldown.
+        chooser.onSuccess(1);
+        assertEquals(0, chooser.getCooldownTime(1));
+        chooser.onUnSuccess(1);
+        assertEquals(1, chooser.chooseKey());
+        chooser.onSuccess(1);
+        assertEquals(-1, chooser.chooseKey());
+        // Clearing the cooldown doesn't wake blocks which are still in cooldown.
+        chooser.clearCooldown();
+        assertEquals(-1, chooser.chooseKey());
+        assertEquals(wakeUp, chooser.overallCooldownTime());
+        while(System.currentTimeMillis() <= wakeUp + 1)
+            Thread.sleep(10);
+        Set<Integer> chosen = new HashSet<Integer>();
+        for(int i=0;i<50;i++)
+            chosen.add(chooser.chooseKey());
+        assertEquals(2, chosen.size());
+        assertTrue(chosen.contains(0));
+        assertTrue(chosen.contains(2));
+        assertEquals(0, chooser.getCooldownTime(0));
+    }
+
+    @Test
+    public void testCooldownNothingToChoose() {
+        CooldownBlockChooser chooser = new CooldownBlockChooser(2, new Random(1), -1, 3, 60000);
+        chooser.onSuccess(0);
+        chooser.onSuccess(1);
+        assertEquals(-1, chooser.chooseKey());
+        // Nothing will become fetchable without some other change.
+        assertEquals(Long.MAX_VALUE, chooser.overallCooldownTime());
+        chooser.onUnSuccess(0);
+        assertEquals(0, chooser.chooseKey());
+    }
+
+    @Test
+    public void testConcurrentFailures() throws InterruptedException {
+        final int blocks = 1000;
+        final SimpleBlockChooser chooser = new SimpleBlockChooser(blocks, new Random(1), -1);
+        Thread[] threads = new Thread[4];
+        for(int t=0;t<threads.length;t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for(int i=0;i<blocks;i++) {
+                        chooser.onNonFatalFailure(random.nextInt(blocks - 1));
+                        if(i % 10 == 0) chooser.chooseKey();
+                    }
+                }
+
+            };
+            threads[t].start();
+        }
+        for(Thread t : threads)
+            t.join();
+        int total = 0;
+        for(int i=0;i<blocks;i++)
+            total += chooser.getRetries(i);
+        assertEquals(threads.length * blocks, total);
+        // The last block is the only one which is sure not to have failed.
+        chooser.onNonFatalFailure(blocks - 1);
+        int min = Integer.MAX_VALUE;
+        for(int i=0;i<blocks;i++)
+            min = Math.min(min, chooser.getRetries(i));
+        for(int i=0;i<100;i++)
+            assertEquals(min, chooser.getRetries(chooser.chooseKey()));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(5, new Random(1), 2);
+        chooser.onSuccess(0);
+        chooser.onNonFatalFailure(1);
+        chooser.onNonFatalFailure(1);
+        chooser.onNonFatalFailure(1);
+        chooser.onNonFatalFailure(2);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        chooser.write(new DataOutputStream(baos));
+        SimpleBlockChooser read = new SimpleBlockChooser(5, new Random(1), 2);
+        read.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(1, read.successCount());
+        assertEquals(3, read.getRetries(1));
+        assertEquals(1, read.countFailedBlocks());
+        assertEquals(3, read.countFetchable());
+        Set<Integer> chosen = new HashSet<Integer>();
+        for(int i=0;i<100;i++)
+            chosen.add(read.chooseKey());
+        assertEquals(2, chosen.size());
+        assertTrue(chosen.contains(3));
+        assertTrue(chosen.contains(4));
+    }
+
+    // ant -Dtest.skip=false -Dtest.class=freenet.client.async.CooldownBlockChooserTest -Dtest.benchmark=true unit
+    @Test
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        for(int blocks : new int[] { 256, 4096, 65536 }) {
+            Random random = new Random(1);
+            CooldownBlockChooser chooser = new CooldownBlockChooser(blocks, random, -1, 3, 60000);
+            // Half done, some in cooldown, and the rest with different retry counts.
+            for(int i=0;i<blocks;i+=2)
+                chooser.onSuccess(i);
+            for(int i=1;i<blocks;i+=2) {
+                int failures = i % 4 == 1 ? 3 : random.nextInt(3);
+                for(int j=0;j<failures;j++)
+                    chooser.onNonFatalFailure(i);
+            }
+            int choices = 2000000 / (int) Math.sqrt(blocks);
+            for(int i=0;i<choices;i++)
+                chooser.chooseKey();
+            long start = System.nanoTime();
+            for(int i=0;i<choices;i++)
+                chooser.chooseKey();
+            long time = System.nanoTime() - start;
+            System.out.println(blocks+" blocks: "+(choices * 1000000000L / time)+" choices/sec");
+        }
+    }
+
+}
@@ -851,6 +851,66 @@ public class SplitFileFetcherStorageTest {
         cb.checkFailed();
     }
 
+    @Test
+    public void testStream() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException, InterruptedException {
+        TestSplitfile test = TestSplitfile.constructMultipleSegments(32768 * 9 - 1, new int[]{3, 3, 3},
+            new int[]{4, 4, 4}, 3, 4, 0, InsertContext.CompatibilityMode.COMPAT_1416);
+        final byte[] original = BucketTools.toByteArray(test.originalData);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        for (SplitFileFetcherSegmentStorage segment : storage.segments) {
+            for (int i = 0; i < segment.totalBlocks(); i++)
+                segment.onNonFatalFailure(i); // Heal the check blocks.
+        }
+        final SplitFileStream stream = storage.openStream(1);
+        assertEquals(original.length, stream.size());
+        SplitFileStream skipped = storage.openStream(1);
+        assertEquals(32768 * 7, skipped.skip(32768 * 7));
+        final byte[] read = new byte[original.length];
+        final IOException[] failed = new IOException[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    int offset = 0;
+                    int length;
+                    while((length = stream.read(read, offset, read.length - offset)) > 0)
+                        offset += length;
+                    assertEquals(read.length, offset);
+                } catch (IOException e) {
+                    failed[0] = e;
+                }
+            }
+        };
+        reader.start();
+        // Fetch the segments backwards, so the reader has to wait for the first.
+        for (int seg = storage.segments.length - 1; seg >= 0; seg--) {
+            for (int i = 0; i < test.dataBlocks.length; i++) {
+                if (test.segmentFor(i) != seg) continue;
+                assertTrue(storage.segments[seg].onGotKey(test.getCHK(i), test.encodeBlock(i)));
+                cb.markDownloadedBlock(i);
+            }
+            waitForDecode(storage.segments[seg]);
+            if (seg == 2) {
+                assertEquals(original[32768 * 7] & 0xFF, skipped.read());
+                skipped.close();
+            }
+        }
+        reader.join();
+        assertNull(failed[0]);
+        assertTrue(Arrays.equals(original, read));
+        stream.close();
+        cb.waitForFinished();
+        cb.checkFailed();
+        storage.finishedFetcher();
+        for (SplitFileFetcherSegmentStorage segment : storage.segments) {
+            waitForFinished(segment);
+        }
+        cb.waitForFree();
+        cb.checkFailed();
+        test.free();
+    }
+
     private void printChosenBlocks(boolean[] hits) {
         StringBuilder sb = new StringBuilder();
         sb.append("Blocks: ");
@@ -1041,6 +1101,39 @@ public class SplitFileFetcherStorageTest {
         storage.close();
     }
 
+    @Test
+    public void testPersistenceReloadOldBloomFilters() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException, StorageFormatException {
+        TestSplitfile test = TestSplitfile.constructSingleSegment(32768 * 2 - 1, 3, true);
+        StorageCallback cb = test.createStorageCallback();
+        test.createStorage(cb);
+        LockableRandomAccessBuffer raf = cb.getRAF();
+        // Clear the flags, as if written before the filters were blocked.
+        CRCChecksumChecker checker = new CRCChecksumChecker();
+        long footer = raf.size() - (22 + checker.checksumLength());
+        byte[] buf = new byte[14];
+        raf.pread(footer, buf, 0, 4);
+        raf.pread(raf.size() - 18, buf, 4, 10);
+        assertEquals(SplitFileFetcherStorage.FLAG_BLOCKED_BLOOM_FILTERS, buf[7]);
+        buf[7] = 0;
+        raf.pwrite(raf.size() - 18, buf, 4, 4);
+        byte[] checksum = checker.generateChecksum(buf);
+        raf.pwrite(footer + 4, checksum, 0, checksum.length);
+        SplitFileFetcherStorage storage = test.createStorage(cb, test.makeFetchContext(), raf);
+        assertTrue(storage.keyListener.needsKeys());
+        storage.start(false);
+        exec.waitForIdle();
+        assertFalse(storage.keyListener.needsKeys());
+        // Migrated, so the filters are not regenerated again.
+        storage = test.createStorage(cb, test.makeFetchContext(), raf);
+        assertFalse(storage.keyListener.needsKeys());
+        for (int i = 0; i < test.dataBlocks.length + test.checkBlocks.length; i++) {
+            NodeCHK key = test.getCHK(i);
+            assertTrue(storage.keyListener.probablyWantKey(key, salt.saltKey(key)));
+        }
+        storage.close();
+        test.free();
+    }
+
     @Test
     public void testPersistenceReloadThenFetch() throws IOException, StorageFormatException, CHKEncodeException, MetadataUnresolvedException, MetadataParseException, FetchException {
         int dataBlocks = 2;
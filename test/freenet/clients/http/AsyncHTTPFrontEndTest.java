@@ -0,0 +1,323 @@
+package freenet.clients.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.TestProperty;
+
+public class AsyncHTTPFrontEndTest {
+
+	private static final int MAX_WORKERS = 4;
+
+	private ServerSocketChannel server;
+	private AsyncHTTPFrontEnd frontEnd;
+	private ExecutorService workers;
+	private Thread acceptor;
+	private final AtomicInteger maxConcurrent = new AtomicInteger();
+	private final AtomicInteger concurrent = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+		workers = Executors.newCachedThreadPool();
+		frontEnd = new AsyncHTTPFrontEnd(new EchoHandler(), workers, 2, MAX_WORKERS);
+		frontEnd.start();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2048);
+		acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						SocketChannel channel = server.accept();
+						frontEnd.addConnection(channel);
+					}
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		server.close();
+		acceptor.join(5000);
+		frontEnd.stop();
+		workers.shutdownNow();
+	}
+
+	@Test
+	public void testPipelinedRequestsAnsweredInOrder() throws IOException {
+		try (Socket sock = connect()) {
+			OutputStream os = sock.getOutputStream();
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < 10; i++)
+				sb.append("GET /").append(i).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+			os.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+			os.flush();
+			InputStream is = sock.getInputStream();
+			for(int i = 0; i < 10; i++)
+				assertEquals("GET /" + i + " 0", readResponse(is));
+		}
+		waitForRequests(10);
+		assertTrue(maxConcurrent.get() <= 1);
+	}
+
+	@Test
+	public void testKeepAlive() throws IOException {
+		try (Socket sock = connect()) {
+			for(int i = 0; i < 5; i++) {
+				sock.getOutputStream().write(("GET /" + i + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				assertEquals("GET /" + i + " 0", readResponse(sock.getInputStream()));
+			}
+		}
+		assertEquals(1, frontEnd.getConnectionsAccepted());
+	}
+
+	@Test
+	public void testLargeBodyIsStreamed() throws IOException {
+		int length = AsyncHTTPFrontEnd.MAX_UNREAD_BODY * 4;
+		byte[] body = new byte[length];
+		Arrays.fill(body, (byte) 'x');
+		try (Socket sock = connect()) {
+			OutputStream os = sock.getOutputStream();
+			os.write(("POST /upload HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			os.write(body);
+			os.write("GET /after HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			os.flush();
+			InputStream is = sock.getInputStream();
+			assertEquals("POST /upload " + length, readResponse(is));
+			assertEquals("GET /after 0", readResponse(is));
+		}
+	}
+
+	@Test
+	public void testConnectionClose() throws IOException {
+		try (Socket sock = connect()) {
+			sock.getOutputStream().write("GET /a HTTP/1.1\r\nConnection: close\r\n\r\nGET /b HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			InputStream is = sock.getInputStream();
+			assertEquals("GET /a 0", readResponse(is));
+			assertEquals(-1, is.read());
+		}
+		waitForConnections(0);
+		waitForRequests(1);
+	}
+
+	@Test
+	public void testWorkersAreBounded() throws IOException {
+		int connections = MAX_WORKERS * 4;
+		Socket[] socks = new Socket[connections];
+		try {
+			for(int i = 0; i < connections; i++) {
+				socks[i] = connect();
+				socks[i].getOutputStream().write(("GET /slow" + i + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			}
+			for(int i = 0; i < connections; i++)
+				assertEquals("GET /slow" + i + " 0", readResponse(socks[i].getInputStream()));
+		} finally {
+			for(Socket sock : socks)
+				if(sock != null) sock.close();
+		}
+		assertTrue(maxConcurrent.get() <= MAX_WORKERS);
+	}
+
+	/** Many mostly idle connections should not need a thread each. */
+	@Test
+	public void testManyConnections() throws IOException {
+		int connections = TestProperty.BENCHMARK ? 1000 : 100;
+		int requests = 3;
+		Socket[] socks = new Socket[connections];
+		long start = System.currentTimeMillis();
+		try {
+			for(int i = 0; i < connections; i++) {
+				socks[i] = connect();
+				StringBuilder sb = new StringBuilder();
+				for(int j = 0; j < requests; j++)
+					sb.append("GET /").append(i).append('/').append(j).append(" HTTP/1.1\r\n\r\n");
+				socks[i].getOutputStream().write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+			}
+			for(int i = 0; i < connections; i++) {
+				InputStream is = socks[i].getInputStream();
+				for(int j = 0; j < requests; j++)
+					assertEquals("GET /" + i + "/" + j + " 0", readResponse(is));
+			}
+			assertEquals(connections, frontEnd.getOpenConnections());
+		} finally {
+			for(Socket sock : socks)
+				if(sock != null) sock.close();
+		}
+		waitForRequests(connections * requests);
+		assertTrue(maxConcurrent.get() <= MAX_WORKERS);
+		if(TestProperty.BENCHMARK)
+			System.out.println(connections + " connections, " + (connections * requests) + " requests in " + (System.currentTimeMillis() - start) + "ms");
+		waitForConnections(0);
+	}
+
+	@Test
+	public void testGetContentLength() {
+		assertEquals(12, AsyncHTTPFrontEnd.getContentLength(head("POST / HTTP/1.1\r\nHost: x\r\nContent-length:  12 \r\n\r\n")));
+		assertEquals(0, AsyncHTTPFrontEnd.getContentLength(head("GET / HTTP/1.1\r\nHost: x\r\n\r\n")));
+		assertEquals(0, AsyncHTTPFrontEnd.getContentLength(head("POST / HTTP/1.1\r\nContent-Length: -5\r\n\r\n")));
+		assertEquals(0, AsyncHTTPFrontEnd.getContentLength(head("POST / HTTP/1.1\r\nContent-Length: lots\r\n\r\n")));
+		// Not a header.
+		assertEquals(0, AsyncHTTPFrontEnd.getContentLength(head("GET /Content-Length:5 HTTP/1.1\r\n\r\n")));
+	}
+
+	@Test
+	public void testCompressionNegotiation() {
+		assertTrue(ToadletContextImpl.acceptsGzip("gzip, deflate"));
+		assertTrue(ToadletContextImpl.acceptsGzip("deflate, GZIP;q=0.5"));
+		assertFalse(ToadletContextImpl.acceptsGzip("gzip;q=0"));
+		assertFalse(ToadletContextImpl.acceptsGzip("deflate"));
+		assertFalse(ToadletContextImpl.acceptsGzip(null));
+		assertTrue(ToadletContextImpl.isCompressibleType("text/html; charset=utf-8"));
+		assertTrue(ToadletContextImpl.isCompressibleType("text/css"));
+		assertFalse(ToadletContextImpl.isCompressibleType("image/png"));
+		assertFalse(ToadletContextImpl.isCompressibleType("application/octet-stream"));
+	}
+
+	@Test
+	public void testNoCompressionWithFormPassword() {
+		byte[] page = head("<form><input type=\"hidden\" name=\"formPassword\" value=\"Ab3~x-9z\"></form>");
+		assertTrue(ToadletContextImpl.containsSecret(page, "Ab3~x-9z"));
+		assertFalse(ToadletContextImpl.containsSecret(page, "Ab3~x-9y"));
+		assertTrue(ToadletContextImpl.containsSecret(head("Ab3~x-9z"), "Ab3~x-9z"));
+		assertFalse(ToadletContextImpl.containsSecret(head("Ab3~x-9"), "Ab3~x-9z"));
+		assertFalse(ToadletContextImpl.containsSecret(page, null));
+	}
+
+	private static byte[] head(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private Socket connect() throws IOException {
+		Socket sock = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+		sock.setSoTimeout(30000);
+		return sock;
+	}
+
+	private void waitForConnections(int count) {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(frontEnd.getOpenConnections() != count && System.currentTimeMillis() < deadline)
+			sleep();
+		assertEquals(count, frontEnd.getOpenConnections());
+	}
+
+	/** The count is updated after the reply is sent, so the client may see the reply first. */
+	private void waitForRequests(long count) {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(frontEnd.getRequestsHandled() != count && System.currentTimeMillis() < deadline)
+			sleep();
+		assertEquals(count, frontEnd.getRequestsHandled());
+	}
+
+	private static void sleep() {
+		try {
+			Thread.sleep(10);
+		} catch (InterruptedException e) {
+			// Ignore
+		}
+	}
+
+	private static String readLine(InputStream is) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while(true) {
+			int b = is.read();
+			if(b < 0) throw new IOException("Unexpected EOF");
+			if(b == '\n') break;
+			if(b != '\r') line.write(b);
+		}
+		return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	/** @return The body of a response from the {@link EchoHandler}. */
+	private static String readResponse(InputStream is) throws IOException {
+		assertEquals("HTTP/1.1 200 OK", readLine(is));
+		int length = -1;
+		String line;
+		while(!(line = readLine(is)).isEmpty()) {
+			if(line.startsWith("Content-Length: "))
+				length = Integer.parseInt(line.substring("Content-Length: ".length()));
+		}
+		byte[] body = new byte[length];
+		for(int read = 0; read < length; ) {
+			int r = is.read(body, read, length - read);
+			if(r < 0) throw new IOException("Unexpected EOF");
+			read += r;
+		}
+		return new String(body, StandardCharsets.ISO_8859_1);
+	}
+
+	/** Replies with the method, path and the number of body bytes read. */
+	private class EchoHandler implements AsyncHTTPFrontEnd.RequestHandler {
+
+		@Override
+		public boolean handle(InputStream request, HTTPConnection connection) {
+			int running = concurrent.incrementAndGet();
+			try {
+				int max;
+				while((max = maxConcurrent.get()) < running && !maxConcurrent.compareAndSet(max, running)) {}
+				String[] requestLine = readLine(request).split(" ");
+				long length = 0;
+				boolean close = false;
+				String line;
+				while(!(line = readLine(request)).isEmpty()) {
+					String lower = line.toLowerCase();
+					if(lower.startsWith("content-length:"))
+						length = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+					else if(lower.equals("connection: close"))
+						close = true;
+				}
+				byte[] buf = new byte[4096];
+				long read = 0;
+				while(read < length) {
+					int r = request.read(buf, 0, (int) Math.min(buf.length, length - read));
+					if(r < 0) break;
+					read += r;
+				}
+				if(requestLine[1].startsWith("/slow")) Thread.sleep(20);
+				byte[] body = (requestLine[0] + " " + requestLine[1] + " " + read).getBytes(StandardCharsets.ISO_8859_1);
+				OutputStream os = connection.getOutputStream();
+				os.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				os.write(body);
+				os.flush();
+				if(close) {
+					connection.close();
+					return false;
+				}
+				return true;
+			} catch (IOException e) {
+				return false;
+			} catch (InterruptedException e) {
+				return false;
+			} finally {
+				concurrent.decrementAndGet();
+			}
+		}
+
+	}
+
+}
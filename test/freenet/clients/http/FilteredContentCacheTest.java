@@ -0,0 +1,132 @@
+package freenet.clients.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.client.FetchContext;
+import freenet.client.FetchResult;
+import freenet.client.HighLevelSimpleClientImpl;
+import freenet.client.events.SimpleEventProducer;
+import freenet.client.filter.HTMLFilter.ParsedTag;
+import freenet.client.filter.TagReplacerCallback;
+import freenet.client.filter.URIProcessor;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class FilteredContentCacheTest {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+
+	private FilteredContentCache cache;
+	private FetchContext fctx;
+
+	@Before
+	public void setUp() {
+		cache = new FilteredContentCache(new ArrayBucketFactory(), 4096);
+		fctx = makeContext();
+	}
+
+	private static FetchContext makeContext() {
+		FetchContext fctx = HighLevelSimpleClientImpl.makeDefaultFetchContext(Long.MAX_VALUE, Long.MAX_VALUE,
+				new ArrayBucketFactory(), new SimpleEventProducer());
+		fctx.filterData = true;
+		return fctx;
+	}
+
+	private static FreenetURI uri(String name) throws MalformedURLException {
+		return new FreenetURI(CHK + name);
+	}
+
+	private static Bucket data(int length, int value) {
+		byte[] buf = new byte[length];
+		for(int i = 0; i < length; i++) buf[i] = (byte) value;
+		return new ArrayBucket(buf);
+	}
+
+	@Test
+	public void testHitReturnsCopy() throws IOException {
+		Bucket data = data(100, 1);
+		cache.put(uri("a.html"), fctx, "text/html", data);
+		data.free();
+		FetchResult result = cache.get(uri("a.html"), fctx, Long.MAX_VALUE);
+		assertNotNull(result);
+		assertEquals("text/html", result.getMimeType());
+		assertArrayEquals(BucketTools.toByteArray(data(100, 1)), BucketTools.toByteArray(result.asBucket()));
+		// Freeing the copy doesn't affect the cache.
+		result.asBucket().free();
+		assertNotNull(cache.get(uri("a.html"), fctx, Long.MAX_VALUE));
+		assertEquals(2, cache.getHits());
+		assertEquals(0, cache.getMisses());
+		assertEquals(200, cache.getBytesServed());
+	}
+
+	@Test
+	public void testKeyIncludesMIMEAndPolicy() throws IOException {
+		cache.put(uri("a.html"), fctx, "text/html", data(100, 1));
+		FetchContext other = makeContext();
+		other.overrideMIME = "text/plain";
+		assertNull(cache.get(uri("a.html"), other, Long.MAX_VALUE));
+		other = makeContext();
+		other.charset = "ISO-8859-1";
+		assertNull(cache.get(uri("a.html"), other, Long.MAX_VALUE));
+		assertNull(cache.get(uri("b.html"), fctx, Long.MAX_VALUE));
+		assertNotNull(cache.get(uri("a.html"), makeContext(), Long.MAX_VALUE));
+		assertEquals(3, cache.getMisses());
+		assertEquals(0.25, cache.getHitRate(), 0.0);
+	}
+
+	@Test
+	public void testOnlyFilteredCHKsAreCached() throws IOException {
+		FetchContext unfiltered = makeContext();
+		unfiltered.filterData = false;
+		cache.put(uri("a.html"), unfiltered, "text/html", data(100, 1));
+		FetchContext pushing = makeContext();
+		pushing.tagReplacer = new TagReplacerCallback() {
+			@Override
+			public String processTag(ParsedTag pt, URIProcessor uriProcessor) {
+				return null;
+			}
+		};
+		cache.put(uri("b.html"), pushing, "text/html", data(100, 1));
+		cache.put(new FreenetURI("KSK@test"), fctx, "text/html", data(100, 1));
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		// Each entry may use at most a quarter of the cache.
+		cache.put(uri("big"), fctx, "text/html", data(2000, 1));
+		assertEquals(0, cache.getEntryCount());
+		for(int i = 0; i < 4; i++)
+			cache.put(uri(Integer.toString(i)), fctx, "text/html", data(1000, i));
+		assertEquals(4, cache.getEntryCount());
+		// Use 0 so it is the most recently used.
+		assertNotNull(cache.get(uri("0"), fctx, Long.MAX_VALUE));
+		cache.put(uri("4"), fctx, "text/html", data(1000, 4));
+		assertEquals(4000, cache.getSize());
+		assertNull(cache.get(uri("1"), fctx, Long.MAX_VALUE));
+		assertNotNull(cache.get(uri("0"), fctx, Long.MAX_VALUE));
+		cache.setMaxSize(0);
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testTooBigForRequest() throws IOException {
+		cache.put(uri("a.html"), fctx, "text/html", data(1000, 1));
+		assertNull(cache.get(uri("a.html"), fctx, 999));
+		assertNotNull(cache.get(uri("a.html"), fctx, 1000));
+	}
+
+}
@@ -0,0 +1,225 @@
+package freenet.clients.http.updateableelements;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.VirtualTicker;
+
+public class PushDataManagerTest {
+
+	private VirtualTicker ticker;
+	private PushDataManager manager;
+
+	@Before
+	public void setUp() {
+		ticker = new VirtualTicker();
+		manager = new PushDataManager(ticker);
+	}
+
+	@Test
+	public void testChannelCoalescesUpdates() {
+		manager.elementRendered("page", new TestElement("a"));
+		manager.elementRendered("page", new TestElement("b"));
+		RecordingSink sink = new RecordingSink();
+		assertTrue(manager.openChannel("page", sink));
+		assertEquals(1, manager.getOpenChannels());
+		// Anything rendered before the channel opened is sent once.
+		ticker.runFor(0);
+		assertEquals(2, sink.updates.size());
+		sink.updates.clear();
+
+		for(int i = 0; i < 5; i++) {
+			manager.updateElement("a");
+			manager.updateElement("b");
+		}
+		ticker.runFor(0);
+		assertEquals(2, sink.updates.size());
+		assertTrue(sink.updates.containsAll(Arrays.asList("a", "b")));
+		assertEquals(4, manager.getEventsSent());
+		assertEquals(8, manager.getEventsCoalesced());
+	}
+
+	@Test
+	public void testUnknownPage() {
+		RecordingSink sink = new RecordingSink();
+		assertFalse(manager.openChannel("nonexistent", sink));
+		assertEquals(0, manager.getOpenChannels());
+	}
+
+	@Test
+	public void testChannelKeepsPageAlive() {
+		manager.elementRendered("streaming", new TestElement("a"));
+		manager.elementRendered("polling", new TestElement("b"));
+		RecordingSink sink = new RecordingSink();
+		manager.openChannel("streaming", sink);
+		// Neither page sends keepalives. The channel is pinged instead.
+		long cleanerDelay = (long) (UpdaterConstants.KEEPALIVE_INTERVAL_SECONDS * 1000 * 2.1);
+		ticker.runFor(cleanerDelay * 2 + 1);
+		assertTrue(sink.keepalives > 0);
+		assertTrue(manager.hasPage("streaming"));
+		assertFalse(manager.hasPage("polling"));
+		assertFalse(sink.closed);
+	}
+
+	@Test
+	public void testLeaving() {
+		TestElement element = new TestElement("a");
+		manager.elementRendered("page", element);
+		RecordingSink sink = new RecordingSink();
+		manager.openChannel("page", sink);
+		assertTrue(manager.leaving("page"));
+		assertTrue(sink.closed);
+		assertTrue(element.disposed);
+		assertEquals(0, manager.getOpenChannels());
+		assertFalse(manager.leaving("page"));
+		// Updating an element which has gone is harmless.
+		manager.updateElement("a");
+		ticker.runFor(0);
+		assertTrue(sink.updates.isEmpty());
+	}
+
+	@Test
+	public void testFailedChannelIsClosed() {
+		manager.elementRendered("page", new TestElement("a"));
+		RecordingSink sink = new RecordingSink();
+		sink.fail = true;
+		manager.openChannel("page", sink);
+		ticker.runFor(0);
+		assertTrue(sink.closed);
+		assertEquals(0, manager.getOpenChannels());
+		// The page itself is still there, the browser can reconnect.
+		RecordingSink reconnected = new RecordingSink();
+		assertTrue(manager.openChannel("page", reconnected));
+		manager.updateElement("a");
+		ticker.runFor(0);
+		assertEquals(Arrays.asList("a"), reconnected.updates);
+	}
+
+	@Test
+	public void testReopenReplacesChannel() {
+		manager.elementRendered("page", new TestElement("a"));
+		RecordingSink first = new RecordingSink();
+		RecordingSink second = new RecordingSink();
+		manager.openChannel("page", first);
+		manager.openChannel("page", second);
+		assertTrue(first.closed);
+		assertEquals(1, manager.getOpenChannels());
+	}
+
+	@Test
+	public void testLeaderPollsForOtherPages() {
+		manager.elementRendered("leader", new TestElement("a"));
+		manager.elementRendered("other", new TestElement("b"));
+		manager.elementRendered("streaming", new TestElement("c"));
+		manager.openChannel("streaming", new RecordingSink());
+		manager.keepAliveReceived("leader");
+		manager.keepAliveReceived("other");
+		// Updates for a page with a channel don't go to the leader.
+		manager.updateElement("c");
+		manager.updateElement("b");
+		manager.updateElement("b");
+		manager.updateElement("a");
+		PushDataManager.UpdateEvent event = manager.getNextNotification("leader");
+		assertEquals("other", event.getRequestId());
+		assertEquals("b", event.getElementId());
+		event = manager.getNextNotification("leader");
+		assertEquals("leader", event.getRequestId());
+		assertEquals("a", event.getElementId());
+	}
+
+	@Test
+	public void testFailover() {
+		manager.elementRendered("old", new TestElement("a"));
+		manager.elementRendered("new", new TestElement("b"));
+		manager.keepAliveReceived("new");
+		manager.updateElement("b");
+		assertTrue(manager.failover("old", "new"));
+		assertFalse(manager.failover("old", "new"));
+		assertEquals("b", manager.getNextNotification("new").getElementId());
+		assertEquals(null, manager.getNextNotification("old"));
+	}
+
+	@Test
+	public void testWaitingPollIsWoken() throws InterruptedException {
+		manager.elementRendered("leader", new TestElement("a"));
+		manager.keepAliveReceived("leader");
+		final PushDataManager.UpdateEvent[] result = new PushDataManager.UpdateEvent[1];
+		Thread poller = new Thread() {
+			@Override
+			public void run() {
+				result[0] = manager.getNextNotification("leader");
+			}
+		};
+		poller.start();
+		Thread.sleep(50);
+		manager.updateElement("a");
+		poller.join(5000);
+		assertFalse(poller.isAlive());
+		assertEquals("a", result[0].getElementId());
+	}
+
+	private static class TestElement extends BaseUpdateableElement {
+
+		private final String id;
+		boolean disposed;
+
+		TestElement(String id) {
+			super("div", null);
+			this.id = id;
+		}
+
+		@Override
+		public void updateState(boolean initial) {
+		}
+
+		@Override
+		public String getUpdaterId(String requestId) {
+			return id;
+		}
+
+		@Override
+		public String getUpdaterType() {
+			return UpdaterConstants.REPLACER_UPDATER;
+		}
+
+		@Override
+		public void dispose() {
+			disposed = true;
+		}
+	}
+
+	private static class RecordingSink implements PushDataManager.PushChannelSink {
+
+		final List<String> updates = new ArrayList<String>();
+		int keepalives;
+		boolean closed;
+		boolean fail;
+
+		@Override
+		public void sendUpdates(String requestId, List<String> elementIds) throws IOException {
+			if(fail) throw new IOException();
+			updates.addAll(elementIds);
+		}
+
+		@Override
+		public void sendKeepalive() throws IOException {
+			if(fail) throw new IOException();
+			keepalives++;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+}
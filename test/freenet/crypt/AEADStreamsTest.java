@@ -2,20 +2,30 @@ package freenet.crypt;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Random;
 
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.AESLightEngine;
 import org.junit.Test;
 
+import freenet.support.HexUtil;
+import freenet.support.TestProperty;
 import freenet.support.api.Bucket;
 import freenet.support.io.ArrayBucket;
 import freenet.support.io.BucketTools;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NoCloseProxyOutputStream;
+import freenet.support.io.NullOutputStream;
 
 public class AEADStreamsTest {
     
@@ -164,4 +174,177 @@ public class AEADStreamsTest {
         }
     }
 
+    
+    /** Encrypted files must stay readable, so the output for a given key and nonce must not 
+     * change, whichever AES implementation is used and however the data is split up. The hashes
+     * were produced by the original byte at a time implementation. */
+    @Test
+    public void testKnownAnswer() throws IOException, NoSuchAlgorithmException {
+        checkKnownAnswer(16, "6dbf9e2fad2f850cfad6e3e2f23607b4e7b3b700e3a8949bc348628f183a7ae1");
+        checkKnownAnswer(32, "b064ace65a27f9f38ec63d24a18ffc0c9aa341508cf348aaafbf9ff1f7a421f7");
+    }
+    
+    private void checkKnownAnswer(int keysize, String expectedHash) throws IOException, NoSuchAlgorithmException {
+        byte[] key = new byte[keysize];
+        for(int i=0;i<key.length;i++) key[i] = (byte)i;
+        byte[] nonce = new byte[16];
+        for(int i=0;i<nonce.length;i++) nonce[i] = (byte)(i*7+keysize);
+        nonce[0] &= 0x7F;
+        byte[] data = new byte[70003];
+        new Random(0xAEAD).nextBytes(data);
+        BlockCipher[] engines = new BlockCipher[] { new AESEngine(), new JcaAESEngine() };
+        for(BlockCipher engine : engines) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            AEADOutputStream cos = new AEADOutputStream(baos, key, nonce, new AESLightEngine(), engine);
+            cos.write(data);
+            cos.close();
+            checkKnownAnswer(baos.toByteArray(), expectedHash, key, data);
+            // Mixture of single bytes, partial blocks and big writes.
+            baos = new ByteArrayOutputStream();
+            cos = new AEADOutputStream(baos, key, nonce, new AESLightEngine(), engine);
+            Random random = new Random(0x6f1c3b2d);
+            int offset = 0;
+            while(offset < data.length) {
+                int length = Math.min(data.length - offset, random.nextInt(3) == 0 ? 1 : random.nextInt(20000));
+                if(length == 1)
+                    cos.write(data[offset]);
+                else
+                    cos.write(data, offset, length);
+                offset += length;
+            }
+            cos.close();
+            checkKnownAnswer(baos.toByteArray(), expectedHash, key, data);
+        }
+    }
+    
+    private void checkKnownAnswer(byte[] encrypted, String expectedHash, byte[] key, byte[] data) throws IOException, NoSuchAlgorithmException {
+        assertEquals(data.length + AEADOutputStream.AES_OVERHEAD, encrypted.length);
+        assertEquals(expectedHash, HexUtil.bytesToHex(MessageDigest.getInstance("SHA-256").digest(encrypted)));
+        AEADInputStream cis = AEADInputStream.createAES(new ByteArrayInputStream(encrypted), key);
+        byte[] decrypted = new byte[data.length];
+        new DataInputStream(cis).readFully(decrypted);
+        assertEquals(-1, cis.read());
+        cis.close();
+        assertTrue(Arrays.equals(data, decrypted));
+    }
+    
+    /** Ciphers from a pool are reused with new nonces, including after a stream fails. */
+    @Test
+    public void testPooledCiphers() throws IOException {
+        Random random = new Random(0x2d6e8a13);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        AEADCipherPool encrypt = new AEADCipherPool(key, true);
+        AEADCipherPool decrypt = new AEADCipherPool(key, false);
+        byte[][] data = new byte[20][];
+        byte[][] encrypted = new byte[data.length][];
+        for(int i=0;i<data.length;i++) {
+            data[i] = new byte[random.nextInt(10000)];
+            random.nextBytes(data[i]);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            AEADOutputStream cos = AEADOutputStream.innerCreateAES(baos, encrypt, random);
+            cos.write(data[i]);
+            cos.close();
+            encrypted[i] = baos.toByteArray();
+            // A pooled cipher must give the same result as a new one.
+            AEADInputStream cis = AEADInputStream.createAES(new ByteArrayInputStream(encrypted[i]), key);
+            checkDecrypts(data[i], cis);
+        }
+        // Several streams open at once.
+        AEADInputStream[] streams = new AEADInputStream[data.length];
+        for(int i=0;i<data.length;i++)
+            streams[i] = AEADInputStream.createAES(new ByteArrayInputStream(encrypted[i]), decrypt);
+        for(int i=0;i<data.length;i++)
+            checkDecrypts(data[i], streams[i]);
+        // A failed stream doesn't return its cipher.
+        byte[] corrupt = Arrays.copyOf(encrypted[0], encrypted[0].length);
+        corrupt[corrupt.length-1] ^= 1;
+        try {
+            checkDecrypts(data[0], AEADInputStream.createAES(new ByteArrayInputStream(corrupt), decrypt));
+            fail("Checksum error should have been seen");
+        } catch (AEADVerificationFailedException e) {
+            // Expected.
+        }
+        for(int i=0;i<data.length;i++)
+            checkDecrypts(data[i], AEADInputStream.createAES(new ByteArrayInputStream(encrypted[i]), decrypt));
+    }
+    
+    private void checkDecrypts(byte[] data, AEADInputStream cis) throws IOException {
+        byte[] decrypted = new byte[data.length];
+        new DataInputStream(cis).readFully(decrypted);
+        cis.close();
+        assertTrue(Arrays.equals(data, decrypted));
+    }
+    
+    @Test
+    public void testReadSingleBytes() throws IOException {
+        byte[] key = new byte[16];
+        byte[] data = new byte[256];
+        for(int i=0;i<data.length;i++) data[i] = (byte)i;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        AEADOutputStream cos = AEADOutputStream.innerCreateAES(baos, key, new Random(0x13));
+        for(int i=0;i<data.length;i++)
+            cos.write(i);
+        cos.close();
+        AEADInputStream cis = AEADInputStream.createAES(new ByteArrayInputStream(baos.toByteArray()), key);
+        for(int i=0;i<data.length;i++)
+            assertEquals(i, cis.read());
+        assertEquals(-1, cis.read());
+        cis.close();
+    }
+    
+    // ant -Dtest.skip=false -Dtest.class=freenet.crypt.AEADStreamsTest -Dtest.benchmark=true unit
+    @Test
+    public void testBenchmark() throws IOException {
+        if(!TestProperty.BENCHMARK) return;
+        Random random = new Random(0x5b1f0e37);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        int size = 32*1024*1024;
+        byte[] buf = new byte[8192];
+        random.nextBytes(buf);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(size + AEADOutputStream.AES_OVERHEAD);
+        AEADOutputStream cos = AEADOutputStream.innerCreateAES(baos, key, random);
+        for(int i=0;i<size;i+=buf.length)
+            cos.write(buf);
+        cos.close();
+        byte[] encrypted = baos.toByteArray();
+        long bestWrite = Long.MAX_VALUE;
+        long bestRead = Long.MAX_VALUE;
+        for(int round=0;round<5;round++) {
+            long start = System.nanoTime();
+            cos = AEADOutputStream.innerCreateAES(new NullOutputStream(), key, random);
+            for(int i=0;i<size;i+=buf.length)
+                cos.write(buf);
+            cos.close();
+            long mid = System.nanoTime();
+            AEADInputStream cis = AEADInputStream.createAES(new ByteArrayInputStream(encrypted), key);
+            while(cis.read(buf) > 0);
+            cis.close();
+            long end = System.nanoTime();
+            bestWrite = Math.min(bestWrite, mid - start);
+            bestRead = Math.min(bestRead, end - mid);
+        }
+        System.out.println("AEAD write: "+(size * 1000L / bestWrite)+" MB/s");
+        System.out.println("AEAD read: "+(size * 1000L / bestRead)+" MB/s");
+        // Many small buckets, where setting up the cipher matters.
+        AEADCryptBucket bucket = new AEADCryptBucket(new ArrayBucket(), key);
+        byte[] small = new byte[1024];
+        int count = 20000;
+        long bestSmall = Long.MAX_VALUE;
+        for(int round=0;round<5;round++) {
+            long start = System.nanoTime();
+            for(int i=0;i<count;i++) {
+                OutputStream os = bucket.getOutputStream();
+                os.write(small);
+                os.close();
+                InputStream is = bucket.getInputStream();
+                new DataInputStream(is).readFully(small);
+                is.close();
+            }
+            bestSmall = Math.min(bestSmall, System.nanoTime() - start);
+        }
+        System.out.println("AEADCryptBucket 1KB write and read: "+(bestSmall / count)+"ns");
+    }
+
 }
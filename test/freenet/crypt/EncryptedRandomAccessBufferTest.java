@@ -17,7 +17,9 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.After;
@@ -31,8 +33,11 @@ import freenet.support.io.BucketTools;
 import freenet.support.io.ByteArrayRandomAccessBuffer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.FileRandomAccessBuffer;
+import freenet.support.io.PaddedRandomAccessBuffer;
+import freenet.support.io.ReadOnlyRandomAccessBuffer;
 import freenet.support.io.ResumeFailedException;
 import freenet.support.io.StorageFormatException;
+import freenet.support.TestProperty;
 
 public class EncryptedRandomAccessBufferTest {
     private final static EncryptedRandomAccessBufferType[] types = 
@@ -329,4 +334,190 @@ public class EncryptedRandomAccessBufferTest {
         restored.free();
     }
     
+    @Test
+    public void testConcurrentReadsAndWrites() throws Throwable {
+        final int threads = 8;
+        final int region = 40000; // Bigger than the write scratch buffer.
+        for(EncryptedRandomAccessBufferType type: types){
+            final byte[] plain = new byte[threads * region];
+            new Random(2134).nextBytes(plain);
+            byte[] stored = new byte[plain.length + type.headerLen];
+            ByteArrayRandomAccessBuffer barat = new ByteArrayRandomAccessBuffer(stored);
+            final EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(type, barat, secret, true);
+            // Each thread writes its own region, then reads random parts of the whole buffer.
+            runThreads(threads, new TestWorker() {
+                @Override
+                public void run(int thread) throws Exception {
+                    erat.pwrite(thread * region, plain, thread * region, region);
+                }
+            });
+            runThreads(threads, new TestWorker() {
+                @Override
+                public void run(int thread) throws Exception {
+                    Random r = new Random(thread);
+                    for(int i = 0; i < 200; i++) {
+                        int length = 1 + r.nextInt(8192);
+                        int offset = r.nextInt(plain.length - length);
+                        byte[] buf = new byte[length + 2];
+                        erat.pread(offset, buf, 1, length);
+                        for(int j = 0; j < length; j++)
+                            assertEquals(plain[offset + j], buf[j + 1]);
+                    }
+                }
+            });
+            erat.close();
+            // Reopening gives the same data, so each chunk was encrypted at the right position.
+            EncryptedRandomAccessBuffer erat2 = new EncryptedRandomAccessBuffer(type, new ByteArrayRandomAccessBuffer(stored), secret, false);
+            byte[] tmp = new byte[plain.length];
+            erat2.pread(0, tmp, 0, tmp.length);
+            assertArrayEquals(plain, tmp);
+            erat2.close();
+        }
+    }
+
+    // ant -Dtest.skip=false -Dtest.class=freenet.crypt.EncryptedRandomAccessBufferTest -Dtest.benchmark=true unit
+    @Test
+    public void testConcurrentPreadBenchmark() throws Throwable {
+        if(!TestProperty.BENCHMARK) return;
+        final int size = 64 * 1024 * 1024;
+        final int blockSize = 32 * 1024;
+        final EncryptedRandomAccessBufferType type = types[0];
+        ByteArrayRandomAccessBuffer barat = new ByteArrayRandomAccessBuffer(new byte[size + type.headerLen]);
+        final EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(type, barat, secret, true);
+        byte[] block = new byte[blockSize];
+        for(int offset = 0; offset < size; offset += blockSize)
+            erat.pwrite(offset, block, 0, blockSize);
+        for(int threads = 1; threads <= 16; threads *= 2) {
+            final int reads = 8192 / threads;
+            long start = System.nanoTime();
+            runThreads(threads, new TestWorker() {
+                @Override
+                public void run(int thread) throws Exception {
+                    Random r = new Random(thread);
+                    byte[] buf = new byte[blockSize];
+                    for(int i = 0; i < reads; i++)
+                        erat.pread(((long) r.nextInt(size / blockSize)) * blockSize, buf, 0, blockSize);
+                }
+            });
+            long elapsed = System.nanoTime() - start;
+            double mb = ((double) reads) * threads * blockSize / (1024 * 1024);
+            System.out.println(threads + " threads: " + (mb * 1000 * 1000 * 1000 / elapsed) + " MB/s");
+        }
+        erat.close();
+    }
+
+    /** Counts the calls made to it by the buffers wrapping it. */
+    private static class CountingRandomAccessBuffer extends ByteArrayRandomAccessBuffer {
+        private static final long serialVersionUID = 1L;
+        int preads;
+        int pwrites;
+        int preadvs;
+        int pwritevs;
+
+        CountingRandomAccessBuffer(int size) {
+            super(size);
+        }
+
+        @Override
+        public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+            preads++;
+            super.pread(fileOffset, buf, bufOffset, length);
+        }
+
+        @Override
+        public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+            pwrites++;
+            super.pwrite(fileOffset, buf, bufOffset, length);
+        }
+
+        @Override
+        public void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+            preadvs++;
+            for(int i=0;i<fileOffsets.length;i++)
+                super.pread(fileOffsets[i], bufs[i], 0, bufs[i].length);
+        }
+
+        @Override
+        public void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+            pwritevs++;
+            for(int i=0;i<fileOffsets.length;i++)
+                super.pwrite(fileOffsets[i], bufs[i], 0, bufs[i].length);
+        }
+    }
+
+    @Test
+    public void testVectoredThroughWrappers() throws IOException, GeneralSecurityException {
+        EncryptedRandomAccessBufferType type = EncryptedRandomAccessBufferType.ChaCha128;
+        int size = 65536;
+        CountingRandomAccessBuffer counting = new CountingRandomAccessBuffer(size + type.headerLen + 1000);
+        PaddedRandomAccessBuffer padded = new PaddedRandomAccessBuffer(counting, size + type.headerLen);
+        EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(type, padded, secret, true);
+        ReadOnlyRandomAccessBuffer readOnly = new ReadOnlyRandomAccessBuffer(erat);
+        counting.preads = counting.pwrites = 0;
+        Random r = new Random(2718);
+        long[] offsets = new long[] { 40000, 100, 4196, 65000 };
+        byte[][] bufs = new byte[offsets.length][];
+        for(int i=0;i<offsets.length;i++) {
+            bufs[i] = new byte[i == 0 ? 25000 : 536];
+            r.nextBytes(bufs[i]);
+        }
+        erat.pwritev(offsets, bufs);
+        assertEquals(1, counting.pwritevs);
+        assertEquals(0, counting.pwrites);
+        byte[][] read = new byte[offsets.length][];
+        for(int i=0;i<offsets.length;i++)
+            read[i] = new byte[bufs[i].length];
+        readOnly.preadv(offsets, read);
+        assertEquals(1, counting.preadvs);
+        assertEquals(0, counting.preads);
+        for(int i=0;i<offsets.length;i++) {
+            assertArrayEquals(bufs[i], read[i]);
+            // The same as without vectored I/O, and encrypted on disk.
+            byte[] single = new byte[bufs[i].length];
+            erat.pread(offsets[i], single, 0, single.length);
+            assertArrayEquals(bufs[i], single);
+            counting.pread(offsets[i] + type.headerLen, single, 0, single.length);
+            assertFalse(Arrays.equals(bufs[i], single));
+        }
+        try {
+            erat.preadv(new long[] { size - 10 }, new byte[][] { new byte[11] });
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        try {
+            readOnly.pwritev(offsets, bufs);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        erat.close();
+    }
+
+    private interface TestWorker {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runThreads(int count, final TestWorker worker) throws Throwable {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[count];
+        for(int i = 0; i < count; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        worker.run(thread);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread t : threads)
+            t.join();
+        if(failure.get() != null) throw failure.get();
+    }
+    
 }
@@ -0,0 +1,185 @@
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.io.comm.SimulatedPacketNetwork.LinkProperties;
+import freenet.support.TestProperty;
+import freenet.support.TimeUtil;
+import freenet.support.VirtualTicker;
+
+public class SimulatedPacketNetworkTest {
+
+	private VirtualTicker ticker;
+	private SimulatedPacketNetwork network;
+
+	/** Records every packet it is given, with the virtual time of arrival. */
+	private static class RecordingFilter implements IncomingPacketFilter {
+		final List<byte[]> packets = new ArrayList<byte[]>();
+		final List<Long> times = new ArrayList<Long>();
+		final List<Peer> sources = new ArrayList<Peer>();
+
+		@Override
+		public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+			byte[] data = new byte[length];
+			System.arraycopy(buf, offset, data, 0, length);
+			packets.add(data);
+			times.add(now);
+			sources.add(peer);
+			return DECODED.DECODED;
+		}
+
+		@Override
+		public boolean isDisconnected(PeerContext context) {
+			return false;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		ticker = new VirtualTicker(1000);
+		network = new SimulatedPacketNetwork(ticker, new Random(1234), SimulatedPacketNetwork.PERFECT_LINK);
+	}
+
+	@Test
+	public void testDeliveryWithLatency() throws Exception {
+		network.setDefaultLinkProperties(new LinkProperties(50, 0, 0.0));
+		SimulatedPacketSocketHandler a = network.createHandler(1000);
+		SimulatedPacketSocketHandler b = network.createHandler(1001);
+		RecordingFilter fb = new RecordingFilter();
+		b.setLowLevelFilter(fb);
+		a.setLowLevelFilter(new RecordingFilter());
+
+		byte[] data = new byte[] { 1, 2, 3 };
+		a.sendPacket(data, b.getAddress(), true);
+		data[0] = 9; // Sender may reuse its buffer.
+		ticker.runUntil(1049);
+		assertEquals(0, fb.packets.size());
+		ticker.runUntil(1050);
+		assertEquals(1, fb.packets.size());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, fb.packets.get(0));
+		assertEquals(1050L, (long)fb.times.get(0));
+		assertEquals(a.getAddress(), fb.sources.get(0));
+		assertEquals(50.0, network.getAverageTransitTime(), 0.0);
+		assertEquals(1, b.getPacketsReceived());
+	}
+
+	@Test
+	public void testBandwidthSerialisesPackets() throws Exception {
+		// 100 bytes/ms; each packet is 952 bytes plus 48 bytes of headers => 10ms on the wire.
+		network.setDefaultLinkProperties(new LinkProperties(5, 100000, 0.0));
+		SimulatedPacketSocketHandler a = network.createHandler(1000);
+		SimulatedPacketSocketHandler b = network.createHandler(1001);
+		RecordingFilter fb = new RecordingFilter();
+		b.setLowLevelFilter(fb);
+		for(int i=0;i<3;i++)
+			a.sendPacket(new byte[952], b.getAddress(), true);
+		ticker.runAll();
+		assertEquals(3, fb.packets.size());
+		assertEquals(1015L, (long)fb.times.get(0));
+		assertEquals(1025L, (long)fb.times.get(1));
+		assertEquals(1035L, (long)fb.times.get(2));
+	}
+
+	@Test
+	public void testLoss() throws Exception {
+		network.setDefaultLinkProperties(new LinkProperties(1, 0, 0.25));
+		SimulatedPacketSocketHandler a = network.createHandler(1000);
+		SimulatedPacketSocketHandler b = network.createHandler(1001);
+		RecordingFilter fb = new RecordingFilter();
+		b.setLowLevelFilter(fb);
+		for(int i=0;i<10000;i++)
+			a.sendPacket(new byte[10], b.getAddress(), true);
+		ticker.runAll();
+		assertEquals(10000, network.getPacketsSent());
+		assertEquals(network.getPacketsSent(), network.getPacketsLost() + network.getPacketsDelivered());
+		assertEquals(fb.packets.size(), network.getPacketsDelivered());
+		assertTrue(network.getPacketsLost() > 2000 && network.getPacketsLost() < 3000);
+	}
+
+	@Test
+	public void testClosedHandler() throws Exception {
+		SimulatedPacketSocketHandler a = network.createHandler(1000);
+		SimulatedPacketSocketHandler b = network.createHandler(1001);
+		RecordingFilter fb = new RecordingFilter();
+		b.setLowLevelFilter(fb);
+		a.sendPacket(new byte[10], b.getAddress(), true);
+		b.close();
+		ticker.runAll();
+		assertEquals(0, fb.packets.size());
+		assertEquals(1, network.getPacketsUnroutable());
+		assertEquals(1, network.countHandlers());
+		try {
+			network.createHandler(1000);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testManyNodes() throws Exception {
+		int nodes = TestProperty.BENCHMARK ? 1000 : 200;
+		relayAroundRing(nodes, 20);
+	}
+
+	/** Every node sends a packet which is relayed hop by hop around a ring of nodes. */
+	private void relayAroundRing(final int nodes, final int hops) throws Exception {
+		network.setDefaultLinkProperties(new LinkProperties(20, 1000000, 0.0));
+		final SimulatedPacketSocketHandler[] handlers = new SimulatedPacketSocketHandler[nodes];
+		final int[] arrived = new int[1];
+		for(int i=0;i<nodes;i++)
+			handlers[i] = network.createHandler(10000 + i);
+		for(int i=0;i<nodes;i++) {
+			final int me = i;
+			handlers[i].setLowLevelFilter(new IncomingPacketFilter() {
+
+				@Override
+				public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+					int ttl = buf[offset];
+					if(ttl == 0) {
+						arrived[0]++;
+						return DECODED.DECODED;
+					}
+					byte[] forward = new byte[length];
+					System.arraycopy(buf, offset, forward, 0, length);
+					forward[0]--;
+					try {
+						handlers[me].sendPacket(forward, handlers[(me+1) % nodes].getAddress(), true);
+					} catch (Peer.LocalAddressException e) {
+						fail();
+					}
+					return DECODED.DECODED;
+				}
+
+				@Override
+				public boolean isDisconnected(PeerContext context) {
+					return false;
+				}
+
+			});
+		}
+		long start = System.currentTimeMillis();
+		for(int i=0;i<nodes;i++) {
+			byte[] buf = new byte[1024];
+			buf[0] = (byte)(hops - 1);
+			handlers[i].sendPacket(buf, handlers[(i+1) % nodes].getAddress(), true);
+		}
+		ticker.runAll();
+		long end = System.currentTimeMillis();
+		assertEquals(nodes, arrived[0]);
+		assertEquals((long)nodes * hops, network.getPacketsDelivered());
+		// Each hop takes 1ms on the wire plus 20ms latency, in virtual time.
+		assertEquals(1000 + hops * 21, ticker.currentTimeMillis());
+		if(TestProperty.BENCHMARK)
+			System.out.println("Relayed "+network.getPacketsDelivered()+" packets between "+nodes+
+					" simulated nodes in "+TimeUtil.formatTime(end - start, 3, true)+": "+network);
+	}
+
+}
@@ -0,0 +1,431 @@
+package freenet.io.xfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.io.comm.AsyncMessageCallback;
+import freenet.io.comm.ByteCounter;
+import freenet.io.comm.DMT;
+import freenet.io.comm.Message;
+import freenet.io.comm.MessageCore;
+import freenet.io.comm.NotConnectedException;
+import freenet.io.comm.Peer;
+import freenet.io.comm.PeerContext;
+import freenet.io.comm.RetrievalException;
+import freenet.io.comm.SocketHandler;
+import freenet.io.xfer.BlockTransmitter.BlockTransmitterCompletion;
+import freenet.node.MessageItem;
+import freenet.node.OutgoingPacketMangler;
+import freenet.node.PrioRunnable;
+import freenet.support.Buffer;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.Ticker;
+
+public class BlockTransmitterTest {
+
+	private static final int PACKETS = 32;
+	private static final int PACKET_SIZE = 1024;
+	private static final ByteCounter COUNTER = new ByteCounter() {
+
+		@Override
+		public void sentBytes(int x) {
+		}
+
+		@Override
+		public void receivedBytes(int x) {
+		}
+
+		@Override
+		public void sentPayload(int x) {
+		}
+
+	};
+
+	private PooledExecutor underlying;
+	/** Counts the jobs run by the transmitters, e.g. completion callbacks. */
+	private AtomicInteger executed;
+	private Executor executor;
+	/** Timed jobs are only recorded, so the timeout after all packets are sent only runs if a
+	 * test runs it. */
+	private List<Runnable> timedJobs;
+	private Ticker ticker;
+	private MessageCore core;
+
+	/** The receiving node. Records what is sent to it, and acknowledges it when asked to, like
+	 * the message queue would once the packets containing the messages are acked. */
+	private class RecordingPeer implements PeerContext {
+
+		final String name;
+		volatile boolean connected = true;
+		final List<Message> sent = new ArrayList<Message>();
+		final List<AsyncMessageCallback> unacked = new ArrayList<AsyncMessageCallback>();
+		final Set<Thread> sendingThreads = new HashSet<Thread>();
+
+		RecordingPeer(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public synchronized MessageItem sendAsync(Message msg, AsyncMessageCallback cb, ByteCounter ctr) throws NotConnectedException {
+			if(!connected) {
+				if(cb != null) cb.disconnected();
+				throw new NotConnectedException();
+			}
+			sent.add(msg);
+			if(cb != null) unacked.add(cb);
+			sendingThreads.add(Thread.currentThread());
+			return null;
+		}
+
+		void ackAll() {
+			AsyncMessageCallback[] cbs;
+			synchronized(this) {
+				cbs = unacked.toArray(new AsyncMessageCallback[unacked.size()]);
+				unacked.clear();
+			}
+			for(AsyncMessageCallback cb : cbs) {
+				cb.sent();
+				cb.acknowledged();
+			}
+		}
+
+		synchronized int count(String type) {
+			int count = 0;
+			for(Message m : sent)
+				if(m.getSpec().getName().equals(type)) count++;
+			return count;
+		}
+
+		/** Deliver a message from this peer to the transmitting node. */
+		void reply(Message m) {
+			byte[] buf = m.encodeToPacket();
+			core.checkFilters(Message.decodeMessageFromPacket(buf, 0, buf.length, this, 0), null);
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public long getBootID() {
+			return 1;
+		}
+
+		@Override
+		public int getThrottleWindowSize() {
+			return 10;
+		}
+
+		@Override
+		public String shortToString() {
+			return name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		@Override
+		public Peer getPeer() {
+			return null;
+		}
+
+		@Override
+		public void forceDisconnect() {
+		}
+
+		@Override
+		public boolean isRoutable() {
+			return true;
+		}
+
+		@Override
+		public int getVersionNumber() {
+			return 0;
+		}
+
+		@Override
+		public PacketThrottle getThrottle() {
+			return null;
+		}
+
+		@Override
+		public SocketHandler getSocketHandler() {
+			return null;
+		}
+
+		@Override
+		public OutgoingPacketMangler getOutgoingMangler() {
+			return null;
+		}
+
+		@Override
+		public WeakReference<? extends PeerContext> getWeakRef() {
+			return new WeakReference<RecordingPeer>(this);
+		}
+
+		@Override
+		public void transferFailed(String reason, boolean realTime) {
+		}
+
+		@Override
+		public boolean unqueueMessage(MessageItem item) {
+			return false;
+		}
+
+		@Override
+		public void reportThrottledPacketSendTime(long time, boolean realTime) {
+		}
+
+	}
+
+	@Before
+	public void setUp() {
+		underlying = new PooledExecutor();
+		underlying.start();
+		executed = new AtomicInteger();
+		executor = new Executor() {
+
+			@Override
+			public void execute(Runnable job) {
+				execute(job, "");
+			}
+
+			@Override
+			public void execute(Runnable job, String jobName) {
+				executed.incrementAndGet();
+				underlying.execute(job, jobName);
+			}
+
+			@Override
+			public void execute(Runnable job, String jobName, boolean fromTicker) {
+				execute(job, jobName);
+			}
+
+			@Override
+			public int[] waitingThreads() {
+				return underlying.waitingThreads();
+			}
+
+			@Override
+			public int[] runningThreads() {
+				return underlying.runningThreads();
+			}
+
+			@Override
+			public int getWaitingThreadsCount() {
+				return underlying.getWaitingThreadsCount();
+			}
+
+		};
+		timedJobs = new ArrayList<Runnable>();
+		ticker = new Ticker() {
+
+			@Override
+			public void queueTimedJob(Runnable job, long offset) {
+				synchronized(timedJobs) {
+					timedJobs.add(job);
+				}
+			}
+
+			@Override
+			public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+				queueTimedJob(job, offset);
+			}
+
+			@Override
+			public void queueTimedJobAbsolute(Runnable job, String name, long time, boolean runOnTickerAnyway, boolean noDupes) {
+				queueTimedJob(job, 0);
+			}
+
+			@Override
+			public Executor getExecutor() {
+				return executor;
+			}
+
+			@Override
+			public void removeQueuedJob(Runnable job) {
+				synchronized(timedJobs) {
+					timedJobs.remove(job);
+				}
+			}
+
+		};
+		core = new MessageCore(underlying);
+	}
+
+	private static Buffer packet(int packetNo) {
+		byte[] buf = new byte[PACKET_SIZE];
+		buf[0] = (byte) packetNo;
+		return new Buffer(buf);
+	}
+
+	private BlockTransmitter transmitter(RecordingPeer peer, long uid, PartiallyReceivedBlock prb, final BlockingQueue<Boolean> results) {
+		return new BlockTransmitter(core, ticker, peer, uid, prb, COUNTER, BlockTransmitter.NEVER_CASCADE,
+				new BlockTransmitterCompletion() {
+
+			@Override
+			public void blockTransferFinished(boolean success) {
+				results.add(success);
+			}
+
+		}, false, null);
+	}
+
+	@Test
+	public void testSendAsPacketsArrive() throws Exception {
+		RecordingPeer peer = new RecordingPeer("peer");
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		for(int i=0;i<PACKETS/2;i++)
+			prb.addPacket(i, packet(i));
+		BlockingQueue<Boolean> results = new ArrayBlockingQueue<Boolean>(1);
+		int running = BlockTransmitter.getRunningSends();
+		BlockTransmitter bt = transmitter(peer, 1, prb, results);
+		bt.sendAsync();
+		assertEquals(running + 1, BlockTransmitter.getRunningSends());
+		// The packets we already have are sent straight away, on the caller's thread.
+		assertEquals(PACKETS/2, peer.count("packetTransmit"));
+		assertEquals(0, peer.count("allSent"));
+		// The rest are sent by the thread which receives them.
+		for(int i=PACKETS/2;i<PACKETS;i++)
+			prb.addPacket(i, packet(i));
+		assertEquals(PACKETS, peer.count("packetTransmit"));
+		assertEquals(1, peer.count("allSent"));
+		for(int i=0;i<PACKETS;i++)
+			assertEquals(i, peer.sent.get(i).getInt(DMT.PACKET_NO));
+		assertEquals(1, peer.sendingThreads.size());
+		assertTrue(peer.sendingThreads.contains(Thread.currentThread()));
+		assertEquals(0, executed.get());
+		// Once everything is acked, we wait for the receiver, with a timeout.
+		peer.ackAll();
+		assertEquals(1, timedJobs.size());
+		assertEquals(running + 1, BlockTransmitter.getRunningSends());
+		peer.reply(DMT.createAllReceived(1));
+		assertEquals(Boolean.TRUE, results.poll(10, TimeUnit.SECONDS));
+		assertEquals(running, BlockTransmitter.getRunningSends());
+		assertEquals(1, executed.get());
+	}
+
+	@Test
+	public void testReceiverBeforeAcks() throws Exception {
+		// The allReceived can arrive before the acks for the last packets.
+		RecordingPeer peer = new RecordingPeer("peer");
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE, new byte[PACKETS * PACKET_SIZE]);
+		BlockingQueue<Boolean> results = new ArrayBlockingQueue<Boolean>(1);
+		transmitter(peer, 2, prb, results).sendAsync();
+		assertEquals(PACKETS, peer.count("packetTransmit"));
+		peer.reply(DMT.createAllReceived(2));
+		assertEquals(null, results.poll(100, TimeUnit.MILLISECONDS));
+		peer.ackAll();
+		assertEquals(Boolean.TRUE, results.poll(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testSendAborted() throws Exception {
+		RecordingPeer peer = new RecordingPeer("peer");
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		prb.addPacket(0, packet(0));
+		BlockingQueue<Boolean> results = new ArrayBlockingQueue<Boolean>(1);
+		int running = BlockTransmitter.getRunningSends();
+		transmitter(peer, 3, prb, results).sendAsync();
+		peer.ackAll();
+		peer.reply(DMT.createSendAborted(3, RetrievalException.CANCELLED_BY_RECEIVER, "test"));
+		assertEquals(Boolean.FALSE, results.poll(10, TimeUnit.SECONDS));
+		assertEquals(running, BlockTransmitter.getRunningSends());
+		// We acknowledge the cancel, and don't send anything else.
+		assertEquals(1, peer.count("sendAborted"));
+		prb.addPacket(1, packet(1));
+		assertEquals(1, peer.count("packetTransmit"));
+	}
+
+	@Test
+	public void testDisconnected() throws Exception {
+		RecordingPeer peer = new RecordingPeer("peer");
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		prb.addPacket(0, packet(0));
+		BlockingQueue<Boolean> results = new ArrayBlockingQueue<Boolean>(1);
+		int running = BlockTransmitter.getRunningSends();
+		transmitter(peer, 4, prb, results).sendAsync();
+		peer.connected = false;
+		prb.addPacket(1, packet(1));
+		assertEquals(Boolean.FALSE, results.poll(10, TimeUnit.SECONDS));
+		assertEquals(running, BlockTransmitter.getRunningSends());
+		assertEquals(1, peer.count("packetTransmit"));
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		RecordingPeer peer = new RecordingPeer("peer");
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE, new byte[PACKETS * PACKET_SIZE]);
+		BlockingQueue<Boolean> results = new ArrayBlockingQueue<Boolean>(1);
+		transmitter(peer, 5, prb, results).sendAsync();
+		peer.ackAll();
+		assertEquals(1, timedJobs.size());
+		timedJobs.get(0).run();
+		assertEquals(1, peer.count("sendAborted"));
+		// Nothing more to wait for, so it finishes straight away.
+		assertEquals(Boolean.FALSE, results.poll(10, TimeUnit.SECONDS));
+		assertTrue(timedJobs.get(0) instanceof PrioRunnable);
+	}
+
+	// ant -Dtest.skip=false -Dtest.class=freenet.io.xfer.BlockTransmitterTest -Dtest.benchmark=true unit
+	@Test
+	public void testManyTransfers() throws Exception {
+		// Lots of transfers of one block to different peers, e.g. a popular block being
+		// relayed while it is still being received. No thread is used per transfer.
+		int transfers = TestProperty.BENCHMARK ? 10000 : 500;
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		RecordingPeer[] peers = new RecordingPeer[transfers];
+		BlockingQueue<Boolean> results = new ArrayBlockingQueue<Boolean>(transfers);
+		int running = BlockTransmitter.getRunningSends();
+		int threads = Thread.activeCount();
+		long start = System.nanoTime();
+		for(int i=0;i<transfers;i++) {
+			peers[i] = new RecordingPeer("peer"+i);
+			transmitter(peers[i], 100+i, prb, results).sendAsync();
+		}
+		int peakThreads = Thread.activeCount();
+		assertEquals(running + transfers, BlockTransmitter.getRunningSends());
+		for(int i=0;i<PACKETS;i++) {
+			prb.addPacket(i, packet(i));
+			peakThreads = Math.max(peakThreads, Thread.activeCount());
+		}
+		for(RecordingPeer peer : peers) {
+			assertEquals(PACKETS, peer.count("packetTransmit"));
+			assertEquals(1, peer.count("allSent"));
+			peer.ackAll();
+			peer.reply(DMT.createAllReceived(100 + Integer.parseInt(peer.name.substring(4))));
+		}
+		for(int i=0;i<transfers;i++)
+			assertEquals(Boolean.TRUE, results.poll(10, TimeUnit.SECONDS));
+		long time = System.nanoTime() - start;
+		assertEquals(running, BlockTransmitter.getRunningSends());
+		// Only the completion callbacks were run on the executor.
+		assertEquals(transfers, executed.get());
+		for(RecordingPeer peer : peers) {
+			assertEquals(1, peer.sendingThreads.size());
+			assertTrue(peer.sendingThreads.contains(Thread.currentThread()));
+		}
+		if(TestProperty.BENCHMARK)
+			System.out.println(transfers+" concurrent transfers, threads before "+threads+" peak while sending "+
+					peakThreads+", "+(transfers * 1000000000L / time)+" transfers/sec");
+	}
+
+}
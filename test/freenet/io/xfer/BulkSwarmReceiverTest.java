@@ -0,0 +1,343 @@
+package freenet.io.xfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.io.comm.AsyncMessageCallback;
+import freenet.io.comm.ByteCounter;
+import freenet.io.comm.DMT;
+import freenet.io.comm.DisconnectedException;
+import freenet.io.comm.Message;
+import freenet.io.comm.MessageCore;
+import freenet.io.comm.NotConnectedException;
+import freenet.io.comm.Peer;
+import freenet.io.comm.PeerContext;
+import freenet.io.comm.SocketHandler;
+import freenet.node.MessageItem;
+import freenet.node.OutgoingPacketMangler;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.io.ByteArrayRandomAccessBuffer;
+
+public class BulkSwarmReceiverTest {
+
+	private static final int BLOCK_SIZE = 1024;
+	private static final ByteCounter COUNTER = new ByteCounter() {
+
+		@Override
+		public void sentBytes(int x) {
+		}
+
+		@Override
+		public void receivedBytes(int x) {
+		}
+
+		@Override
+		public void sentPayload(int x) {
+		}
+
+	};
+
+	private Executor executor;
+	private MessageCore receiverCore;
+	private byte[] file;
+
+	/** One end of a link: sending to it delivers the message to the node at the other end. */
+	private class LoopbackPeer implements PeerContext {
+
+		private final String name;
+		private final MessageCore remoteCore;
+		/** The same link seen from the other end */
+		LoopbackPeer reverse;
+		volatile boolean connected = true;
+
+		LoopbackPeer(String name, MessageCore remoteCore) {
+			this.name = name;
+			this.remoteCore = remoteCore;
+		}
+
+		@Override
+		public MessageItem sendAsync(Message msg, final AsyncMessageCallback cb, ByteCounter ctr) throws NotConnectedException {
+			if(!connected) throw new NotConnectedException();
+			byte[] buf = msg.encodeToPacket();
+			final Message received = Message.decodeMessageFromPacket(buf, 0, buf.length, reverse, 0);
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					if(!connected) {
+						if(cb != null) cb.disconnected();
+						return;
+					}
+					remoteCore.checkFilters(received, null);
+					if(cb != null) {
+						cb.sent();
+						cb.acknowledged();
+					}
+				}
+
+			});
+			return null;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public long getBootID() {
+			return 1;
+		}
+
+		@Override
+		public int getThrottleWindowSize() {
+			return 10;
+		}
+
+		@Override
+		public String shortToString() {
+			return name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		@Override
+		public Peer getPeer() {
+			return null;
+		}
+
+		@Override
+		public void forceDisconnect() {
+		}
+
+		@Override
+		public boolean isRoutable() {
+			return true;
+		}
+
+		@Override
+		public int getVersionNumber() {
+			return 0;
+		}
+
+		@Override
+		public PacketThrottle getThrottle() {
+			return null;
+		}
+
+		@Override
+		public SocketHandler getSocketHandler() {
+			return null;
+		}
+
+		@Override
+		public OutgoingPacketMangler getOutgoingMangler() {
+			return null;
+		}
+
+		@Override
+		public WeakReference<? extends PeerContext> getWeakRef() {
+			return new WeakReference<LoopbackPeer>(this);
+		}
+
+		@Override
+		public void transferFailed(String reason, boolean realTime) {
+		}
+
+		@Override
+		public boolean unqueueMessage(MessageItem item) {
+			return false;
+		}
+
+		@Override
+		public void reportThrottledPacketSendTime(long time, boolean realTime) {
+		}
+
+	}
+
+	private enum Behaviour { SEND, STALL, REFUSE, CORRUPT }
+
+	/** A peer which has the whole file, as seen from the receiver. */
+	private class Source {
+
+		final LoopbackPeer peer;
+		final MessageCore core;
+		final Behaviour behaviour;
+		int rangesRequested;
+		int blocksRequested;
+
+		Source(String name, Behaviour behaviour) {
+			core = new MessageCore(executor);
+			peer = new LoopbackPeer(name, core);
+			LoopbackPeer back = new LoopbackPeer("receiver", receiverCore);
+			peer.reverse = back;
+			back.reverse = peer;
+			this.behaviour = behaviour;
+		}
+
+		/** What the sender does when asked for a range, like UpdateOverMandatoryManager.handleFetchDependency(). */
+		void handleRequest(long uid, int firstBlock, int blockCount) throws NotConnectedException {
+			synchronized(this) {
+				rangesRequested++;
+				blocksRequested += blockCount;
+			}
+			if(behaviour == Behaviour.STALL) return;
+			if(behaviour == Behaviour.REFUSE) {
+				peer.reverse.sendAsync(DMT.createFNPBulkSendAborted(uid), null, COUNTER);
+				return;
+			}
+			byte[] data = file;
+			if(behaviour == Behaviour.CORRUPT) {
+				data = file.clone();
+				for(int i = 0; i < data.length; i += 100)
+					data[i] ^= 1;
+			}
+			PartiallyReceivedBulk prb = new PartiallyReceivedBulk(core, data.length, BLOCK_SIZE, new ByteArrayRandomAccessBuffer(data), true);
+			final BulkTransmitter bt;
+			try {
+				bt = new BulkTransmitter(prb, peer.reverse, uid, false, COUNTER, false, firstBlock, blockCount);
+			} catch (DisconnectedException e) {
+				throw new NotConnectedException();
+			}
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						bt.send();
+					} catch (DisconnectedException e) {
+						// Ignore
+					}
+				}
+
+			});
+		}
+
+	}
+
+	@Before
+	public void setUp() {
+		PooledExecutor pooled = new PooledExecutor();
+		pooled.start();
+		executor = pooled;
+		receiverCore = new MessageCore(executor);
+		file = new byte[100 * BLOCK_SIZE + 123];
+		new Random(42).nextBytes(file);
+	}
+
+	private BulkSwarmReceiver swarm(PartiallyReceivedBulk prb, final Source... sources) {
+		final Map<PeerContext, Source> byPeer = new HashMap<PeerContext, Source>();
+		for(Source source : sources)
+			byPeer.put(source.peer, source);
+		return new BulkSwarmReceiver(prb, new BulkSwarmReceiver.RangeRequester() {
+
+			@Override
+			public void requestRange(PeerContext peer, long uid, int firstBlock, int blockCount) throws NotConnectedException {
+				if(!peer.isConnected()) throw new NotConnectedException();
+				byPeer.get(peer).handleRequest(uid, firstBlock, blockCount);
+			}
+
+		}, COUNTER, new Random(1), 16, 500);
+	}
+
+	private PartiallyReceivedBulk receiverPRB(byte[] buf) {
+		return new PartiallyReceivedBulk(receiverCore, file.length, BLOCK_SIZE, new ByteArrayRandomAccessBuffer(buf), false);
+	}
+
+	@Test
+	public void testSwarm() {
+		Source[] sources = { new Source("a", Behaviour.SEND), new Source("b", Behaviour.SEND), new Source("c", Behaviour.SEND) };
+		byte[] buf = new byte[file.length];
+		PartiallyReceivedBulk prb = receiverPRB(buf);
+		BulkSwarmReceiver swarm = swarm(prb, sources);
+		for(Source source : sources)
+			assertTrue(swarm.addSource(source.peer));
+		assertFalse(swarm.addSource(sources[0].peer));
+		assertTrue(swarm.receive());
+		assertArrayEquals(file, buf);
+		assertEquals(0, swarm.getFailedSources().length);
+		// Each block was asked for once, apart from the end of the transfer.
+		int requested = 0;
+		for(Source source : sources)
+			requested += source.blocksRequested;
+		assertTrue(requested >= prb.getBlockCount());
+		assertTrue(requested <= prb.getBlockCount() + 2 * 16);
+	}
+
+	@Test
+	public void testStalledAndRefusingPeers() {
+		Source good = new Source("good", Behaviour.SEND);
+		Source stalled = new Source("stalled", Behaviour.STALL);
+		Source refusing = new Source("refusing", Behaviour.REFUSE);
+		Source disconnected = new Source("disconnected", Behaviour.SEND);
+		disconnected.peer.connected = false;
+		byte[] buf = new byte[file.length];
+		PartiallyReceivedBulk prb = receiverPRB(buf);
+		BulkSwarmReceiver swarm = swarm(prb, stalled, refusing, disconnected, good);
+		swarm.addSource(stalled.peer);
+		swarm.addSource(refusing.peer);
+		swarm.addSource(disconnected.peer);
+		swarm.addSource(good.peer);
+		assertTrue(swarm.receive());
+		assertArrayEquals(file, buf);
+		// The stalled peer may not have timed out yet.
+		assertTrue(Arrays.asList(swarm.getFailedSources()).contains(refusing.peer));
+		assertTrue(Arrays.asList(swarm.getFailedSources()).contains(disconnected.peer));
+		assertFalse(Arrays.asList(swarm.getFailedSources()).contains(good.peer));
+		// The chunks the stalled and refusing peers were asked for were fetched from the good one.
+		assertEquals(1, stalled.rangesRequested);
+		assertEquals(1, refusing.rangesRequested);
+		assertEquals(prb.getBlockCount(), good.blocksRequested);
+	}
+
+	@Test
+	public void testAllFail() {
+		Source stalled = new Source("stalled", Behaviour.STALL);
+		Source refusing = new Source("refusing", Behaviour.REFUSE);
+		PartiallyReceivedBulk prb = receiverPRB(new byte[file.length]);
+		BulkSwarmReceiver swarm = swarm(prb, stalled, refusing);
+		swarm.addSource(stalled.peer);
+		swarm.addSource(refusing.peer);
+		assertFalse(swarm.receive());
+		assertFalse(prb.isAborted());
+		assertEquals(2, swarm.getFailedSources().length);
+	}
+
+	@Test
+	public void testRangeTransfer() throws Exception {
+		// A range receiver only takes the blocks it asked for, and doesn't abort the file.
+		Source source = new Source("a", Behaviour.SEND);
+		byte[] buf = new byte[file.length];
+		PartiallyReceivedBulk prb = receiverPRB(buf);
+		BulkReceiver br = new BulkReceiver(prb, source.peer, 1, COUNTER, 10, 20, 500);
+		source.handleRequest(1, 10, 20);
+		assertTrue(br.receive());
+		assertTrue(prb.hasBlocks(10, 30));
+		assertEquals(0, prb.firstMissing(0, 30));
+		assertEquals(30, prb.firstMissing(10, 40));
+		assertEquals(-1, prb.firstMissing(10, 30));
+		assertEquals(prb.getBlockCount() - 20, prb.countMissing(0, prb.getBlockCount()));
+		assertArrayEquals(Arrays.copyOfRange(file, 10 * BLOCK_SIZE, 30 * BLOCK_SIZE), Arrays.copyOfRange(buf, 10 * BLOCK_SIZE, 30 * BLOCK_SIZE));
+
+		Source stalled = new Source("stalled", Behaviour.STALL);
+		br = new BulkReceiver(prb, stalled.peer, 2, COUNTER, 30, 10, 200);
+		assertFalse(br.receive());
+		assertFalse(prb.isAborted());
+	}
+
+}
@@ -0,0 +1,136 @@
+package freenet.io.xfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import freenet.support.TestProperty;
+
+public class PacketThrottleTest {
+
+	private static final int PACKET_SIZE = 1024;
+
+	@Test
+	public void testSlowStart() {
+		PacketThrottle throttle = new PacketThrottle(PACKET_SIZE);
+		assertEquals(2.0, throttle.getWindowSize(), 0.0);
+		assertEquals(250, throttle.getDelay());
+		throttle.notifyOfPacketAcknowledged(100);
+		assertEquals(2.0 + 2.0 / 3.0, throttle.getWindowSize(), 0.0001);
+		// Grows exponentially until it hits the maximum.
+		for(int i=0;i<20;i++)
+			throttle.notifyOfPacketAcknowledged(100);
+		assertEquals(100.0, throttle.getWindowSize(), 0.0);
+		// Then linearly.
+		throttle.notifyOfPacketAcknowledged(200);
+		assertEquals(100.0 + PacketThrottle.PACKET_TRANSMIT_INCREMENT / 100.0, throttle.getWindowSize(), 0.0001);
+	}
+
+	@Test
+	public void testLoss() {
+		PacketThrottle throttle = new PacketThrottle(PACKET_SIZE);
+		for(int i=0;i<10;i++)
+			throttle.notifyOfPacketAcknowledged(64);
+		double window = throttle.getWindowSize();
+		throttle.notifyOfPacketsLost(2);
+		assertEquals(window * PacketThrottle.PACKET_DROP_DECREASE_MULTIPLE * PacketThrottle.PACKET_DROP_DECREASE_MULTIPLE, 
+				throttle.getWindowSize(), 0.0001);
+		// No longer in slow start.
+		window = throttle.getWindowSize();
+		throttle.notifyOfPacketAcknowledged(64);
+		assertEquals(window + PacketThrottle.PACKET_TRANSMIT_INCREMENT / window, throttle.getWindowSize(), 0.0001);
+		// Never below 1.
+		throttle.notifyOfPacketsLost(1000);
+		assertEquals(1.0, throttle.getWindowSize(), 0.0);
+		assertTrue(throttle.toString().contains("total=1013"));
+	}
+
+	@Test
+	public void testRoundTripTime() {
+		PacketThrottle throttle = new PacketThrottle(PACKET_SIZE);
+		throttle.setRoundTripTime(1);
+		assertEquals(10, throttle.getRoundTripTime());
+		throttle.setRoundTripTime(1000);
+		assertEquals(1000, throttle.getRoundTripTime());
+		assertEquals(500, throttle.getDelay());
+		assertEquals(PACKET_SIZE * 1000.0 / 500, throttle.getBandwidth(), 0.0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoLoss() {
+		new PacketThrottle(PACKET_SIZE).notifyOfPacketsLost(0);
+	}
+
+	/** Run threads which ack and occasionally lose packets, while another thread reads.
+	 * @return Updates per second and reads per second. */
+	private long[] runConcurrently(final PacketThrottle throttle, int threads, final int acks) throws InterruptedException {
+		final AtomicBoolean finished = new AtomicBoolean();
+		final AtomicBoolean badRead = new AtomicBoolean();
+		final AtomicLong reads = new AtomicLong();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				long count = 0;
+				while(!finished.get()) {
+					if(throttle.getWindowSize() < 1.0 || throttle.getDelay() < 1 || throttle.getBandwidth() <= 0)
+						badRead.set(true);
+					count += 3;
+				}
+				reads.set(count);
+			}
+		};
+		reader.start();
+		Thread[] senders = new Thread[threads];
+		for(int t=0;t<threads;t++) {
+			senders[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0;i<acks;i++) {
+						throttle.setRoundTripTime(100 + (i & 63));
+						if((i & 127) == 0)
+							throttle.notifyOfPacketsLost(1);
+						else
+							throttle.notifyOfPacketAcknowledged(1000);
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread sender : senders)
+			sender.start();
+		for(Thread sender : senders)
+			sender.join();
+		long time = System.nanoTime() - start;
+		finished.set(true);
+		reader.join();
+		assertFalse(badRead.get());
+		return new long[] { threads * (long) acks * 2 * 1000L * 1000 * 1000 / time, 
+				reads.get() * 1000L * 1000 * 1000 / time };
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		PacketThrottle throttle = new PacketThrottle(PACKET_SIZE);
+		runConcurrently(throttle, 4, 10000);
+		// No updates were lost.
+		assertTrue(throttle.toString(), throttle.toString().contains("total=40000 "));
+	}
+
+	// ant -Dtest.skip=false -Dtest.class=freenet.io.xfer.PacketThrottleTest -Dtest.benchmark=true unit
+	@Test
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		// Warm up.
+		runConcurrently(new PacketThrottle(PACKET_SIZE), 8, 100000);
+		for(int threads : new int[] { 1, 8 }) {
+			long[] rates = runConcurrently(new PacketThrottle(PACKET_SIZE), threads, 1000000);
+			System.out.println(threads + " sender threads: " + rates[0] + " updates/sec, " + rates[1] + " reads/sec");
+		}
+	}
+
+}
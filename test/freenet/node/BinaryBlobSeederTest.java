@@ -0,0 +1,167 @@
+package freenet.node;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.store.BlockMetadata;
+
+public class BinaryBlobSeederTest {
+
+	private static final int BLOCKS = 20;
+
+	private List<Key> keys;
+	private Map<Key, KeyBlock> source;
+
+	/** A node whose store is the given map. */
+	private static Node node(final Map<Key, KeyBlock> store) throws Exception {
+		Node node = mock(Node.class);
+		when(node.hasKey(any(Key.class), anyBoolean(), anyBoolean())).thenAnswer(new Answer<Boolean>() {
+
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				return store.containsKey(invocation.getArguments()[0]);
+			}
+
+		});
+		when(node.fetch(any(Key.class), anyBoolean(), anyBoolean(), anyBoolean(), anyBoolean(), any(BlockMetadata.class))).thenAnswer(new Answer<KeyBlock>() {
+
+			@Override
+			public KeyBlock answer(InvocationOnMock invocation) {
+				return store.get(invocation.getArguments()[0]);
+			}
+
+		});
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				KeyBlock block = (KeyBlock) invocation.getArguments()[0];
+				if(store.put(block.getKey(), block) != null)
+					fail("Stored twice: "+block.getKey());
+				return null;
+			}
+
+		}).when(node).store(any(KeyBlock.class), anyBoolean(), anyBoolean(), anyBoolean(), anyBoolean());
+		return node;
+	}
+
+	private static class Progress implements BinaryBlobSeeder.ProgressCallback {
+
+		long offset;
+		long blocks;
+		long skipped;
+
+		@Override
+		public void onProgress(long offset, long blocks, long skipped) {
+			assertTrue(offset >= this.offset);
+			this.offset = offset;
+			this.blocks = blocks;
+			this.skipped = skipped;
+		}
+
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		Random random = new Random(1);
+		keys = new ArrayList<Key>();
+		source = new HashMap<Key, KeyBlock>();
+		for(int i=0;i<BLOCKS;i++) {
+			byte[] data = new byte[CHKBlock.DATA_LENGTH];
+			random.nextBytes(data);
+			CHKBlock block = ClientCHKBlock.encodeSplitfileBlock(data, null, Key.ALGO_AES_CTR_256_SHA256).getBlock();
+			keys.add(block.getKey());
+			source.put(block.getKey(), block);
+		}
+	}
+
+	private byte[] export(Progress progress) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		assertEquals(BLOCKS, new BinaryBlobSeeder(node(source)).exportBlob(keys, os, progress));
+		return os.toByteArray();
+	}
+
+	private void checkStored(Map<Key, KeyBlock> store) {
+		assertEquals(BLOCKS, store.size());
+		for(Key key : keys)
+			assertArrayEquals(source.get(key).getRawData(), store.get(key).getRawData());
+	}
+
+	@Test
+	public void testExportImport() throws Exception {
+		// A key we don't have is skipped.
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		Key missing = ClientCHKBlock.encodeSplitfileBlock(data, null, Key.ALGO_AES_CTR_256_SHA256).getBlock().getKey();
+		keys.add(BLOCKS / 2, missing);
+		Progress progress = new Progress();
+		byte[] blob = export(progress);
+		assertEquals(blob.length - 8, progress.offset);
+		assertEquals(BLOCKS, progress.blocks);
+		assertEquals(1, progress.skipped);
+		keys.remove(missing);
+
+		Map<Key, KeyBlock> store = new HashMap<Key, KeyBlock>();
+		progress = new Progress();
+		assertEquals(BLOCKS, new BinaryBlobSeeder(node(store)).importBlob(new ByteArrayInputStream(blob), 0, false, progress));
+		assertEquals(BLOCKS, progress.blocks);
+		assertEquals(0, progress.skipped);
+		assertEquals(blob.length - 8, progress.offset);
+		checkStored(store);
+
+		// Importing again doesn't store anything.
+		progress = new Progress();
+		assertEquals(BLOCKS, new BinaryBlobSeeder(node(store)).importBlob(new ByteArrayInputStream(blob), 0, false, progress));
+		assertEquals(BLOCKS, progress.skipped);
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		byte[] blob = export(null);
+		// The import is interrupted part way through a block.
+		Map<Key, KeyBlock> store = new HashMap<Key, KeyBlock>();
+		BinaryBlobSeeder seeder = new BinaryBlobSeeder(node(store));
+		Progress progress = new Progress();
+		try {
+			seeder.importBlob(new ByteArrayInputStream(Arrays.copyOf(blob, blob.length / 2)), 0, false, progress);
+			fail();
+		} catch (EOFException e) {
+			// Expected.
+		}
+		long read = progress.blocks;
+		assertTrue(read > 0 && read < BLOCKS);
+		assertEquals(read, store.size());
+		// Resume from the last offset reported.
+		long offset = progress.offset;
+		progress = new Progress();
+		assertEquals(BLOCKS - read, seeder.importBlob(new ByteArrayInputStream(blob), offset, false, progress));
+		assertEquals(0, progress.skipped);
+		checkStored(store);
+	}
+
+}
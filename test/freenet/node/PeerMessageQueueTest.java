@@ -7,6 +7,9 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import freenet.io.comm.DMT;
+import freenet.support.HierarchicalTokenBucket;
+
 public class PeerMessageQueueTest {
 	@Test
 	public void testUrgentTimeEmpty() {
@@ -87,4 +90,78 @@ public class PeerMessageQueueTest {
 		//grabQueuedMessageItem() should return the most urgent item, even though it was queued last
 		assertSame(itemUrgent, pmq.grabQueuedMessageItem(0));
 	}
+
+	private static HierarchicalTokenBucket limiter() {
+		HierarchicalTokenBucket limiter = new HierarchicalTokenBucket(10000, 2048, BandwidthClass.values().length);
+		limiter.setChildRate(BandwidthClass.BULK.ordinal(), 0, 10000);
+		limiter.setChildRate(BandwidthClass.REALTIME.ordinal(), 5000, 10000);
+		limiter.setChildRate(BandwidthClass.CONTROL.ordinal(), 0, 1000);
+		return limiter;
+	}
+
+	@Test
+	public void testBandwidthClasses() throws InterruptedException {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		HierarchicalTokenBucket limiter = limiter();
+		pmq.setBandwidthLimiter(limiter);
+		MessageItem[] bulk = new MessageItem[10];
+		for(int i=0;i<bulk.length;i++) {
+			bulk[i] = new MessageItem(new byte[1024], null, false, null, DMT.PRIORITY_BULK_DATA, false, false);
+			assertEquals(BandwidthClass.BULK, bulk[i].getBandwidthClass());
+			pmq.queueAndEstimateSize(bulk[i], 1024);
+		}
+		// Bulk has nothing assured, but can use the spare bandwidth until there isn't any.
+		int sent = 0;
+		MessageItem item;
+		while((item = pmq.grabQueuedMessageItem(0)) != null)
+			assertSame(bulk[sent++], item);
+		assertTrue("Sent "+sent, sent >= 2 && sent <= 3);
+		assertTrue(limiter.getRefused(BandwidthClass.BULK.ordinal()) > 0);
+		// Realtime still gets its guarantee.
+		MessageItem realtime = new MessageItem(new byte[1024], null, false, null, DMT.PRIORITY_REALTIME_DATA, false, false);
+		pmq.queueAndEstimateSize(realtime, 1024);
+		assertSame(realtime, pmq.grabQueuedMessageItem(0));
+		assertNull(pmq.grabQueuedMessageItem(0));
+		// The bulk messages which were refused are sent in order once there is bandwidth.
+		Thread.sleep(limiter.nanosUntilMayGrab(BandwidthClass.BULK.ordinal()) / (1000 * 1000) + 1);
+		assertSame(bulk[sent], pmq.grabQueuedMessageItem(0));
+		assertEquals(1024 * (sent + 1), limiter.getGrabbed(BandwidthClass.BULK.ordinal()));
+	}
+
+	@Test
+	public void testReturnMessageItem() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		HierarchicalTokenBucket limiter = limiter();
+		pmq.setBandwidthLimiter(limiter);
+		MessageItem item = new MessageItem(new byte[1024], null, false, null, DMT.PRIORITY_BULK_DATA, false, false);
+		pmq.queueAndEstimateSize(item, 1024);
+		assertSame(item, pmq.grabQueuedMessageItem(0));
+		long count = limiter.getCount();
+		// Didn't fit in the packet, so it is put back, and only charged once when it is sent.
+		pmq.returnMessageItem(item);
+		assertTrue(limiter.getCount() >= count + 1024);
+		assertSame(item, pmq.grabQueuedMessageItem(0));
+		assertEquals(1024, limiter.getGrabbed(BandwidthClass.BULK.ordinal()));
+	}
+
+	@Test
+	public void testBandwidthLimitedUrgentTime() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		HierarchicalTokenBucket limiter = limiter();
+		pmq.setBandwidthLimiter(limiter);
+		// Over the ceiling for a second.
+		limiter.forceGrab(BandwidthClass.CONTROL.ordinal(), 2000);
+		MessageItem item = new MessageItem(new byte[1024], null, false, null, (short) 0, false, false);
+		pmq.queueAndEstimateSize(item, 1024);
+		long now = System.currentTimeMillis();
+		assertTrue(pmq.getNextUrgentTime(Long.MAX_VALUE, 0) <= now + 100);
+		assertNull(pmq.grabQueuedMessageItem(0));
+		// Don't try again until the limiter might allow it.
+		long urgent = pmq.getNextUrgentTime(Long.MAX_VALUE, 0);
+		assertTrue("Urgent at "+(urgent - now), urgent > now + 500);
+		assertTrue(urgent < Long.MAX_VALUE);
+		// Anything else being queued might be sendable.
+		pmq.queueAndEstimateSize(new MessageItem(new byte[1024], null, false, null, DMT.PRIORITY_REALTIME_DATA, false, false), 1024);
+		assertTrue(pmq.getNextUrgentTime(Long.MAX_VALUE, 0) <= now + 100);
+	}
 }
@@ -0,0 +1,181 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import freenet.support.TestProperty;
+import freenet.support.TimeUtil;
+
+public class PeerRoutingIndexTest {
+
+    private static final int PEERS = 150;
+    private static final int FOAF = 50;
+
+    /** A peer for testing: its location, its peers' locations, and whether it is backed off. */
+    private static class TestPeer {
+        final double loc;
+        final double[] foaf;
+        boolean backedOff;
+
+        TestPeer(double loc, double[] foaf) {
+            this.loc = loc;
+            this.foaf = foaf;
+        }
+    }
+
+    /** Accepts the first peer which isn't backed off; excludes the given FOAF locations. */
+    private static class Filter implements PeerRoutingIndex.EntryFilter<TestPeer> {
+        Set<Double> exclude = new HashSet<Double>();
+        TestPeer closestBackedOff;
+
+        @Override
+        public boolean accept(TestPeer peer, int peerIndex, double location, boolean direct, double distance) {
+            if(!direct && exclude.contains(location)) return false;
+            if(peer.backedOff) {
+                if(closestBackedOff == null) closestBackedOff = peer;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static TestPeer[] makePeers(Random r, int count, int foafCount) {
+        TestPeer[] peers = new TestPeer[count];
+        for(int i = 0; i < count; i++) {
+            double[] foaf = new double[foafCount];
+            for(int j = 0; j < foafCount; j++) foaf[j] = r.nextDouble();
+            peers[i] = new TestPeer(r.nextDouble(), foaf);
+            peers[i].backedOff = r.nextInt(4) == 0;
+        }
+        return peers;
+    }
+
+    private static PeerRoutingIndex.Snapshot<TestPeer> index(PeerRoutingIndex<TestPeer> index, TestPeer[] peers) {
+        double[] locs = new double[peers.length];
+        double[][] foaf = new double[peers.length][];
+        for(int i = 0; i < peers.length; i++) {
+            locs[i] = peers[i].loc;
+            foaf[i] = peers[i].foaf;
+        }
+        return index.rebuild(index.getVersion(), peers, locs, foaf);
+    }
+
+    /** The linear scan done by closerPeer() before the index, reduced to the same rules. */
+    private static TestPeer linearClosest(TestPeer[] peers, double target, double maxDistance, Set<Double> exclude, boolean backedOff) {
+        TestPeer best = null;
+        double bestDistance = Double.MAX_VALUE;
+        for(TestPeer p : peers) {
+            if(p.backedOff != backedOff) continue;
+            double diff = Location.distance(p.loc, target);
+            for(double l : p.foaf) {
+                if(exclude.contains(l)) continue;
+                diff = Math.min(diff, Location.distance(l, target));
+            }
+            if(diff > maxDistance) continue;
+            if(diff < bestDistance) {
+                bestDistance = diff;
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random r = new Random(2718);
+        PeerRoutingIndex<TestPeer> idx = new PeerRoutingIndex<TestPeer>();
+        for(int round = 0; round < 20; round++) {
+            TestPeer[] peers = makePeers(r, 1 + r.nextInt(30), r.nextInt(10));
+            PeerRoutingIndex.Snapshot<TestPeer> snapshot = index(idx, peers);
+            for(int i = 0; i < 50; i++) {
+                double target = r.nextDouble();
+                double maxDistance = r.nextBoolean() ? 2.0 : r.nextDouble() * 0.1;
+                Filter filter = new Filter();
+                TestPeer excluded = peers[r.nextInt(peers.length)];
+                for(double l : excluded.foaf) filter.exclude.add(l);
+                int entry = snapshot.findClosest(target, maxDistance, filter);
+                TestPeer expected = linearClosest(peers, target, maxDistance, filter.exclude, false);
+                assertSame(expected, entry < 0 ? null : snapshot.getEntryPeer(entry));
+                if(expected == null)
+                    assertSame(linearClosest(peers, target, maxDistance, filter.exclude, true), filter.closestBackedOff);
+            }
+        }
+    }
+
+    @Test
+    public void testWrapAround() {
+        TestPeer a = new TestPeer(0.02, new double[0]);
+        TestPeer b = new TestPeer(0.5, new double[] { 0.97 });
+        PeerRoutingIndex<TestPeer> idx = new PeerRoutingIndex<TestPeer>();
+        PeerRoutingIndex.Snapshot<TestPeer> snapshot = index(idx, new TestPeer[] { a, b });
+        assertEquals(3, snapshot.size());
+        int entry = snapshot.findClosest(0.99, 2.0, new Filter());
+        assertSame(b, snapshot.getEntryPeer(entry));
+        assertFalse(snapshot.isEntryDirect(entry));
+        assertEquals(0.97, snapshot.getEntryLocation(entry), 0.0);
+        entry = snapshot.findClosest(0.999, 2.0, new Filter());
+        assertSame(a, snapshot.getEntryPeer(entry));
+        assertEquals(-1, snapshot.findClosest(0.75, 0.1, new Filter()));
+    }
+
+    @Test
+    public void testInvalidate() {
+        PeerRoutingIndex<TestPeer> idx = new PeerRoutingIndex<TestPeer>();
+        assertNull(idx.current());
+        long version = idx.getVersion();
+        TestPeer[] peers = new TestPeer[] { new TestPeer(0.1, null) };
+        PeerRoutingIndex.Snapshot<TestPeer> snapshot = idx.rebuild(version, peers, new double[] { 0.1 }, new double[][] { null });
+        assertSame(snapshot, idx.current());
+        idx.invalidate();
+        assertNull(idx.current());
+        // A rebuild which started before an invalidation is not current.
+        version = idx.getVersion();
+        idx.invalidate();
+        idx.rebuild(version, peers, new double[] { 0.1 }, new double[][] { null });
+        assertNull(idx.current());
+        // Invalid locations are not indexed.
+        snapshot = idx.rebuild(idx.getVersion(), peers, new double[] { -1.0 }, new double[][] { null });
+        assertEquals(0, snapshot.size());
+        assertEquals(1, snapshot.countPeers());
+    }
+
+    @Test
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        Random r = new Random(31415);
+        TestPeer[] peers = makePeers(r, PEERS, FOAF);
+        PeerRoutingIndex<TestPeer> idx = new PeerRoutingIndex<TestPeer>();
+        PeerRoutingIndex.Snapshot<TestPeer> snapshot = index(idx, peers);
+        int lookups = 200000;
+        double[] targets = new double[lookups];
+        for(int i = 0; i < lookups; i++) targets[i] = r.nextDouble();
+        Filter filter = new Filter();
+        int found = 0;
+        for(int iter = 0; iter < 3; iter++) {
+            long start = System.nanoTime();
+            for(double target : targets) {
+                filter.closestBackedOff = null;
+                if(snapshot.findClosest(target, 2.0, filter) >= 0) found++;
+            }
+            long indexed = System.nanoTime() - start;
+            start = System.nanoTime();
+            for(double target : targets) {
+                // Allocates the exclusion set per call, as closerPeer() used to.
+                Set<Double> exclude = new HashSet<Double>();
+                exclude.add(0.5);
+                if(linearClosest(peers, target, 2.0, exclude, false) != null) found++;
+            }
+            long linear = System.nanoTime() - start;
+            System.out.println(PEERS+" peers x "+FOAF+" FOAF locations, "+lookups+" lookups: index "+
+                    TimeUtil.formatTime(indexed / 1000000, 3, true)+" linear "+
+                    TimeUtil.formatTime(linear / 1000000, 3, true));
+        }
+        assertTrue(found > 0);
+    }
+
+}
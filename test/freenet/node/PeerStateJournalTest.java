@@ -0,0 +1,224 @@
+package freenet.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.FileUtil;
+
+public class PeerStateJournalTest {
+
+	private File base = new File("tmp.peer-state-journal-test");
+	private File file = new File(base, "journal");
+
+	@Before
+	public void setUp() {
+		base.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtil.removeAll(base);
+	}
+
+	private static SimpleFieldSet record(String name, int version) {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("myName", name);
+		fs.put("version", version);
+		fs.putSingle("physical.udp", "127.0.0.1:"+version);
+		return fs;
+	}
+
+	private PeerStateJournal reopen() {
+		PeerStateJournal journal = new PeerStateJournal(file, null);
+		journal.open();
+		return journal;
+	}
+
+	@Test
+	public void testPutRemoveReload() {
+		PeerStateJournal journal = reopen();
+		assertFalse(journal.hasSection("darknet"));
+		journal.put("darknet", "a", record("a", 1));
+		journal.put("darknet", "b", record("b", 1));
+		journal.put("opennet", "c", record("c", 1));
+		journal.put("darknet", "a", record("a", 2));
+		journal.remove("opennet", "c");
+		journal.put("extra/a", "0", record("note", 1));
+		journal.deleteSection("extra/a");
+		journal.close();
+
+		journal = reopen();
+		assertTrue(journal.hasSection("darknet"));
+		assertTrue(journal.hasSection("opennet"));
+		assertFalse(journal.hasSection("extra/a"));
+		assertTrue(journal.getSection("opennet").isEmpty());
+		LinkedHashMap<String, SimpleFieldSet> darknet = journal.getSection("darknet");
+		assertEquals(2, darknet.size());
+		assertEquals(2, darknet.get("a").getInt("version", 0));
+		assertEquals("127.0.0.1:2", darknet.get("a").get("physical.udp"));
+		assertEquals("b", darknet.get("b").get("myName"));
+		assertNull(journal.get("opennet", "c"));
+		journal.close();
+	}
+
+	@Test
+	public void testUnchangedNotWritten() {
+		PeerStateJournal journal = reopen();
+		journal.put("darknet", "a", record("a", 1));
+		journal.flush();
+		long length = file.length();
+		journal.put("darknet", "a", record("a", 1));
+		Map<String, SimpleFieldSet> section = new LinkedHashMap<String, SimpleFieldSet>();
+		section.put("a", record("a", 1));
+		journal.setSection("darknet", section);
+		journal.flush();
+		assertEquals(length, file.length());
+		section.put("b", record("b", 1));
+		section.remove("a");
+		journal.setSection("darknet", section);
+		journal.close();
+		assertTrue(file.length() > length);
+		journal = reopen();
+		assertEquals(1, journal.getSection("darknet").size());
+		assertNull(journal.get("darknet", "a"));
+		journal.close();
+	}
+
+	@Test
+	public void testTornWrite() throws IOException {
+		PeerStateJournal journal = reopen();
+		journal.put("darknet", "a", record("a", 1));
+		journal.put("darknet", "b", record("b", 1));
+		journal.close();
+		// Simulate a crash part way through appending a change.
+		FileOutputStream fos = new FileOutputStream(file, true);
+		fos.write("Op=put\nSection=darknet\nId=c\nData.myName=c\n".getBytes(StandardCharsets.UTF_8));
+		fos.close();
+		journal = reopen();
+		assertEquals(2, journal.getSection("darknet").size());
+		assertNull(journal.get("darknet", "c"));
+		// The partial change has been removed, so appending works.
+		journal.put("darknet", "d", record("d", 1));
+		journal.close();
+		journal = reopen();
+		assertEquals(3, journal.getSection("darknet").size());
+		assertEquals("d", journal.get("darknet", "d").get("myName"));
+		journal.close();
+	}
+
+	@Test
+	public void testNoNewlineAtEnd() throws IOException {
+		PeerStateJournal journal = reopen();
+		journal.put("darknet", "a", record("a", 1));
+		journal.close();
+		// A change without the newline after its end marker, and one with a truncated marker.
+		FileOutputStream fos = new FileOutputStream(file, true);
+		fos.write("Op=put\nSection=darknet\nId=b\nData.myName=b\nEnd".getBytes(StandardCharsets.UTF_8));
+		fos.close();
+		journal = reopen();
+		assertEquals("b", journal.get("darknet", "b").get("myName"));
+		journal.put("darknet", "c", record("c", 1));
+		journal.close();
+		fos = new FileOutputStream(file, true);
+		fos.write("Op=put\nSection=darknet\nId=d\nData.myName=d\nEn".getBytes(StandardCharsets.UTF_8));
+		fos.close();
+		journal = reopen();
+		assertNull(journal.get("darknet", "d"));
+		journal.put("darknet", "e", record("e", 1));
+		journal.close();
+		journal = reopen();
+		assertEquals(4, journal.getSection("darknet").size());
+		assertEquals("c", journal.get("darknet", "c").get("myName"));
+		assertEquals("e", journal.get("darknet", "e").get("myName"));
+		journal.close();
+	}
+
+	@Test
+	public void testVolatileFieldsNotAppended() {
+		String[] volatileFields = new String[] { "metadata.timeLastConnected", "metadata.peersLocation" };
+		PeerStateJournal journal = new PeerStateJournal(file, null, volatileFields);
+		journal.open();
+		SimpleFieldSet fs = record("a", 1);
+		fs.put("metadata.timeLastConnected", 1000L);
+		fs.put("metadata.peersLocation", new double[] { 0.1, 0.2 });
+		journal.put("darknet", "a", fs);
+		journal.flush();
+		long length = file.length();
+		// Only the timestamps change between writes.
+		for(int i = 2; i <= 3; i++) {
+			fs.putOverwrite("metadata.timeLastConnected", Long.toString(1000L * i));
+			fs.put("metadata.peersLocation", new double[] { 0.1 * i, 0.2 });
+			journal.put("darknet", "a", fs);
+			journal.flush();
+		}
+		assertEquals(length, file.length());
+		assertEquals(3000, journal.get("darknet", "a").getLong("metadata.timeLastConnected", 0));
+		// They are written on close.
+		journal.close();
+		journal = new PeerStateJournal(file, null, volatileFields);
+		journal.open();
+		assertEquals(3000, journal.get("darknet", "a").getLong("metadata.timeLastConnected", 0));
+		length = file.length();
+		// Anything else is appended.
+		fs.putOverwrite("version", "2");
+		journal.put("darknet", "a", fs);
+		journal.flush();
+		assertTrue(file.length() > length);
+		journal.close();
+	}
+
+	@Test
+	public void testTruncatedInsideRecord() throws IOException {
+		PeerStateJournal journal = reopen();
+		journal.put("darknet", "a", record("a", 1));
+		journal.put("darknet", "b", record("b", 1));
+		journal.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+		journal = reopen();
+		assertEquals(1, journal.getSection("darknet").size());
+		journal.close();
+	}
+
+	@Test
+	public void testCompaction() {
+		PeerStateJournal journal = reopen();
+		// Much more than MIN_COMPACT_SIZE of changes to a handful of records.
+		for(int i = 0; i < 20000; i++)
+			journal.put("opennet", Integer.toString(i % 10), record("peer", i));
+		journal.flush();
+		assertTrue(file.length() < PeerStateJournal.MIN_COMPACT_SIZE);
+		assertTrue(journal.getFileLength() < PeerStateJournal.MIN_COMPACT_SIZE);
+		journal.close();
+		journal = reopen();
+		assertEquals(10, journal.getSection("opennet").size());
+		assertEquals(19999, journal.get("opennet", "9").getInt("version", 0));
+		journal.close();
+	}
+
+	@Test
+	public void testRecordsAreCopies() {
+		PeerStateJournal journal = reopen();
+		journal.put("darknet", "a", record("a", 1));
+		journal.get("darknet", "a").putOverwrite("myName", "changed");
+		assertEquals("a", journal.get("darknet", "a").get("myName"));
+		journal.close();
+	}
+
+}
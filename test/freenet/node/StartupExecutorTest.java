@@ -0,0 +1,155 @@
+package freenet.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.PooledExecutor;
+
+public class StartupExecutorTest {
+
+	private PooledExecutor executor;
+	private List<String> ran;
+
+	@Before
+	public void setUp() {
+		executor = new PooledExecutor();
+		executor.start();
+		ran = new ArrayList<String>();
+	}
+
+	private StartupExecutor.Task record(final String name) {
+		return new StartupExecutor.Task() {
+
+			@Override
+			public void run() {
+				synchronized(ran) {
+					ran.add(name);
+				}
+			}
+
+		};
+	}
+
+	@Test
+	public void testDependencies() throws ExecutionException {
+		StartupTimer timer = new StartupTimer(System.currentTimeMillis());
+		StartupExecutor startup = new StartupExecutor(executor, timer);
+		startup.submit("a", record("a"));
+		startup.submit("b", record("b"));
+		startup.submit("c", record("c"), "a", "b");
+		startup.submit("d", record("d"), "c");
+		startup.waitForAll();
+		assertEquals(4, ran.size());
+		assertTrue(ran.indexOf("c") > ran.indexOf("a"));
+		assertTrue(ran.indexOf("c") > ran.indexOf("b"));
+		assertEquals("d", ran.get(3));
+		assertEquals(4, timer.getPhases().length);
+		for(StartupTimer.Phase phase : timer.getPhases())
+			assertTrue(phase.parallel);
+	}
+
+	@Test
+	public void testParallel() throws ExecutionException {
+		// Each task waits for the other, so they must run at the same time.
+		final CountDownLatch latch = new CountDownLatch(2);
+		StartupExecutor.Task task = new StartupExecutor.Task() {
+
+			@Override
+			public void run() throws Exception {
+				latch.countDown();
+				if(!latch.await(10, TimeUnit.SECONDS)) throw new IOException("Not run in parallel");
+			}
+
+		};
+		StartupExecutor startup = new StartupExecutor(executor, null);
+		startup.submit("a", task);
+		startup.submit("b", task);
+		startup.waitForAll();
+	}
+
+	@Test
+	public void testFailure() {
+		final IOException failure = new IOException();
+		StartupExecutor startup = new StartupExecutor(executor, null);
+		startup.submit("a", new StartupExecutor.Task() {
+
+			@Override
+			public void run() throws IOException {
+				throw failure;
+			}
+
+		});
+		startup.submit("b", record("b"));
+		startup.submit("c", record("c"), "a", "b");
+		startup.submit("d", record("d"), "c");
+		try {
+			startup.waitFor("d");
+			fail();
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+		try {
+			startup.waitForAll();
+			fail();
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+		// A task submitted after its dependency failed isn't run either.
+		startup.submit("e", record("e"), "d");
+		assertEquals(1, ran.size());
+		assertEquals("b", ran.get(0));
+	}
+
+	@Test
+	public void testSequential() throws ExecutionException {
+		// Without an executor, each task is run as soon as it can be.
+		StartupExecutor startup = new StartupExecutor(null, null);
+		startup.submit("a", record("a"));
+		assertEquals(1, ran.size());
+		startup.submit("b", record("b"), "a");
+		startup.waitForAll();
+		assertEquals(2, ran.size());
+		try {
+			startup.submit("c", record("c"), "missing");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		assertFalse(ran.contains("c"));
+	}
+
+	@Test
+	public void testTimer() {
+		StartupTimer timer = new StartupTimer(System.currentTimeMillis());
+		timer.phase("one");
+		timer.phase("two");
+		timer.onRequest();
+		long firstRequest = timer.getTimeToFirstRequest();
+		assertEquals(-1, timer.getTimeToReady());
+		timer.ready();
+		assertTrue(timer.getTimeToReady() >= 0);
+		assertTrue(firstRequest >= 0);
+		timer.onRequest();
+		assertEquals(firstRequest, timer.getTimeToFirstRequest());
+		// Tasks after startup, e.g. reopening the store, aren't recorded.
+		timer.task("late", System.currentTimeMillis(), System.currentTimeMillis());
+		StartupTimer.Phase[] phases = timer.getPhases();
+		assertEquals(3, phases.length);
+		assertEquals("one", phases[0].name);
+		assertEquals("Start", phases[2].name);
+	}
+
+}
@@ -0,0 +1,383 @@
+package freenet.pluginmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.Fields;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+import freenet.support.io.FileUtil;
+
+public class PluginKeyValueStoreTest {
+
+    private File dir = new File("tmp.plugin-kv-store-test");
+    private byte[] key;
+
+    @Before
+    public void setUp() {
+        FileUtil.removeAll(dir);
+        key = new byte[32];
+        new Random(1234).nextBytes(key);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.removeAll(dir);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] b) {
+        return b == null ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testPutGetDelete() throws IOException {
+        testPutGetDelete(null);
+    }
+
+    @Test
+    public void testPutGetDeleteEncrypted() throws IOException {
+        testPutGetDelete(key);
+    }
+
+    private void testPutGetDelete(byte[] key) throws IOException {
+        PluginKeyValueStore store = new PluginKeyValueStore(dir, key, null);
+        store.put(bytes("a"), bytes("apple"));
+        store.put(bytes("b"), bytes("banana"));
+        store.put(bytes("c"), bytes("cherry"));
+        store.put(bytes("b"), bytes("blueberry"));
+        store.delete(bytes("c"));
+        store.put(bytes("empty"), new byte[0]);
+        assertEquals("apple", string(store.get(bytes("a"))));
+        assertEquals("blueberry", string(store.get(bytes("b"))));
+        assertNull(store.get(bytes("c")));
+        assertEquals(0, store.get(bytes("empty")).length);
+        assertEquals(3, store.size());
+        store.close();
+        try {
+            store.put(bytes("d"), bytes("date"));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        store = new PluginKeyValueStore(dir, key, null);
+        assertEquals("apple", string(store.get(bytes("a"))));
+        assertEquals("blueberry", string(store.get(bytes("b"))));
+        assertNull(store.get(bytes("c")));
+        assertEquals(0, store.get(bytes("empty")).length);
+        assertEquals(3, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testEncryption() throws IOException {
+        PluginKeyValueStore store = new PluginKeyValueStore(dir, key, null);
+        store.put(bytes("secret key"), bytes("secret value"));
+        store.close();
+        for(File f : dir.listFiles()) {
+            String contents = new String(Files.readAllBytes(f.toPath()), StandardCharsets.ISO_8859_1);
+            assertFalse(contents.contains("secret"));
+        }
+        byte[] wrongKey = Arrays.copyOf(key, key.length);
+        wrongKey[0]++;
+        try {
+            new PluginKeyValueStore(dir, wrongKey, null);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        try {
+            new PluginKeyValueStore(dir, null, null);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        store = new PluginKeyValueStore(dir, key, null);
+        assertEquals("secret value", string(store.get(bytes("secret key"))));
+        store.close();
+    }
+
+    @Test
+    public void testCounter() {
+        byte[] iv = new byte[16];
+        Arrays.fill(iv, 8, 16, (byte) 0xFF);
+        byte[] counter = PluginKeyValueStore.counter(iv, 1);
+        byte[] expected = new byte[16];
+        expected[7] = 1;
+        assertArrayEquals(expected, counter);
+        counter = PluginKeyValueStore.counter(new byte[16], 0x0102);
+        assertEquals(1, counter[14]);
+        assertEquals(2, counter[15]);
+    }
+
+    @Test
+    public void testInterrupted() throws IOException {
+        PluginKeyValueStore store = new PluginKeyValueStore(dir, key, null);
+        store.put(bytes("a"), bytes("apple"));
+        // Interrupting a thread closes the FileChannel it is using.
+        Thread.currentThread().interrupt();
+        try {
+            assertEquals("apple", string(store.get(bytes("a"))));
+            store.put(bytes("b"), bytes("banana"));
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals("banana", string(store.get(bytes("b"))));
+        store.close();
+        store = new PluginKeyValueStore(dir, key, null);
+        assertEquals("banana", string(store.get(bytes("b"))));
+        store.close();
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        PluginKeyValueStore store = new PluginKeyValueStore(dir, null, null);
+        PluginKeyValueStore.Batch batch = new PluginKeyValueStore.Batch();
+        for(int i=0;i<100;i++)
+            batch.put(new byte[] { (byte) (i * 2) }, bytes("value "+(i*2)));
+        store.write(batch);
+        PluginKeyValueStore.Cursor cursor = store.scan(new byte[] { 10 }, new byte[] { 20 });
+        for(int i=10;i<20;i+=2) {
+            assertTrue(cursor.next());
+            assertArrayEquals(new byte[] { (byte) i }, cursor.key());
+            assertEquals("value "+i, string(cursor.value()));
+        }
+        assertFalse(cursor.next());
+        // Unsigned ordering.
+        cursor = store.scan(new byte[] { (byte) 190 }, null);
+        int count = 0;
+        while(cursor.next()) count++;
+        assertEquals(5, count);
+        cursor = store.scan(null, new byte[] { 4 });
+        assertTrue(cursor.next());
+        assertArrayEquals(new byte[] { 0 }, cursor.key());
+        // Deleted after the cursor reached it.
+        assertTrue(cursor.next());
+        store.delete(new byte[] { 2 });
+        assertNull(cursor.value());
+        assertFalse(cursor.next());
+        store.close();
+    }
+
+    @Test
+    public void testTornWrite() throws IOException {
+        PluginKeyValueStore store = new PluginKeyValueStore(dir, key, null);
+        store.put(bytes("a"), bytes("first"));
+        store.close();
+        store = new PluginKeyValueStore(dir, key, null);
+        store.write(new PluginKeyValueStore.Batch().put(bytes("a"), bytes("second")).put(bytes("b"), bytes("second")));
+        store.close();
+        // Lose the end of the last batch.
+        File last = null;
+        for(File f : dir.listFiles()) {
+            if(last == null || f.getName().compareTo(last.getName()) > 0) last = f;
+        }
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+        store = new PluginKeyValueStore(dir, key, null);
+        // The whole batch is lost.
+        assertEquals("first", string(store.get(bytes("a"))));
+        assertNull(store.get(bytes("b")));
+        store.put(bytes("b"), bytes("third"));
+        store.close();
+        store = new PluginKeyValueStore(dir, key, null);
+        assertEquals("first", string(store.get(bytes("a"))));
+        assertEquals("third", string(store.get(bytes("b"))));
+        store.close();
+    }
+
+    @Test
+    public void testCorruption() throws IOException {
+        PluginKeyValueStore store = new PluginKeyValueStore(dir, null, null);
+        store.put(bytes("a"), bytes("first"));
+        store.put(bytes("b"), bytes("second"));
+        store.close();
+        File f = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        byte[] data = new byte[(int) raf.length()];
+        raf.readFully(data);
+        // Corrupt the first record, which is not at the end so isn't a torn write.
+        int i = new String(data, StandardCharsets.ISO_8859_1).indexOf("first");
+        raf.seek(i);
+        raf.write('F');
+        raf.close();
+        try {
+            new PluginKeyValueStore(dir, null, null);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        PluginKeyValueStore store = new PluginKeyValueStore(dir, key, null, 64 * 1024);
+        Random r = new Random(1234);
+        TreeMap<byte[], byte[]> expected = new TreeMap<byte[], byte[]>(new Fields.ByteArrayComparator());
+        for(int i=0;i<5000;i++) {
+            byte[] k = bytes("key "+r.nextInt(500));
+            if(r.nextInt(10) == 0) {
+                store.delete(k);
+                expected.remove(k);
+            } else {
+                byte[] v = new byte[r.nextInt(1000)];
+                r.nextBytes(v);
+                store.put(k, v);
+                expected.put(k, v);
+            }
+        }
+        long before = store.getTotalBytes();
+        assertTrue(before > 2 * store.getLiveBytes());
+        assertTrue(dir.listFiles().length > 10);
+        store.compact();
+        assertTrue(store.getTotalBytes() < before / 2);
+        assertTrue(store.getTotalBytes() < store.getLiveBytes() + 1024);
+        checkContents(store, expected);
+        // Compacting again does nothing useful but is harmless.
+        store.compact();
+        checkContents(store, expected);
+        store.close();
+        store = new PluginKeyValueStore(dir, key, null, 64 * 1024);
+        checkContents(store, expected);
+        store.close();
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        PooledExecutor executor = new PooledExecutor();
+        executor.start();
+        final PluginKeyValueStore store = new PluginKeyValueStore(dir, null, executor, 256 * 1024);
+        final TreeMap<byte[], byte[]> expected = new TreeMap<byte[], byte[]>(new Fields.ByteArrayComparator());
+        // Readers run during compaction.
+        final boolean[] failed = new boolean[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    byte[] k = bytes("constant");
+                    while(!isInterrupted()) {
+                        if(!Arrays.equals(k, store.get(k))) failed[0] = true;
+                    }
+                } catch (IOException e) {
+                    failed[0] = true;
+                }
+            }
+        };
+        store.put(bytes("constant"), bytes("constant"));
+        expected.put(bytes("constant"), bytes("constant"));
+        reader.start();
+        Random r = new Random(1234);
+        for(int i=0;i<20000;i++) {
+            byte[] k = bytes("key "+r.nextInt(200));
+            byte[] v = new byte[r.nextInt(500)];
+            r.nextBytes(v);
+            store.put(k, v);
+            expected.put(k, v);
+        }
+        reader.interrupt();
+        reader.join();
+        assertFalse(failed[0]);
+        // Without compaction there would be about 5MB. Compaction may not have caught up yet,
+        // but writes trigger it.
+        for(int i=0;i<100 && store.getTotalBytes() > 2 * 1024 * 1024;i++) {
+            Thread.sleep(100);
+            store.put(bytes("constant"), bytes("constant"));
+        }
+        assertTrue(store.getTotalBytes() < 2 * 1024 * 1024);
+        checkContents(store, expected);
+        store.close();
+        PluginKeyValueStore reopened = new PluginKeyValueStore(dir, null, null, 256 * 1024);
+        checkContents(reopened, expected);
+        reopened.close();
+    }
+
+    private void checkContents(PluginKeyValueStore store, TreeMap<byte[], byte[]> expected) throws IOException {
+        assertEquals(expected.size(), store.size());
+        PluginKeyValueStore.Cursor cursor = store.scan(null, null);
+        for(byte[] k : expected.keySet()) {
+            assertTrue(cursor.next());
+            assertArrayEquals(k, cursor.key());
+            assertArrayEquals(expected.get(k), cursor.value());
+            assertArrayEquals(expected.get(k), store.get(k));
+        }
+        assertFalse(cursor.next());
+    }
+
+    // ant -Dtest.skip=false -Dtest.class=freenet.pluginmanager.PluginKeyValueStoreTest -Dtest.benchmark=true unit
+    @Test
+    public void testBenchmark() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        Random r = new Random(1234);
+        for(int entries = 1000; entries <= 100000; entries *= 10) {
+            // Change 1% of the entries, then save and reload.
+            PluginStore pluginStore = new PluginStore();
+            for(int i=0;i<entries;i++) {
+                byte[] v = new byte[100];
+                r.nextBytes(v);
+                pluginStore.bytesArrays.put("key "+i, v);
+            }
+            long start = System.nanoTime();
+            for(int i=0;i<entries/100;i++) {
+                byte[] v = new byte[100];
+                r.nextBytes(v);
+                pluginStore.bytesArrays.put("key "+r.nextInt(entries), v);
+            }
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            pluginStore.exportStoreAsSFS().writeTo(os);
+            byte[] saved = os.toByteArray();
+            long written = System.nanoTime();
+            new PluginStore(SimpleFieldSet.readFrom(new ByteArrayInputStream(saved), false, false, true, true));
+            long read = System.nanoTime();
+            System.out.println("PluginStore, "+entries+" entries: update and save "+(written-start)/1000+"us ("+saved.length+" bytes), load "+(read-written)/1000+"us");
+
+            FileUtil.removeAll(dir);
+            PluginKeyValueStore store = new PluginKeyValueStore(dir, key, null);
+            PluginKeyValueStore.Batch batch = new PluginKeyValueStore.Batch();
+            for(int i=0;i<entries;i++) {
+                byte[] v = new byte[100];
+                r.nextBytes(v);
+                batch.put(bytes("key "+i), v);
+            }
+            store.write(batch);
+            store.close();
+            store = new PluginKeyValueStore(dir, key, null);
+            start = System.nanoTime();
+            batch.clear();
+            for(int i=0;i<entries/100;i++) {
+                byte[] v = new byte[100];
+                r.nextBytes(v);
+                batch.put(bytes("key "+r.nextInt(entries)), v);
+            }
+            store.write(batch);
+            store.close();
+            written = System.nanoTime();
+            store = new PluginKeyValueStore(dir, key, null);
+            read = System.nanoTime();
+            for(int i=0;i<1000;i++)
+                store.get(bytes("key "+r.nextInt(entries)));
+            long gets = System.nanoTime();
+            store.close();
+            System.out.println("PluginKeyValueStore, "+entries+" entries: update and save "+(written-start)/1000+"us, open "+(read-written)/1000+"us, 1000 random reads "+(gets-read)/1000+"us");
+        }
+    }
+
+}
@@ -49,10 +49,33 @@ public class BloomFilterTest {
 		_testFilterPositive(filter);
 	}
 
+	@Test
+	public void testBlockedCountingFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true, true);
+		_testFilterPositive(filter);
+	}
+
+	@Test
+	public void testBlockedBinaryFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false, true);
+		_testFilterPositive(filter);
+	}
+
 	@Test
 	public void testCountingFilterRemove() {
 		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
-		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true);
+		_testCountingFilterRemove(BloomFilter.createFilter(FILTER_SIZE, K, true));
+	}
+
+	@Test
+	public void testBlockedCountingFilterRemove() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testCountingFilterRemove(BloomFilter.createFilter(FILTER_SIZE, K, true, true));
+	}
+
+	private void _testCountingFilterRemove(BloomFilter filter) {
 
 		Map<ByteArrayWrapper, byte[]> baseList = new HashMap<ByteArrayWrapper, byte[]>();
 
@@ -156,4 +179,86 @@ public class BloomFilterTest {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	@Test
+	public void testBlockedCountingFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true, true);
+		_testFilterFalsePositive(filter);
+	}
+
+	@Test
+	public void testBlockedBinaryFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false, true);
+		_testFilterFalsePositive(filter);
+	}
+
+	@Test
+	public void testBlockedIndexesInOneBlock() {
+		// Large enough that each key's hashes would be spread out if not blocked.
+		final int size = 1024 * 1024;
+		for (int i = 0; i < 100; i++) {
+			BinaryBloomFilter filter = (BinaryBloomFilter) BloomFilter.createFilter(size, 8, false, true);
+			byte[] b = new byte[32];
+			rand.nextBytes(b);
+			filter.addKey(b);
+			int first = -1;
+			int count = 0;
+			for (int j = 0; j < size / 8; j++) {
+				if (filter.filter.get(j) == 0)
+					continue;
+				if (first == -1)
+					first = j;
+				assertEquals(first / BloomFilter.BLOCK_BYTES, j / BloomFilter.BLOCK_BYTES);
+				count += Integer.bitCount(filter.filter.get(j) & 0xFF);
+			}
+			assertTrue(count > 0 && count <= 8);
+			assertTrue(filter.checkFilter(b));
+		}
+	}
+
+	// ant -Dtest.skip=false -Dtest.class=freenet.support.BloomFilterTest -Dtest.benchmark=true unit
+	@Test
+	public void testBenchmark() {
+		if (!TestProperty.BENCHMARK) return;
+		// Typical of the splitfile main filter: 19 counting elements per key.
+		final int keys = 100 * 1000;
+		final int size = keys * 19;
+		final int k = 13;
+		byte[][] added = new byte[keys][32];
+		byte[][] absent = new byte[keys][32];
+		for (int i = 0; i < keys; i++) {
+			rand.nextBytes(added[i]);
+			rand.nextBytes(absent[i]);
+		}
+		for (boolean counting : new boolean[] { false, true }) {
+			for (boolean blocked : new boolean[] { false, true }) {
+				BloomFilter filter = BloomFilter.createFilter(size, k, counting, blocked);
+				for (byte[] b : added)
+					filter.addKey(b);
+				int falsePositives = 0;
+				long start = 0;
+				int lookups = 0;
+				for (int round = 0; round < 6; round++) {
+					// First round is warmup.
+					if (round == 1) {
+						start = System.nanoTime();
+						lookups = 0;
+						falsePositives = 0;
+					}
+					for (int i = 0; i < keys; i++) {
+						assertTrue(filter.checkFilter(added[i]));
+						if (filter.checkFilter(absent[i]))
+							falsePositives++;
+						lookups += 2;
+					}
+				}
+				long time = System.nanoTime() - start;
+				System.out.println((counting ? "Counting" : "Binary") + (blocked ? " blocked" : "") + ": " +
+						(lookups * 1000L * 1000 * 1000 / time) + " lookups/sec, false positives " +
+						((double) falsePositives / (lookups / 2)));
+			}
+		}
+	}
 }
@@ -0,0 +1,95 @@
+package freenet.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import freenet.support.Logger.LogLevel;
+
+public class FileLoggerHookTest {
+
+	/** Wait for the writer thread to write a line containing the given text. */
+	private static String waitFor(ByteArrayOutputStream out, String text) throws InterruptedException {
+		for(int i=0;i<200;i++) {
+			String written = new String(out.toByteArray(), StandardCharsets.UTF_8);
+			if(written.contains(text)) return written;
+			Thread.sleep(50);
+		}
+		throw new AssertionError("Not logged: "+text);
+	}
+
+	private static FileLoggerHook hook(ByteArrayOutputStream out, boolean ring) throws Exception {
+		FileLoggerHook hook = new FileLoggerHook(out, "d (c, t, p): m", "HH:mm:ss", LogLevel.MINOR);
+		if(ring) hook.useRingBuffer(16, 64, 4096);
+		hook.setMaxBacklogNotBusy(0);
+		hook.start();
+		return hook;
+	}
+
+	private void testText(boolean ring) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileLoggerHook hook = hook(out, ring);
+		hook.log(this, FileLoggerHookTest.class, "first message", null, LogLevel.NORMAL);
+		hook.log(this, FileLoggerHookTest.class, "not logged", null, LogLevel.DEBUG);
+		hook.log(this, FileLoggerHookTest.class, "with exception", new Exception("test"), LogLevel.ERROR);
+		hook.log(this, FileLoggerHookTest.class, "last message", null, LogLevel.MINOR);
+		hook.close();
+		String written = waitFor(out, "last message");
+		String[] lines = written.split("\n");
+		assertTrue(lines[0].matches("\\d\\d:\\d\\d:\\d\\d \\(freenet.support.FileLoggerHookTest, .*, NORMAL\\): first message"));
+		assertTrue(lines[1].endsWith("ERROR): with exception"));
+		assertEquals("java.lang.Exception: test", lines[2]);
+		assertTrue(lines[3].startsWith("\tat freenet.support.FileLoggerHookTest.testText"));
+		assertTrue(written.contains("MINOR): last message\n"));
+		assertTrue(!written.contains("not logged"));
+		assertEquals(0, hook.getDroppedLines());
+	}
+
+	@Test
+	public void testList() throws Exception {
+		testText(false);
+	}
+
+	@Test
+	public void testRingBuffer() throws Exception {
+		testText(true);
+	}
+
+	@Test
+	public void testJSONLines() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileLoggerHook hook = hook(out, true);
+		hook.setJSONLines(true);
+		hook.log(null, FileLoggerHookTest.class, "a \"quoted\"\tmessage\u0001", null, LogLevel.NORMAL);
+		hook.log(null, null, "with exception", new Exception("test"), LogLevel.ERROR);
+		hook.close();
+		String[] lines = waitFor(out, "with exception").split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0].matches("\\{\"time\":\"\\d\\d:\\d\\d:\\d\\d\",\"priority\":\"NORMAL\",\"class\":\"freenet.support.FileLoggerHookTest\",\"object\":null,\"thread\":\".*\",\"message\":\"a \\\\\"quoted\\\\\"\\\\tmessage\\\\u0001\"\\}"));
+		assertTrue(lines[1].startsWith("{\"time\":"));
+		assertTrue(lines[1].contains("\"class\":null"));
+		assertTrue(lines[1].contains(",\"throwable\":\"java.lang.Exception: test\\n\\tat freenet.support.FileLoggerHookTest.testJSONLines"));
+		assertTrue(lines[1].endsWith("\"}"));
+	}
+
+	@Test
+	public void testDroppedLines() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(out, "m", null, LogLevel.MINOR);
+		hook.useRingBuffer(4, 64, 4096);
+		// Not started yet, so nothing is written.
+		for(int i=0;i<10;i++)
+			hook.log(null, FileLoggerHookTest.class, "line "+i, null, LogLevel.NORMAL);
+		assertEquals(6, hook.getDroppedLines());
+		hook.setMaxBacklogNotBusy(0);
+		hook.start();
+		hook.close();
+		String written = waitFor(out, "line 3");
+		assertTrue(written.startsWith("GRRR: ERROR: Logging too fast, dropped 6 lines, 6 since startup\nline 0\nline 1\nline 2\nline 3\n"));
+	}
+
+}
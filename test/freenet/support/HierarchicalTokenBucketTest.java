@@ -0,0 +1,177 @@
+package freenet.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class HierarchicalTokenBucketTest {
+
+	@Test
+	public void testCeiling() {
+		HierarchicalTokenBucket htb = new HierarchicalTokenBucket(100000, 10000, 2);
+		htb.setChildRate(0, 0, 1000);
+		assertTrue(htb.mayGrab(0));
+		// 1100 bytes from a full bucket of 1000 at 1KB/sec is 100ms in debt.
+		htb.forceGrab(0, 1100);
+		assertFalse(htb.mayGrab(0));
+		assertFalse(htb.tryGrab(0, 100));
+		assertEquals(1, htb.getRefused(0));
+		long wait = htb.nanosUntilMayGrab(0);
+		assertTrue(wait > 0 && wait <= 101 * 1000 * 1000);
+		// The parent still has plenty.
+		assertTrue(htb.getCount() > 0);
+		assertTrue(htb.mayGrab(1));
+		assertEquals(1100, htb.getGrabbed(0));
+		assertEquals(0, htb.getGrabbed(1));
+	}
+
+	@Test
+	public void testAssuredWhenParentExhausted() {
+		HierarchicalTokenBucket htb = new HierarchicalTokenBucket(10000, 1000, 2);
+		htb.setChildRate(0, 5000, 10000);
+		htb.setChildRate(1, 0, 10000);
+		// The first grab uses the little that is assured, the second has to borrow.
+		assertTrue(htb.tryGrab(1, 1000));
+		htb.forceGrab(1, 1000);
+		assertTrue(htb.getCount() < 0);
+		assertEquals(2000, htb.getGrabbed(1));
+		assertEquals(1000, htb.getBorrowed(1));
+		// Child 1 can't borrow any more, but child 0 still has its guarantee.
+		assertFalse(htb.mayGrab(1));
+		assertTrue(htb.tryGrab(0, 1000));
+		assertEquals(0, htb.getBorrowed(0));
+		// Now both are exhausted.
+		assertFalse(htb.mayGrab(0));
+		assertFalse(htb.mayGrab(1));
+	}
+
+	@Test
+	public void testRefill() throws InterruptedException {
+		HierarchicalTokenBucket htb = new HierarchicalTokenBucket(10000, 1000, 1);
+		htb.setChildRate(0, 0, 10000);
+		htb.forceGrab(0, 1500);
+		assertFalse(htb.mayGrab(0));
+		long wait = htb.nanosUntilMayGrab(0);
+		assertTrue(wait > 0);
+		Thread.sleep(wait / (1000 * 1000) + 1);
+		assertTrue(htb.mayGrab(0));
+		// Debt is limited to one bucket, so a class which has been over its limit for a long
+		// time isn't locked out for a long time.
+		for(int i=0;i<100;i++)
+			htb.forceGrab(0, 1000);
+		assertTrue(htb.nanosUntilMayGrab(0) <= 100 * 1000 * 1000 + 1000 * 1000);
+	}
+
+	@Test
+	public void testChangeRate() {
+		HierarchicalTokenBucket htb = new HierarchicalTokenBucket(10000, 1000, 1);
+		htb.setChildRate(0, 0, 10000);
+		htb.forceGrab(0, 2000);
+		assertFalse(htb.mayGrab(0));
+		htb.setRate(1000000, 100000);
+		htb.setChildRate(0, 1000000, 1000000);
+		// Paying back the debt is faster now.
+		assertTrue(htb.nanosUntilMayGrab(0) <= 2 * 1000 * 1000);
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final HierarchicalTokenBucket htb = new HierarchicalTokenBucket(1000000, 10000, 4);
+		for(int i=0;i<4;i++)
+			htb.setChildRate(i, 100000, 1000000);
+		final long end = System.nanoTime() + 200 * 1000 * 1000;
+		final AtomicLong sent = new AtomicLong();
+		Thread[] threads = new Thread[4];
+		long start = System.nanoTime();
+		for(int t=0;t<threads.length;t++) {
+			final int child = t;
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					while(System.nanoTime() < end) {
+						if(htb.tryGrab(child, 100))
+							sent.addAndGet(100);
+						else
+							Thread.yield();
+					}
+				}
+
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		long elapsed = System.nanoTime() - start;
+		long total = 0;
+		for(int i=0;i<4;i++)
+			total += htb.getGrabbed(i);
+		assertEquals(sent.get(), total);
+		// Each bucket started full, and each thread can overshoot by one message.
+		long max = elapsed / 1000 + 4 * (10000 + 100) + 10000;
+		assertTrue("Sent "+total+" max "+max, total <= max);
+	}
+
+	// ant -Dtest.skip=false -Dtest.class=freenet.support.HierarchicalTokenBucketTest -Dtest.benchmark=true unit
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int grabs = 2000000;
+		for(final int threadCount : new int[] { 1, 4 }) {
+			// Effectively unlimited, so we time the bookkeeping rather than the limit.
+			final TokenBucket tb = new TokenBucket(Long.MAX_VALUE / 4, 1, Long.MAX_VALUE / 4);
+			long time = time(threadCount, grabs, new Runnable() {
+
+				@Override
+				public void run() {
+					tb.getCount();
+					tb.forceGrab(100);
+				}
+
+			});
+			System.out.println("TokenBucket, "+threadCount+" threads: "+(grabs * 1000000000L / time)+" grabs/sec");
+			final HierarchicalTokenBucket htb = new HierarchicalTokenBucket(1000000000, 1000000000, threadCount);
+			for(int i=0;i<threadCount;i++)
+				htb.setChildRate(i, 1000000000 / threadCount, 1000000000);
+			time = time(threadCount, grabs, new Runnable() {
+
+				private final AtomicLong counter = new AtomicLong();
+
+				@Override
+				public void run() {
+					htb.tryGrab((int) (counter.incrementAndGet() % threadCount), 100);
+				}
+
+			});
+			System.out.println("HierarchicalTokenBucket, "+threadCount+" threads: "+(grabs * 1000000000L / time)+" grabs/sec");
+		}
+	}
+
+	private static long time(int threadCount, final int grabs, final Runnable grab) throws InterruptedException {
+		Thread[] threads = new Thread[threadCount];
+		for(int t=0;t<threadCount;t++) {
+			final int count = grabs / threadCount;
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					for(int i=0;i<count;i++)
+						grab.run();
+				}
+
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,132 @@
+package freenet.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LogRingBufferTest {
+
+	private static String drainAll(LogRingBuffer ring) {
+		byte[] buf = new byte[ring.getMaxLineLength()];
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int length;
+		while((length = ring.drain(buf, 0)) > 0)
+			out.write(buf, 0, length);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testOrderAndReuse() {
+		LogRingBuffer ring = new LogRingBuffer(5, 16, 1024);
+		assertEquals(8, ring.capacity());
+		for(int round=0;round<10;round++) {
+			StringBuilder expected = new StringBuilder();
+			for(int i=0;i<8;i++) {
+				String line = "line "+round+" "+i+"\n";
+				assertTrue(ring.put(line));
+				expected.append(line);
+			}
+			assertEquals(8, ring.size());
+			assertEquals(expected.toString(), drainAll(ring));
+			assertEquals(0, ring.size());
+		}
+		assertEquals(0, ring.getDropped());
+	}
+
+	@Test
+	public void testDropped() {
+		LogRingBuffer ring = new LogRingBuffer(4, 16, 1024);
+		for(int i=0;i<4;i++)
+			assertTrue(ring.put(i+"\n"));
+		assertFalse(ring.put("4\n"));
+		assertFalse(ring.put("5\n"));
+		assertEquals(2, ring.getDropped());
+		assertEquals("0\n1\n2\n3\n", drainAll(ring));
+		assertTrue(ring.put("6\n"));
+		assertEquals("6\n", drainAll(ring));
+		assertEquals(2, ring.getDropped());
+	}
+
+	@Test
+	public void testLongLines() {
+		LogRingBuffer ring = new LogRingBuffer(2, 8, 64);
+		// Grows to fit.
+		String line = "0123456789012345678901234567890\n";
+		ring.put(line);
+		assertEquals(line, drainAll(ring));
+		// Exactly fits.
+		char[] chars = new char[63];
+		Arrays.fill(chars, 'x');
+		line = new String(chars)+"\n";
+		ring.put(line);
+		assertEquals(line, drainAll(ring));
+		// Truncated.
+		ring.put("x"+line);
+		String truncated = drainAll(ring);
+		assertEquals(64, truncated.length());
+		assertTrue(truncated.endsWith("...\n"));
+	}
+
+	@Test
+	public void testUTF8() {
+		LogRingBuffer ring = new LogRingBuffer(4, 8, 1024);
+		String line = "café € 😀 \ud83d bad\n";
+		ring.put(line);
+		assertEquals(line.replace(" \ud83d ", " ? "), drainAll(ring));
+		// Never splits a character when truncating.
+		ring = new LogRingBuffer(2, 8, 16);
+		ring.put("€€€€€€\n");
+		assertEquals("€€€€...\n", drainAll(ring));
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final LogRingBuffer ring = new LogRingBuffer(64, 32, 1024);
+		final int threads = 4;
+		final int lines = 5000;
+		List<Thread> writers = new ArrayList<Thread>();
+		for(int t=0;t<threads;t++) {
+			final int thread = t;
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0;i<lines;i++) {
+						while(!ring.put(thread+" "+i+"\n"))
+							Thread.yield();
+					}
+				}
+			};
+			writers.add(writer);
+			writer.start();
+		}
+		int[] next = new int[threads];
+		byte[] buf = new byte[1024];
+		StringBuilder partial = new StringBuilder();
+		int received = 0;
+		while(received < threads * lines) {
+			int length = ring.drain(buf, 100);
+			partial.append(new String(buf, 0, length, StandardCharsets.UTF_8));
+			int end;
+			while((end = partial.indexOf("\n")) != -1) {
+				String[] parts = partial.substring(0, end).split(" ");
+				partial.delete(0, end + 1);
+				int thread = Integer.parseInt(parts[0]);
+				// Each thread's lines arrive in order.
+				assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+				received++;
+			}
+		}
+		for(Thread writer : writers)
+			writer.join();
+		assertEquals(0, ring.size());
+	}
+
+}
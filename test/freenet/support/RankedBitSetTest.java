@@ -0,0 +1,86 @@
+package freenet.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RankedBitSetTest {
+
+	private static void check(RankedBitSet set, BitSet expected) {
+		assertEquals(expected.cardinality(), set.cardinality());
+		int rank = 0;
+		for(int i = 0; i <= set.size(); i++) {
+			assertEquals(rank, set.countBelow(i));
+			if(i == set.size()) break;
+			assertEquals(expected.get(i), set.get(i));
+			if(expected.get(i)) {
+				assertEquals(i, set.select(rank));
+				rank++;
+			}
+		}
+	}
+
+	@Test
+	public void testRandom() {
+		Random random = new Random(1);
+		for(int size : new int[] { 1, 63, 64, 65, 127, 128, 1000, 4097 }) {
+			RankedBitSet set = new RankedBitSet(size);
+			BitSet expected = new BitSet(size);
+			check(set, expected);
+			for(int i = 0; i < size * 3; i++) {
+				int index = random.nextInt(size);
+				if(random.nextBoolean()) {
+					assertEquals(!expected.get(index), set.set(index));
+					expected.set(index);
+				} else {
+					assertEquals(expected.get(index), set.clear(index));
+					expected.clear(index);
+				}
+				if(i % (size / 8 + 1) == 0) check(set, expected);
+			}
+			check(set, expected);
+			set.clearAll();
+			check(set, new BitSet(size));
+		}
+	}
+
+	@Test
+	public void testEmpty() {
+		RankedBitSet set = new RankedBitSet(0);
+		assertEquals(0, set.cardinality());
+		assertEquals(0, set.countBelow(10));
+		try {
+			set.select(0);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testOutOfRange() {
+		RankedBitSet set = new RankedBitSet(100);
+		set.set(99);
+		assertFalse(set.set(99));
+		assertEquals(1, set.countBelow(1000));
+		assertEquals(0, set.countBelow(-1));
+		try {
+			set.set(100);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// Expected.
+		}
+		try {
+			set.select(1);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -5,7 +5,10 @@ package freenet.support;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -48,6 +51,32 @@ public class SparseBitmapTest {
 		assertFalse(s.contains(1, 1));
 	}
 
+	@Test
+	public void testIteratorRemove() {
+		SparseBitmap s = new SparseBitmap();
+		s.add(0, 1);
+		s.add(5, 6);
+		s.add(10, 11);
+		Iterator<int[]> it = s.iterator();
+		try {
+			it.remove();
+			fail("Removed before next()");
+		} catch (IllegalStateException e) {}
+		assertArrayEquals(new int[] {0, 1}, it.next());
+		assertArrayEquals(new int[] {5, 6}, it.next());
+		it.remove();
+		try {
+			it.remove();
+			fail("Removed twice");
+		} catch (IllegalStateException e) {}
+		assertArrayEquals(new int[] {10, 11}, it.next());
+		assertFalse(it.hasNext());
+		assertTrue(s.contains(0, 1));
+		assertFalse(s.contains(5, 5));
+		assertFalse(s.contains(6, 6));
+		assertTrue(s.contains(10, 11));
+	}
+
 	@Test
 	public void testRemove() {
 		SparseBitmap s = new SparseBitmap();
@@ -181,4 +210,117 @@ public class SparseBitmapTest {
 		s.add(1, 2);
 		s.remove(0, 3);
 	}
+
+	@Test
+	public void testRanges() {
+		SparseBitmap s = new SparseBitmap();
+		assertEquals(0, s.rangeCount());
+		s.add(10, 20);
+		s.add(0, 5);
+		s.add(30, 30);
+		assertEquals(3, s.rangeCount());
+		assertEquals(0, s.rangeStart(0));
+		assertEquals(5, s.rangeEnd(0));
+		assertEquals(10, s.rangeStart(1));
+		assertEquals(20, s.rangeEnd(1));
+		assertEquals(30, s.rangeStart(2));
+		assertEquals(30, s.rangeEnd(2));
+		s.remove(15, 15);
+		assertEquals(4, s.rangeCount());
+		assertEquals(14, s.rangeEnd(1));
+		assertEquals(16, s.rangeStart(2));
+		try {
+			s.rangeStart(4);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testRandom() {
+		Random random = new Random(1);
+		SparseBitmap s = new SparseBitmap();
+		BitSet expected = new BitSet();
+		for(int i = 0; i < 5000; i++) {
+			int start = random.nextInt(500);
+			int end = start + random.nextInt(20);
+			if(random.nextInt(3) == 0) {
+				s.remove(start, end);
+				expected.clear(start, end + 1);
+			} else {
+				s.add(start, end);
+				expected.set(start, end + 1);
+			}
+			if(i % 100 == 0) check(s, expected);
+		}
+		check(s, expected);
+		SparseBitmap copy = new SparseBitmap(s);
+		s.clear();
+		assertTrue(s.isEmpty());
+		check(copy, expected);
+	}
+
+	private static void check(SparseBitmap s, BitSet expected) {
+		int range = 0;
+		for(int start = expected.nextSetBit(0); start >= 0; start = expected.nextSetBit(start)) {
+			int end = expected.nextClearBit(start) - 1;
+			assertEquals(start, s.rangeStart(range));
+			assertEquals(end, s.rangeEnd(range));
+			assertTrue(s.contains(start, end));
+			assertFalse(s.contains(start, end + 1));
+			range++;
+			start = end + 1;
+		}
+		assertEquals(range, s.rangeCount());
+		for(int i = 0; i < 550; i += 7)
+			assertEquals(expected.get(i, i + 7).cardinality(), 7 - s.notOverlapping(i, i + 6));
+	}
+
+	// ant -Dtest.skip=false -Dtest.class=freenet.support.SparseBitmapTest -Dtest.benchmark=true unit
+	@Test
+	public void testAllocationBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		// Warm up, then measure.
+		simulateWindow(10000);
+		long before = bean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		simulateWindow(10000);
+		long time = System.nanoTime() - start;
+		long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+		System.out.println("SparseBitmap: "+allocated+" bytes allocated, "+(time / 1000)+"us for 10000 packets");
+	}
+
+	/** Receive 10000 packets, slightly out of order, as NewPacketFormat does: add each one,
+	 * advance the window pointer over everything received, and remove what it has passed.
+	 * Each packet also acks a range of up to 32, as MessageWrapper does. */
+	private static void simulateWindow(int packets) {
+		Random random = new Random(1);
+		SparseBitmap received = new SparseBitmap();
+		SparseBitmap acks = new SparseBitmap();
+		int[] order = new int[packets];
+		for(int i = 0; i < packets; i++) order[i] = i;
+		// Reorder within a small distance.
+		for(int i = 0; i < packets; i++) {
+			int j = Math.min(packets - 1, i + random.nextInt(16));
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+		int windowPtr = 0;
+		for(int i = 0; i < packets; i++) {
+			int id = order[i];
+			received.add(id, id);
+			int oldWindow = windowPtr;
+			while(received.contains(windowPtr, windowPtr)) windowPtr++;
+			received.remove(oldWindow, windowPtr);
+			acks.add(id * 32, id * 32 + random.nextInt(32));
+			for(int r = 0; r < acks.rangeCount(); r++)
+				if(acks.rangeEnd(r) < acks.rangeStart(r)) fail();
+			if(acks.rangeCount() > 64) acks.remove(0, acks.rangeStart(acks.rangeCount() / 2));
+		}
+		assertEquals(packets, windowPtr);
+	}
 }
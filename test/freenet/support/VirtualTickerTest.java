@@ -0,0 +1,77 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class VirtualTickerTest {
+
+	private static class Recorder implements Runnable {
+		final List<String> log;
+		final String name;
+		final VirtualTicker ticker;
+
+		Recorder(VirtualTicker ticker, List<String> log, String name) {
+			this.ticker = ticker;
+			this.log = log;
+			this.name = name;
+		}
+
+		@Override
+		public void run() {
+			log.add(name + "@" + ticker.currentTimeMillis());
+		}
+	}
+
+	@Test
+	public void testOrdering() {
+		VirtualTicker ticker = new VirtualTicker(100);
+		List<String> log = new ArrayList<String>();
+		ticker.queueTimedJob(new Recorder(ticker, log, "c"), 30);
+		ticker.queueTimedJob(new Recorder(ticker, log, "a"), 10);
+		ticker.queueTimedJob(new Recorder(ticker, log, "b"), 10);
+		ticker.queueTimedJobAbsolute(new Recorder(ticker, log, "d"), "d", 50, false, false);
+		assertEquals(100, ticker.nextJobTime());
+		assertEquals(3, ticker.runUntil(110));
+		assertEquals(110, ticker.currentTimeMillis());
+		assertEquals(1, ticker.runFor(100));
+		assertEquals(210, ticker.currentTimeMillis());
+		assertEquals("[d@100, a@110, b@110, c@130]", log.toString());
+		assertEquals(Long.MAX_VALUE, ticker.nextJobTime());
+	}
+
+	@Test
+	public void testRemoveAndNoDupes() {
+		VirtualTicker ticker = new VirtualTicker();
+		List<String> log = new ArrayList<String>();
+		Recorder a = new Recorder(ticker, log, "a");
+		Recorder b = new Recorder(ticker, log, "b");
+		ticker.queueTimedJob(a, 5);
+		ticker.queueTimedJob(a, "a", 1, false, true);
+		ticker.queueTimedJob(b, 5);
+		ticker.removeQueuedJob(b);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.runAll();
+		assertEquals("[a@5]", log.toString());
+	}
+
+	@Test
+	public void testJobsScheduledWhileRunning() {
+		final VirtualTicker ticker = new VirtualTicker();
+		final List<String> log = new ArrayList<String>();
+		ticker.queueTimedJob(new Runnable() {
+			@Override
+			public void run() {
+				ticker.queueTimedJob(new Recorder(ticker, log, "later"), 10);
+				ticker.getExecutor().execute(new Recorder(ticker, log, "now"));
+			}
+		}, 5);
+		assertEquals(3, ticker.runUntil(20));
+		assertEquals("[now@5, later@15]", log.toString());
+		assertEquals(3, ticker.jobsRun());
+	}
+
+}
@@ -6,11 +6,14 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import freenet.support.TestProperty;
+import freenet.support.TimeUtil;
 import freenet.support.api.LockableRandomAccessBuffer.RAFLock;
 import freenet.support.io.PooledFileRandomAccessBuffer.FDTracker;
 
@@ -297,6 +300,104 @@ public class PooledFileRandomAccessBufferTest extends RandomAccessBufferTestBase
         b.free();
     }
     
+    /** Files used since the clock hand last passed get a second chance. */
+    @Test
+    public void testClockEviction() throws IOException {
+        int sz = 1024;
+        fds.setMaxFDs(3);
+        PooledFileRandomAccessBuffer a = construct(sz);
+        PooledFileRandomAccessBuffer b = construct(sz);
+        PooledFileRandomAccessBuffer c = construct(sz);
+        assertEquals(3, fds.getOpenFDs());
+        assertEquals(3, fds.getOpens());
+        assertEquals(0, fds.getEvictions());
+        byte[] buf = new byte[sz];
+        a.pread(0, buf, 0, sz);
+        assertEquals(1, fds.getReuses());
+        PooledFileRandomAccessBuffer d = construct(sz);
+        // a was used, so b goes first.
+        assertTrue(a.isOpen());
+        assertFalse(b.isOpen());
+        assertTrue(c.isOpen());
+        assertTrue(d.isOpen());
+        assertEquals(3, fds.getOpenFDs());
+        assertEquals(4, fds.getOpens());
+        assertEquals(1, fds.getEvictions());
+        b.pread(0, buf, 0, sz);
+        assertFalse(c.isOpen());
+        assertEquals(2, fds.getEvictions());
+        assertEquals(3, fds.getClosableFDs());
+        for(PooledFileRandomAccessBuffer raf : new PooledFileRandomAccessBuffer[] { a, b, c, d })
+            raf.free();
+        assertEquals(0, fds.getOpenFDs());
+        assertEquals(0, fds.getClosableFDs());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        readConcurrently(50, 8, 4, 200, 1024);
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        // ant -Dtest.skip=false -Dtest.class=freenet.support.io.PooledFileRandomAccessBufferTest -Dtest.benchmark=true unit
+        for(int max : new int[] { 100, 500, PooledFileRandomAccessBuffer.getAutoMaxFDs() })
+            readConcurrently(2000, max, 16, 20000, 16384);
+    }
+
+    /** Several threads read random files, mostly from a small hot set, and check the contents.
+     * The first bytes of each file are its index. */
+    private void readConcurrently(int files, int maxFDs, int threads, final int reads, final int sz) throws Exception {
+        fds = new FDTracker(maxFDs);
+        final PooledFileRandomAccessBuffer[] rafs = new PooledFileRandomAccessBuffer[files];
+        byte[] buf = new byte[sz];
+        for(int i=0;i<files;i++) {
+            rafs[i] = construct(sz);
+            buf[0] = (byte) (i >> 8);
+            buf[1] = (byte) i;
+            rafs[i].pwrite(0, buf, 0, sz);
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[threads];
+        long start = System.nanoTime();
+        for(int t=0;t<threads;t++) {
+            final Random random = new Random(t);
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[Math.min(sz, 4096)];
+                    try {
+                        for(int i=0;i<reads;i++) {
+                            int index = random.nextInt(random.nextInt(10) == 0 ? rafs.length : rafs.length / 10);
+                            rafs[index].pread(0, buf, 0, buf.length);
+                            if(((buf[0] & 0xFF) << 8 | (buf[1] & 0xFF)) != index)
+                                throw new AssertionError("Wrong data from file "+index);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for(Thread reader : readers)
+            reader.join();
+        long time = System.nanoTime() - start;
+        if(failure.get() != null) throw new AssertionError(failure.get());
+        assertTrue(fds.getOpenFDs() <= maxFDs);
+        // Each file was locked once when created and once when written.
+        assertEquals((long) threads * reads + 2 * files, fds.getOpens() + fds.getReuses());
+        if(TestProperty.BENCHMARK)
+            System.out.println(files+" files, "+threads+" threads, limit "+maxFDs+": "+
+                    (long) threads * reads * 1000000000L / time+" reads/sec in "+
+                    TimeUtil.formatTime(time / 1000000, 3, true)+", opens "+fds.getOpens()+
+                    " reuses "+fds.getReuses()+" evictions "+fds.getEvictions());
+        for(PooledFileRandomAccessBuffer raf : rafs)
+            raf.free();
+        assertEquals(0, fds.getOpenFDs());
+    }
+
     // FIXME more tests???
     
 }
@@ -3,6 +3,9 @@ package freenet.support.io;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.Test;
@@ -228,6 +231,65 @@ public abstract class RandomAccessBufferTestBase {
         raf.free();
     }
 
+    @Test
+    public void testVectored() throws IOException {
+        Random r = new Random(1515);
+        for(int size : sizeList)
+            innerTestVectored(size, r);
+    }
+
+    /** Write some of the blocks of a buffer in random order with pwritev(), check them with 
+     * pread(), then read them back in a different order with preadv(). */
+    protected void innerTestVectored(int len, Random r) throws IOException {
+        if(len == 0) return;
+        RandomAccessBuffer raf = construct(len);
+        int blockSize = Math.max(1, len / 16);
+        int blocks = len / blockSize;
+        // Skip some blocks, so that some ranges are adjacent and some aren't.
+        List<Integer> used = new ArrayList<Integer>();
+        for(int i=0;i<blocks;i++)
+            if(r.nextInt(4) != 0) used.add(i);
+        Collections.shuffle(used, r);
+        long[] offsets = new long[used.size()];
+        byte[][] bufs = new byte[used.size()][];
+        for(int i=0;i<offsets.length;i++) {
+            offsets[i] = used.get(i) * (long) blockSize;
+            bufs[i] = new byte[blockSize];
+            r.nextBytes(bufs[i]);
+        }
+        raf.pwritev(offsets, bufs);
+        byte[] tmp = new byte[blockSize];
+        for(int i=0;i<offsets.length;i++) {
+            raf.pread(offsets[i], tmp, 0, blockSize);
+            assertArrayEquals(bufs[i], tmp);
+        }
+        Collections.shuffle(used, r);
+        byte[][] read = new byte[used.size()][];
+        for(int i=0;i<offsets.length;i++) {
+            offsets[i] = used.get(i) * (long) blockSize;
+            read[i] = new byte[blockSize];
+        }
+        raf.preadv(offsets, read);
+        for(int i=0;i<offsets.length;i++) {
+            raf.pread(offsets[i], tmp, 0, blockSize);
+            assertArrayEquals(tmp, read[i]);
+        }
+        try {
+            raf.preadv(new long[] { 0 }, new byte[0][]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            raf.preadv(new long[] { -1 }, new byte[][] { tmp });
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        raf.close();
+        raf.free();
+    }
+
     /** Check that the array section equals the read data, then write it and repeat the check. */
     public static void checkArraySectionEqualsReadData(byte[] buf, RandomAccessBuffer raf, int start, int end, boolean readOnly) throws IOException {
         int len = end - start;